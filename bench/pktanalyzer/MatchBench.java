@@ -0,0 +1,120 @@
+/*
+ * MatchBench.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Scan throughput of SignatureMatcher on one core, for the ways a payload
+ * can reach it: copied out of a direct buffer into an array segment by
+ * segment, as SignatureTracker used to, and read in place from a heap or
+ * a direct buffer, as it does now.
+ *
+ * The payload is random lower case text cut into segments of a typical
+ * size, and the signatures are random words of 8 to 16 letters, so the
+ * automaton is large but matches are rare. Each variant is run for a
+ * number of rounds after a warm-up and the best round is reported.
+ *
+ * usage: java pktanalyzer.MatchBench [signatures] [MB] [rounds]
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class MatchBench implements SignatureMatcher.Hits {
+	// bytes per scan call, about one full size segment
+	static final int SEGMENT = 1460;
+
+	private long matches;
+
+	@Override
+	public void match(int signature, int end) {
+		matches++;
+	}
+
+	public static void main(String[] args) {
+		int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		Random random = new Random(1);
+
+		List<String> names = new ArrayList<>();
+		List<byte[]> signatures = new ArrayList<>();
+
+		for (int i = 0; i < count; i++) {
+			byte[] s = text(random, 8 + random.nextInt(9));
+
+			names.add(new String(s));
+			signatures.add(s);
+		}
+
+		SignatureMatcher m = new SignatureMatcher(names, signatures, false);
+		byte[] data = text(random, megabytes << 20);
+		ByteBuffer heap = ByteBuffer.wrap(data);
+		ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+
+		direct.put(0, data);
+
+		System.out.println("MATCH: signatures = " + count + ", states = "
+			+ m.states() + ", " + megabytes + " MB in " + SEGMENT
+			+ " byte segments, best of " + rounds);
+
+		MatchBench bench = new MatchBench();
+		byte[] payload = new byte[65536];
+
+		for (int variant = 0; variant < 3; variant++) {
+			long best = Long.MAX_VALUE;
+
+			// the first rounds are warm-up
+			for (int r = -3; r < rounds; r++) {
+				long start = System.nanoTime();
+				int state = SignatureMatcher.START;
+
+				for (int from = 0; from < data.length; from += SEGMENT) {
+					int to = Math.min(from + SEGMENT, data.length);
+
+					if (variant == 0) {
+						direct.get(from, payload, 0, to - from);
+						state = m.scan(payload, 0, to - from, state, bench);
+					} else {
+						state = m.scan(variant == 1 ? heap : direct, from, to,
+							state, bench);
+					}
+				}
+
+				if (r >= 0) {
+					best = Math.min(best, System.nanoTime() - start);
+				}
+			}
+
+			String name = variant == 0 ? "copied" : variant == 1 ? "heap"
+				: "direct";
+
+			System.out.println(String.format("MATCH: %-8s %8.2f GB/s",
+				name, (double) data.length / best));
+		}
+
+		// keeps the scans from being optimised away
+		System.out.println("MATCH: matches = " + bench.matches);
+	}
+
+	private static byte[] text(Random random, int n) {
+		byte[] b = new byte[n];
+
+		for (int i = 0; i < n; i++) {
+			b[i] = (byte) ('a' + random.nextInt(26));
+		}
+
+		return b;
+	}
+}
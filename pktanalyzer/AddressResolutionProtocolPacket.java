@@ -0,0 +1,157 @@
+/*
+ * AddressResolutionProtocolPacket.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This class parses an ARP packet from the provided bytes. Only Ethernet
+ * and IPv4 addresses are decoded; other hardware and protocol types are
+ * shown by their numbers.
+ *
+ * Reference: https://en.wikipedia.org/wiki/Address_Resolution_Protocol
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class AddressResolutionProtocolPacket {
+	// hardware type, 1 for Ethernet
+	private int hardwareType;
+
+	// protocol type, 0x0800 for IPv4
+	private int protocolType;
+
+	// address lengths
+	private int hardwareLength;
+	private int protocolLength;
+
+	// 1 request, 2 reply
+	private int operation;
+
+	// sender and target addresses
+	private long senderMac;
+	private int senderIP;
+	private long targetMac;
+	private int targetIP;
+
+	AddressResolutionProtocolPacket(byte[] data) throws Exception {
+		if (data.length < 8) {
+			throw new IllegalArgumentException("ARP packet too short: "
+				+ data.length + " bytes");
+		}
+
+		ByteBuffer b = ByteBuffer.wrap(data);
+
+		hardwareType = FrameLayout.u16(b, 0);
+		protocolType = FrameLayout.u16(b, 2);
+		hardwareLength = FrameLayout.u8(b, 4);
+		protocolLength = FrameLayout.u8(b, 5);
+		operation = FrameLayout.u16(b, 6);
+
+		// addresses only for Ethernet and IPv4
+		if (ethernetIPv4() && data.length >= FrameLayout.ARP_LENGTH) {
+			senderMac = FrameLayout.u48(b, 8);
+			senderIP = FrameLayout.u32(b, 14);
+			targetMac = FrameLayout.u48(b, 18);
+			targetIP = FrameLayout.u32(b, 24);
+		}
+	}
+
+	public boolean ethernetIPv4() {
+		return hardwareType == 1 && protocolType == FrameLayout.ETHERTYPE_IP
+			&& hardwareLength == 6 && protocolLength == 4;
+	}
+
+	/**
+	 * A gratuitous ARP announces the sender's own binding: the sender and
+	 * target protocol addresses are the same.
+	 */
+	public boolean gratuitous() {
+		return ethernetIPv4() && senderIP == targetIP;
+	}
+
+	static String operationLabel(int operation) {
+		switch (operation) {
+			case FrameLayout.ARP_REQUEST:
+				return "request";
+
+			case FrameLayout.ARP_REPLY:
+				return "reply";
+
+			case 3:
+				return "RARP request";
+
+			case 4:
+				return "RARP reply";
+
+			default:
+				return "unknown";
+		}
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("ARP: ----- ARP Header -----\n");
+		sb.append("ARP:                       \n");
+		sb.append("ARP: Hardware type = " + hardwareType()
+			+ (hardwareType() == 1 ? " (Ethernet)" : "") + "\n");
+		sb.append("ARP: Protocol type = " + String.format("0x%04x",
+			protocolType()) + (protocolType() == FrameLayout.ETHERTYPE_IP
+			? " (IP)" : "") + "\n");
+		sb.append("ARP: Hardware address length = " + hardwareLength + "\n");
+		sb.append("ARP: Protocol address length = " + protocolLength + "\n");
+		sb.append("ARP: Operation = " + operation() + " ("
+			+ operationLabel(operation()) + ")"
+			+ (gratuitous() ? ", gratuitous" : "") + "\n");
+
+		if (ethernetIPv4()) {
+			sb.append("ARP: Sender MAC address = "
+				+ FrameLayout.formatMac(senderMac()) + "\n");
+			sb.append("ARP: Sender IP address = "
+				+ FrameLayout.formatIP(senderIP()) + "\n");
+			sb.append("ARP: Target MAC address = "
+				+ FrameLayout.formatMac(targetMac()) + "\n");
+			sb.append("ARP: Target IP address = "
+				+ FrameLayout.formatIP(targetIP()) + "\n");
+		}
+
+		return sb.toString();
+	}
+
+	public int hardwareType() {
+		return hardwareType;
+	}
+
+	public int protocolType() {
+		return protocolType;
+	}
+
+	public int operation() {
+		return operation;
+	}
+
+	public long senderMac() {
+		return senderMac;
+	}
+
+	public int senderIP() {
+		return senderIP;
+	}
+
+	public long targetMac() {
+		return targetMac;
+	}
+
+	public int targetIP() {
+		return targetIP;
+	}
+}
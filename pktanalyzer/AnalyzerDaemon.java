@@ -0,0 +1,391 @@
+/*
+ * AnalyzerDaemon.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a warmed-up analyzer resident and runs jobs sent to it over a
+ * Unix domain socket, so scripts do not pay for JVM startup and JIT warm-up
+ * on every capture.
+ *
+ * A job is one line of tab separated fields: the client's working
+ * directory followed by the usual pktanalyzer arguments. If the arguments
+ * start with "-o file" the output is written to that file, otherwise it is
+ * streamed back on the connection. Either way the reply ends with a
+ * trailer: a NUL byte, "ERR", the length of what the job wrote to its err
+ * stream and a newline, those bytes, then "EXIT", the exit status and a
+ * newline. The client writes the err part to its own stderr, so output and
+ * errors end up where they would without the daemon. Jobs run concurrently
+ * on a fixed pool. Modes that do not end by themselves are refused, and
+ * the socket is created so that only its owner can connect.
+ *
+ * Since the request is plain text, any client that can write to a socket
+ * works, e.g.
+ *
+ *   printf '%s\t%s\n' "$PWD" pkt/tcp2a.bin | nc -U /tmp/pktanalyzer.sock
+ *
+ * and pktanalyzer.main itself becomes a thin client when PKTANALYZER_SOCKET
+ * is set. Arguments holding a tab or a newline cannot be sent this way and
+ * are run locally instead.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class AnalyzerDaemon {
+	// start the trailer of a reply and its status line
+	static final String ERR = "\0ERR ";
+	static final String EXIT = "EXIT ";
+
+	// longest request line accepted
+	static final int MAX_REQUEST = 64 * 1024;
+
+	// passes over each warm-up file
+	static final int WARMUP_ROUNDS = 2000;
+
+	private final Path socket;
+	private final ExecutorService jobs;
+
+	AnalyzerDaemon(Path socket, int threads) {
+		this.socket = socket;
+		jobs = Executors.newFixedThreadPool(threads);
+	}
+
+	/**
+	 * Runs jobs over the given captures until the decode path is compiled.
+	 */
+	void warmUp(List<Path> captures) {
+		PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+		Path dir = Paths.get("").toAbsolutePath();
+
+		for (Path p : captures) {
+			for (int i = 0; i < WARMUP_ROUNDS; i++) {
+				pktanalyzer.run(new String[] {p.toString()}, dir, sink, sink);
+			}
+
+			pktanalyzer.run(new String[] {"--batch", p.toString()}, dir, sink,
+				sink);
+		}
+	}
+
+	/**
+	 * Accepts connections until the process is killed.
+	 */
+	void listen() throws IOException {
+		Files.deleteIfExists(socket);
+
+		try (ServerSocketChannel server
+				= ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+			bind(server);
+
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try {
+					Files.deleteIfExists(socket);
+				} catch (IOException e) {
+					// nothing left to do on the way out
+				}
+			}));
+
+			System.err.println("DAEMON: listening on " + socket);
+
+			while (true) {
+				SocketChannel client = server.accept();
+				jobs.submit(() -> handle(client));
+			}
+		}
+	}
+
+	/**
+	 * Binds the socket so that only its owner can connect. A job runs with
+	 * the daemon's rights over any path it names, so the socket must not be
+	 * reachable by other users, even briefly. It is bound in a directory
+	 * only the owner can enter, made owner-only there and then moved into
+	 * place.
+	 */
+	private void bind(ServerSocketChannel server) throws IOException {
+		Path parent = socket.toAbsolutePath().getParent();
+		Path hidden = Files.createTempDirectory(parent, ".pktanalyzer",
+			PosixFilePermissions.asFileAttribute(
+				PosixFilePermissions.fromString("rwx------")));
+
+		try {
+			Path bound = hidden.resolve("sock");
+
+			server.bind(UnixDomainSocketAddress.of(bound));
+			Files.setPosixFilePermissions(bound,
+				PosixFilePermissions.fromString("rw-------"));
+			Files.move(bound, socket, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(hidden);
+		}
+	}
+
+	private void handle(SocketChannel client) {
+		try (SocketChannel ch = client) {
+			InputStream in = Channels.newInputStream(ch);
+			OutputStream reply = Channels.newOutputStream(ch);
+			PrintStream out = new PrintStream(new BufferedOutputStream(reply),
+				false, StandardCharsets.UTF_8);
+
+			// errors are held back and sent in the trailer
+			ByteArrayOutputStream errors = new ByteArrayOutputStream();
+			PrintStream err = new PrintStream(errors, false,
+				StandardCharsets.UTF_8);
+			String line = readLine(in);
+			int status;
+
+			if (line == null) {
+				err.println("Empty request");
+				status = 1;
+			} else {
+				status = job(line.split("\t"), out, err);
+			}
+
+			err.flush();
+			out.print(ERR + errors.size() + "\n");
+			errors.writeTo(out);
+			out.print(EXIT + status + "\n");
+			out.flush();
+		} catch (IOException e) {
+			// client went away, nothing to report to
+		}
+	}
+
+	private int job(String[] fields, PrintStream reply, PrintStream err) {
+		if (fields.length < 2) {
+			err.println("Usage:");
+			err.println("      <dir>\\t<pktanalyzer arguments>");
+			return 1;
+		}
+
+		Path dir = Paths.get(fields[0]);
+		String[] args = Arrays.copyOfRange(fields, 1, fields.length);
+		String mode = args[0].equals("-o") && args.length > 2 ? args[2]
+			: args[0];
+
+		if (!accepted(mode)) {
+			err.println(mode + " does not end on its own and cannot run"
+				+ " as a daemon job");
+			return 1;
+		}
+
+		if (args[0].equals("-o") && args.length > 2) {
+			// write to a file, reply with the status only
+			try (PrintStream file = new PrintStream(new BufferedOutputStream(
+					new FileOutputStream(dir.resolve(args[1]).toFile())),
+					false, StandardCharsets.UTF_8)) {
+				return pktanalyzer.run(Arrays.copyOfRange(args, 2, args.length),
+					dir, file, err);
+			} catch (IOException e) {
+				err.println(e.getMessage());
+				return 1;
+			}
+		}
+
+		return pktanalyzer.run(args, dir, reply, err);
+	}
+
+	/**
+	 * Whether a job in this mode can run in the daemon. A job must end by
+	 * itself and leave no threads behind, as it shares the process with
+	 * every later job. --daemon would never return and --follow runs until
+	 * it is killed.
+	 */
+	static boolean accepted(String mode) {
+		return !mode.equals("--daemon") && !mode.equals("--follow");
+	}
+
+	private static String readLine(InputStream in) throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int c;
+
+		while ((c = in.read()) >= 0 && c != '\n') {
+			if (line.size() == MAX_REQUEST) {
+				throw new IOException("Request too long");
+			}
+
+			line.write(c);
+		}
+
+		return line.size() == 0 && c < 0 ? null
+			: line.toString(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Client side: sends the job to the daemon, copies its output to stdout
+	 * and its errors to stderr. Returns the job's exit status, or -1 if the
+	 * daemon could not be reached or the arguments cannot be put in a
+	 * request.
+	 */
+	static int submit(Path socket, String[] args) {
+		for (String arg : args) {
+			if (arg.indexOf('\t') >= 0 || arg.indexOf('\n') >= 0) {
+				return -1;
+			}
+		}
+
+		SocketChannel ch;
+
+		try {
+			ch = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+		} catch (IOException e) {
+			return -1;
+		}
+
+		try (SocketChannel c = ch) {
+			StringBuilder request = new StringBuilder();
+			request.append(Paths.get("").toAbsolutePath());
+
+			for (String arg : args) {
+				request.append('\t').append(arg);
+			}
+
+			request.append('\n');
+			Channels.newOutputStream(c)
+				.write(request.toString().getBytes(StandardCharsets.UTF_8));
+
+			// copy everything up to the NUL that starts the trailer
+			InputStream in = Channels.newInputStream(c);
+			byte[] buf = new byte[64 * 1024];
+			ByteArrayOutputStream trailer = null;
+			int n;
+
+			while ((n = in.read(buf)) > 0) {
+				int start = 0;
+
+				if (trailer == null) {
+					for (int i = 0; i < n; i++) {
+						if (buf[i] == 0) {
+							System.out.write(buf, 0, i);
+							trailer = new ByteArrayOutputStream();
+							start = i + 1;
+							break;
+						}
+					}
+
+					if (trailer == null) {
+						System.out.write(buf, 0, n);
+						continue;
+					}
+				}
+
+				trailer.write(buf, start, n - start);
+			}
+
+			System.out.flush();
+
+			if (trailer == null) {
+				System.err.println("Daemon closed the connection early");
+				return 1;
+			}
+
+			return status(trailer.toByteArray());
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Daemon error: " + e.getMessage());
+			return 1;
+		}
+	}
+
+	/**
+	 * Writes the err part of a trailer, the part after the NUL, to stderr
+	 * and returns the exit status it ends with.
+	 */
+	private static int status(byte[] t) throws IOException {
+		String head = ERR.substring(1);
+		int nl = 0;
+
+		while (nl < t.length && t[nl] != '\n') {
+			nl++;
+		}
+
+		String count = new String(t, 0, nl, StandardCharsets.US_ASCII);
+
+		if (!count.startsWith(head) || nl == t.length) {
+			throw new IOException("Malformed reply");
+		}
+
+		int length = Integer.parseInt(count.substring(head.length()));
+		int at = nl + 1;
+
+		if (length < 0 || length > t.length - at) {
+			throw new IOException("Malformed reply");
+		}
+
+		System.err.write(t, at, length);
+		System.err.flush();
+
+		String status = new String(t, at + length, t.length - at - length,
+			StandardCharsets.US_ASCII).trim();
+
+		if (!status.startsWith(EXIT)) {
+			throw new IOException("Malformed reply");
+		}
+
+		return Integer.parseInt(status.substring(EXIT.length()));
+	}
+
+	/**
+	 * Command-line entry: --daemon [-j threads] [-warmup capture]... socket
+	 */
+	static void serve(String[] args) {
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<Path> warmup = new ArrayList<>();
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-j")) {
+				threads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-warmup")) {
+				warmup.add(Paths.get(args[++i]));
+			} else {
+				break;
+			}
+		}
+
+		if (i != args.length - 1) {
+			System.err.println("Usage:");
+			System.err.println("      java pktanalyzer --daemon [-j threads] [-warmup capture]... socket");
+			System.exit(1);
+		}
+
+		AnalyzerDaemon d = new AnalyzerDaemon(Paths.get(args[i]), threads);
+
+		try {
+			d.warmUp(warmup);
+			d.listen();
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,339 @@
+/*
+ * ArpTracker.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Learns IPv4 to MAC bindings from ARP traffic and reports, as they
+ * happen, bindings that conflict and gratuitous ARP storms.
+ *
+ * Bindings are kept in primitive arrays indexed through a LongIndexMap
+ * keyed on the IPv4 address: the MAC, when the binding was first and last
+ * seen, and how often it changed. A frame costs a few field reads and one
+ * map lookup, so every frame of a busy segment can go through it on the
+ * reading thread.
+ *
+ * A sender MAC that differs from the one bound to its address is a
+ * conflict when the old binding was seen within the hold time, and a
+ * change otherwise (a host that went away and its address was handed out
+ * again). A storm is a sender MAC sending at least the threshold number
+ * of gratuitous ARPs in one window, whatever addresses it claims, so a
+ * host announcing many addresses is caught as well as one repeating a
+ * single announcement. ARP packets whose sender MAC is not the Ethernet
+ * source are also reported, as spoofing tools often give themselves away
+ * that way.
+ *
+ * Conflicts and mismatches are alerted at most once per binding per hold
+ * time, as ScanDetector does per source, so two hosts fighting over an
+ * address do not flood the output; every one is still counted.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class ArpTracker {
+	// addresses tracked; ARP from further ones is counted but not learned
+	static final int MAX_BINDINGS = 1 << 20;
+
+	// sender MACs whose gratuitous ARPs are counted
+	static final int MAX_SENDERS = 1 << 20;
+
+	private final PrintStream alerts;
+	private final long hold;
+	private final long window;
+	private final int threshold;
+
+	// per address, indexed through the address
+	private final LongIndexMap addresses = new LongIndexMap(1024);
+	private long[] mac = new long[1024];
+	private long[] first = new long[1024];
+	private long[] last = new long[1024];
+	private long[] packets = new long[1024];
+	private int[] changes = new int[1024];
+
+	// when each kind of alert was last given per address, 0 if never
+	private long[] conflictAt = new long[1024];
+	private long[] mismatchAt = new long[1024];
+
+	// per sender MAC, gratuitous ARPs in its current window
+	private final LongIndexMap senders = new LongIndexMap(1024);
+	private long[] stormStart = new long[1024];
+	private int[] stormCount = new int[1024];
+
+	private long requests;
+	private long replies;
+	private long gratuitous;
+	private long probes;
+	private long malformed;
+	private long untracked;
+	private long conflicts;
+	private long moves;
+	private long mismatches;
+	private long storms;
+
+	ArpTracker(PrintStream alerts, long holdNanos, long windowNanos,
+			int threshold) {
+		this.alerts = alerts;
+		this.hold = holdNanos;
+		this.window = windowNanos;
+		this.threshold = threshold;
+	}
+
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		if (FrameLayout.ethertypeValue(b, frame, length)
+				!= FrameLayout.ETHERTYPE_ARP) {
+			return;
+		}
+
+		int arp = FrameLayout.arpOffset(b, frame, length);
+
+		if (arp < 0) {
+			malformed++;
+			return;
+		}
+
+		int operation = FrameLayout.arpOperation(b, arp);
+		long senderMac = FrameLayout.senderMac(b, arp);
+		int senderIP = FrameLayout.senderIP(b, arp);
+
+		if (operation == FrameLayout.ARP_REQUEST) {
+			requests++;
+		} else if (operation == FrameLayout.ARP_REPLY) {
+			replies++;
+		}
+
+		// an address probe has no sender address to learn
+		if (senderIP == 0) {
+			probes++;
+			return;
+		}
+
+		long source = FrameLayout.u48(b, frame + 6);
+		int i = binding(senderIP, senderMac, timestamp);
+
+		if (source != senderMac) {
+			mismatches++;
+
+			if (i >= 0 && timestamp - mismatchAt[i] >= hold) {
+				mismatchAt[i] = timestamp;
+				alert(timestamp, FrameLayout.formatIP(senderIP) + " sender "
+					+ FrameLayout.formatMac(senderMac) + " sent from "
+					+ FrameLayout.formatMac(source));
+			}
+		}
+
+		if (senderIP == FrameLayout.targetIP(b, arp)) {
+			gratuitous++;
+			gratuitous(senderMac, senderIP, timestamp);
+		}
+	}
+
+	/**
+	 * Index of the address's binding, after checking it against mac.
+	 * Returns -1 if the table is full.
+	 */
+	private int binding(int ip, long senderMac, long timestamp) {
+		long key = ip & 0xffffffffL;
+		int i = addresses.indexOf(key);
+
+		if (i < 0) {
+			if (addresses.size() >= MAX_BINDINGS) {
+				untracked++;
+				return -1;
+			}
+
+			i = addresses.add(key);
+
+			if (i == mac.length) {
+				grow();
+			}
+
+			mac[i] = senderMac;
+			first[i] = timestamp;
+			last[i] = timestamp;
+			packets[i] = 1;
+			return i;
+		}
+
+		if (mac[i] != senderMac) {
+			boolean recent = timestamp - last[i] < hold;
+
+			changes[i]++;
+
+			if (recent) {
+				conflicts++;
+			} else {
+				moves++;
+			}
+
+			if (!recent || timestamp - conflictAt[i] >= hold) {
+				if (recent) {
+					conflictAt[i] = timestamp;
+				}
+
+				alert(timestamp, FrameLayout.formatIP(ip) + (recent
+					? " conflict " : " moved ") + FrameLayout.formatMac(mac[i])
+					+ " -> " + FrameLayout.formatMac(senderMac) + ", old seen "
+					+ LatencyHistogram.duration(timestamp - last[i]) + " ago");
+			}
+
+			mac[i] = senderMac;
+		}
+
+		last[i] = Math.max(last[i], timestamp);
+		packets[i]++;
+		return i;
+	}
+
+	/**
+	 * Counts a gratuitous ARP against the MAC that sent it.
+	 */
+	private void gratuitous(long senderMac, int ip, long timestamp) {
+		int m = senders.indexOf(senderMac);
+
+		if (m < 0) {
+			if (senders.size() >= MAX_SENDERS) {
+				return;
+			}
+
+			m = senders.add(senderMac);
+
+			if (m == stormStart.length) {
+				stormStart = Arrays.copyOf(stormStart, m * 2);
+				stormCount = Arrays.copyOf(stormCount, m * 2);
+			}
+
+			stormStart[m] = timestamp;
+		}
+
+		if (timestamp - stormStart[m] >= window) {
+			stormStart[m] = timestamp;
+			stormCount[m] = 0;
+		}
+
+		// reported once per window, when the count reaches the threshold
+		if (++stormCount[m] == threshold) {
+			storms++;
+			alert(timestamp, FrameLayout.formatMac(senderMac)
+				+ " gratuitous storm, " + threshold + " in "
+				+ LatencyHistogram.duration(timestamp - stormStart[m])
+				+ ", last for " + FrameLayout.formatIP(ip));
+		}
+	}
+
+	private void alert(long timestamp, String message) {
+		alerts.println("ARP: " + time(timestamp) + " " + message);
+	}
+
+	private void grow() {
+		int n = mac.length * 2;
+
+		mac = Arrays.copyOf(mac, n);
+		first = Arrays.copyOf(first, n);
+		last = Arrays.copyOf(last, n);
+		packets = Arrays.copyOf(packets, n);
+		changes = Arrays.copyOf(changes, n);
+		conflictAt = Arrays.copyOf(conflictAt, n);
+		mismatchAt = Arrays.copyOf(mismatchAt, n);
+	}
+
+	public String format(int limit) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("ARP: requests = " + requests + ", replies = " + replies
+			+ ", gratuitous = " + gratuitous + ", probes = " + probes
+			+ ", malformed = " + malformed + "\n");
+		sb.append("ARP: bindings = " + addresses.size() + ", untracked = "
+			+ untracked + ", conflicts = " + conflicts + ", moved = " + moves
+			+ ", sender mismatches = " + mismatches + ", storms = " + storms
+			+ "\n");
+		sb.append("ARP:\n");
+		sb.append(String.format("ARP: %-15s %-17s %10s %8s %17s %17s\n",
+			"address", "mac", "packets", "changes", "first", "last"));
+
+		// most changed first, then by address
+		Integer[] order = new Integer[addresses.size()];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, (x, y) -> changes[x] != changes[y]
+			? Integer.compare(changes[y], changes[x])
+			: Long.compare(addresses.keyAt(x), addresses.keyAt(y)));
+
+		for (int k = 0; k < Math.min(limit, order.length); k++) {
+			int i = order[k];
+
+			sb.append(String.format("ARP: %-15s %-17s %10d %8d %17s %17s\n",
+				FrameLayout.formatIP((int) addresses.keyAt(i)),
+				FrameLayout.formatMac(mac[i]), packets[i], changes[i],
+				time(first[i]), time(last[i])));
+		}
+
+		return sb.toString();
+	}
+
+	private static String time(long nanos) {
+		return String.format("%d.%06d", Math.floorDiv(nanos, 1_000_000_000L),
+			Math.floorMod(nanos, 1_000_000_000L) / 1000);
+	}
+
+	/**
+	 * Command-line entry:
+	 * --arp [-n bindings] [-hold s] [-window ms] [-storm n] capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int limit = 50;
+		long holdSeconds = 60;
+		long windowMillis = 1000;
+		int threshold = 10;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-hold")) {
+				holdSeconds = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-window")) {
+				windowMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-storm")) {
+				threshold = Integer.parseInt(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --arp [-n bindings] [-hold s]"
+				+ " [-window ms] [-storm n] capture...");
+		}
+
+		ArpTracker t = new ArpTracker(out, holdSeconds * 1_000_000_000L,
+			windowMillis * 1_000_000, threshold);
+
+		for (; i < args.length; i++) {
+			try (CaptureFile cf = new CaptureFile(dir.resolve(args[i]))) {
+				while (cf.next()) {
+					t.frame(cf.buffer(), cf.frameOffset(), cf.frameLength(),
+						cf.timestamp());
+				}
+			}
+		}
+
+		out.print(t.format(limit));
+	}
+}
@@ -0,0 +1,437 @@
+/*
+ * BatchAnalyzer.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+
+/**
+ * Decodes many capture files in one JVM.
+ *
+ * Arguments may be files, directories (walked recursively) or globs such
+ * as "captures/2024-*.pcap". Files are read on a pool of ioPermits threads
+ * so that that many reads are outstanding at once. The frames read are
+ * handed in batches to one decode pool of cpuPermits threads shared by all
+ * files, which runs the same parsers as the single packet mode. A semaphore
+ * caps the batches waiting for the decode pool so readers cannot run far
+ * ahead of it. Per-file results are merged into one report.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class BatchAnalyzer {
+	// frames per decode task
+	static final int BATCH = 256;
+
+	/**
+	 * Counts of what was decoded. Mergeable.
+	 */
+	static class Report {
+		long files;
+		long failedFiles;
+		long records;
+		long frames;
+		long bytes;
+		long malformed;
+		long shed;
+		TreeMap<String, Long> types = new TreeMap<>();
+
+		/**
+		 * Runs the parsers over one frame and counts its layers.
+		 */
+		void decode(byte[] frame) {
+			decode(ByteBuffer.wrap(frame), 0, frame.length, 1);
+		}
+
+		/**
+		 * Same, in place, for a frame that stands for rate frames after
+		 * sampling. Counts are scaled up by the rate.
+		 */
+		void decode(ByteBuffer b, int offset, int length, int rate) {
+			records++;
+			frames += rate;
+			bytes += (long) length * rate;
+
+			try {
+				EthernetPacket epp = new EthernetPacket(b, offset, length);
+				count(epp.ethertypeLabel(), rate);
+
+				if (epp.ethertypeLabel() != "IP") {
+					return;
+				}
+
+				InternetProtocolV4Packet ippp
+					= new InternetProtocolV4Packet(epp.payload());
+				byte[] ipv4Payload = ippp.payload();
+
+				count("IP/" + ippp.protocolLabel(), rate);
+
+				if (ippp.protocolLabel() == "UDP") {
+					new UserDatagramProtocolPacket(ipv4Payload);
+				} else if (ippp.protocolLabel() == "TCP") {
+					new TransmissionControlProtocolPacket(ipv4Payload);
+				} else if (ippp.protocolLabel() == "ICMP") {
+					new InternetControlMessageProtocolPacket(ipv4Payload);
+				}
+			} catch (Exception e) {
+				malformed += rate;
+			}
+		}
+
+		/**
+		 * Adds frames that were dropped before decoding because decoding
+		 * could not keep up. They count towards the frames and bytes but
+		 * not towards any type.
+		 */
+		void shed(long shedFrames, long shedBytes) {
+			frames += shedFrames;
+			bytes += shedBytes;
+			shed += shedFrames;
+		}
+
+		void count(String type, int rate) {
+			types.merge(type, (long) rate, Long::sum);
+		}
+
+		synchronized void merge(Report r) {
+			files += r.files;
+			failedFiles += r.failedFiles;
+			records += r.records;
+			frames += r.frames;
+			bytes += r.bytes;
+			malformed += r.malformed;
+			shed += r.shed;
+
+			for (Map.Entry<String, Long> e : r.types.entrySet()) {
+				types.merge(e.getKey(), e.getValue(), Long::sum);
+			}
+		}
+
+		String format(long millis) {
+			StringBuilder sb = new StringBuilder();
+
+			sb.append("BATCH: files = " + files + ", failed = " + failedFiles
+				+ ", " + millis + " ms\n");
+			sb.append("BATCH: frames = " + frames + ", bytes = " + bytes
+				+ ", malformed = " + malformed + "\n");
+
+			if (records != frames) {
+				sb.append("BATCH: decoded = " + records
+					+ " (counts scaled by sampling rate)\n");
+			}
+
+			if (shed > 0) {
+				sb.append("BATCH: shed = " + shed
+					+ " (ring full, in frames and bytes but not decoded)\n");
+			}
+
+			sb.append("BATCH:\n");
+
+			for (Map.Entry<String, Long> e : types.entrySet()) {
+				sb.append("BATCH: " + String.format("%-20s %12d", e.getKey(),
+					e.getValue()) + "\n");
+			}
+
+			return sb.toString();
+		}
+	}
+
+	/**
+	 * Decode workers fed through a FrameRing by one reader thread, for the
+	 * modes that drop or reorder frames before decoding them. Each worker
+	 * counts into its own Report, scaled by the rate in the frame's slot.
+	 * The workers start with the pool; close() lets them drain the ring and
+	 * waits for them, so it must be called whether reading succeeded or
+	 * not.
+	 */
+	static class RingDecoders implements AutoCloseable {
+		private final FrameRing ring = new FrameRing(4096, 2048,
+			FrameRing.YIELD);
+		private final Report[] reports;
+		private final Thread[] threads;
+
+		RingDecoders(int workers) {
+			reports = new Report[workers];
+			threads = new Thread[workers];
+
+			for (int w = 0; w < workers; w++) {
+				Report r = new Report();
+				FrameRing.Worker taker = ring.newWorker();
+
+				reports[w] = r;
+				threads[w] = new Thread(() -> {
+					int n;
+
+					while ((n = taker.take(64)) > 0) {
+						for (int k = 0; k < n; k++) {
+							long seq = taker.sequence(k);
+							r.decode(ring.buffer(seq), ring.frameOffset(seq),
+								ring.frameLength(seq), ring.rate(seq));
+						}
+					}
+				}, "decode-worker-" + w);
+				threads[w].start();
+			}
+		}
+
+		/**
+		 * The ring to fill, from one thread only.
+		 */
+		FrameRing ring() {
+			return ring;
+		}
+
+		/**
+		 * Closes the ring and waits for the workers to drain it. Safe to
+		 * call more than once.
+		 */
+		public void close() {
+			boolean interrupted = false;
+
+			ring.close();
+
+			for (Thread t : threads) {
+				while (t.isAlive()) {
+					try {
+						t.join();
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * Waits for the workers to drain the ring and returns their reports
+		 * merged.
+		 */
+		Report finish(long files) {
+			close();
+
+			Report total = new Report();
+
+			total.files = files;
+
+			for (Report r : reports) {
+				total.merge(r);
+			}
+
+			return total;
+		}
+	}
+
+	private final ExecutorService io;
+	private final ForkJoinPool decode;
+	private final Semaphore queued;
+	private final Report total = new Report();
+
+	// where files that cannot be read are reported
+	private final PrintStream err;
+
+	BatchAnalyzer(int ioPermits, int cpuPermits, PrintStream err) {
+		this.err = err;
+		io = Executors.newFixedThreadPool(ioPermits);
+		decode = new ForkJoinPool(cpuPermits);
+		queued = new Semaphore(cpuPermits * 2);
+	}
+
+	/**
+	 * Processes every file and returns the merged report. The pools are
+	 * shut down when this returns or throws, so it can only be called once.
+	 */
+	public Report run(List<Path> files) throws Exception {
+		List<Future<?>> pending = new ArrayList<>();
+
+		try {
+			for (Path p : files) {
+				pending.add(io.submit(() -> {
+					total.merge(file(p));
+					return null;
+				}));
+			}
+
+			for (Future<?> f : pending) {
+				f.get();
+			}
+		} finally {
+			// everything has finished unless something failed, in which case
+			// the files still queued are abandoned
+			io.shutdownNow();
+			decode.shutdownNow();
+		}
+
+		return total;
+	}
+
+	/**
+	 * Reads one file on an io thread, decoding its frames on the shared
+	 * pool.
+	 */
+	private Report file(Path p) throws InterruptedException {
+		Report r = new Report();
+		List<Future<Report>> parts = new ArrayList<>();
+
+		r.files = 1;
+
+		try (CaptureFile cf = new CaptureFile(p)) {
+			List<byte[]> batch = new ArrayList<>(BATCH);
+
+			while (cf.next()) {
+				batch.add(cf.frame());
+
+				if (batch.size() == BATCH) {
+					parts.add(submit(batch));
+					batch = new ArrayList<>(BATCH);
+				}
+			}
+
+			if (!batch.isEmpty()) {
+				parts.add(submit(batch));
+			}
+		} catch (IOException e) {
+			err.println("BATCH: " + p + ": " + e.getMessage());
+			r.failedFiles = 1;
+		}
+
+		for (Future<Report> f : parts) {
+			try {
+				r.merge(f.get());
+			} catch (Exception e) {
+				r.failedFiles = 1;
+			}
+		}
+
+		return r;
+	}
+
+	private Future<Report> submit(List<byte[]> batch)
+			throws InterruptedException {
+		queued.acquire();
+
+		return decode.submit(() -> {
+			try {
+				Report r = new Report();
+
+				for (byte[] frame : batch) {
+					r.decode(frame);
+				}
+
+				return r;
+			} finally {
+				queued.release();
+			}
+		});
+	}
+
+	/**
+	 * Expands files, directories and globs into a sorted list of files.
+	 */
+	static List<Path> expand(Path dir, List<String> args)
+			throws IOException {
+		List<Path> files = new ArrayList<>();
+
+		for (String arg : args) {
+			int wildcard = firstWildcard(arg);
+
+			if (wildcard < 0) {
+				Path p = dir.resolve(arg);
+
+				if (Files.isDirectory(p)) {
+					try (Stream<Path> s = Files.walk(p)) {
+						s.filter(Files::isRegularFile).sorted().forEach(files::add);
+					}
+				} else {
+					files.add(p);
+				}
+
+				continue;
+			}
+
+			// walk from the directory part before the first wildcard
+			int slash = arg.lastIndexOf('/', wildcard);
+			Path root = slash < 0 ? dir : dir.resolve(arg.substring(0, slash + 1));
+			String pattern = slash < 0 ? arg : arg.substring(slash + 1);
+			PathMatcher m = FileSystems.getDefault()
+				.getPathMatcher("glob:" + pattern);
+
+			try (Stream<Path> s = Files.walk(root)) {
+				s.filter(Files::isRegularFile)
+					.filter(f -> m.matches(root.relativize(f)))
+					.sorted()
+					.forEach(files::add);
+			}
+		}
+
+		return files;
+	}
+
+	private static int firstWildcard(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+
+			if (c == '*' || c == '?' || c == '[' || c == '{') {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Command-line entry: --batch [-io n] [-cpu n] path...
+	 */
+	static void run(String[] args, Path dir, PrintStream out, PrintStream err)
+			throws Exception {
+		int ioPermits = 64;
+		int cpuPermits = Runtime.getRuntime().availableProcessors();
+		List<String> paths = new ArrayList<>();
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-io") && i + 1 < args.length) {
+				ioPermits = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-cpu") && i + 1 < args.length) {
+				cpuPermits = Integer.parseInt(args[++i]);
+			} else {
+				paths.add(args[i]);
+			}
+		}
+
+		if (paths.isEmpty()) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --batch [-io n] [-cpu n] file|dir|glob...");
+		}
+
+		long start = System.nanoTime();
+		List<Path> files = expand(dir, paths);
+		Report r = new BatchAnalyzer(ioPermits, cpuPermits, err).run(files);
+
+		out.print(r.format((System.nanoTime() - start) / 1_000_000));
+	}
+}
@@ -0,0 +1,299 @@
+/*
+ * CaptureFile.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the frames of a capture file through a memory-mapped window.
+ *
+ * Two formats are understood: classic pcap files (either byte order,
+ * microsecond or nanosecond timestamps, Ethernet link type) and the raw
+ * single-frame .bin files in pkt/, which hold one Ethernet frame and nothing
+ * else. A raw file is reported as one record stamped with the file's
+ * modification time. Any other file, pcapng included, is refused.
+ *
+ * Frames are not copied: after next() returns true the current frame is at
+ * frameOffset() in buffer(), valid until the following call to next().
+ *
+ * A record that is only partly written stops next() without being
+ * consumed, so a file that is still growing can be read again from the
+ * same place after refresh().
+ *
+ * Reference: https://wiki.wireshark.org/Development/LibpcapFileFormat
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class CaptureFile implements Closeable {
+	// pcap magic numbers as read in big endian order
+	static final int PCAP_MAGIC = 0xa1b2c3d4;
+	static final int PCAP_MAGIC_NANO = 0xa1b23c4d;
+
+	// block type of a pcapng section header, the same in either byte order
+	static final int PCAPNG_MAGIC = 0x0a0d0d0a;
+
+	// global and per record header lengths
+	static final int PCAP_HEADER = 24;
+	static final int RECORD_HEADER = 16;
+
+	// LINKTYPE_ETHERNET
+	static final int LINKTYPE_ETHERNET = 1;
+
+	// records longer than this are taken as a corrupt file
+	static final int MAX_RECORD = 256 * 1024;
+
+	// largest region mapped at once
+	static final int MAX_WINDOW = 1 << 30;
+
+	// file
+	private Path path;
+	private FileChannel channel;
+	private long size;
+
+	// format
+	private boolean pcap;
+	private boolean nanos;
+	private ByteOrder order = ByteOrder.BIG_ENDIAN;
+
+	// mapped window
+	private MappedByteBuffer window;
+	private long windowStart;
+
+	// file offset of the next record
+	private long position;
+
+	// current record
+	private long recordPosition;
+	private int frameOffset;
+	private int frameLength;
+	private int originalLength;
+	private long timestamp;
+
+	CaptureFile(Path path) throws IOException {
+		this.path = path;
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		size = channel.size();
+
+		int magic = size >= 4 ? readMagic() : 0;
+
+		if (magic == PCAP_MAGIC || magic == PCAP_MAGIC_NANO) {
+			pcap = true;
+		} else if (Integer.reverseBytes(magic) == PCAP_MAGIC
+				|| Integer.reverseBytes(magic) == PCAP_MAGIC_NANO) {
+			pcap = true;
+			order = ByteOrder.LITTLE_ENDIAN;
+			magic = Integer.reverseBytes(magic);
+		}
+
+		if (pcap) {
+			nanos = magic == PCAP_MAGIC_NANO;
+
+			if (!map(0, PCAP_HEADER)) {
+				throw new IOException("Truncated pcap header: " + path);
+			}
+
+			int linkType = window.getInt(20);
+
+			if (linkType != LINKTYPE_ETHERNET) {
+				throw new IOException("Unsupported link type " + linkType
+					+ ": " + path);
+			}
+
+			position = PCAP_HEADER;
+		} else if (raw(path, size)) {
+			// raw frame, stamped with the time the file was written
+			timestamp = path.toFile().lastModified() * 1_000_000L;
+		} else {
+			channel.close();
+
+			if (magic == PCAPNG_MAGIC) {
+				throw new IOException("pcapng is not supported, convert it"
+					+ " with editcap -F pcap: " + path);
+			}
+
+			throw new IOException("Not a pcap file: " + path);
+		}
+	}
+
+	/**
+	 * Whether a file that is not pcap can be a raw single frame: a .bin
+	 * file no longer than a record. Anything else would be decoded as one
+	 * frame of garbage.
+	 */
+	private static boolean raw(Path path, long size) {
+		return path.getFileName().toString().toLowerCase().endsWith(".bin")
+			&& size > 0 && size <= MAX_RECORD;
+	}
+
+	/**
+	 * Advances to the next record. Returns false at the end of the file or
+	 * when the last record is only partially written.
+	 */
+	public boolean next() throws IOException {
+		if (!pcap) {
+			if (position != 0 || size == 0 || size > MAX_RECORD) {
+				return false;
+			}
+
+			if (!map(0, (int) size)) {
+				return false;
+			}
+
+			recordPosition = 0;
+			frameOffset = 0;
+			frameLength = (int) size;
+			originalLength = frameLength;
+			position = size;
+			return true;
+		}
+
+		if (!map(position, RECORD_HEADER)) {
+			return false;
+		}
+
+		int h = (int) (position - windowStart);
+		long seconds = window.getInt(h) & 0xffffffffL;
+		long fraction = window.getInt(h + 4) & 0xffffffffL;
+		int included = window.getInt(h + 8);
+		int original = window.getInt(h + 12);
+
+		if (included < 0 || included > MAX_RECORD) {
+			throw new IOException("Corrupt record at offset " + position
+				+ ": " + path);
+		}
+
+		if (!map(position, RECORD_HEADER + included)) {
+			return false;
+		}
+
+		recordPosition = position;
+		frameOffset = (int) (position - windowStart) + RECORD_HEADER;
+		frameLength = included;
+		originalLength = original;
+		timestamp = seconds * 1_000_000_000L
+			+ (nanos ? fraction : fraction * 1_000L);
+		position += RECORD_HEADER + included;
+		return true;
+	}
+
+	/**
+	 * Picks up data appended since the file was opened or last refreshed,
+	 * for files that are still being written. Returns the new size.
+	 */
+	public long refresh() throws IOException {
+		size = channel.size();
+		return size;
+	}
+
+	/**
+	 * Makes sure [start, start + length) is inside the mapped window,
+	 * remapping if needed. Returns false if the file is not long enough.
+	 */
+	private boolean map(long start, int length) throws IOException {
+		if (window != null && start >= windowStart
+				&& start + length <= windowStart + window.capacity()) {
+			return true;
+		}
+
+		if (start + length > size) {
+			return false;
+		}
+
+		long count = Math.min(MAX_WINDOW, size - start);
+		window = channel.map(FileChannel.MapMode.READ_ONLY, start, count);
+		window.order(order);
+		windowStart = start;
+		return true;
+	}
+
+	private int readMagic() throws IOException {
+		ByteBuffer magic = ByteBuffer.allocate(4);
+		channel.read(magic, 0);
+		return magic.getInt(0);
+	}
+
+	public ByteBuffer buffer() {
+		return window;
+	}
+
+	public int frameOffset() {
+		return frameOffset;
+	}
+
+	public int frameLength() {
+		return frameLength;
+	}
+
+	public int originalLength() {
+		return originalLength;
+	}
+
+	/**
+	 * Capture time of the current record in nanoseconds since the epoch.
+	 */
+	public long timestamp() {
+		return timestamp;
+	}
+
+	/**
+	 * File offset of the current record, including its record header.
+	 */
+	public long recordPosition() {
+		return recordPosition;
+	}
+
+	/**
+	 * File offset just past the last complete record read.
+	 */
+	public long position() {
+		return position;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * A copy of the current frame, for the byte[] based parsers.
+	 */
+	public byte[] frame() {
+		byte[] data = new byte[frameLength];
+		window.get(frameOffset, data);
+		return data;
+	}
+
+	public boolean pcap() {
+		return pcap;
+	}
+
+	public Path path() {
+		return path;
+	}
+
+	/**
+	 * The file's channel, for copying records out without reading them.
+	 */
+	FileChannel channel() {
+		return channel;
+	}
+
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * CaptureMerger.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Path;
+
+/**
+ * Reads several captures as one, in timestamp order, for captures taken at
+ * the same time by different sensors.
+ *
+ * Each capture is read in place by its own CaptureFile, so only the record
+ * at the head of each is looked at and nothing is buffered. The heads are
+ * kept in a binary min-heap of capture indices ordered by (timestamp,
+ * index), held in an int array with the timestamps alongside, so taking a
+ * record costs one step of the capture it came from and O(log n)
+ * comparisons, without boxing. Records with the same timestamp come in the
+ * order the captures were given. Each capture is assumed to be in order
+ * itself; records that are not still come out, after the ones before them
+ * in their own capture, and are counted as late.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class CaptureMerger implements AutoCloseable {
+	private final CaptureFile[] files;
+
+	// min-heap of capture indices, and the timestamp of each one's head
+	private final int[] heap;
+	private final long[] head;
+	private int size;
+
+	// capture whose record was handed out last, to be advanced next time
+	private int current = -1;
+
+	// counters
+	private long records;
+	private long late;
+	private long first = Long.MAX_VALUE;
+	private long last = Long.MIN_VALUE;
+
+	/**
+	 * Opens every capture. If one cannot be opened, those opened before it
+	 * are closed again.
+	 */
+	CaptureMerger(Path[] paths) throws IOException {
+		files = new CaptureFile[paths.length];
+		heap = new int[paths.length];
+		head = new long[paths.length];
+
+		try {
+			for (int f = 0; f < paths.length; f++) {
+				files[f] = new CaptureFile(paths[f]);
+
+				if (files[f].next()) {
+					head[f] = files[f].timestamp();
+					heap[size] = f;
+					up(size++);
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Advances to the earliest record left. Returns false once every capture
+	 * has been read.
+	 */
+	public boolean next() throws IOException {
+		if (current >= 0) {
+			CaptureFile cf = files[current];
+
+			if (cf.next()) {
+				head[current] = cf.timestamp();
+				down(0);
+			} else {
+				heap[0] = heap[--size];
+				down(0);
+			}
+		}
+
+		if (size == 0) {
+			current = -1;
+			return false;
+		}
+
+		current = heap[0];
+
+		long t = head[current];
+
+		if (t < last) {
+			late++;
+		}
+
+		records++;
+		first = Math.min(first, t);
+		last = Math.max(last, t);
+		return true;
+	}
+
+	/**
+	 * Capture holding the current record, positioned on it.
+	 */
+	public CaptureFile current() {
+		return files[current];
+	}
+
+	/**
+	 * Index of the capture holding the current record.
+	 */
+	public int index() {
+		return current;
+	}
+
+	public CaptureFile[] files() {
+		return files;
+	}
+
+	private boolean less(int a, int b) {
+		return head[a] < head[b] || head[a] == head[b] && a < b;
+	}
+
+	private void up(int i) {
+		int f = heap[i];
+
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+
+			if (!less(f, heap[parent])) {
+				break;
+			}
+
+			heap[i] = heap[parent];
+			i = parent;
+		}
+
+		heap[i] = f;
+	}
+
+	private void down(int i) {
+		if (size == 0) {
+			return;
+		}
+
+		int f = heap[i];
+
+		while (true) {
+			int child = 2 * i + 1;
+
+			if (child >= size) {
+				break;
+			}
+
+			if (child + 1 < size && less(heap[child + 1], heap[child])) {
+				child++;
+			}
+
+			if (!less(heap[child], f)) {
+				break;
+			}
+
+			heap[i] = heap[child];
+			i = child;
+		}
+
+		heap[i] = f;
+	}
+
+	public void close() throws IOException {
+		IOException failure = null;
+
+		for (CaptureFile cf : files) {
+			if (cf == null) {
+				continue;
+			}
+
+			try {
+				cf.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("MERGE: captures = " + files.length + ", records = "
+			+ records + ", late = " + late + "\n");
+
+		if (records > 0) {
+			sb.append("MERGE: span = " + LatencyHistogram.duration(last - first)
+				+ "\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry:
+	 *   --merge [-w workers] [-o output] capture...
+	 * Decodes the captures as one time-ordered capture on a worker pool and
+	 * prints the counts, or with -o writes them out as one.
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int workers = Runtime.getRuntime().availableProcessors();
+		String output = null;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				workers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-o")) {
+				output = args[++i];
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length || workers < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --merge [-w workers] [-o output]"
+				+ " capture...");
+		}
+
+		Path[] paths = new Path[args.length - i];
+
+		for (int p = 0; p < paths.length; p++) {
+			paths[p] = dir.resolve(args[i + p]);
+		}
+
+		long begin = System.nanoTime();
+
+		try (CaptureMerger m = new CaptureMerger(paths)) {
+			if (output != null) {
+				try (CaptureWriter w = new CaptureWriter(dir.resolve(output), 1,
+						1)) {
+					for (CaptureFile cf : m.files()) {
+						w.add(cf);
+					}
+
+					while (m.next()) {
+						w.write(m.current(), 0);
+					}
+
+					w.flush();
+					out.print(m);
+					out.print(w);
+				}
+
+				return;
+			}
+
+			BatchAnalyzer.Report total;
+
+			try (BatchAnalyzer.RingDecoders decoders
+					= new BatchAnalyzer.RingDecoders(workers)) {
+				FrameRing ring = decoders.ring();
+
+				while (m.next()) {
+					CaptureFile cf = m.current();
+					long seq = ring.claim(1);
+
+					ring.write(seq, cf.buffer(), cf.frameOffset(),
+						cf.frameLength(), cf.originalLength(), cf.timestamp());
+					ring.publish(seq);
+				}
+
+				total = decoders.finish(paths.length);
+			}
+
+			out.print(total.format((System.nanoTime() - begin) / 1_000_000));
+			out.print(m);
+		}
+	}
+}
@@ -0,0 +1,454 @@
+/*
+ * CaptureStats.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Protocol hierarchy and I/O statistics of a capture, gathered in one pass.
+ *
+ * Frames and bytes are counted into flat arrays indexed by EtherType value,
+ * IPv4 protocol number and well-known (below 1024) TCP and UDP port, the
+ * same numbers EtherType.value() and InternetProtocolV4Packet.protocol()
+ * give, read in place through FrameLayout. A frame's port is its
+ * destination port if that is well known, else its source port, else it
+ * counts as other. IPv4 headers with options are counted per option type,
+ * walked in place with Ipv4Options. Time is cut into fixed intervals, each
+ * holding frame and byte counts.
+ *
+ * An instance is not thread safe; each thread fills its own and they are
+ * merged at the end. Labels are only looked up when the report is built.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class CaptureStats {
+	// ports below this are counted one by one
+	static final int WELL_KNOWN = 1024;
+
+	// interval width in nanoseconds
+	private final long interval;
+
+	long files;
+	long frames;
+	long bytes;
+
+	// frames too short for an ethernet header, or IPv4 with a bad header
+	long truncated;
+	long ipTruncated;
+
+	// per EtherType value
+	final long[] etherFrames = new long[65536];
+	final long[] etherBytes = new long[65536];
+
+	// per IPv4 protocol number
+	final long[] ipFrames = new long[256];
+	final long[] ipBytes = new long[256];
+
+	// IPv4 headers with options, and per option type other than NOP
+	long optionFrames;
+	long optionBytes;
+	long optionsMalformed;
+	final long[] optionTypeFrames = new long[256];
+	final long[] optionTypeBytes = new long[256];
+
+	// per well-known port, with the last slot for other ports
+	final long[] tcpFrames = new long[WELL_KNOWN + 1];
+	final long[] tcpBytes = new long[WELL_KNOWN + 1];
+	final long[] udpFrames = new long[WELL_KNOWN + 1];
+	final long[] udpBytes = new long[WELL_KNOWN + 1];
+
+	// per interval, indexed through the interval number
+	private final LongIndexMap intervals = new LongIndexMap(64);
+	private long[] intervalFrames = new long[64];
+	private long[] intervalBytes = new long[64];
+
+	// cached last interval, frames mostly arrive in order
+	private long lastInterval = Long.MIN_VALUE;
+	private int lastIndex;
+
+	private final Ipv4Options options = new Ipv4Options();
+
+	CaptureStats(long intervalNanos) {
+		this.interval = intervalNanos;
+	}
+
+	/**
+	 * Counts one frame.
+	 */
+	public void add(ByteBuffer b, int frame, int length, long timestamp) {
+		frames++;
+		bytes += length;
+
+		countInterval(timestamp, length);
+
+		int type = FrameLayout.ethertypeValue(b, frame, length);
+
+		if (type < 0) {
+			truncated++;
+			return;
+		}
+
+		etherFrames[type]++;
+		etherBytes[type] += length;
+
+		if (type != FrameLayout.ETHERTYPE_IP) {
+			return;
+		}
+
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0) {
+			ipTruncated++;
+			return;
+		}
+
+		int protocol = FrameLayout.protocol(b, ip);
+
+		ipFrames[protocol]++;
+		ipBytes[protocol] += length;
+
+		if (FrameLayout.ihl(b, ip) > FrameLayout.IPV4_HEADER) {
+			options(b, ip, frame + length, length);
+		}
+
+		long[] portFrames;
+		long[] portBytes;
+
+		if (protocol == FrameLayout.PROTOCOL_TCP) {
+			portFrames = tcpFrames;
+			portBytes = tcpBytes;
+		} else if (protocol == FrameLayout.PROTOCOL_UDP) {
+			portFrames = udpFrames;
+			portBytes = udpBytes;
+		} else {
+			return;
+		}
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+
+		// later fragments carry no ports
+		if (l4 < 0 || l4 + 4 > frame + length) {
+			return;
+		}
+
+		int port = FrameLayout.destPort(b, l4);
+
+		if (port >= WELL_KNOWN) {
+			port = FrameLayout.sourcePort(b, l4);
+
+			if (port >= WELL_KNOWN) {
+				port = WELL_KNOWN;
+			}
+		}
+
+		portFrames[port]++;
+		portBytes[port] += length;
+	}
+
+	private void options(ByteBuffer b, int ip, int frameEnd, int length) {
+		optionFrames++;
+		optionBytes += length;
+
+		options.header(b, ip, frameEnd);
+
+		while (options.next()) {
+			int type = options.type();
+
+			if (type != Ipv4Options.NOP) {
+				optionTypeFrames[type]++;
+				optionTypeBytes[type] += length;
+			}
+		}
+
+		if (options.malformed()) {
+			optionsMalformed++;
+		}
+	}
+
+	private void countInterval(long timestamp, int length) {
+		long n = Math.floorDiv(timestamp, interval);
+
+		if (n != lastInterval) {
+			lastIndex = intervalIndex(n);
+			lastInterval = n;
+		}
+
+		intervalFrames[lastIndex]++;
+		intervalBytes[lastIndex] += length;
+	}
+
+	/**
+	 * Index of interval number n, adding it if needed.
+	 */
+	private int intervalIndex(long n) {
+		int i = intervals.add(n);
+
+		if (i == intervalFrames.length) {
+			intervalFrames = Arrays.copyOf(intervalFrames, i * 2);
+			intervalBytes = Arrays.copyOf(intervalBytes, i * 2);
+		}
+
+		return i;
+	}
+
+	/**
+	 * Adds r's counts into this one.
+	 */
+	public void merge(CaptureStats r) {
+		files += r.files;
+		frames += r.frames;
+		bytes += r.bytes;
+		truncated += r.truncated;
+		ipTruncated += r.ipTruncated;
+		optionFrames += r.optionFrames;
+		optionBytes += r.optionBytes;
+		optionsMalformed += r.optionsMalformed;
+
+		add(etherFrames, r.etherFrames);
+		add(etherBytes, r.etherBytes);
+		add(ipFrames, r.ipFrames);
+		add(ipBytes, r.ipBytes);
+		add(optionTypeFrames, r.optionTypeFrames);
+		add(optionTypeBytes, r.optionTypeBytes);
+		add(tcpFrames, r.tcpFrames);
+		add(tcpBytes, r.tcpBytes);
+		add(udpFrames, r.udpFrames);
+		add(udpBytes, r.udpBytes);
+
+		for (int i = 0; i < r.intervals.size(); i++) {
+			int j = intervalIndex(r.intervals.keyAt(i));
+
+			intervalFrames[j] += r.intervalFrames[i];
+			intervalBytes[j] += r.intervalBytes[i];
+		}
+	}
+
+	private static void add(long[] into, long[] from) {
+		for (int i = 0; i < into.length; i++) {
+			into[i] += from[i];
+		}
+	}
+
+	/**
+	 * Counts every frame of one capture file.
+	 */
+	public void file(Path p) throws Exception {
+		try (CaptureFile cf = new CaptureFile(p)) {
+			while (cf.next()) {
+				add(cf.buffer(), cf.frameOffset(), cf.frameLength(),
+					cf.timestamp());
+			}
+		}
+
+		files++;
+	}
+
+	public String format(long millis) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("STATS: files = " + files + ", frames = " + frames
+			+ ", bytes = " + bytes + ", interval = " + interval / 1e6
+			+ " ms, " + millis + " ms\n");
+		sb.append("STATS:\n");
+		sb.append(String.format("STATS: %-28s %12s %14s %7s\n", "protocol",
+			"frames", "bytes", "%"));
+
+		line(sb, 0, "eth", frames, bytes);
+
+		for (int type : byFrames(etherFrames)) {
+			String label = new EtherType(type).label();
+
+			if (label == "LENGTH" || label == "UNDEFINED") {
+				label += String.format(" (0x%04x)", type);
+			}
+
+			line(sb, 1, label, etherFrames[type], etherBytes[type]);
+
+			if (type != FrameLayout.ETHERTYPE_IP) {
+				continue;
+			}
+
+			for (int protocol : byFrames(ipFrames)) {
+				String name = InternetProtocolV4Packet.protocolLabel(protocol);
+
+				if (name == "UNKNOWN") {
+					name += " (" + protocol + ")";
+				}
+
+				line(sb, 2, name, ipFrames[protocol], ipBytes[protocol]);
+
+				if (protocol == FrameLayout.PROTOCOL_TCP) {
+					ports(sb, "tcp", tcpFrames, tcpBytes);
+				} else if (protocol == FrameLayout.PROTOCOL_UDP) {
+					ports(sb, "udp", udpFrames, udpBytes);
+				}
+			}
+
+			if (optionFrames > 0) {
+				line(sb, 2, "with options", optionFrames, optionBytes);
+
+				for (int option : byFrames(optionTypeFrames)) {
+					line(sb, 3, Ipv4Options.label(option) + " (" + option + ")",
+						optionTypeFrames[option], optionTypeBytes[option]);
+				}
+
+				if (optionsMalformed > 0) {
+					line(sb, 3, "malformed", optionsMalformed, 0);
+				}
+			}
+
+			if (ipTruncated > 0) {
+				line(sb, 2, "truncated", ipTruncated, 0);
+			}
+		}
+
+		if (truncated > 0) {
+			line(sb, 1, "truncated", truncated, 0);
+		}
+
+		intervals(sb);
+
+		return sb.toString();
+	}
+
+	private void ports(StringBuilder sb, String name, long[] portFrames,
+			long[] portBytes) {
+		for (int port : byFrames(portFrames)) {
+			line(sb, 3, port == WELL_KNOWN ? name + " other" : name + " " + port,
+				portFrames[port], portBytes[port]);
+		}
+	}
+
+	private void line(StringBuilder sb, int depth, String name, long f,
+			long b) {
+		String indented = "  ".repeat(depth) + name;
+
+		sb.append(String.format("STATS: %-28s %12d %14d %6.2f%%\n", indented, f,
+			b, frames == 0 ? 0.0 : 100.0 * f / frames));
+	}
+
+	private void intervals(StringBuilder sb) {
+		long[] order = new long[intervals.size()];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = intervals.keyAt(i);
+		}
+
+		Arrays.sort(order);
+
+		double seconds = interval / 1e9;
+
+		sb.append("STATS:\n");
+		sb.append(String.format("STATS: %-20s %12s %14s %12s %14s\n",
+			"interval", "frames", "bytes", "pps", "bps"));
+
+		for (long n : order) {
+			int i = intervals.indexOf(n);
+			long start = n * interval;
+
+			sb.append(String.format("STATS: %-20s %12d %14d %12.1f %14.1f\n",
+				String.format("%d.%03d", Math.floorDiv(start, 1_000_000_000L),
+					Math.floorMod(start, 1_000_000_000L) / 1_000_000),
+				intervalFrames[i], intervalBytes[i], intervalFrames[i] / seconds,
+				intervalBytes[i] * 8 / seconds));
+		}
+	}
+
+	/**
+	 * Indices of the non-zero counts, most frames first.
+	 */
+	private static int[] byFrames(long[] counts) {
+		List<Integer> l = new ArrayList<>();
+
+		for (int i = 0; i < counts.length; i++) {
+			if (counts[i] > 0) {
+				l.add(i);
+			}
+		}
+
+		l.sort((x, y) -> Long.compare(counts[y], counts[x]));
+
+		return l.stream().mapToInt(Integer::intValue).toArray();
+	}
+
+	/**
+	 * Command-line entry: --stats [-i seconds] [-w n] file|dir|glob...
+	 * Files are counted in parallel on n threads, each taking the next file
+	 * not yet started and counting it into its own CaptureStats, so memory
+	 * stays at one instance per thread however many files there are.
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		double seconds = 1;
+		int workers = Runtime.getRuntime().availableProcessors();
+		List<String> paths = new ArrayList<>();
+
+		for (int i = 1; i < args.length; i++) {
+			if (args[i].equals("-i") && i + 1 < args.length) {
+				seconds = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-w") && i + 1 < args.length) {
+				workers = Integer.parseInt(args[++i]);
+			} else {
+				paths.add(args[i]);
+			}
+		}
+
+		if (paths.isEmpty() || seconds <= 0 || workers < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --stats [-i seconds] [-w workers]"
+				+ " file|dir|glob...");
+		}
+
+		long intervalNanos = Math.max(1, (long) (seconds * 1e9));
+		long start = System.nanoTime();
+		List<Path> files = BatchAnalyzer.expand(dir, paths);
+		CaptureStats total = new CaptureStats(intervalNanos);
+		AtomicInteger next = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(workers);
+
+		try {
+			List<Future<CaptureStats>> pending = new ArrayList<>();
+
+			for (int w = 0; w < workers; w++) {
+				pending.add(pool.submit(() -> {
+					CaptureStats s = new CaptureStats(intervalNanos);
+					int k;
+
+					// interrupted once another thread has failed
+					while (!Thread.currentThread().isInterrupted()
+							&& (k = next.getAndIncrement()) < files.size()) {
+						s.file(files.get(k));
+					}
+
+					return s;
+				}));
+			}
+
+			for (Future<CaptureStats> f : pending) {
+				total.merge(f.get());
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+
+		out.print(total.format((System.nanoTime() - start) / 1_000_000));
+	}
+}
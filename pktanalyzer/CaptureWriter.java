@@ -0,0 +1,340 @@
+/*
+ * CaptureWriter.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes records of the captures being read to one or more pcap files,
+ * copying them file to file rather than through the heap.
+ *
+ * Selected records that follow each other in the same input are gathered
+ * into a run, and a run is copied with one FileChannel.transferTo() once
+ * the next selected record does not continue it, so a filter that keeps
+ * most of a capture costs a few large copies the kernel can do on its own.
+ * Each output keeps its own run, and records may come from several inputs
+ * in turn. The pcap header of the first capture is copied to every
+ * output; later captures must have the same byte order and timestamp
+ * precision.
+ *
+ * When splitting into more outputs than may be open at once, the output
+ * used longest ago is closed to make room and opened again for appending
+ * the next time it gets a record. Outputs are only created once they have
+ * a record, so a split leaves no empty files.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class CaptureWriter implements AutoCloseable {
+	private final Path out;
+	private final int outputs;
+	private final int maxOpen;
+
+	// pcap header of the first capture
+	private ByteBuffer header;
+
+	// per output: channel if open, last use, and the run not yet copied
+	private final FileChannel[] channel;
+	private final boolean[] created;
+	private final long[] used;
+	private final CaptureFile[] runSource;
+	private final long[] runStart;
+	private final long[] runEnd;
+
+	// outputs open, in no order, and where each is in that list
+	private final int[] openList;
+	private final int[] slot;
+	private int open;
+	private long clock;
+
+	// counters
+	private long records;
+	private long runs;
+	private long bytes;
+	private int files;
+	private long reopened;
+
+	/**
+	 * Writes to out, or with more than one output to out's name followed by
+	 * the output number, keeping at most maxOpen files open.
+	 */
+	CaptureWriter(Path out, int outputs, int maxOpen) {
+		if (outputs < 1 || maxOpen < 1) {
+			throw new IllegalArgumentException("Outputs and open files must be"
+				+ " >= 1");
+		}
+
+		this.out = out;
+		this.outputs = outputs;
+		this.maxOpen = maxOpen;
+
+		channel = new FileChannel[outputs];
+		created = new boolean[outputs];
+		used = new long[outputs];
+		runSource = new CaptureFile[outputs];
+		runStart = new long[outputs];
+		runEnd = new long[outputs];
+		openList = new int[Math.min(outputs, maxOpen)];
+		slot = new int[outputs];
+	}
+
+	/**
+	 * Checks that records of cf can be written to the same outputs as those
+	 * of the captures added before it.
+	 */
+	public void add(CaptureFile cf) throws IOException {
+		if (!cf.pcap()) {
+			throw new IllegalArgumentException("Only pcap files can be written"
+				+ " out: " + cf.path());
+		}
+
+		ByteBuffer h = ByteBuffer.allocate(CaptureFile.PCAP_HEADER);
+
+		cf.channel().read(h, 0);
+		h.flip();
+
+		if (header == null) {
+			header = h;
+		} else if (header.getInt(0) != h.getInt(0)) {
+			throw new IllegalArgumentException("Byte order or timestamp"
+				+ " precision differs from the first capture: " + cf.path());
+		}
+	}
+
+	/**
+	 * Adds the current record of cf to output o. Runs point into the
+	 * captures, so flush() must be called before one is closed.
+	 */
+	public void write(CaptureFile cf, int o) throws IOException {
+		long start = cf.recordPosition();
+		long end = cf.position();
+
+		records++;
+
+		if (runSource[o] == cf && runEnd[o] == start) {
+			runEnd[o] = end;
+			return;
+		}
+
+		copy(o);
+		runSource[o] = cf;
+		runStart[o] = start;
+		runEnd[o] = end;
+	}
+
+	/**
+	 * Copies the run of output o, if it has one.
+	 */
+	private void copy(int o) throws IOException {
+		CaptureFile source = runSource[o];
+
+		if (source == null) {
+			return;
+		}
+
+		FileChannel target = acquire(o);
+		FileChannel from = source.channel();
+		long count = runEnd[o] - runStart[o];
+		long position = runStart[o];
+
+		// transferTo may copy less than asked
+		while (count > 0) {
+			long n = from.transferTo(position, count, target);
+
+			if (n <= 0) {
+				throw new IOException("Copy stopped at offset " + position + ": "
+					+ source.path());
+			}
+
+			position += n;
+			count -= n;
+		}
+
+		runs++;
+		bytes += runEnd[o] - runStart[o];
+		runSource[o] = null;
+		runStart[o] = 0;
+		runEnd[o] = 0;
+	}
+
+	/**
+	 * Channel of output o, opening it, and closing the output used longest
+	 * ago if too many are open.
+	 */
+	private FileChannel acquire(int o) throws IOException {
+		used[o] = ++clock;
+
+		if (channel[o] != null) {
+			return channel[o];
+		}
+
+		if (open == openList.length) {
+			int lru = openList[0];
+
+			for (int k = 1; k < open; k++) {
+				if (used[openList[k]] < used[lru]) {
+					lru = openList[k];
+				}
+			}
+
+			channel[lru].close();
+			channel[lru] = null;
+			openList[slot[lru]] = openList[--open];
+			slot[openList[slot[lru]]] = slot[lru];
+		}
+
+		if (created[o]) {
+			channel[o] = FileChannel.open(path(o), StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+			reopened++;
+		} else {
+			channel[o] = FileChannel.open(path(o), StandardOpenOption.WRITE,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+			channel[o].write(header.duplicate());
+			created[o] = true;
+			files++;
+		}
+
+		slot[o] = open;
+		openList[open++] = o;
+		return channel[o];
+	}
+
+	/**
+	 * Path of output o.
+	 */
+	Path path(int o) {
+		if (outputs == 1) {
+			return out;
+		}
+
+		String name = out.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		String digits = String.format("%0"
+			+ Integer.toString(outputs - 1).length() + "d", o);
+
+		if (dot <= 0) {
+			return out.resolveSibling(name + "-" + digits);
+		}
+
+		return out.resolveSibling(name.substring(0, dot) + "-" + digits
+			+ name.substring(dot));
+	}
+
+	/**
+	 * Copies the runs of every output.
+	 */
+	public void flush() throws IOException {
+		for (int o = 0; o < outputs; o++) {
+			copy(o);
+		}
+	}
+
+	/**
+	 * Copies what is left and closes every output. The captures are left
+	 * open.
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+		} finally {
+			for (int o = 0; o < outputs; o++) {
+				if (channel[o] != null) {
+					channel[o].close();
+					channel[o] = null;
+				}
+			}
+
+			open = 0;
+		}
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("WRITE: records = " + records + ", bytes = " + bytes
+			+ ", copies = " + runs + "\n");
+		sb.append("WRITE: files = " + files + " of " + outputs
+			+ ", open at most = " + maxOpen + ", reopened = " + reopened + "\n");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry:
+	 *   --write [-f filter] [-split n] [-open n] output capture...
+	 * Writes the records matching the filter (all of them without one) to
+	 * output, or spreads them over n outputs by a hash of their flow.
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		FrameFilter filter = null;
+		int split = 1;
+		int maxOpen = 256;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-f")) {
+				filter = new FrameFilter(args[++i]);
+			} else if (args[i].equals("-split")) {
+				split = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-open")) {
+				maxOpen = Integer.parseInt(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i + 1 >= args.length) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --write [-f filter] [-split n]"
+				+ " [-open n] output capture...");
+		}
+
+		long read = 0;
+
+		try (CaptureWriter w = new CaptureWriter(dir.resolve(args[i++]), split,
+				maxOpen)) {
+			for (; i < args.length; i++) {
+				try (CaptureFile cf = new CaptureFile(dir.resolve(args[i]))) {
+					w.add(cf);
+
+					while (cf.next()) {
+						ByteBuffer b = cf.buffer();
+						int frame = cf.frameOffset();
+						int length = cf.frameLength();
+
+						read++;
+
+						if (filter != null
+								&& !filter.matches(b, frame, length, cf.timestamp())) {
+							continue;
+						}
+
+						w.write(cf, split == 1 ? 0 : Integer.remainderUnsigned(
+							FlowDispatcher.flowHash(b, frame, length), split));
+					}
+
+					// runs point into this capture
+					w.flush();
+				}
+			}
+
+			out.println("WRITE: read = " + read);
+			out.print(w);
+		}
+	}
+}
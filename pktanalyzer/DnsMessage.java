@@ -0,0 +1,456 @@
+/*
+ * DnsMessage.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes a DNS message in place: the header, the first question and, one
+ * at a time, the resource records after it.
+ *
+ * Names are decompressed into a byte buffer owned by the instance, as
+ * dotted text, so no String is made per label; name() makes one only when
+ * asked. Compression pointers must point backwards and at most
+ * MAX_POINTERS are followed, so a message cannot make the decoder loop, and
+ * a name longer than MAX_NAME is rejected. An instance is reused for every
+ * message but is not thread safe; each thread keeps its own.
+ *
+ * Reference: https://www.rfc-editor.org/rfc/rfc1035
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class DnsMessage {
+	static final int PORT = 53;
+	static final int HEADER = 12;
+
+	// limits from RFC 1035
+	static final int MAX_NAME = 255;
+	static final int MAX_LABEL = 63;
+
+	// compression pointers followed per name
+	static final int MAX_POINTERS = 32;
+
+	// record types printed by name
+	static final int TYPE_A = 1;
+	static final int TYPE_NS = 2;
+	static final int TYPE_CNAME = 5;
+	static final int TYPE_SOA = 6;
+	static final int TYPE_PTR = 12;
+	static final int TYPE_MX = 15;
+	static final int TYPE_TXT = 16;
+	static final int TYPE_AAAA = 28;
+	static final int TYPE_SRV = 33;
+	static final int TYPE_OPT = 41;
+	static final int TYPE_HTTPS = 65;
+
+	private ByteBuffer b;
+	private int start;
+	private int end;
+
+	// header
+	private int id;
+	private int flags;
+	private int qdCount;
+	private int anCount;
+	private int nsCount;
+	private int arCount;
+
+	// first question
+	private final byte[] name = new byte[MAX_NAME + 1];
+	private int nameLength;
+	private int qType;
+	private int qClass;
+
+	// record iteration
+	private int position;
+	private int recordsLeft;
+	private int type;
+	private int recordClass;
+	private long ttl;
+	private int rdata;
+	private int rdLength;
+
+	/**
+	 * Decodes the header and first question of the message at off.
+	 * Returns false if it is not a well formed DNS message.
+	 */
+	public boolean parse(ByteBuffer b, int off, int length) {
+		this.b = b;
+		this.start = off;
+		this.end = off + length;
+
+		nameLength = 0;
+		qType = 0;
+		qClass = 0;
+		recordsLeft = 0;
+
+		if (length < HEADER) {
+			return false;
+		}
+
+		id = FrameLayout.u16(b, off);
+		flags = FrameLayout.u16(b, off + 2);
+		qdCount = FrameLayout.u16(b, off + 4);
+		anCount = FrameLayout.u16(b, off + 6);
+		nsCount = FrameLayout.u16(b, off + 8);
+		arCount = FrameLayout.u16(b, off + 10);
+
+		position = off + HEADER;
+
+		for (int q = 0; q < qdCount; q++) {
+			position = q == 0 ? readName(position) : skipName(position);
+
+			if (position < 0 || position + 4 > end) {
+				return false;
+			}
+
+			if (q == 0) {
+				qType = FrameLayout.u16(b, position);
+				qClass = FrameLayout.u16(b, position + 2);
+			}
+
+			position += 4;
+		}
+
+		recordsLeft = anCount + nsCount + arCount;
+		return true;
+	}
+
+	/**
+	 * Moves to the next resource record (answers, then authority, then
+	 * additional). Returns false when there are no more or the next one is
+	 * malformed.
+	 */
+	public boolean nextRecord() {
+		if (recordsLeft == 0) {
+			return false;
+		}
+
+		recordsLeft--;
+
+		int p = skipName(position);
+
+		if (p < 0 || p + 10 > end) {
+			recordsLeft = 0;
+			return false;
+		}
+
+		type = FrameLayout.u16(b, p);
+		recordClass = FrameLayout.u16(b, p + 2);
+		ttl = FrameLayout.u32(b, p + 4) & 0xffffffffL;
+		rdLength = FrameLayout.u16(b, p + 8);
+		rdata = p + 10;
+
+		if (rdata + rdLength > end) {
+			recordsLeft = 0;
+			return false;
+		}
+
+		position = rdata + rdLength;
+		return true;
+	}
+
+	/**
+	 * Decompresses the name at p into the name buffer. Returns the offset
+	 * just past the name where it is stored (not where pointers led), or
+	 * -1 if it is malformed.
+	 */
+	private int readName(int p) {
+		int after = -1;
+		int pointers = 0;
+
+		nameLength = 0;
+
+		while (p < end) {
+			int len = FrameLayout.u8(b, p);
+
+			if (len == 0) {
+				return after < 0 ? p + 1 : after;
+			}
+
+			if ((len & 0xc0) == 0xc0) {
+				if (p + 1 >= end || ++pointers > MAX_POINTERS) {
+					return -1;
+				}
+
+				int target = start + ((len & 0x3f) << 8 | FrameLayout.u8(b, p + 1));
+
+				// only backwards, so the chain always ends
+				if (target >= p) {
+					return -1;
+				}
+
+				if (after < 0) {
+					after = p + 2;
+				}
+
+				p = target;
+				continue;
+			}
+
+			if (len > MAX_LABEL || p + 1 + len > end
+					|| nameLength + len + 1 > MAX_NAME) {
+				return -1;
+			}
+
+			if (nameLength > 0) {
+				name[nameLength++] = '.';
+			}
+
+			for (int i = 0; i < len; i++) {
+				name[nameLength++] = (byte) FrameLayout.u8(b, p + 1 + i);
+			}
+
+			p += 1 + len;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Offset just past the name at p, without decoding it, or -1.
+	 */
+	private int skipName(int p) {
+		while (p < end) {
+			int len = FrameLayout.u8(b, p);
+
+			if (len == 0) {
+				return p + 1;
+			}
+
+			if ((len & 0xc0) == 0xc0) {
+				return p + 2 <= end ? p + 2 : -1;
+			}
+
+			if (len > MAX_LABEL) {
+				return -1;
+			}
+
+			p += 1 + len;
+		}
+
+		return -1;
+	}
+
+	// header
+
+	public int id() {
+		return id;
+	}
+
+	public boolean response() {
+		return (flags & 0x8000) != 0;
+	}
+
+	public int opcode() {
+		return (flags >> 11) & 0xf;
+	}
+
+	public boolean authoritative() {
+		return (flags & 0x0400) != 0;
+	}
+
+	public boolean truncated() {
+		return (flags & 0x0200) != 0;
+	}
+
+	public boolean recursionDesired() {
+		return (flags & 0x0100) != 0;
+	}
+
+	public boolean recursionAvailable() {
+		return (flags & 0x0080) != 0;
+	}
+
+	public int rcode() {
+		return flags & 0xf;
+	}
+
+	public int questions() {
+		return qdCount;
+	}
+
+	public int answers() {
+		return anCount;
+	}
+
+	public int authorities() {
+		return nsCount;
+	}
+
+	public int additionals() {
+		return arCount;
+	}
+
+	// first question
+
+	/**
+	 * Length of the decoded question name in nameBytes().
+	 */
+	public int nameLength() {
+		return nameLength;
+	}
+
+	/**
+	 * The decoded question name, valid up to nameLength(). Overwritten by
+	 * the next parse().
+	 */
+	public byte[] nameBytes() {
+		return name;
+	}
+
+	public String name() {
+		return nameLength == 0 ? "."
+			: new String(name, 0, nameLength, StandardCharsets.ISO_8859_1);
+	}
+
+	public int qType() {
+		return qType;
+	}
+
+	public int qClass() {
+		return qClass;
+	}
+
+	// record nextRecord() stopped at
+
+	public int type() {
+		return type;
+	}
+
+	public int recordClass() {
+		return recordClass;
+	}
+
+	public long ttl() {
+		return ttl;
+	}
+
+	public int rdata() {
+		return rdata;
+	}
+
+	public int rdLength() {
+		return rdLength;
+	}
+
+	static String typeLabel(int type) {
+		switch (type) {
+			case TYPE_A:
+				return "A";
+
+			case TYPE_NS:
+				return "NS";
+
+			case TYPE_CNAME:
+				return "CNAME";
+
+			case TYPE_SOA:
+				return "SOA";
+
+			case TYPE_PTR:
+				return "PTR";
+
+			case TYPE_MX:
+				return "MX";
+
+			case TYPE_TXT:
+				return "TXT";
+
+			case TYPE_AAAA:
+				return "AAAA";
+
+			case TYPE_SRV:
+				return "SRV";
+
+			case TYPE_OPT:
+				return "OPT";
+
+			case TYPE_HTTPS:
+				return "HTTPS";
+
+			default:
+				return "TYPE" + type;
+		}
+	}
+
+	static String rcodeLabel(int rcode) {
+		switch (rcode) {
+			case 0:
+				return "NOERROR";
+
+			case 1:
+				return "FORMERR";
+
+			case 2:
+				return "SERVFAIL";
+
+			case 3:
+				return "NXDOMAIN";
+
+			case 4:
+				return "NOTIMP";
+
+			case 5:
+				return "REFUSED";
+
+			default:
+				return "RCODE" + rcode;
+		}
+	}
+
+	/**
+	 * Pretty prints the message in the style of the packet parsers. parse()
+	 * must have returned true.
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("DNS: ----- DNS Header -----\n");
+		sb.append("DNS:                       \n");
+		sb.append("DNS: ID = 0x" + String.format("%04x\n", id()));
+		sb.append("DNS: Flags = 0x" + String.format("%04x", flags)
+			+ (response() ? " (response" : " (query") + ", opcode "
+			+ opcode() + (authoritative() ? ", authoritative" : "")
+			+ (truncated() ? ", truncated" : "")
+			+ (recursionDesired() ? ", recursion desired" : "")
+			+ (recursionAvailable() ? ", recursion available" : "") + ")\n");
+		sb.append("DNS: Response code = " + rcode() + " ("
+			+ rcodeLabel(rcode()) + ")\n");
+		sb.append("DNS: Questions = " + questions() + ", answers = "
+			+ answers() + ", authority = " + authorities()
+			+ ", additional = " + additionals() + "\n");
+
+		if (questions() > 0) {
+			sb.append("DNS: Query = " + name() + " " + typeLabel(qType())
+				+ " class " + qClass() + "\n");
+		}
+
+		int shown = 0;
+
+		while (shown < answers() && nextRecord()) {
+			sb.append("DNS: Answer = " + typeLabel(type()) + " ttl " + ttl());
+
+			if (type() == TYPE_A && rdLength() == 4) {
+				sb.append(" " + FrameLayout.formatIP(FrameLayout.u32(b, rdata())));
+			} else {
+				sb.append(", " + rdLength() + " bytes");
+			}
+
+			sb.append("\n");
+			shown++;
+		}
+
+		return sb.toString();
+	}
+}
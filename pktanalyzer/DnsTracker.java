@@ -0,0 +1,355 @@
+/*
+ * DnsTracker.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Matches DNS queries on UDP port 53 to their responses and measures how
+ * long each resolver takes to answer.
+ *
+ * A query is keyed on the client address, client port and message ID, all
+ * of which fit one long, and kept in a fixed size table of WAYS entries
+ * per set, so memory does not grow with lost responses: a full set expires
+ * queries older than the timeout, then evicts the oldest, and either way
+ * the query counts as unanswered. A response removes its query and records the latency
+ * against the resolver that sent it.
+ *
+ * Alongside, response codes and query types are counted in flat arrays.
+ * Messages are decoded with one reused DnsMessage.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class DnsTracker implements FlowDispatcher.FlowWorker {
+	// entries per set
+	static final int WAYS = 4;
+
+	// resolvers tracked one by one
+	static final int MAX_RESOLVERS = 4096;
+
+	// resolver key the rest are counted under
+	static final long OTHER = -1;
+
+	private final DnsMessage message = new DnsMessage();
+	private final long timeout;
+	private final int setMask;
+
+	// outstanding queries: client, port and ID; time sent, 0 if free
+	private final long[] keys;
+	private final long[] sent;
+
+	// per resolver, indexed through its address
+	private final LongIndexMap resolvers = new LongIndexMap(64);
+	private LatencyHistogram[] latency = new LatencyHistogram[64];
+
+	private final LatencyHistogram all = new LatencyHistogram();
+	private final long[] rcodes = new long[16];
+	private final long[] qTypes = new long[65536];
+
+	private long queries;
+	private long responses;
+	private long matched;
+	private long unanswered;
+	private long unmatched;
+	private long truncated;
+	private long malformed;
+
+	DnsTracker(int pending, long timeoutNanos) {
+		int sets = Integer.highestOneBit(Math.max(pending / WAYS, 1));
+
+		this.timeout = timeoutNanos;
+		this.setMask = sets - 1;
+
+		keys = new long[sets * WAYS];
+		sent = new long[sets * WAYS];
+	}
+
+	@Override
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0 || FrameLayout.protocol(b, ip) != FrameLayout.PROTOCOL_UDP) {
+			return;
+		}
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+		int end = FrameLayout.ipv4End(b, ip, frame + length);
+
+		if (l4 < 0 || l4 + FrameLayout.UDP_HEADER > end) {
+			return;
+		}
+
+		int srcPort = FrameLayout.sourcePort(b, l4);
+		int dstPort = FrameLayout.destPort(b, l4);
+
+		if (srcPort != DnsMessage.PORT && dstPort != DnsMessage.PORT) {
+			return;
+		}
+
+		int dns = l4 + FrameLayout.UDP_HEADER;
+
+		if (!message.parse(b, dns, end - dns)) {
+			malformed++;
+			return;
+		}
+
+		long src = FrameLayout.sourceIP(b, ip) & 0xffffffffL;
+		long dst = FrameLayout.destIP(b, ip) & 0xffffffffL;
+
+		if (!message.response()) {
+			queries++;
+
+			if (message.questions() > 0) {
+				qTypes[message.qType()]++;
+			}
+
+			query(src << 32 | (long) srcPort << 16 | message.id(), timestamp);
+			return;
+		}
+
+		responses++;
+		rcodes[message.rcode()]++;
+
+		if (message.truncated()) {
+			truncated++;
+		}
+
+		int e = find(dst << 32 | (long) dstPort << 16 | message.id());
+
+		if (e < 0) {
+			unmatched++;
+			return;
+		}
+
+		long nanos = timestamp - sent[e];
+
+		sent[e] = 0;
+		matched++;
+		all.record(nanos);
+		resolver(src).record(nanos);
+	}
+
+	private void query(long key, long timestamp) {
+		int set = (LongIndexMap.hash(key) & setMask) * WAYS;
+		int free = -1;
+		int oldest = set;
+
+		for (int e = set; e < set + WAYS; e++) {
+			if (sent[e] != 0 && (keys[e] == key
+					|| timestamp - sent[e] > timeout)) {
+				// repeated ID or expired, the old query went unanswered
+				unanswered++;
+				sent[e] = 0;
+			}
+
+			if (sent[e] == 0) {
+				if (free < 0) {
+					free = e;
+				}
+			} else if (sent[e] < sent[oldest]) {
+				oldest = e;
+			}
+		}
+
+		if (free < 0) {
+			unanswered++;
+			free = oldest;
+		}
+
+		keys[free] = key;
+
+		// 0 marks a free entry
+		sent[free] = Math.max(timestamp, 1);
+	}
+
+	private int find(long key) {
+		int set = (LongIndexMap.hash(key) & setMask) * WAYS;
+
+		for (int e = set; e < set + WAYS; e++) {
+			if (sent[e] != 0 && keys[e] == key) {
+				return e;
+			}
+		}
+
+		return -1;
+	}
+
+	private LatencyHistogram resolver(long address) {
+		int r = resolvers.indexOf(address);
+
+		if (r < 0) {
+			r = resolvers.add(resolvers.size() < MAX_RESOLVERS
+				? address : OTHER);
+
+			if (r == latency.length) {
+				latency = Arrays.copyOf(latency, r * 2);
+			}
+
+			if (latency[r] == null) {
+				latency[r] = new LatencyHistogram();
+			}
+		}
+
+		return latency[r];
+	}
+
+	/**
+	 * Counts the queries still outstanding as unanswered.
+	 */
+	public void finish() {
+		for (int e = 0; e < sent.length; e++) {
+			if (sent[e] != 0) {
+				unanswered++;
+				sent[e] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Adds another tracker's results to this one. Both must be finished.
+	 */
+	public void merge(DnsTracker t) {
+		queries += t.queries;
+		responses += t.responses;
+		matched += t.matched;
+		unanswered += t.unanswered;
+		unmatched += t.unmatched;
+		truncated += t.truncated;
+		malformed += t.malformed;
+		all.merge(t.all);
+
+		for (int i = 0; i < rcodes.length; i++) {
+			rcodes[i] += t.rcodes[i];
+		}
+
+		for (int i = 0; i < qTypes.length; i++) {
+			qTypes[i] += t.qTypes[i];
+		}
+
+		for (int i = 0; i < t.resolvers.size(); i++) {
+			resolver(t.resolvers.keyAt(i)).merge(t.latency[i]);
+		}
+	}
+
+	public String format(int limit) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("DNS: queries = " + queries + ", responses = " + responses
+			+ ", matched = " + matched + ", unanswered = " + unanswered
+			+ ", unmatched responses = " + unmatched + "\n");
+		sb.append("DNS: truncated = " + truncated + ", malformed = "
+			+ malformed + "\n");
+		sb.append("DNS:\n");
+
+		sb.append("DNS: response codes\n");
+
+		for (int i = 0; i < rcodes.length; i++) {
+			if (rcodes[i] > 0) {
+				sb.append(String.format("DNS: %-20s %12d\n",
+					DnsMessage.rcodeLabel(i), rcodes[i]));
+			}
+		}
+
+		sb.append("DNS:\n");
+		sb.append("DNS: query types\n");
+
+		for (int i = 0; i < qTypes.length; i++) {
+			if (qTypes[i] > 0) {
+				sb.append(String.format("DNS: %-20s %12d\n",
+					DnsMessage.typeLabel(i), qTypes[i]));
+			}
+		}
+
+		sb.append("DNS:\n");
+		sb.append("DNS: latency\n");
+		sb.append(all.format("DNS: "));
+		sb.append("DNS:\n");
+
+		// busiest resolvers first
+		Integer[] order = new Integer[resolvers.size()];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, (x, y) -> Long.compare(latency[y].count(),
+			latency[x].count()));
+
+		for (int k = 0; k < Math.min(limit, order.length); k++) {
+			int r = order[k];
+			long key = resolvers.keyAt(r);
+			LatencyHistogram h = latency[r];
+
+			sb.append("DNS: resolver " + (key == OTHER ? "other"
+				: FrameLayout.formatIP((int) key)) + " answers = " + h.count()
+				+ ", p50 = " + LatencyHistogram.duration(h.percentile(50))
+				+ ", p99 = " + LatencyHistogram.duration(h.percentile(99))
+				+ ", max = " + LatencyHistogram.duration(h.max()) + "\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry:
+	 * --dns [-w workers] [-n resolvers] [-timeout ms] [-pending n] capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int limit = 20;
+		long timeoutMillis = 5000;
+		int pending = 1 << 16;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				n = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-timeout")) {
+				timeoutMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-pending")) {
+				pending = Integer.parseInt(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --dns [-w workers] [-n resolvers]"
+				+ " [-timeout ms] [-pending n] capture...");
+		}
+
+		DnsTracker[] parts = new DnsTracker[n];
+
+		for (int w = 0; w < n; w++) {
+			parts[w] = new DnsTracker(Math.max(pending / n, WAYS),
+				timeoutMillis * 1_000_000);
+		}
+
+		FlowDispatcher.runAll(parts, dir, args, i);
+
+		DnsTracker total = new DnsTracker(WAYS, 0);
+
+		for (DnsTracker t : parts) {
+			t.finish();
+			total.merge(t);
+		}
+
+		out.print(total.format(limit));
+	}
+}
@@ -10,7 +10,7 @@
 
 package pktanalyzer;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * The classes parses a Ethernet packet from the bytes provided.
@@ -33,52 +33,67 @@ public class EthernetPacket {
 	// frame length
 	private int frameLength = 0;
 
-	// payload of the packet
-	private byte[] payload;
+	// payload of the packet, a view of the frame
+	private ByteBuffer payload;
 
+	/**
+	 * Parses a whole array as a frame. The array is not copied: the packet
+	 * keeps a view of it, as for a ByteBuffer.
+	 */
 	EthernetPacket(byte[] data) throws Exception {
+		this(ByteBuffer.wrap(data), 0, data.length);
+	}
+
+	/**
+	 * Parses a frame in place, e.g. a FrameRing slot or a mapped capture
+	 * file. The payload is a view of the buffer, so the packet must not
+	 * outlive the bytes it was built from.
+	 */
+	EthernetPacket(ByteBuffer data, int offset, int length) throws Exception {
 		// Prof. said String.format is ok if used for pretty printing. just
 		// not for pasring.
 		
 		// parse dest mac address
 		for (int i = 0; i < 6; i++) {
 			if (i < 5) {
-				destMac += String.format("%02x", data[i]) + ":";
+				destMac += String.format("%02x", data.get(offset + i)) + ":";
 			} else {
-				destMac += String.format("%02x", data[i]);
+				destMac += String.format("%02x", data.get(offset + i));
 			}
 		}
 
 		// parse src mac address
 		for (int i = 6; i < 12; i++) {
 			if (i < 11) {
-				srcMac += String.format("%02x", data[i]) + ":";
+				srcMac += String.format("%02x", data.get(offset + i)) + ":";
 			} else {
-				srcMac += String.format("%02x", data[i]);
+				srcMac += String.format("%02x", data.get(offset + i));
 			}
 		}
 
-		int value = (data[12] & 0xff) << 8 | data[13] & 0xff;
+		int value = (data.get(offset + 12) & 0xff) << 8
+			| data.get(offset + 13) & 0xff;
 
 		if (value != 0x8100) {
 			// VTAG is not present
 			et = new EtherType(value);
 		} else {
 			// VTAG is present
-			et = new EtherType((data[16] & 0xff) << 8 | data[17] & 0xff);
+			et = new EtherType((data.get(offset + 16) & 0xff) << 8
+				| data.get(offset + 17) & 0xff);
 		}
 		
-		frameLength = data.length;
+		frameLength = length;
 
 		// TODO: In future handle the following:
 		// 1) Checksum
 		// 2) Exact payload size by frameLength - (7/13 + 4) depending upon vtag
 		//    present or no
-		if (vlan()) {
-			payload = Arrays.copyOfRange(data, 18, data.length);
-		} else {
-			payload = Arrays.copyOfRange(data, 14, data.length);
-		}
+		int header = vlan() ? 18 : 14;
+
+		payload = data.duplicate();
+		payload.limit(offset + length).position(offset + header);
+		payload = payload.slice();
 	}
 
 	public String destMac() {
@@ -109,9 +124,12 @@ public class EthernetPacket {
 	}
 
 	public byte[] payload() {
-		// arrays are by reference in Java. send a copy so outside changes
-		// to the byte array dont affect internal data
-		return Arrays.copyOfRange(this.payload, 0, this.payload.length);
+		// a copy, so changes to the returned array dont reach the frame.
+		// the packet itself is a view of the buffer it was parsed from,
+		// including the byte[] one, so changes to that do show up here
+		byte[] copy = new byte[payload.remaining()];
+		payload.get(0, copy);
+		return copy;
 	}
 
 	public String ethertypeLabel() {
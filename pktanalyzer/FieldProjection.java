@@ -0,0 +1,371 @@
+/*
+ * FieldProjection.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Prints only the requested fields of each frame, one tab separated line
+ * per frame, without running the parsers.
+ *
+ * The field names are resolved once, up front, to a header (frame,
+ * ethernet, IPv4, TCP, UDP or ICMP), an offset within it and a way of
+ * reading and printing the value. Per frame only the headers some field
+ * needs are located, and values are formatted straight into a byte buffer.
+ * A field the frame does not have prints as an empty column.
+ *
+ * Field names follow Wireshark's where there is one.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FieldProjection {
+	// headers a field can be relative to
+	static final int FRAME = 0;
+	static final int ETHER = 1;
+	static final int IP = 2;
+	static final int TCP = 3;
+	static final int UDP = 4;
+	static final int ICMP = 5;
+
+	// how a value is read and printed
+	static final int U8 = 0;
+	static final int U16 = 1;
+	static final int U32 = 2;
+	static final int ADDRESS = 3;
+	static final int MAC = 4;
+	static final int HEX16 = 5;
+	static final int LENGTH = 6;
+	static final int TIME = 7;
+	static final int HEADER_LENGTH = 8;
+	static final int CAPTURED = 9;
+
+	// name, header, offset, kind, shift, mask
+	private static final Object[][] FIELDS = {
+		{"frame.len", FRAME, 0, LENGTH, 0, -1},
+		{"frame.cap_len", FRAME, 0, CAPTURED, 0, -1},
+		{"frame.time_epoch", FRAME, 0, TIME, 0, -1},
+		{"eth.dst", ETHER, 0, MAC, 0, -1},
+		{"eth.src", ETHER, 6, MAC, 0, -1},
+		{"eth.type", ETHER, -1, HEX16, 0, -1},
+		{"ip.hdr_len", IP, 0, HEADER_LENGTH, 0, 0x0f},
+		{"ip.dscp", IP, 1, U8, 2, 0x3f},
+		{"ip.ecn", IP, 1, U8, 0, 0x03},
+		{"ip.len", IP, 2, U16, 0, -1},
+		{"ip.id", IP, 4, U16, 0, -1},
+		{"ip.flags", IP, 6, U8, 5, 0x03},
+		{"ip.frag_offset", IP, 6, U16, 0, 0x1fff},
+		{"ip.ttl", IP, 8, U8, 0, -1},
+		{"ip.proto", IP, 9, U8, 0, -1},
+		{"ip.checksum", IP, 10, HEX16, 0, -1},
+		{"ip.src", IP, 12, ADDRESS, 0, -1},
+		{"ip.dst", IP, 16, ADDRESS, 0, -1},
+		{"tcp.srcport", TCP, 0, U16, 0, -1},
+		{"tcp.dstport", TCP, 2, U16, 0, -1},
+		{"tcp.sport", TCP, 0, U16, 0, -1},
+		{"tcp.dport", TCP, 2, U16, 0, -1},
+		{"tcp.seq", TCP, 4, U32, 0, -1},
+		{"tcp.ack", TCP, 8, U32, 0, -1},
+		{"tcp.hdr_len", TCP, 12, HEADER_LENGTH, 4, 0x0f},
+		{"tcp.flags", TCP, 13, U8, 0, -1},
+		{"tcp.window_size", TCP, 14, U16, 0, -1},
+		{"tcp.checksum", TCP, 16, HEX16, 0, -1},
+		{"tcp.urgent_pointer", TCP, 18, U16, 0, -1},
+		{"udp.srcport", UDP, 0, U16, 0, -1},
+		{"udp.dstport", UDP, 2, U16, 0, -1},
+		{"udp.sport", UDP, 0, U16, 0, -1},
+		{"udp.dport", UDP, 2, U16, 0, -1},
+		{"udp.length", UDP, 4, U16, 0, -1},
+		{"udp.checksum", UDP, 6, HEX16, 0, -1},
+		{"icmp.type", ICMP, 0, U8, 0, -1},
+		{"icmp.code", ICMP, 1, U8, 0, -1},
+		{"icmp.checksum", ICMP, 2, HEX16, 0, -1},
+	};
+
+	// header length needed past the offset for each kind
+	private static final int[] WIDTH = {1, 2, 4, 4, 6, 2, 0, 0, 1, 0};
+
+	// longest text printed for each kind
+	private static final int[] TEXT = {3, 5, 10, 15, 17, 6, 10, 20, 2, 10};
+
+	private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+	// compiled fields
+	private final int[] header;
+	private final int[] offset;
+	private final int[] kind;
+	private final int[] shift;
+	private final int[] mask;
+
+	// which headers need locating at all
+	private final boolean needIP;
+	private final boolean needL4;
+
+	// output buffer, flushed when a line of maxLine bytes might not fit
+	private final int maxLine;
+	private final byte[] line;
+	private int length;
+
+	FieldProjection(String[] fields) {
+		int n = fields.length;
+
+		header = new int[n];
+		offset = new int[n];
+		kind = new int[n];
+		shift = new int[n];
+		mask = new int[n];
+
+		boolean ip = false;
+		boolean l4 = false;
+
+		// a tab or newline after each field
+		int longest = n;
+
+		for (int i = 0; i < n; i++) {
+			Object[] f = lookup(fields[i]);
+
+			header[i] = (Integer) f[1];
+			offset[i] = (Integer) f[2];
+			kind[i] = (Integer) f[3];
+			shift[i] = (Integer) f[4];
+			mask[i] = (Integer) f[5];
+
+			ip |= header[i] >= IP;
+			l4 |= header[i] >= TCP;
+			longest += TEXT[kind[i]];
+		}
+
+		needIP = ip;
+		needL4 = l4;
+		maxLine = longest;
+		line = new byte[Math.max(64 * 1024, 4 * maxLine)];
+	}
+
+	private static Object[] lookup(String name) {
+		for (Object[] f : FIELDS) {
+			if (f[0].equals(name)) {
+				return f;
+			}
+		}
+
+		throw new IllegalArgumentException("Unknown field: " + name);
+	}
+
+	/**
+	 * Formats one frame's fields into the output buffer, flushing it to out
+	 * first if the longest line the fields can make would not fit.
+	 */
+	public void project(ByteBuffer b, int frame, int frameLength,
+			int originalLength, long timestamp, PrintStream out) {
+		if (line.length - length < maxLine) {
+			flush(out);
+		}
+
+		int end = frame + frameLength;
+		int ip = -1;
+		int l4 = -1;
+		int protocol = -1;
+
+		if (needIP) {
+			ip = FrameLayout.ipv4Offset(b, frame, frameLength);
+		}
+
+		if (needL4 && ip >= 0) {
+			l4 = FrameLayout.transportOffset(b, ip);
+			protocol = FrameLayout.protocol(b, ip);
+		}
+
+		for (int i = 0; i < header.length; i++) {
+			if (i > 0) {
+				line[length++] = '\t';
+			}
+
+			int base;
+
+			switch (header[i]) {
+				case FRAME:
+					if (kind[i] == LENGTH) {
+						writeLong(originalLength);
+					} else if (kind[i] == CAPTURED) {
+						writeLong(frameLength);
+					} else {
+						writeTime(timestamp);
+					}
+					continue;
+
+				case ETHER:
+					if (offset[i] < 0) {
+						// EtherType, past a VLAN tag
+						int type = FrameLayout.ethertypeValue(b, frame, frameLength);
+
+						if (type >= 0) {
+							writeHex16(type);
+						}
+
+						continue;
+					}
+
+					base = frameLength >= FrameLayout.ETHER_HEADER ? frame : -1;
+					break;
+
+				case IP:
+					base = ip;
+					break;
+
+				case TCP:
+					base = protocol == FrameLayout.PROTOCOL_TCP ? l4 : -1;
+					break;
+
+				case UDP:
+					base = protocol == FrameLayout.PROTOCOL_UDP ? l4 : -1;
+					break;
+
+				default:
+					base = protocol == FrameLayout.PROTOCOL_ICMP ? l4 : -1;
+			}
+
+			int at = base + offset[i];
+
+			if (base < 0 || at + WIDTH[kind[i]] > end) {
+				continue;
+			}
+
+			switch (kind[i]) {
+				case U8:
+					writeLong(FrameLayout.u8(b, at) >> shift[i] & mask[i]);
+					break;
+
+				case HEADER_LENGTH:
+					// in bytes, from a count of 32-bit words
+					writeLong((FrameLayout.u8(b, at) >> shift[i] & mask[i]) * 4);
+					break;
+
+				case U16:
+					writeLong(FrameLayout.u16(b, at) >> shift[i] & mask[i]);
+					break;
+
+				case U32:
+					writeLong(FrameLayout.u32(b, at) & 0xffffffffL);
+					break;
+
+				case ADDRESS:
+					writeAddress(FrameLayout.u32(b, at));
+					break;
+
+				case MAC:
+					writeMac(b, at);
+					break;
+
+				default:
+					writeHex16(FrameLayout.u16(b, at));
+			}
+		}
+
+		line[length++] = '\n';
+	}
+
+	public void flush(PrintStream out) {
+		out.write(line, 0, length);
+		length = 0;
+	}
+
+	// formatting straight into the line buffer
+
+	private void writeLong(long v) {
+		if (v == 0) {
+			line[length++] = '0';
+			return;
+		}
+
+		int start = length;
+
+		while (v > 0) {
+			line[length++] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+
+		// digits came out backwards
+		for (int i = start, j = length - 1; i < j; i++, j--) {
+			byte t = line[i];
+			line[i] = line[j];
+			line[j] = t;
+		}
+	}
+
+	private void writeTime(long nanos) {
+		writeLong(nanos / 1_000_000_000L);
+		line[length++] = '.';
+
+		long fraction = nanos % 1_000_000_000L;
+
+		for (long d = 100_000_000L; d > 0; d /= 10) {
+			line[length++] = (byte) ('0' + fraction / d % 10);
+		}
+	}
+
+	private void writeAddress(int ip) {
+		for (int shift = 24; shift >= 0; shift -= 8) {
+			writeLong(ip >>> shift & 0xff);
+
+			if (shift > 0) {
+				line[length++] = '.';
+			}
+		}
+	}
+
+	private void writeMac(ByteBuffer b, int at) {
+		for (int i = 0; i < 6; i++) {
+			int v = FrameLayout.u8(b, at + i);
+
+			line[length++] = HEX[v >> 4];
+			line[length++] = HEX[v & 0xf];
+
+			if (i < 5) {
+				line[length++] = ':';
+			}
+		}
+	}
+
+	private void writeHex16(int v) {
+		line[length++] = '0';
+		line[length++] = 'x';
+
+		for (int s = 12; s >= 0; s -= 4) {
+			line[length++] = HEX[v >> s & 0xf];
+		}
+	}
+
+	/**
+	 * Command-line entry: --fields f1,f2,... capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		if (args.length < 3) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --fields ip.src,ip.dst,tcp.dport,... capture...");
+		}
+
+		FieldProjection fp = new FieldProjection(args[1].split(","));
+
+		for (int i = 2; i < args.length; i++) {
+			try (CaptureFile cf = new CaptureFile(dir.resolve(args[i]))) {
+				while (cf.next()) {
+					fp.project(cf.buffer(), cf.frameOffset(), cf.frameLength(),
+						cf.originalLength(), cf.timestamp(), out);
+				}
+			}
+		}
+
+		fp.flush(out);
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ * FlowDispatcher.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Spreads frames over single-threaded workers by a symmetric flow hash, the
+ * way receive side scaling does in a NIC, so that both directions of a
+ * connection always reach the same worker and per-flow state never has to
+ * be shared or locked.
+ *
+ * The hash is taken over the IPv4 addresses, protocol and TCP/UDP ports,
+ * read straight from their offsets, with the two endpoints put in a fixed
+ * order first. Non-first fragments carry no ports and are hashed on the
+ * addresses and protocol only. ICMP errors are hashed on the datagram they
+ * quote, so they reach the worker holding the flow they are about. Frames
+ * that are not IPv4 go to worker 0.
+ *
+ * Each worker gets its own FrameRing, filled by the dispatching thread and
+ * drained by the worker's thread. After finish() the caller merges the
+ * workers' state. The threads start with the dispatcher, so it must be
+ * closed, finished or not, for them to stop.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FlowDispatcher implements AutoCloseable {
+	/**
+	 * Per-worker state. Only ever called from that worker's thread.
+	 */
+	interface FlowWorker {
+		void frame(ByteBuffer b, int frame, int length, long timestamp)
+			throws Exception;
+	}
+
+	// frames handed over per take
+	static final int BATCH = 64;
+
+	private final FrameRing[] rings;
+	private final Thread[] threads;
+
+	// first failure of any worker
+	private volatile Exception failure;
+
+	FlowDispatcher(FlowWorker[] workers, int ringSize, int wait) {
+		if (workers.length < 1) {
+			throw new IllegalArgumentException("Workers must be >= 1");
+		}
+
+		rings = new FrameRing[workers.length];
+		threads = new Thread[workers.length];
+
+		for (int i = 0; i < workers.length; i++) {
+			FrameRing ring = new FrameRing(ringSize, 2048, wait);
+			FrameRing.Worker taker = ring.newWorker();
+			FlowWorker worker = workers[i];
+
+			rings[i] = ring;
+			threads[i] = new Thread(() -> drain(ring, taker, worker),
+				"flow-worker-" + i);
+			threads[i].start();
+		}
+	}
+
+	private void drain(FrameRing ring, FrameRing.Worker taker,
+			FlowWorker worker) {
+		int n;
+
+		while ((n = taker.take(BATCH)) > 0) {
+			for (int i = 0; i < n; i++) {
+				long seq = taker.sequence(i);
+
+				try {
+					worker.frame(ring.buffer(seq), ring.frameOffset(seq),
+						ring.frameLength(seq), ring.timestamp(seq));
+				} catch (Exception e) {
+					if (failure == null) {
+						failure = e;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copies the frame to the ring of the worker that owns its flow.
+	 */
+	public void dispatch(ByteBuffer b, int frame, int length,
+			int originalLength, long timestamp) {
+		int worker = Integer.remainderUnsigned(flowHash(b, frame, length),
+			rings.length);
+		FrameRing ring = rings[worker];
+		long seq = ring.claim(1);
+
+		ring.write(seq, b, frame, length, originalLength, timestamp);
+		ring.publish(seq);
+	}
+
+	/**
+	 * Waits for the workers to drain their rings. Their state can be read
+	 * and merged once this returns.
+	 */
+	public void finish() throws Exception {
+		close();
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * Stops the workers once they have drained what was dispatched, and
+	 * waits for their threads to end. Safe to call more than once.
+	 */
+	public void close() {
+		boolean interrupted = false;
+
+		for (FrameRing ring : rings) {
+			ring.close();
+		}
+
+		// the rings are closed, so the workers end even if this is interrupted
+		for (Thread t : threads) {
+			while (t.isAlive()) {
+				try {
+					t.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Reads the captures named by args[first] on, in order, spreading their
+	 * frames over the workers, and waits for the workers to drain them. The
+	 * workers' threads have ended when this returns or throws. Returns the
+	 * number of frames read.
+	 */
+	static long runAll(FlowWorker[] workers, Path dir, String[] args,
+			int first) throws Exception {
+		long frames = 0;
+
+		try (FlowDispatcher d = new FlowDispatcher(workers, 4096,
+				FrameRing.YIELD)) {
+			for (int i = first; i < args.length; i++) {
+				try (CaptureFile cf = new CaptureFile(dir.resolve(args[i]))) {
+					while (cf.next()) {
+						d.dispatch(cf.buffer(), cf.frameOffset(), cf.frameLength(),
+							cf.originalLength(), cf.timestamp());
+						frames++;
+					}
+				}
+			}
+
+			d.finish();
+		}
+
+		return frames;
+	}
+
+	/**
+	 * Hash of the frame's flow that is the same in both directions.
+	 */
+	public static int flowHash(ByteBuffer b, int frame, int length) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0) {
+			return 0;
+		}
+
+		int end = frame + length;
+		int l4 = FrameLayout.transportOffset(b, ip);
+
+		if (l4 >= 0 && FrameLayout.protocol(b, ip) == FrameLayout.PROTOCOL_ICMP) {
+			int quoted = FrameLayout.quotedIpv4(b, l4,
+				FrameLayout.ipv4End(b, ip, end));
+
+			if (quoted >= 0) {
+				ip = quoted;
+				l4 = FrameLayout.transportOffset(b, ip);
+			}
+		}
+
+		long src = FrameLayout.sourceIP(b, ip) & 0xffffffffL;
+		long dst = FrameLayout.destIP(b, ip) & 0xffffffffL;
+		int protocol = FrameLayout.protocol(b, ip);
+		long srcPort = 0;
+		long dstPort = 0;
+
+		if (l4 >= 0 && FlowTable.hasPorts(protocol)
+				&& end - l4 >= FrameLayout.UDP_HEADER) {
+			srcPort = FrameLayout.sourcePort(b, l4);
+			dstPort = FrameLayout.destPort(b, l4);
+		}
+
+		long a = src << 16 | srcPort;
+		long z = dst << 16 | dstPort;
+
+		// same value whichever endpoint is the source
+		return LongIndexMap.hash(Math.min(a, z) * 0x9e3779b97f4a7c15L
+			+ Math.max(a, z) + protocol);
+	}
+
+	/**
+	 * Command-line entry: --flows [-w workers] capture...
+	 * Counts flows on several workers and prints the largest.
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int i = 1;
+
+		if (args.length > 2 && args[1].equals("-w")) {
+			n = Integer.parseInt(args[2]);
+			i = 3;
+		}
+
+		if (i >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --flows [-w workers] capture...");
+		}
+
+		FlowTable[] tables = new FlowTable[n];
+		FlowWorker[] workers = new FlowWorker[n];
+
+		for (int w = 0; w < n; w++) {
+			FlowTable table = new FlowTable();
+			tables[w] = table;
+			workers[w] = table::add;
+		}
+
+		long frames = runAll(workers, dir, args, i);
+
+		// merge step
+		FlowTable all = new FlowTable();
+
+		for (FlowTable t : tables) {
+			all.merge(t);
+		}
+
+		out.print(format(all, frames, n, 20));
+	}
+
+	static String format(FlowTable t, long frames, int workers, int limit) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("FLOW: " + t.size() + " flows, " + frames + " frames, "
+			+ workers + " workers\n");
+		sb.append("FLOW:\n");
+
+		// largest flows by bytes
+		Integer[] order = new Integer[t.size()];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, (x, y) -> Long.compare(t.bytes(y), t.bytes(x)));
+
+		for (int k = 0; k < Math.min(limit, order.length); k++) {
+			int i = order[k];
+
+			sb.append("FLOW: " + t.toString(i) + " packets = " + t.packets(i)
+				+ " bytes = " + t.bytes(i) + "\n");
+		}
+
+		return sb.toString();
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ * FlowExporter.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Acts as a flow exporter: keeps the flows of the frames it is given and
+ * sends each one to a collector through an IpfixEncoder once it expires.
+ *
+ * A flow expires when it has been idle for the idle timeout, when it has
+ * been open for the active timeout, or soon after a RST or FIN in both
+ * directions ends it; what is left at the end of the capture is sent as
+ * forced to end. Time is the capture's, so a capture is exported as it
+ * would have been live. Expired flows are looked for once a second and
+ * removed from the FlowTable, so it only holds the flows still open.
+ *
+ * Flows are kept both ways, as FlowTable does, and sent as one record per
+ * direction that carried packets, as collectors expect; both records carry
+ * the start and end of the flow as a whole. Octets are counted at the IP
+ * layer.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FlowExporter implements FlowDispatcher.FlowWorker {
+	// capture time between looks for expired flows
+	static final long SWEEP_INTERVAL = 1_000_000_000L;
+
+	private final FlowTable table = new FlowTable();
+	private final IpfixEncoder encoder;
+	private final long idle;
+	private final long active;
+
+	// per flow, AB is A to B as in FlowTable
+	private long[] octetsAB = new long[512];
+	private long[] octetsBA = new long[512];
+	private int[] flagsAB = new int[512];
+	private int[] flagsBA = new int[512];
+
+	// capture time of the latest frame and of the last sweep
+	private long now;
+	private long swept;
+
+	private long flows;
+	private final long[] reasons = new long[5];
+
+	FlowExporter(IpfixEncoder encoder, long idleNanos, long activeNanos) {
+		this.encoder = encoder;
+		this.idle = idleNanos;
+		this.active = activeNanos;
+	}
+
+	@Override
+	public void frame(ByteBuffer b, int frame, int length, long timestamp)
+			throws Exception {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0) {
+			return;
+		}
+
+		if (now == 0) {
+			encoder.boot(timestamp / 1_000_000);
+			swept = timestamp;
+		}
+
+		if (timestamp > now) {
+			now = timestamp;
+
+			if (now - swept >= SWEEP_INTERVAL) {
+				sweep(false);
+				swept = now;
+			}
+		}
+
+		int f = table.add(b, frame, length, timestamp);
+
+		if (f >= octetsAB.length) {
+			grow();
+		}
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+		int flags = 0;
+
+		if (l4 >= 0 && FrameLayout.protocol(b, ip) == FrameLayout.PROTOCOL_TCP
+				&& frame + length - l4 >= FrameLayout.TCP_HEADER) {
+			flags = FrameLayout.tcpFlags(b, l4);
+		}
+
+		if (table.forward()) {
+			octetsAB[f] += FrameLayout.totalLength(b, ip);
+			flagsAB[f] |= flags;
+		} else {
+			octetsBA[f] += FrameLayout.totalLength(b, ip);
+			flagsBA[f] |= flags;
+		}
+	}
+
+	private void grow() {
+		int n = octetsAB.length * 2;
+
+		octetsAB = Arrays.copyOf(octetsAB, n);
+		octetsBA = Arrays.copyOf(octetsBA, n);
+		flagsAB = Arrays.copyOf(flagsAB, n);
+		flagsBA = Arrays.copyOf(flagsBA, n);
+	}
+
+	/**
+	 * Sends and removes the flows that have expired, or all of them.
+	 */
+	private void sweep(boolean all) throws Exception {
+		// from the end, as removing moves the last flow into the hole
+		for (int f = table.size() - 1; f >= 0; f--) {
+			int reason = reason(f);
+
+			if (reason == 0 && !all) {
+				continue;
+			}
+
+			export(f, reason == 0 ? IpfixEncoder.FORCED_END : reason);
+			remove(f);
+		}
+
+		encoder.flush();
+	}
+
+	/**
+	 * Why flow f has expired, or 0 if it has not.
+	 */
+	private int reason(int f) {
+		int both = flagsAB[f] & flagsBA[f];
+
+		if (((flagsAB[f] | flagsBA[f]) & FrameLayout.TCP_RST) != 0
+				|| (both & FrameLayout.TCP_FIN) != 0) {
+			return IpfixEncoder.END_OF_FLOW;
+		}
+
+		if (now - table.last(f) >= idle) {
+			return IpfixEncoder.IDLE_TIMEOUT;
+		}
+
+		if (now - table.first(f) >= active) {
+			return IpfixEncoder.ACTIVE_TIMEOUT;
+		}
+
+		return 0;
+	}
+
+	private void export(int f, int reason) throws Exception {
+		long start = table.first(f) / 1_000_000;
+		long end = table.last(f) / 1_000_000;
+
+		flows++;
+		reasons[reason]++;
+
+		if (table.packetsAB(f) > 0) {
+			encoder.record(table.addressA(f), table.addressB(f), table.portA(f),
+				table.portB(f), table.protocol(f), flagsAB[f],
+				table.packetsAB(f), octetsAB[f], start, end, reason);
+		}
+
+		if (table.packetsBA(f) > 0) {
+			encoder.record(table.addressB(f), table.addressA(f), table.portB(f),
+				table.portA(f), table.protocol(f), flagsBA[f],
+				table.packetsBA(f), octetsBA[f], start, end, reason);
+		}
+	}
+
+	private void remove(int f) {
+		int moved = table.size() - 1;
+
+		octetsAB[f] = octetsAB[moved];
+		octetsBA[f] = octetsBA[moved];
+		flagsAB[f] = flagsAB[moved];
+		flagsBA[f] = flagsBA[moved];
+		octetsAB[moved] = 0;
+		octetsBA[moved] = 0;
+		flagsAB[moved] = 0;
+		flagsBA[moved] = 0;
+
+		table.remove(f);
+	}
+
+	/**
+	 * Sends every flow still open, once the capture has been read.
+	 */
+	public void finish() throws Exception {
+		sweep(true);
+	}
+
+	/**
+	 * Command-line entry:
+	 * --export [-w workers] [-v 9|10] [-idle s] [-active s] host:port
+	 *          capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int version = IpfixEncoder.IPFIX;
+		long idleSeconds = 15;
+		long activeSeconds = 1800;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				n = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-v")) {
+				version = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-idle")) {
+				idleSeconds = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-active")) {
+				activeSeconds = Long.parseLong(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i + 1 >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --export [-w workers] [-v 9|10]"
+				+ " [-idle s] [-active s] host:port capture...");
+		}
+
+		InetSocketAddress collector = collector(args[i++]);
+		FlowExporter[] parts = new FlowExporter[n];
+		IpfixEncoder.Pool pool = new IpfixEncoder.Pool(n * 2);
+
+		try (DatagramChannel channel = DatagramChannel.open()) {
+			for (int w = 0; w < n; w++) {
+				parts[w] = new FlowExporter(new IpfixEncoder(version, channel,
+					collector, pool, w), idleSeconds * 1_000_000_000L,
+					activeSeconds * 1_000_000_000L);
+			}
+
+			FlowDispatcher.runAll(parts, dir, args, i);
+
+			long flows = 0;
+			long records = 0;
+			long messages = 0;
+			long bytes = 0;
+			long[] reasons = new long[5];
+
+			for (FlowExporter t : parts) {
+				t.finish();
+				flows += t.flows;
+				records += t.encoder.recordsSent();
+				messages += t.encoder.messagesSent();
+				bytes += t.encoder.bytesSent();
+
+				for (int r = 0; r < reasons.length; r++) {
+					reasons[r] += t.reasons[r];
+				}
+			}
+
+			out.println("EXPORT: collector = " + collector + ", version = "
+				+ version + ", observation domains = " + n);
+			out.println("EXPORT: flows = " + flows + ", records = " + records
+				+ ", messages = " + messages + ", bytes = " + bytes);
+			out.println("EXPORT: idle timeout = "
+				+ reasons[IpfixEncoder.IDLE_TIMEOUT] + ", active timeout = "
+				+ reasons[IpfixEncoder.ACTIVE_TIMEOUT] + ", end of flow = "
+				+ reasons[IpfixEncoder.END_OF_FLOW] + ", end of capture = "
+				+ reasons[IpfixEncoder.FORCED_END]);
+		}
+	}
+
+	static InetSocketAddress collector(String s) {
+		int colon = s.lastIndexOf(':');
+
+		if (colon <= 0) {
+			throw new IllegalArgumentException("Collector must be host:port: "
+				+ s);
+		}
+
+		return new InetSocketAddress(s.substring(0, colon),
+			Integer.parseInt(s.substring(colon + 1)));
+	}
+}
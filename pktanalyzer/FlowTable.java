@@ -0,0 +1,383 @@
+/*
+ * FlowTable.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-flow packet and byte counters for IPv4 traffic.
+ *
+ * A flow is the 5-tuple with its two endpoints put in a fixed order, the
+ * lower (address, port) first and called A, so both directions of a
+ * connection land on the same entry. Protocols without ports use port 0.
+ *
+ * Flows are stored column-wise in primitive arrays and found through an
+ * open addressing table keyed on two longs. The table is not thread safe;
+ * each thread keeps its own and merge() combines them.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FlowTable {
+	// slot -> index + 1, 0 meaning empty
+	private int[] slots = new int[1024];
+
+	// keys: addresses A and B, then ports A and B and the protocol
+	private long[] addresses = new long[512];
+	private long[] ports = new long[512];
+
+	// counters, AB is A to B
+	private long[] packetsAB = new long[512];
+	private long[] packetsBA = new long[512];
+	private long[] bytesAB = new long[512];
+	private long[] bytesBA = new long[512];
+	private long[] first = new long[512];
+	private long[] last = new long[512];
+
+	private int size;
+
+	// key of the last frame passed to add(), and whether it went A to B
+	private long keyAddresses;
+	private long keyPorts;
+	private boolean forward;
+
+	/**
+	 * Counts a frame against its flow. Returns the flow index, or -1 if
+	 * the frame is not IPv4. Bytes are those the frame had on the wire as
+	 * far as its IPv4 total length tells, so frames the capture cut short
+	 * still count in full.
+	 */
+	public int add(ByteBuffer b, int frame, int length, long timestamp) {
+		int ip = key(b, frame, length);
+
+		if (ip < 0) {
+			return -1;
+		}
+
+		int index = add(keyAddresses, keyPorts);
+		int bytes = Math.max(length, ip - frame + FrameLayout.totalLength(b, ip));
+
+		if (first[index] == 0 || timestamp < first[index]) {
+			first[index] = timestamp;
+		}
+
+		last[index] = Math.max(last[index], timestamp);
+
+		if (forward) {
+			packetsAB[index]++;
+			bytesAB[index] += bytes;
+		} else {
+			packetsBA[index]++;
+			bytesBA[index] += bytes;
+		}
+
+		return index;
+	}
+
+	/**
+	 * Index of the flow a frame belongs to, or -1 if it is not IPv4 or has
+	 * not been seen.
+	 */
+	public int find(ByteBuffer b, int frame, int length) {
+		if (key(b, frame, length) < 0) {
+			return -1;
+		}
+
+		return indexOf(keyAddresses, keyPorts);
+	}
+
+	/**
+	 * Index of the flow of the IPv4 datagram at ip, which need not be the
+	 * frame's own: ICMP errors look up the datagram they quote. Returns -1
+	 * if it has not been seen. forward() tells which way the datagram went.
+	 */
+	public int findDatagram(ByteBuffer b, int ip, int end) {
+		datagramKey(b, ip, end);
+		return indexOf(keyAddresses, keyPorts);
+	}
+
+	/**
+	 * Removes flow i, e.g. once it has expired. The last flow is moved into
+	 * its index, so callers keeping their own per-flow arrays must move
+	 * that entry the same way.
+	 */
+	public void remove(int i) {
+		int mask = slots.length - 1;
+		int hole = slotOf(i);
+
+		// shift back the entries after the hole that probed past it
+		for (int s = (hole + 1) & mask; slots[s] != 0; s = (s + 1) & mask) {
+			int index = slots[s] - 1;
+			int home = hash(addresses[index], ports[index]) & mask;
+
+			if (((s - home) & mask) >= ((s - hole) & mask)) {
+				slots[hole] = slots[s];
+				hole = s;
+			}
+		}
+
+		slots[hole] = 0;
+
+		int moved = --size;
+
+		if (i != moved) {
+			slots[slotOf(moved)] = i + 1;
+			addresses[i] = addresses[moved];
+			ports[i] = ports[moved];
+			packetsAB[i] = packetsAB[moved];
+			packetsBA[i] = packetsBA[moved];
+			bytesAB[i] = bytesAB[moved];
+			bytesBA[i] = bytesBA[moved];
+			first[i] = first[moved];
+			last[i] = last[moved];
+		}
+
+		packetsAB[moved] = 0;
+		packetsBA[moved] = 0;
+		bytesAB[moved] = 0;
+		bytesBA[moved] = 0;
+		first[moved] = 0;
+		last[moved] = 0;
+	}
+
+	private int slotOf(int index) {
+		int mask = slots.length - 1;
+		int s = hash(addresses[index], ports[index]) & mask;
+
+		while (slots[s] != index + 1) {
+			s = (s + 1) & mask;
+		}
+
+		return s;
+	}
+
+	/**
+	 * Adds another table's flows to this one.
+	 */
+	public void merge(FlowTable other) {
+		for (int i = 0; i < other.size; i++) {
+			int index = add(other.addresses[i], other.ports[i]);
+
+			packetsAB[index] += other.packetsAB[i];
+			packetsBA[index] += other.packetsBA[i];
+			bytesAB[index] += other.bytesAB[i];
+			bytesBA[index] += other.bytesBA[i];
+
+			if (first[index] == 0 || other.first[i] < first[index]) {
+				first[index] = other.first[i];
+			}
+
+			last[index] = Math.max(last[index], other.last[i]);
+		}
+	}
+
+	/**
+	 * Works out the ordered key of a frame into keyAddresses / keyPorts.
+	 * Returns the offset of its IPv4 header, or -1 if it has none.
+	 */
+	private int key(ByteBuffer b, int frame, int length) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip >= 0) {
+			datagramKey(b, ip, frame + length);
+		}
+
+		return ip;
+	}
+
+	/**
+	 * Works out the ordered key of the IPv4 datagram at ip, whose captured
+	 * bytes end at end.
+	 */
+	private void datagramKey(ByteBuffer b, int ip, int end) {
+		long src = FrameLayout.sourceIP(b, ip) & 0xffffffffL;
+		long dst = FrameLayout.destIP(b, ip) & 0xffffffffL;
+		int protocol = FrameLayout.protocol(b, ip);
+		long srcPort = 0;
+		long dstPort = 0;
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+
+		if (l4 >= 0 && hasPorts(protocol)
+				&& end - l4 >= FrameLayout.UDP_HEADER) {
+			srcPort = FrameLayout.sourcePort(b, l4);
+			dstPort = FrameLayout.destPort(b, l4);
+		}
+
+		forward = src < dst || (src == dst && srcPort <= dstPort);
+
+		if (forward) {
+			keyAddresses = src << 32 | dst;
+			keyPorts = srcPort << 24 | dstPort << 8 | protocol;
+		} else {
+			keyAddresses = dst << 32 | src;
+			keyPorts = dstPort << 24 | srcPort << 8 | protocol;
+		}
+	}
+
+	static boolean hasPorts(int protocol) {
+		return protocol == FrameLayout.PROTOCOL_TCP
+			|| protocol == FrameLayout.PROTOCOL_UDP;
+	}
+
+	static int hash(long addresses, long ports) {
+		return LongIndexMap.hash(addresses * 31 + ports);
+	}
+
+	private int indexOf(long a, long p) {
+		int mask = slots.length - 1;
+
+		for (int s = hash(a, p) & mask; ; s = (s + 1) & mask) {
+			int index = slots[s] - 1;
+
+			if (index < 0) {
+				return -1;
+			}
+
+			if (addresses[index] == a && ports[index] == p) {
+				return index;
+			}
+		}
+	}
+
+	private int add(long a, long p) {
+		int mask = slots.length - 1;
+		int s = hash(a, p) & mask;
+
+		for (; ; s = (s + 1) & mask) {
+			int index = slots[s] - 1;
+
+			if (index < 0) {
+				break;
+			}
+
+			if (addresses[index] == a && ports[index] == p) {
+				return index;
+			}
+		}
+
+		if (size == addresses.length) {
+			grow();
+		}
+
+		addresses[size] = a;
+		ports[size] = p;
+		slots[s] = ++size;
+
+		if (size << 1 > slots.length) {
+			rehash();
+		}
+
+		return size - 1;
+	}
+
+	private void grow() {
+		int n = size << 1;
+
+		addresses = Arrays.copyOf(addresses, n);
+		ports = Arrays.copyOf(ports, n);
+		packetsAB = Arrays.copyOf(packetsAB, n);
+		packetsBA = Arrays.copyOf(packetsBA, n);
+		bytesAB = Arrays.copyOf(bytesAB, n);
+		bytesBA = Arrays.copyOf(bytesBA, n);
+		first = Arrays.copyOf(first, n);
+		last = Arrays.copyOf(last, n);
+	}
+
+	private void rehash() {
+		int[] grown = new int[slots.length << 1];
+		int mask = grown.length - 1;
+
+		for (int index = 0; index < size; index++) {
+			int s = hash(addresses[index], ports[index]) & mask;
+
+			while (grown[s] != 0) {
+				s = (s + 1) & mask;
+			}
+
+			grown[s] = index + 1;
+		}
+
+		slots = grown;
+	}
+
+	// accessors by flow index
+
+	public int size() {
+		return size;
+	}
+
+	public int addressA(int i) {
+		return (int) (addresses[i] >>> 32);
+	}
+
+	public int addressB(int i) {
+		return (int) addresses[i];
+	}
+
+	public int portA(int i) {
+		return (int) (ports[i] >>> 24);
+	}
+
+	public int portB(int i) {
+		return (int) (ports[i] >>> 8) & 0xffff;
+	}
+
+	public int protocol(int i) {
+		return (int) ports[i] & 0xff;
+	}
+
+	public long packetsAB(int i) {
+		return packetsAB[i];
+	}
+
+	public long packetsBA(int i) {
+		return packetsBA[i];
+	}
+
+	public long bytesAB(int i) {
+		return bytesAB[i];
+	}
+
+	public long bytesBA(int i) {
+		return bytesBA[i];
+	}
+
+	public long packets(int i) {
+		return packetsAB[i] + packetsBA[i];
+	}
+
+	public long bytes(int i) {
+		return bytesAB[i] + bytesBA[i];
+	}
+
+	public long first(int i) {
+		return first[i];
+	}
+
+	public long last(int i) {
+		return last[i];
+	}
+
+	/**
+	 * Whether the last frame passed to add() or find() went from A to B.
+	 */
+	public boolean forward() {
+		return forward;
+	}
+
+	public String toString(int i) {
+		return FrameLayout.formatIP(addressA(i)) + ":" + portA(i) + " <-> "
+			+ FrameLayout.formatIP(addressB(i)) + ":" + portB(i)
+			+ " proto " + protocol(i);
+	}
+}
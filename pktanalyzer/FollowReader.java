@@ -0,0 +1,270 @@
+/*
+ * FollowReader.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Decodes a pcap file while it is still being written, like tail -f.
+ *
+ * The reader keeps the offset past the last complete record. When the
+ * directory watch reports a change (or the poll interval runs out, for
+ * file systems that do not report changes) it re-reads the file size and
+ * carries on from that offset; CaptureFile maps the newly written region
+ * as records reach into it. A record that is only partly written is left
+ * for the next wake-up.
+ *
+ * The target is either a file or a directory. A file counts as rotated
+ * when the path now names a different file or the file has shrunk. In a
+ * directory the .pcap file with the greatest name is followed, and one with
+ * a greater name appearing counts as a rotation; other files are ignored.
+ * On rotation the old file is drained and the new one read from its start.
+ * A new file is only switched to once it holds a whole pcap header, as
+ * capture tools create the file before writing it, and in a directory a
+ * file that turns out not to be pcap is not switched to. Until then the old
+ * file is still followed.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FollowReader {
+	/**
+	 * Receives each complete record.
+	 */
+	interface RecordHandler {
+		void record(CaptureFile cf) throws Exception;
+	}
+
+	private final Path target;
+	private final boolean directory;
+	private final long pollMillis;
+	private volatile boolean stopped;
+
+	// file being followed
+	private CaptureFile current;
+	private Object currentKey;
+
+	FollowReader(Path target, long pollMillis) {
+		this.target = target;
+		this.directory = Files.isDirectory(target);
+		this.pollMillis = pollMillis;
+	}
+
+	/**
+	 * Follows the target until stop() is called. With fromStart false,
+	 * records already in the file being written at the start are skipped.
+	 */
+	public void run(RecordHandler handler, boolean fromStart)
+			throws Exception {
+		Path dir = directory ? target : target.toAbsolutePath().getParent();
+
+		try (WatchService watch = FileSystems.getDefault().newWatchService()) {
+			dir.register(watch, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY);
+
+			boolean skip = !fromStart;
+
+			while (!stopped) {
+				if (current == null) {
+					open();
+				}
+
+				if (current != null) {
+					drain(skip ? null : handler);
+
+					Path next = rotated();
+					CaptureFile cf = next != null ? candidate(next) : null;
+
+					if (cf != null) {
+						// take whatever was written before the switch
+						drain(handler);
+						current.close();
+						current = cf;
+						currentKey = key(next);
+						continue;
+					}
+				}
+
+				// files that appear later are read from their start
+				skip = false;
+
+				// sleep until something changes in the directory, then clear
+				// and re-arm every key signalled, the one that woke us first;
+				// a key that is not reset is never signalled again
+				WatchKey key = watch.poll(pollMillis, TimeUnit.MILLISECONDS);
+
+				for (; key != null; key = watch.poll()) {
+					key.pollEvents();
+					key.reset();
+				}
+			}
+		} finally {
+			if (current != null) {
+				current.close();
+			}
+		}
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	private void drain(RecordHandler handler) throws Exception {
+		current.refresh();
+
+		while (current.next()) {
+			if (handler != null) {
+				handler.record(current);
+			}
+		}
+	}
+
+	private void open() throws IOException {
+		Path p = directory ? newest() : target;
+
+		if (p != null) {
+			open(p);
+		}
+	}
+
+	/**
+	 * Opens p once its pcap header has been written.
+	 */
+	private void open(Path p) throws IOException {
+		current = candidate(p);
+
+		if (current != null) {
+			currentKey = key(p);
+		}
+	}
+
+	/**
+	 * Opens p, or returns null if its pcap header is not all written yet.
+	 * A file that is not pcap is an error when it is the target itself,
+	 * and is not switched to, returning null, when it was found in the
+	 * directory.
+	 */
+	private CaptureFile candidate(Path p) throws IOException {
+		if (!Files.exists(p) || Files.size(p) < CaptureFile.PCAP_HEADER) {
+			return null;
+		}
+
+		CaptureFile cf;
+
+		try {
+			cf = new CaptureFile(p);
+		} catch (IOException e) {
+			if (directory) {
+				return null;
+			}
+
+			throw e;
+		}
+
+		if (!cf.pcap()) {
+			cf.close();
+
+			if (directory) {
+				return null;
+			}
+
+			throw new IOException("Can only follow pcap files: " + p);
+		}
+
+		return cf;
+	}
+
+	/**
+	 * The file to switch to, or null if the current one is still live.
+	 */
+	private Path rotated() throws IOException {
+		if (directory) {
+			Path newest = newest();
+
+			return newest != null
+				&& newest.getFileName().toString().compareTo(
+					current.path().getFileName().toString()) > 0 ? newest : null;
+		}
+
+		if (!Files.exists(target)) {
+			return null;
+		}
+
+		Object key = key(target);
+
+		if ((key != null && !key.equals(currentKey))
+				|| Files.size(target) < current.position()) {
+			return target;
+		}
+
+		return null;
+	}
+
+	private Path newest() throws IOException {
+		try (Stream<Path> s = Files.list(target)) {
+			return s.filter(p -> p.getFileName().toString().toLowerCase()
+					.endsWith(".pcap") && Files.isRegularFile(p))
+				.max((a, b) -> a.getFileName().toString()
+					.compareTo(b.getFileName().toString()))
+				.orElse(null);
+		}
+	}
+
+	private static Object key(Path p) throws IOException {
+		return Files.readAttributes(p, BasicFileAttributes.class).fileKey();
+	}
+
+	/**
+	 * Command-line entry: --follow [-all] [-poll ms] file|dir
+	 * Decodes and prints each record as it is written.
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		boolean fromStart = false;
+		long poll = 100;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-all")) {
+				fromStart = true;
+			} else if (args[i].equals("-poll")) {
+				poll = Long.parseLong(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i != args.length - 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --follow [-all] [-poll ms] file|dir");
+		}
+
+		new FollowReader(dir.resolve(args[i]), poll).run(cf -> {
+			try {
+				pktanalyzer.decode(cf.frame(), out);
+			} catch (Exception e) {
+				out.println("*** Could not decode packet: " + e + " ***");
+			}
+
+			out.flush();
+		}, fromStart);
+	}
+}
@@ -0,0 +1,225 @@
+/*
+ * FrameFilter.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decides for one frame at a time whether it matches a filter, reading the
+ * fields straight from their offsets.
+ *
+ * Grammar, with the field names and values of PacketQuery:
+ *
+ *   filter := cond {and cond}
+ *   cond   := field (= | != | < | <= | > | >=) value
+ *           | host address
+ *           | port number
+ *
+ * host and port match either endpoint, so "host 10.0.0.1 and port 443"
+ * picks one host's HTTPS traffic both ways, and adding the other host and
+ * port narrows it to one connection. Frames without a field (ports of a
+ * non-TCP/UDP frame, say) read it as 0.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FrameFilter {
+	// pseudo-columns for host and port
+	static final int HOST = -3;
+	static final int PORT = -4;
+
+	private int[] column = new int[0];
+	private int[] operator = new int[0];
+	private long[] value = new long[0];
+
+	FrameFilter(String text) {
+		String[] t = text.trim().split("\\s+");
+		int i = 0;
+
+		while (i < t.length) {
+			if (t[i].equals("host") || t[i].equals("port")) {
+				if (i + 1 >= t.length) {
+					throw new IllegalArgumentException("Filter ends early");
+				}
+
+				add(t[i].equals("host") ? HOST : PORT, 0,
+					PacketQuery.value(t[i + 1]));
+				i += 2;
+			} else {
+				if (i + 2 >= t.length) {
+					throw new IllegalArgumentException("Filter ends early");
+				}
+
+				int c = PacketColumns.fieldIndex(t[i]);
+				int o = Arrays.asList(PacketQuery.OPERATORS).indexOf(t[i + 1]);
+
+				if (c == PacketQuery.NONE) {
+					throw new IllegalArgumentException("Unknown field: " + t[i]);
+				}
+
+				if (o < 0) {
+					throw new IllegalArgumentException("Unknown operator: "
+						+ t[i + 1]);
+				}
+
+				add(c, o, c == PacketColumns.TIMESTAMP
+					? PacketQuery.seconds(t[i + 2]) : PacketQuery.value(t[i + 2]));
+				i += 3;
+			}
+
+			if (i < t.length) {
+				if (!t[i].equals("and") || i + 1 == t.length) {
+					throw new IllegalArgumentException("Unexpected: " + t[i]);
+				}
+
+				i++;
+			}
+		}
+	}
+
+	private void add(int c, int o, long v) {
+		int n = column.length;
+
+		column = Arrays.copyOf(column, n + 1);
+		operator = Arrays.copyOf(operator, n + 1);
+		value = Arrays.copyOf(value, n + 1);
+
+		column[n] = c;
+		operator[n] = o;
+		value[n] = v;
+	}
+
+	/**
+	 * Whether the frame matches every condition.
+	 */
+	public boolean matches(ByteBuffer b, int frame, int length,
+			long timestamp) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+		int l4 = ip < 0 ? -1 : FrameLayout.transportOffset(b, ip);
+		boolean ports = l4 >= 0
+			&& FlowTable.hasPorts(FrameLayout.protocol(b, ip))
+			&& frame + length - l4 >= FrameLayout.UDP_HEADER;
+		boolean tcp = ports && FrameLayout.protocol(b, ip)
+			== FrameLayout.PROTOCOL_TCP
+			&& frame + length - l4 >= FrameLayout.TCP_HEADER;
+
+		for (int k = 0; k < column.length; k++) {
+			long v = value[k];
+
+			switch (column[k]) {
+				case HOST:
+					if (ip < 0 || ((FrameLayout.sourceIP(b, ip) & 0xffffffffL) != v
+							&& (FrameLayout.destIP(b, ip) & 0xffffffffL) != v)) {
+						return false;
+					}
+					continue;
+
+				case PORT:
+					if (!ports || (FrameLayout.sourcePort(b, l4) != v
+							&& FrameLayout.destPort(b, l4) != v)) {
+						return false;
+					}
+					continue;
+
+				default:
+					break;
+			}
+
+			long x;
+
+			switch (column[k]) {
+				case PacketColumns.TIMESTAMP:
+					x = timestamp;
+					break;
+
+				case PacketColumns.FRAME_LENGTH:
+					x = length;
+					break;
+
+				case PacketColumns.ETHERTYPE_VALUE:
+					x = Math.max(0, FrameLayout.ethertypeValue(b, frame, length));
+					break;
+
+				case PacketColumns.DSCP:
+					x = ip < 0 ? 0 : FrameLayout.dscp(b, ip);
+					break;
+
+				case PacketColumns.TOTAL_LENGTH:
+					x = ip < 0 ? 0 : FrameLayout.totalLength(b, ip);
+					break;
+
+				case PacketColumns.IDENTIFICATION:
+					x = ip < 0 ? 0 : FrameLayout.identification(b, ip);
+					break;
+
+				case PacketColumns.TTL:
+					x = ip < 0 ? 0 : FrameLayout.ttl(b, ip);
+					break;
+
+				case PacketColumns.PROTOCOL:
+					x = ip < 0 ? 0 : FrameLayout.protocol(b, ip);
+					break;
+
+				case PacketColumns.SOURCE_IP:
+					x = ip < 0 ? 0 : FrameLayout.sourceIP(b, ip) & 0xffffffffL;
+					break;
+
+				case PacketColumns.DEST_IP:
+					x = ip < 0 ? 0 : FrameLayout.destIP(b, ip) & 0xffffffffL;
+					break;
+
+				case PacketColumns.SOURCE_PORT:
+					x = ports ? FrameLayout.sourcePort(b, l4) : 0;
+					break;
+
+				case PacketColumns.DEST_PORT:
+					x = ports ? FrameLayout.destPort(b, l4) : 0;
+					break;
+
+				case PacketColumns.FLAGS:
+					x = tcp ? FrameLayout.tcpFlags(b, l4) : 0;
+					break;
+
+				default:
+					x = tcp ? FrameLayout.windowSize(b, l4) : 0;
+			}
+
+			if (!compare(x, operator[k], v)) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean compare(long x, int operator, long v) {
+		switch (operator) {
+			case 0:
+				return x == v;
+
+			case 1:
+				return x != v;
+
+			case 2:
+				return x < v;
+
+			case 3:
+				return x <= v;
+
+			case 4:
+				return x > v;
+
+			default:
+				return x >= v;
+		}
+	}
+}
@@ -0,0 +1,380 @@
+/*
+ * FrameLayout.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads header fields of an Ethernet frame straight from their offsets in a
+ * buffer, without building any of the packet objects. This is what the bulk
+ * paths (columns, statistics, dispatching) use instead of the parsers.
+ *
+ * All offsets are absolute positions in the buffer. Methods that locate a
+ * header return -1 when the frame is too short or is of another protocol.
+ *
+ * Reference: https://en.wikipedia.org/wiki/Ethernet_frame
+ *            https://en.wikipedia.org/wiki/IPv4
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FrameLayout {
+	// ethernet header length without and with a VLAN tag
+	static final int ETHER_HEADER = 14;
+	static final int VLAN_HEADER = 18;
+
+	// minimum header lengths
+	static final int IPV4_HEADER = 20;
+	static final int TCP_HEADER = 20;
+	static final int UDP_HEADER = 8;
+
+	// values used when walking the layers
+	static final int ETHERTYPE_IP = 0x0800;
+	static final int ETHERTYPE_ARP = 0x0806;
+	static final int ETHERTYPE_VLAN = 0x8100;
+
+	static final int PROTOCOL_ICMP = 1;
+	static final int PROTOCOL_TCP = 6;
+	static final int PROTOCOL_UDP = 17;
+
+	private FrameLayout() {
+	}
+
+	public static int u8(ByteBuffer b, int i) {
+		return b.get(i) & 0xff;
+	}
+
+	public static int u16(ByteBuffer b, int i) {
+		return (b.get(i) & 0xff) << 8 | b.get(i + 1) & 0xff;
+	}
+
+	public static int u32(ByteBuffer b, int i) {
+		return (b.get(i) & 0xff) << 24
+			| (b.get(i + 1) & 0xff) << 16
+			| (b.get(i + 2) & 0xff) << 8
+			| b.get(i + 3) & 0xff;
+	}
+
+	public static long u48(ByteBuffer b, int i) {
+		return (long) u16(b, i) << 32 | u32(b, i + 2) & 0xffffffffL;
+	}
+
+	/**
+	 * EtherType of the frame, looking past a VLAN tag the same way
+	 * EthernetPacket does. Returns -1 if the frame is too short.
+	 */
+	public static int ethertypeValue(ByteBuffer b, int frame, int length) {
+		if (length < ETHER_HEADER) {
+			return -1;
+		}
+
+		int value = u16(b, frame + 12);
+
+		if (value != ETHERTYPE_VLAN) {
+			return value;
+		}
+
+		return length < VLAN_HEADER ? -1 : u16(b, frame + 16);
+	}
+
+	/**
+	 * Offset of the layer 3 header, or -1 if the frame is too short.
+	 */
+	public static int networkOffset(ByteBuffer b, int frame, int length) {
+		if (length < ETHER_HEADER) {
+			return -1;
+		}
+
+		if (u16(b, frame + 12) != ETHERTYPE_VLAN) {
+			return frame + ETHER_HEADER;
+		}
+
+		return length < VLAN_HEADER ? -1 : frame + VLAN_HEADER;
+	}
+
+	/**
+	 * Offset of the IPv4 header, or -1 if the frame does not carry a
+	 * complete IPv4 header.
+	 */
+	public static int ipv4Offset(ByteBuffer b, int frame, int length) {
+		if (ethertypeValue(b, frame, length) != ETHERTYPE_IP) {
+			return -1;
+		}
+
+		int ip = networkOffset(b, frame, length);
+
+		if (frame + length - ip < IPV4_HEADER
+				|| (u8(b, ip) >> 4) != 4 || ihl(b, ip) < IPV4_HEADER
+				|| frame + length - ip < ihl(b, ip)) {
+			return -1;
+		}
+
+		return ip;
+	}
+
+	/**
+	 * End of the IPv4 datagram, clamped to the captured bytes.
+	 */
+	public static int ipv4End(ByteBuffer b, int ip, int frameEnd) {
+		return Math.min(frameEnd, ip + Math.max(totalLength(b, ip), ihl(b, ip)));
+	}
+
+	/**
+	 * Offset of the transport header, or -1 for non-first fragments whose
+	 * payload does not start with one.
+	 */
+	public static int transportOffset(ByteBuffer b, int ip) {
+		if (flagOffset(b, ip) != 0) {
+			return -1;
+		}
+
+		return ip + ihl(b, ip);
+	}
+
+	// IPv4 fields, named after the InternetProtocolV4Packet accessors
+
+	public static int ihl(ByteBuffer b, int ip) {
+		return (u8(b, ip) & 0b00001111) << 2;
+	}
+
+	public static int dscp(ByteBuffer b, int ip) {
+		return u8(b, ip + 1) >> 2;
+	}
+
+	public static int totalLength(ByteBuffer b, int ip) {
+		return u16(b, ip + 2);
+	}
+
+	public static int identification(ByteBuffer b, int ip) {
+		return u16(b, ip + 4);
+	}
+
+	public static int flagOffset(ByteBuffer b, int ip) {
+		return u16(b, ip + 6) & 0x1fff;
+	}
+
+	public static int ttl(ByteBuffer b, int ip) {
+		return u8(b, ip + 8);
+	}
+
+	public static int protocol(ByteBuffer b, int ip) {
+		return u8(b, ip + 9);
+	}
+
+	public static int sourceIP(ByteBuffer b, int ip) {
+		return u32(b, ip + 12);
+	}
+
+	public static int destIP(ByteBuffer b, int ip) {
+		return u32(b, ip + 16);
+	}
+
+	// transport fields, shared by TCP and UDP
+
+	public static int sourcePort(ByteBuffer b, int l4) {
+		return u16(b, l4);
+	}
+
+	public static int destPort(ByteBuffer b, int l4) {
+		return u16(b, l4 + 2);
+	}
+
+	// TCP fields, named after the TransmissionControlProtocolPacket accessors
+
+	// TCP flag bits as found in tcpFlags()
+	static final int TCP_FIN = 0x01;
+	static final int TCP_SYN = 0x02;
+	static final int TCP_RST = 0x04;
+	static final int TCP_PSH = 0x08;
+	static final int TCP_ACK = 0x10;
+
+	/**
+	 * Sequence number, as an int to be compared modulo 2^32.
+	 */
+	public static int sequenceNo(ByteBuffer b, int l4) {
+		return u32(b, l4 + 4);
+	}
+
+	public static int ackNo(ByteBuffer b, int l4) {
+		return u32(b, l4 + 8);
+	}
+
+	/**
+	 * TCP header length in bytes.
+	 */
+	public static int dataOffset(ByteBuffer b, int l4) {
+		return (u8(b, l4 + 12) >> 4) << 2;
+	}
+
+	public static int tcpFlags(ByteBuffer b, int l4) {
+		return u8(b, l4 + 13);
+	}
+
+	public static int windowSize(ByteBuffer b, int l4) {
+		return u16(b, l4 + 14);
+	}
+
+	// ICMP fields, named after the InternetControlMessageProtocolPacket
+	// accessors
+
+	static final int ICMP_HEADER = 8;
+
+	// error types, which quote the header of the datagram they are about
+	static final int ICMP_UNREACHABLE = 3;
+	static final int ICMP_SOURCE_QUENCH = 4;
+	static final int ICMP_REDIRECT = 5;
+	static final int ICMP_TIME_EXCEEDED = 11;
+	static final int ICMP_PARAMETER_PROBLEM = 12;
+
+	// unreachable code sent when a datagram with DF set is too big
+	static final int ICMP_FRAGMENTATION_NEEDED = 4;
+
+	public static int icmpType(ByteBuffer b, int l4) {
+		return u8(b, l4);
+	}
+
+	public static int icmpCode(ByteBuffer b, int l4) {
+		return u8(b, l4 + 1);
+	}
+
+	/**
+	 * Next-hop MTU of a fragmentation needed message (RFC 1191), 0 from
+	 * routers older than that.
+	 */
+	public static int icmpMtu(ByteBuffer b, int l4) {
+		return u16(b, l4 + 6);
+	}
+
+	public static boolean icmpError(int type) {
+		return type == ICMP_UNREACHABLE || type == ICMP_SOURCE_QUENCH
+			|| type == ICMP_REDIRECT || type == ICMP_TIME_EXCEEDED
+			|| type == ICMP_PARAMETER_PROBLEM;
+	}
+
+	/**
+	 * Offset of the IPv4 header quoted by the ICMP error at l4, or -1 if
+	 * the message is not an error or the quote is not a complete IPv4
+	 * header. The quote is checked the same way ipv4Offset checks a frame,
+	 * so the IPv4 and port accessors can be used on it as they are.
+	 */
+	public static int quotedIpv4(ByteBuffer b, int l4, int end) {
+		if (end - l4 < ICMP_HEADER + IPV4_HEADER || !icmpError(icmpType(b, l4))) {
+			return -1;
+		}
+
+		int ip = l4 + ICMP_HEADER;
+
+		if ((u8(b, ip) >> 4) != 4 || ihl(b, ip) < IPV4_HEADER
+				|| end - ip < ihl(b, ip) || totalLength(b, ip) < ihl(b, ip)) {
+			return -1;
+		}
+
+		return ip;
+	}
+
+	/**
+	 * Whether the datagram has the don't fragment flag set.
+	 */
+	public static boolean dontFragment(ByteBuffer b, int ip) {
+		return (u8(b, ip + 6) & 0x40) != 0;
+	}
+
+	// ARP fields, named after the AddressResolutionProtocolPacket accessors
+
+	// Ethernet and IPv4 ARP packet length
+	static final int ARP_LENGTH = 28;
+
+	static final int ARP_REQUEST = 1;
+	static final int ARP_REPLY = 2;
+
+	/**
+	 * Offset of the ARP packet, or -1 if the frame does not carry a
+	 * complete ARP packet for Ethernet and IPv4 addresses.
+	 */
+	public static int arpOffset(ByteBuffer b, int frame, int length) {
+		if (ethertypeValue(b, frame, length) != ETHERTYPE_ARP) {
+			return -1;
+		}
+
+		int arp = networkOffset(b, frame, length);
+
+		// hardware type 1, protocol IPv4, address lengths 6 and 4
+		if (frame + length - arp < ARP_LENGTH || u16(b, arp) != 1
+				|| u16(b, arp + 2) != ETHERTYPE_IP || u16(b, arp + 4) != 0x0604) {
+			return -1;
+		}
+
+		return arp;
+	}
+
+	public static int arpOperation(ByteBuffer b, int arp) {
+		return u16(b, arp + 6);
+	}
+
+	public static long senderMac(ByteBuffer b, int arp) {
+		return u48(b, arp + 8);
+	}
+
+	public static int senderIP(ByteBuffer b, int arp) {
+		return u32(b, arp + 14);
+	}
+
+	public static long targetMac(ByteBuffer b, int arp) {
+		return u48(b, arp + 18);
+	}
+
+	public static int targetIP(ByteBuffer b, int arp) {
+		return u32(b, arp + 24);
+	}
+
+	/**
+	 * Formats a MAC address held in the low 48 bits of a long.
+	 */
+	public static String formatMac(long mac) {
+		return String.format("%02x:%02x:%02x:%02x:%02x:%02x", mac >>> 40 & 0xff,
+			mac >>> 32 & 0xff, mac >>> 24 & 0xff, mac >>> 16 & 0xff,
+			mac >>> 8 & 0xff, mac & 0xff);
+	}
+
+	/**
+	 * Formats an address held in an int as a dotted quad.
+	 */
+	public static String formatIP(int ip) {
+		return (ip >>> 24) + "." + (ip >>> 16 & 0xff) + "."
+			+ (ip >>> 8 & 0xff) + "." + (ip & 0xff);
+	}
+
+	/**
+	 * Parses a dotted quad into an int. Throws NumberFormatException if
+	 * the string is not one.
+	 */
+	public static int parseIP(String s) {
+		String[] parts = s.split("\\.");
+
+		if (parts.length != 4) {
+			throw new NumberFormatException("Not an IPv4 address: " + s);
+		}
+
+		int ip = 0;
+
+		for (String part : parts) {
+			int octet = Integer.parseInt(part);
+
+			if (octet < 0 || octet > 255) {
+				throw new NumberFormatException("Not an IPv4 address: " + s);
+			}
+
+			ip = ip << 8 | octet;
+		}
+
+		return ip;
+	}
+}
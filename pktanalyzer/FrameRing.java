@@ -0,0 +1,356 @@
+/*
+ * FrameRing.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands raw frames from one reader thread to a pool of decode workers.
+ *
+ * The ring is a pre-allocated direct buffer of fixed size slots, one frame
+ * per slot, laid out as
+ *
+ *   0  frame length (int)
+ *   4  original length (int)
+ *   8  timestamp in ns (long)
+ *   16 sampling rate, 1 in how many frames this one stands for (int)
+ *   24 frame bytes, up to slotSize - 24
+ *
+ * A frame too long for its slot (a jumbo or GRO frame) is copied into a
+ * heap buffer of its own instead, referenced from the slot's entry in an
+ * array beside the ring; buffer(seq) and frameOffset(seq) point at
+ * wherever the frame is. Frames are never cut short.
+ *
+ * Nothing is locked. The reader claims a batch of sequence numbers, fills
+ * the slots and publishes the batch by moving the cursor. Workers take
+ * batches of published sequences by CAS on a shared work sequence, so each
+ * frame goes to exactly one worker, and decode the slot in place (see
+ * EthernetPacket(ByteBuffer, int, int)). Each worker has its own sequence
+ * marking what it no longer holds; the reader waits on the lowest of them
+ * before reusing a slot.
+ *
+ * Reference: https://lmax-exchange.github.io/disruptor/disruptor.html
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FrameRing {
+	// slot header layout
+	static final int SLOT_HEADER = 24;
+
+	// wait strategies, from lowest latency to lowest cpu use
+	static final int BUSY_SPIN = 0;
+	static final int YIELD = 1;
+	static final int PARK = 2;
+
+	/**
+	 * A long counter on its own cache line. The value sits in the middle
+	 * of a padded AtomicLongArray so neighbouring counters cannot share its
+	 * line; no reflection is involved, which keeps native builds simple.
+	 */
+	static class Sequence {
+		private static final int VALUE = 7;
+		private final AtomicLongArray padded = new AtomicLongArray(15);
+
+		Sequence() {
+			padded.set(VALUE, -1);
+		}
+
+		long get() {
+			return padded.get(VALUE);
+		}
+
+		void set(long v) {
+			padded.lazySet(VALUE, v);
+		}
+
+		boolean compareAndSet(long expect, long v) {
+			return padded.compareAndSet(VALUE, expect, v);
+		}
+	}
+
+	/**
+	 * A decode worker's view of the ring. Not shared between threads.
+	 */
+	class Worker {
+		private final Sequence sequence = new Sequence();
+		private long first;
+		private int count;
+
+		/**
+		 * Takes up to max published frames, waiting if none are ready.
+		 * Returns the number taken, 0 once the ring is closed and drained.
+		 * The previous batch is released first.
+		 */
+		public int take(int max) {
+			for (int spins = 0; ; spins++) {
+				long current = workSequence.get();
+
+				// everything up to current is either done or held by
+				// another worker, whose own sequence is lower
+				sequence.set(current);
+				count = 0;
+
+				long available = cursor.get() - current;
+
+				if (available <= 0) {
+					if (closed && cursor.get() == workSequence.get()) {
+						return 0;
+					}
+
+					pause(spins);
+					continue;
+				}
+
+				int n = (int) Math.min(max, available);
+
+				if (workSequence.compareAndSet(current, current + n)) {
+					first = current + 1;
+					count = n;
+					return n;
+				}
+			}
+		}
+
+		/**
+		 * Sequence of the i-th frame of the batch taken last.
+		 */
+		public long sequence(int i) {
+			return first + i;
+		}
+	}
+
+	private final ByteBuffer slots;
+	private final ByteBuffer[] overflow;
+	private final int slotSize;
+	private final int mask;
+	private final int wait;
+
+	// last sequence published by the reader
+	private final Sequence cursor = new Sequence();
+
+	// last sequence taken by any worker
+	private final Sequence workSequence = new Sequence();
+
+	// reader side, only touched by the reader thread
+	private long claimed = -1;
+	private long cachedGate = -1;
+	private Sequence[] gates = new Sequence[0];
+	private long overflowed;
+
+	private volatile boolean closed;
+
+	/**
+	 * @param capacity number of slots, a power of two
+	 * @param slotSize bytes per slot including the 24 byte slot header
+	 * @param wait BUSY_SPIN, YIELD or PARK
+	 */
+	FrameRing(int capacity, int slotSize, int wait) {
+		if (Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException(
+				"Ring capacity must be a power of two: " + capacity);
+		}
+
+		if (slotSize <= SLOT_HEADER) {
+			throw new IllegalArgumentException("Slot too small: " + slotSize);
+		}
+
+		this.slotSize = slotSize;
+		this.mask = capacity - 1;
+		this.wait = wait;
+		slots = ByteBuffer.allocateDirect(capacity * slotSize);
+		overflow = new ByteBuffer[capacity];
+	}
+
+	/**
+	 * Registers a worker. All workers must exist before the first claim.
+	 */
+	public synchronized Worker newWorker() {
+		Worker w = new Worker();
+		w.sequence.set(workSequence.get());
+		gates = Arrays.copyOf(gates, gates.length + 1);
+		gates[gates.length - 1] = w.sequence;
+		return w;
+	}
+
+	/**
+	 * Claims the next n slots, waiting until the workers have freed them.
+	 * Returns the highest sequence claimed; the batch is
+	 * [hi - n + 1, hi].
+	 */
+	public long claim(int n) {
+		long hi = claimed + n;
+		long wrap = hi - (mask + 1);
+
+		for (int spins = 0; wrap > cachedGate; spins++) {
+			cachedGate = minimumGate();
+
+			if (wrap > cachedGate) {
+				pause(spins);
+			}
+		}
+
+		claimed = hi;
+		return hi;
+	}
+
+	/**
+	 * Claims the next n slots if the workers have freed them, without
+	 * waiting. Returns the highest sequence claimed, or -1 if the ring is
+	 * too full.
+	 */
+	public long tryClaim(int n) {
+		long hi = claimed + n;
+		long wrap = hi - (mask + 1);
+
+		if (wrap > cachedGate) {
+			cachedGate = minimumGate();
+
+			if (wrap > cachedGate) {
+				return -1;
+			}
+		}
+
+		claimed = hi;
+		return hi;
+	}
+
+	/**
+	 * Number of claimed slots the workers have not released yet. Only
+	 * meaningful on the reader thread.
+	 */
+	public int backlog() {
+		cachedGate = minimumGate();
+		return (int) (claimed - cachedGate);
+	}
+
+	/**
+	 * Copies a frame into the slot of a claimed sequence, or into a buffer
+	 * of its own if it does not fit.
+	 */
+	public void write(long seq, ByteBuffer src, int offset, int length,
+			int originalLength, long timestamp) {
+		write(seq, src, offset, length, originalLength, timestamp, 1);
+	}
+
+	/**
+	 * Same as above for a frame kept by a sampler at 1 in rate.
+	 */
+	public void write(long seq, ByteBuffer src, int offset, int length,
+			int originalLength, long timestamp, int rate) {
+		int slot = slotOffset(seq);
+		int index = (int) (seq & mask);
+
+		slots.putInt(slot, length);
+		slots.putInt(slot + 4, originalLength);
+		slots.putLong(slot + 8, timestamp);
+		slots.putInt(slot + 16, rate);
+
+		if (length <= slotSize - SLOT_HEADER) {
+			overflow[index] = null;
+			slots.put(slot + SLOT_HEADER, src, offset, length);
+		} else {
+			// seen by the workers through publish(), like the slot itself
+			ByteBuffer copy = ByteBuffer.allocate(length);
+
+			copy.put(0, src, offset, length);
+			overflow[index] = copy;
+			overflowed++;
+		}
+	}
+
+	/**
+	 * Makes every claimed sequence up to hi visible to the workers.
+	 */
+	public void publish(long hi) {
+		cursor.set(hi);
+	}
+
+	/**
+	 * Tells the workers no more frames are coming. Called by the reader
+	 * after its last publish.
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	private long minimumGate() {
+		long min = Long.MAX_VALUE;
+
+		for (Sequence s : gates) {
+			min = Math.min(min, s.get());
+		}
+
+		return gates.length == 0 ? claimed : min;
+	}
+
+	private void pause(int spins) {
+		if (wait == BUSY_SPIN || spins < 100) {
+			Thread.onSpinWait();
+		} else if (wait == YIELD || spins < 200) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(50_000);
+		}
+	}
+
+	// slot accessors
+
+	/**
+	 * Buffer holding the frame of seq: the ring, or the frame's own buffer
+	 * if it was too long for a slot.
+	 */
+	public ByteBuffer buffer(long seq) {
+		ByteBuffer b = overflow[(int) (seq & mask)];
+
+		return b != null ? b : slots;
+	}
+
+	public int slotOffset(long seq) {
+		return (int) (seq & mask) * slotSize;
+	}
+
+	public int frameOffset(long seq) {
+		return overflow[(int) (seq & mask)] != null ? 0
+			: slotOffset(seq) + SLOT_HEADER;
+	}
+
+	public int frameLength(long seq) {
+		return slots.getInt(slotOffset(seq));
+	}
+
+	public int originalLength(long seq) {
+		return slots.getInt(slotOffset(seq) + 4);
+	}
+
+	public long timestamp(long seq) {
+		return slots.getLong(slotOffset(seq) + 8);
+	}
+
+	public int rate(long seq) {
+		return slots.getInt(slotOffset(seq) + 16);
+	}
+
+	public int capacity() {
+		return mask + 1;
+	}
+
+	/**
+	 * Frames written so far that were too long for a slot. Only meaningful
+	 * on the reader thread.
+	 */
+	public long overflowed() {
+		return overflowed;
+	}
+}
@@ -0,0 +1,463 @@
+/*
+ * HandshakeTracker.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Measures TCP connection setup per service (server address and port): the
+ * time from SYN to SYN/ACK, from SYN/ACK to the client's ACK, and how many
+ * SYNs went unanswered or were answered with a RST.
+ *
+ * Handshakes in progress are kept in a fixed size table, set associative
+ * with WAYS entries per set, keyed on the 4-tuple. A new SYN whose set is
+ * full first expires entries older than the timeout and otherwise evicts
+ * the oldest entry; either way the entry counts as unanswered. The table
+ * never grows, so memory stays the same under a SYN flood; the flood shows
+ * up as evictions. Only the SYN/ACK and ACK that carry the expected
+ * acknowledgement numbers complete a handshake.
+ *
+ * Each service gets counters. Past MAX_SERVICES services further ones
+ * are counted together. A histogram is about 7.7 KB, so only the first
+ * MAX_HISTOGRAMS services to be answered get a pair of their own, made
+ * when the first answer comes; the answers to the others go into one
+ * shared pair. The totals include both.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class HandshakeTracker implements FlowDispatcher.FlowWorker {
+	// entries per set
+	static final int WAYS = 4;
+
+	// services tracked one by one
+	static final int MAX_SERVICES = 65536;
+
+	// services with histograms of their own
+	static final int MAX_HISTOGRAMS = 256;
+
+	// service key the rest are counted under
+	static final long OTHER = -1;
+
+	// entry phases
+	private static final byte FREE = 0;
+	private static final byte SYN_SENT = 1;
+	private static final byte SYN_RECEIVED = 2;
+
+	private final long timeout;
+	private final int setMask;
+
+	// pending handshakes, client to server
+	private final long[] addresses;
+	private final long[] ports;
+	private final int[] clientSeq;
+	private final int[] serverSeq;
+	private final long[] synTime;
+	private final long[] synAckTime;
+	private final byte[] phase;
+
+	// per service, indexed through the service key
+	private final LongIndexMap services = new LongIndexMap(256);
+	private long[] syns = new long[256];
+	private long[] completed = new long[256];
+	private long[] unanswered = new long[256];
+	private long[] incomplete = new long[256];
+	private long[] refused = new long[256];
+	private LatencyHistogram[] synAck = new LatencyHistogram[256];
+	private LatencyHistogram[] ack = new LatencyHistogram[256];
+	private int histograms;
+
+	// for the services without histograms of their own
+	private final LatencyHistogram sharedSynAck = new LatencyHistogram();
+	private final LatencyHistogram sharedAck = new LatencyHistogram();
+
+	private long synRetransmits;
+	private long aborted;
+	private long evicted;
+
+	HandshakeTracker(int pending, long timeoutNanos) {
+		int sets = Integer.highestOneBit(Math.max(pending / WAYS, 1));
+		int n = sets * WAYS;
+
+		this.timeout = timeoutNanos;
+		this.setMask = sets - 1;
+
+		addresses = new long[n];
+		ports = new long[n];
+		clientSeq = new int[n];
+		serverSeq = new int[n];
+		synTime = new long[n];
+		synAckTime = new long[n];
+		phase = new byte[n];
+	}
+
+	@Override
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0 || FrameLayout.protocol(b, ip) != FrameLayout.PROTOCOL_TCP) {
+			return;
+		}
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+
+		if (l4 < 0 || l4 + FrameLayout.TCP_HEADER > frame + length) {
+			return;
+		}
+
+		int flags = FrameLayout.tcpFlags(b, l4);
+		long src = FrameLayout.sourceIP(b, ip) & 0xffffffffL;
+		long dst = FrameLayout.destIP(b, ip) & 0xffffffffL;
+		long srcPort = FrameLayout.sourcePort(b, l4);
+		long dstPort = FrameLayout.destPort(b, l4);
+		boolean syn = (flags & FrameLayout.TCP_SYN) != 0;
+		boolean isAck = (flags & FrameLayout.TCP_ACK) != 0;
+		boolean rst = (flags & FrameLayout.TCP_RST) != 0;
+
+		if (syn && !isAck) {
+			syn(src << 32 | dst, srcPort << 16 | dstPort,
+				FrameLayout.sequenceNo(b, l4), timestamp);
+			return;
+		}
+
+		// everything else from the client, then from the server
+		int e = find(src << 32 | dst, srcPort << 16 | dstPort);
+		boolean fromClient = e >= 0;
+
+		if (!fromClient) {
+			e = find(dst << 32 | src, dstPort << 16 | srcPort);
+
+			if (e < 0) {
+				return;
+			}
+		}
+
+		int s = service(e);
+
+		if (rst) {
+			if (fromClient) {
+				aborted++;
+			} else {
+				refused[s]++;
+			}
+
+			phase[e] = FREE;
+		} else if (!fromClient && syn && phase[e] == SYN_SENT
+				&& FrameLayout.ackNo(b, l4) == clientSeq[e] + 1) {
+			synAckHistogram(s).record(timestamp - synTime[e]);
+			serverSeq[e] = FrameLayout.sequenceNo(b, l4);
+			synAckTime[e] = timestamp;
+			phase[e] = SYN_RECEIVED;
+		} else if (fromClient && isAck && phase[e] == SYN_RECEIVED
+				&& FrameLayout.ackNo(b, l4) == serverSeq[e] + 1) {
+			ackHistogram(s).record(timestamp - synAckTime[e]);
+			completed[s]++;
+			phase[e] = FREE;
+		}
+	}
+
+	private void syn(long a, long p, int seq, long timestamp) {
+		int set = (FlowTable.hash(a, p) & setMask) * WAYS;
+		int free = -1;
+		int oldest = set;
+
+		for (int e = set; e < set + WAYS; e++) {
+			if (phase[e] != FREE && addresses[e] == a && ports[e] == p) {
+				if (clientSeq[e] == seq) {
+					// retransmitted SYN, timed from the first
+					synRetransmits++;
+					return;
+				}
+
+				// port reused for a new connection
+				expire(e);
+				free = e;
+				break;
+			}
+
+			if (phase[e] != FREE && timestamp - synTime[e] > timeout) {
+				expire(e);
+			}
+
+			if (phase[e] == FREE) {
+				if (free < 0) {
+					free = e;
+				}
+			} else if (synTime[e] < synTime[oldest]) {
+				oldest = e;
+			}
+		}
+
+		if (free < 0) {
+			evicted++;
+			expire(oldest);
+			free = oldest;
+		}
+
+		addresses[free] = a;
+		ports[free] = p;
+		clientSeq[free] = seq;
+		synTime[free] = timestamp;
+		phase[free] = SYN_SENT;
+
+		// looked up first, as it may grow the arrays
+		int s = service(free);
+
+		syns[s]++;
+	}
+
+	private int find(long a, long p) {
+		int set = (FlowTable.hash(a, p) & setMask) * WAYS;
+
+		for (int e = set; e < set + WAYS; e++) {
+			if (phase[e] != FREE && addresses[e] == a && ports[e] == p) {
+				return e;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Gives up on entry e, counting it against its service.
+	 */
+	private void expire(int e) {
+		int s = service(e);
+
+		if (phase[e] == SYN_SENT) {
+			unanswered[s]++;
+		} else {
+			incomplete[s]++;
+		}
+
+		phase[e] = FREE;
+	}
+
+	/**
+	 * Expires everything still pending, at the end of the capture.
+	 */
+	public void finish() {
+		for (int e = 0; e < phase.length; e++) {
+			if (phase[e] != FREE) {
+				expire(e);
+			}
+		}
+	}
+
+	/**
+	 * Index of the service entry e is connecting to.
+	 */
+	private int service(int e) {
+		return service((addresses[e] & 0xffffffffL) << 16 | ports[e] & 0xffff);
+	}
+
+	private int service(long key) {
+		int s = services.indexOf(key);
+
+		if (s >= 0) {
+			return s;
+		}
+
+		if (services.size() >= MAX_SERVICES) {
+			key = OTHER;
+		}
+
+		s = services.add(key);
+
+		if (s == syns.length) {
+			int n = s * 2;
+
+			syns = Arrays.copyOf(syns, n);
+			completed = Arrays.copyOf(completed, n);
+			unanswered = Arrays.copyOf(unanswered, n);
+			incomplete = Arrays.copyOf(incomplete, n);
+			refused = Arrays.copyOf(refused, n);
+			synAck = Arrays.copyOf(synAck, n);
+			ack = Arrays.copyOf(ack, n);
+		}
+
+		return s;
+	}
+
+	/**
+	 * Whether service s has histograms of its own, making them if there is
+	 * still room. A service refused them is refused for good.
+	 */
+	private boolean ownHistograms(int s) {
+		if (synAck[s] == null && histograms < MAX_HISTOGRAMS) {
+			synAck[s] = new LatencyHistogram();
+			ack[s] = new LatencyHistogram();
+			histograms++;
+		}
+
+		return synAck[s] != null;
+	}
+
+	private LatencyHistogram synAckHistogram(int s) {
+		return ownHistograms(s) ? synAck[s] : sharedSynAck;
+	}
+
+	private LatencyHistogram ackHistogram(int s) {
+		return ownHistograms(s) ? ack[s] : sharedAck;
+	}
+
+	/**
+	 * Adds another tracker's results to this one. Both must be finished.
+	 */
+	public void merge(HandshakeTracker t) {
+		synRetransmits += t.synRetransmits;
+		aborted += t.aborted;
+		evicted += t.evicted;
+		sharedSynAck.merge(t.sharedSynAck);
+		sharedAck.merge(t.sharedAck);
+
+		for (int i = 0; i < t.services.size(); i++) {
+			int s = service(t.services.keyAt(i));
+
+			syns[s] += t.syns[i];
+			completed[s] += t.completed[i];
+			unanswered[s] += t.unanswered[i];
+			incomplete[s] += t.incomplete[i];
+			refused[s] += t.refused[i];
+
+			if (t.synAck[i] != null) {
+				synAckHistogram(s).merge(t.synAck[i]);
+				ackHistogram(s).merge(t.ack[i]);
+			}
+		}
+	}
+
+	public String format(int limit) {
+		StringBuilder sb = new StringBuilder();
+		LatencyHistogram allSynAck = new LatencyHistogram();
+		LatencyHistogram allAck = new LatencyHistogram();
+		long[] totals = new long[5];
+		int n = services.size();
+
+		allSynAck.merge(sharedSynAck);
+		allAck.merge(sharedAck);
+
+		for (int s = 0; s < n; s++) {
+			totals[0] += syns[s];
+			totals[1] += completed[s];
+			totals[2] += unanswered[s];
+			totals[3] += incomplete[s];
+			totals[4] += refused[s];
+
+			if (synAck[s] != null) {
+				allSynAck.merge(synAck[s]);
+				allAck.merge(ack[s]);
+			}
+		}
+
+		sb.append("HANDSHAKE: " + n + " services, syns = " + totals[0]
+			+ ", completed = " + totals[1] + ", unanswered = " + totals[2]
+			+ ", no ack = " + totals[3] + ", refused = " + totals[4] + "\n");
+		sb.append("HANDSHAKE: syn retransmits = " + synRetransmits
+			+ ", aborted by client = " + aborted + ", evicted = " + evicted
+			+ "\n");
+		sb.append("HANDSHAKE:\n");
+		sb.append("HANDSHAKE: syn -> syn/ack\n");
+		sb.append(allSynAck.format("HANDSHAKE: "));
+		sb.append("HANDSHAKE:\n");
+		sb.append("HANDSHAKE: syn/ack -> ack\n");
+		sb.append(allAck.format("HANDSHAKE: "));
+		sb.append("HANDSHAKE:\n");
+
+		// busiest services first
+		Integer[] order = new Integer[n];
+
+		for (int s = 0; s < n; s++) {
+			order[s] = s;
+		}
+
+		Arrays.sort(order, (x, y) -> Long.compare(syns[y], syns[x]));
+
+		for (int k = 0; k < Math.min(limit, n); k++) {
+			int s = order[k];
+			long key = services.keyAt(s);
+
+			sb.append("HANDSHAKE: " + (key == OTHER ? "other"
+				: FrameLayout.formatIP((int) (key >>> 16)) + ":" + (key & 0xffff))
+				+ " syns = " + syns[s] + ", completed = " + completed[s]
+				+ ", unanswered = " + unanswered[s] + ", no ack = "
+				+ incomplete[s] + ", refused = " + refused[s]);
+
+			if (synAck[s] != null) {
+				sb.append(", syn/ack p50/p99 = "
+					+ LatencyHistogram.duration(synAck[s].percentile(50)) + " / "
+					+ LatencyHistogram.duration(synAck[s].percentile(99))
+					+ ", ack p50/p99 = "
+					+ LatencyHistogram.duration(ack[s].percentile(50)) + " / "
+					+ LatencyHistogram.duration(ack[s].percentile(99)));
+			}
+
+			sb.append("\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry:
+	 * --handshake [-w workers] [-n services] [-timeout ms] [-pending n] capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int limit = 20;
+		long timeoutMillis = 3000;
+		int pending = 1 << 18;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				n = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-timeout")) {
+				timeoutMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-pending")) {
+				pending = Integer.parseInt(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --handshake [-w workers] [-n services]"
+				+ " [-timeout ms] [-pending n] capture...");
+		}
+
+		HandshakeTracker[] parts = new HandshakeTracker[n];
+
+		for (int w = 0; w < n; w++) {
+			// the pending budget is shared by the workers
+			parts[w] = new HandshakeTracker(Math.max(pending / n, WAYS),
+				timeoutMillis * 1_000_000);
+		}
+
+		FlowDispatcher.runAll(parts, dir, args, i);
+
+		HandshakeTracker all = new HandshakeTracker(WAYS, 0);
+
+		for (HandshakeTracker t : parts) {
+			t.finish();
+			all.merge(t);
+		}
+
+		out.print(all.format(limit));
+	}
+}
@@ -0,0 +1,328 @@
+/*
+ * HttpScanner.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Finds the start line and a few headers of an HTTP/1.x message at the
+ * start of a TCP payload, in place.
+ *
+ * Lines are found by looking for CR eight bytes at a time: a long read
+ * from the buffer is XORed with CR in every byte and the first zero byte
+ * is located with a carry-free SWAR test. The method, URI, Host value,
+ * status code and Content-Length are kept as offsets and lengths into the
+ * buffer (or numbers); Strings are only made by the accessors that return
+ * them. Payloads that do not start with a known method or "HTTP/" are
+ * rejected after the first few bytes.
+ *
+ * Only the segment given is scanned, so headers carried on in a later
+ * segment are not seen; the start line nearly always fits the first.
+ *
+ * Reference: https://www.rfc-editor.org/rfc/rfc9112
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class HttpScanner {
+	// methods recognised, indexed by method()
+	static final String[] METHODS = {
+		"GET", "POST", "PUT", "DELETE", "HEAD", "OPTIONS", "PATCH",
+		"CONNECT", "TRACE"
+	};
+
+	private static final byte[][] METHOD_BYTES = new byte[METHODS.length][];
+
+	private static final byte[] HTTP = "HTTP/1.".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HOST = "host:".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] CONTENT_LENGTH
+		= "content-length:".getBytes(StandardCharsets.US_ASCII);
+
+	// SWAR constants
+	private static final long LOWS = 0x7f7f7f7f7f7f7f7fL;
+	private static final long CRS = 0x0d0d0d0d0d0d0d0dL;
+
+	static {
+		for (int i = 0; i < METHODS.length; i++) {
+			METHOD_BYTES[i] = METHODS[i].getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	private ByteBuffer b;
+
+	// start line
+	private boolean request;
+	private int method;
+	private int uri;
+	private int uriLength;
+	private int status;
+
+	// headers, -1 when absent
+	private int host;
+	private int hostLength;
+	private long contentLength;
+
+	// offset just past the blank line, -1 if not in this segment
+	private int headersEnd;
+
+	/**
+	 * Scans the payload from from up to to. Returns false if it does not
+	 * start an HTTP/1.x request or response.
+	 */
+	public boolean scan(ByteBuffer b, int from, int to) {
+		this.b = b;
+
+		host = -1;
+		hostLength = 0;
+		contentLength = -1;
+		headersEnd = -1;
+
+		int lineEnd;
+
+		if (startsWith(b, from, to, HTTP)) {
+			// HTTP/1.x 200 OK
+			int code = from + HTTP.length + 2;
+
+			if (code + 3 > to || FrameLayout.u8(b, code - 1) != ' ') {
+				return false;
+			}
+
+			status = 0;
+
+			for (int i = code; i < code + 3; i++) {
+				int d = FrameLayout.u8(b, i) - '0';
+
+				if (d < 0 || d > 9) {
+					return false;
+				}
+
+				status = status * 10 + d;
+			}
+
+			request = false;
+			lineEnd = findCr(b, code, to);
+		} else {
+			// GET /path HTTP/1.1
+			method = -1;
+
+			for (int m = 0; m < METHOD_BYTES.length && method < 0; m++) {
+				byte[] name = METHOD_BYTES[m];
+
+				if (startsWith(b, from, to, name) && from + name.length < to
+						&& FrameLayout.u8(b, from + name.length) == ' ') {
+					method = m;
+				}
+			}
+
+			if (method < 0) {
+				return false;
+			}
+
+			uri = from + METHOD_BYTES[method].length + 1;
+			lineEnd = findCr(b, uri, to);
+
+			int space = lastSpace(b, uri, lineEnd < 0 ? to : lineEnd);
+
+			if (space < 0 || !startsWith(b, space + 1, to, HTTP)) {
+				return false;
+			}
+
+			uriLength = space - uri;
+			request = true;
+		}
+
+		// header lines until the blank one
+		while (lineEnd >= 0 && lineEnd + 1 < to
+				&& FrameLayout.u8(b, lineEnd + 1) == '\n') {
+			int line = lineEnd + 2;
+
+			lineEnd = findCr(b, line, to);
+
+			if (lineEnd == line) {
+				headersEnd = line + 2 <= to ? line + 2 : -1;
+				break;
+			}
+
+			header(line, lineEnd < 0 ? to : lineEnd);
+		}
+
+		return true;
+	}
+
+	private void header(int line, int end) {
+		if (startsWithIgnoreCase(b, line, end, HOST)) {
+			host = skipSpaces(line + HOST.length, end);
+			hostLength = end - host;
+		} else if (startsWithIgnoreCase(b, line, end, CONTENT_LENGTH)) {
+			long n = 0;
+			int p = skipSpaces(line + CONTENT_LENGTH.length, end);
+
+			for (; p < end; p++) {
+				int d = FrameLayout.u8(b, p) - '0';
+
+				if (d < 0 || d > 9 || n > Long.MAX_VALUE / 10) {
+					break;
+				}
+
+				n = n * 10 + d;
+			}
+
+			contentLength = n;
+		}
+	}
+
+	/**
+	 * Offset of the first CR from from up to to, or -1.
+	 */
+	static int findCr(ByteBuffer b, int from, int to) {
+		int p = from;
+
+		// eight bytes at a time; in big endian order the first byte in
+		// memory is the most significant, in little endian the least
+		boolean big = b.order() == ByteOrder.BIG_ENDIAN;
+
+		for (; p + 8 <= to; p += 8) {
+			long x = b.getLong(p) ^ CRS;
+
+			// high bit set in exactly the zero bytes, no borrows between
+			// bytes so the first one found is the first in memory
+			long found = ~(((x & LOWS) + LOWS) | x | LOWS);
+
+			if (found != 0) {
+				return p + ((big ? Long.numberOfLeadingZeros(found)
+					: Long.numberOfTrailingZeros(found)) >> 3);
+			}
+		}
+
+		for (; p < to; p++) {
+			if (b.get(p) == '\r') {
+				return p;
+			}
+		}
+
+		return -1;
+	}
+
+	private static int lastSpace(ByteBuffer b, int from, int to) {
+		for (int p = to - 1; p >= from; p--) {
+			if (b.get(p) == ' ') {
+				return p;
+			}
+		}
+
+		return -1;
+	}
+
+	private int skipSpaces(int p, int end) {
+		while (p < end && (b.get(p) == ' ' || b.get(p) == '\t')) {
+			p++;
+		}
+
+		return p;
+	}
+
+	private static boolean startsWith(ByteBuffer b, int p, int to,
+			byte[] prefix) {
+		if (p + prefix.length > to) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.length; i++) {
+			if (b.get(p + i) != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Same, for a lower case prefix, ignoring the case of the buffer.
+	 */
+	private static boolean startsWithIgnoreCase(ByteBuffer b, int p, int to,
+			byte[] prefix) {
+		if (p + prefix.length > to) {
+			return false;
+		}
+
+		for (int i = 0; i < prefix.length; i++) {
+			if ((b.get(p + i) | 0x20) != prefix[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	// results of the last scan()
+
+	public boolean request() {
+		return request;
+	}
+
+	/**
+	 * Index of the request method in METHODS.
+	 */
+	public int method() {
+		return method;
+	}
+
+	public int uriOffset() {
+		return uri;
+	}
+
+	public int uriLength() {
+		return uriLength;
+	}
+
+	public int status() {
+		return status;
+	}
+
+	/**
+	 * Offset of the Host header value, or -1 if there was none.
+	 */
+	public int hostOffset() {
+		return host;
+	}
+
+	public int hostLength() {
+		return hostLength;
+	}
+
+	public long contentLength() {
+		return contentLength;
+	}
+
+	public int headersEnd() {
+		return headersEnd;
+	}
+
+	public String uri() {
+		return string(uri, uriLength);
+	}
+
+	public String host() {
+		return host < 0 ? null : string(host, hostLength);
+	}
+
+	private String string(int offset, int length) {
+		byte[] s = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			s[i] = b.get(offset + i);
+		}
+
+		return new String(s, StandardCharsets.ISO_8859_1);
+	}
+}
@@ -0,0 +1,525 @@
+/*
+ * HttpTracker.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Matches HTTP/1.x requests to responses per TCP connection and reports
+ * latency and status codes per Host.
+ *
+ * Every TCP payload is given to an HttpScanner, which turns away anything
+ * that is not the start of a request or response within a few bytes.
+ * Requests are queued per connection, up to PIPELINE of them, in primitive
+ * arrays indexed by the FlowTable's flow index; a response in the other
+ * direction completes the oldest. Interim (1xx) responses are counted but
+ * do not complete a request.
+ *
+ * A connection leaves the table once it is done with: at a RST, at a FIN
+ * once no request is left waiting, and when it has been idle for the idle
+ * timeout, in capture time. Requests still waiting then are counted as
+ * unanswered. So the table only holds the connections still open, however
+ * long the capture.
+ *
+ * Hosts are keyed by a hash of the Host header bytes, and the name String
+ * is made once, the first time a host is seen. Past MAX_HOSTS hosts
+ * further ones are counted together.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class HttpTracker implements FlowDispatcher.FlowWorker {
+	// outstanding requests kept per connection
+	static final int PIPELINE = 4;
+
+	// hosts tracked one by one
+	static final int MAX_HOSTS = 4096;
+
+	// capture time between looks for idle connections
+	static final long SWEEP_INTERVAL = 1_000_000_000L;
+
+	// host key for requests without a Host header, and for the rest
+	static final long NO_HOST = 0;
+	static final long OTHER = -1;
+
+	private final FlowTable table = new FlowTable();
+	private final HttpScanner scanner = new HttpScanner();
+	private final long idle;
+
+	private int capacity = 512;
+
+	// per connection request queue
+	private long[] requestTime = new long[capacity * PIPELINE];
+	private int[] requestHost = new int[capacity * PIPELINE];
+	private boolean[] requestForward = new boolean[capacity * PIPELINE];
+	private byte[] head = new byte[capacity];
+	private byte[] queued = new byte[capacity];
+
+	// per connection, a FIN has been seen
+	private boolean[] closing = new boolean[capacity];
+
+	// per host, indexed through the host key
+	private final LongIndexMap hosts = new LongIndexMap(64);
+	private String[] hostNames = new String[64];
+	private long[] hostRequests = new long[64];
+	private long[][] hostStatus = new long[64][];
+	private LatencyHistogram[] hostLatency = new LatencyHistogram[64];
+
+	private final long[] methods = new long[HttpScanner.METHODS.length];
+	private final long[] statuses = new long[1000];
+	private final LatencyHistogram latency = new LatencyHistogram();
+
+	private long requests;
+	private long responses;
+	private long unanswered;
+	private long unmatched;
+
+	// capture time of the latest segment and of the last sweep
+	private long now;
+	private long swept;
+
+	HttpTracker(long idleNanos) {
+		this.idle = idleNanos;
+	}
+
+	@Override
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0 || FrameLayout.protocol(b, ip) != FrameLayout.PROTOCOL_TCP) {
+			return;
+		}
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+		int end = FrameLayout.ipv4End(b, ip, frame + length);
+
+		if (l4 < 0 || l4 + FrameLayout.TCP_HEADER > end) {
+			return;
+		}
+
+		if (now == 0) {
+			swept = timestamp;
+		}
+
+		if (timestamp > now) {
+			now = timestamp;
+
+			if (now - swept >= SWEEP_INTERVAL) {
+				sweep();
+				swept = now;
+			}
+		}
+
+		int flags = FrameLayout.tcpFlags(b, l4);
+		int payload = l4 + FrameLayout.dataOffset(b, l4);
+
+		if (payload >= end || !scanner.scan(b, payload, end)) {
+			if ((flags & (FrameLayout.TCP_FIN | FrameLayout.TCP_RST)) != 0) {
+				int f = table.find(b, frame, length);
+
+				if (f >= 0) {
+					closed(f, flags);
+				}
+			}
+
+			return;
+		}
+
+		int f = table.add(b, frame, length, timestamp);
+		boolean forward = table.forward();
+
+		if (f >= capacity) {
+			grow();
+		}
+
+		// pipelined messages follow each other in one segment when the
+		// length of each body is known
+		do {
+			if (scanner.request()) {
+				request(f, forward, timestamp, b);
+			} else {
+				response(f, forward, timestamp);
+			}
+
+			payload = next();
+		} while (payload >= 0 && payload < end && scanner.scan(b, payload, end));
+
+		closed(f, flags);
+	}
+
+	/**
+	 * Retires connection f if the segment with these flags ended it, or if
+	 * it ended earlier and its last request has now been answered.
+	 */
+	private void closed(int f, int flags) {
+		if ((flags & FrameLayout.TCP_FIN) != 0) {
+			closing[f] = true;
+		}
+
+		if ((flags & FrameLayout.TCP_RST) != 0
+				|| (closing[f] && queued[f] == 0)) {
+			retire(f);
+		}
+	}
+
+	/**
+	 * Retires the connections idle for the timeout.
+	 */
+	private void sweep() {
+		// from the end, as removing moves the last flow into the hole
+		for (int f = table.size() - 1; f >= 0; f--) {
+			if (now - table.last(f) >= idle) {
+				retire(f);
+			}
+		}
+	}
+
+	/**
+	 * Counts the requests connection f still has waiting as unanswered and
+	 * removes it.
+	 */
+	private void retire(int f) {
+		unanswered += queued[f];
+
+		int moved = table.size() - 1;
+
+		System.arraycopy(requestTime, moved * PIPELINE, requestTime,
+			f * PIPELINE, PIPELINE);
+		System.arraycopy(requestHost, moved * PIPELINE, requestHost,
+			f * PIPELINE, PIPELINE);
+		System.arraycopy(requestForward, moved * PIPELINE, requestForward,
+			f * PIPELINE, PIPELINE);
+		head[f] = head[moved];
+		queued[f] = queued[moved];
+		closing[f] = closing[moved];
+		head[moved] = 0;
+		queued[moved] = 0;
+		closing[moved] = false;
+
+		table.remove(f);
+	}
+
+	/**
+	 * Offset just past the body of the message scanned, or -1 if it does
+	 * not end in this segment or its length is not known.
+	 */
+	private int next() {
+		long body = scanner.contentLength();
+
+		if (scanner.headersEnd() < 0) {
+			return -1;
+		}
+
+		if (body < 0) {
+			// requests without Content-Length have no body
+			if (!scanner.request()) {
+				return -1;
+			}
+
+			body = 0;
+		}
+
+		return body > Integer.MAX_VALUE - scanner.headersEnd() ? -1
+			: scanner.headersEnd() + (int) body;
+	}
+
+	private void request(int f, boolean forward, long timestamp,
+			ByteBuffer b) {
+		requests++;
+		methods[scanner.method()]++;
+
+		int h = host(b, scanner.hostOffset(), scanner.hostLength());
+
+		hostRequests[h]++;
+
+		if (queued[f] == PIPELINE) {
+			// oldest request gave up on
+			unanswered++;
+			head[f] = (byte) ((head[f] + 1) % PIPELINE);
+			queued[f]--;
+		}
+
+		int j = f * PIPELINE + (head[f] + queued[f]) % PIPELINE;
+
+		requestTime[j] = timestamp;
+		requestHost[j] = h;
+		requestForward[j] = forward;
+		queued[f]++;
+	}
+
+	private void response(int f, boolean forward, long timestamp) {
+		int status = scanner.status();
+
+		responses++;
+		statuses[status]++;
+
+		int j = f * PIPELINE + head[f];
+
+		if (queued[f] == 0 || requestForward[j] == forward) {
+			unmatched++;
+			return;
+		}
+
+		int h = requestHost[j];
+
+		hostStatus[h][Math.min(status / 100, 5)]++;
+
+		// interim responses come before the real one
+		if (status / 100 == 1) {
+			return;
+		}
+
+		long nanos = timestamp - requestTime[j];
+
+		latency.record(nanos);
+
+		if (hostLatency[h] == null) {
+			hostLatency[h] = new LatencyHistogram();
+		}
+
+		hostLatency[h].record(nanos);
+
+		head[f] = (byte) ((head[f] + 1) % PIPELINE);
+		queued[f]--;
+	}
+
+	/**
+	 * Index of the host whose name is at offset, making its String if it
+	 * is new.
+	 */
+	private int host(ByteBuffer b, int offset, int length) {
+		long key = NO_HOST;
+
+		if (offset >= 0) {
+			key = LongIndexMap.key(b, offset, length);
+
+			// never NO_HOST or OTHER
+			if (key == NO_HOST || key == OTHER) {
+				key = 1;
+			}
+		}
+
+		int h = hosts.indexOf(key);
+
+		if (h >= 0) {
+			return h;
+		}
+
+		String name = offset < 0 ? "(no host)" : scanner.host();
+
+		return host(key, name);
+	}
+
+	private int host(long key, String name) {
+		int h = hosts.indexOf(key);
+
+		if (h >= 0) {
+			return h;
+		}
+
+		if (hosts.size() >= MAX_HOSTS) {
+			key = OTHER;
+			name = "other";
+		}
+
+		h = hosts.add(key);
+
+		if (h == hostNames.length) {
+			int n = h * 2;
+
+			hostNames = Arrays.copyOf(hostNames, n);
+			hostRequests = Arrays.copyOf(hostRequests, n);
+			hostStatus = Arrays.copyOf(hostStatus, n);
+			hostLatency = Arrays.copyOf(hostLatency, n);
+		}
+
+		if (hostNames[h] == null) {
+			hostNames[h] = name;
+			hostStatus[h] = new long[6];
+		}
+
+		return h;
+	}
+
+	private void grow() {
+		capacity *= 2;
+
+		requestTime = Arrays.copyOf(requestTime, capacity * PIPELINE);
+		requestHost = Arrays.copyOf(requestHost, capacity * PIPELINE);
+		requestForward = Arrays.copyOf(requestForward, capacity * PIPELINE);
+		head = Arrays.copyOf(head, capacity);
+		queued = Arrays.copyOf(queued, capacity);
+		closing = Arrays.copyOf(closing, capacity);
+	}
+
+	/**
+	 * Connections held in the table, those not retired yet.
+	 */
+	int connections() {
+		return table.size();
+	}
+
+	/**
+	 * Counts the requests still waiting as unanswered.
+	 */
+	public void finish() {
+		for (int f = 0; f < table.size(); f++) {
+			unanswered += queued[f];
+			queued[f] = 0;
+		}
+	}
+
+	/**
+	 * Adds another tracker's results to this one. Both must be finished.
+	 */
+	public void merge(HttpTracker t) {
+		requests += t.requests;
+		responses += t.responses;
+		unanswered += t.unanswered;
+		unmatched += t.unmatched;
+		latency.merge(t.latency);
+
+		for (int i = 0; i < methods.length; i++) {
+			methods[i] += t.methods[i];
+		}
+
+		for (int i = 0; i < statuses.length; i++) {
+			statuses[i] += t.statuses[i];
+		}
+
+		for (int i = 0; i < t.hosts.size(); i++) {
+			int h = host(t.hosts.keyAt(i), t.hostNames[i]);
+
+			hostRequests[h] += t.hostRequests[i];
+
+			for (int c = 0; c < 6; c++) {
+				hostStatus[h][c] += t.hostStatus[i][c];
+			}
+
+			if (t.hostLatency[i] != null) {
+				if (hostLatency[h] == null) {
+					hostLatency[h] = new LatencyHistogram();
+				}
+
+				hostLatency[h].merge(t.hostLatency[i]);
+			}
+		}
+	}
+
+	public String format(int limit) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("HTTP: requests = " + requests + ", responses = " + responses
+			+ ", unanswered = " + unanswered + ", unmatched responses = "
+			+ unmatched + ", hosts = " + hosts.size() + "\n");
+		sb.append("HTTP:\n");
+
+		for (int m = 0; m < methods.length; m++) {
+			if (methods[m] > 0) {
+				sb.append(String.format("HTTP: %-20s %12d\n",
+					HttpScanner.METHODS[m], methods[m]));
+			}
+		}
+
+		sb.append("HTTP:\n");
+
+		for (int s = 0; s < statuses.length; s++) {
+			if (statuses[s] > 0) {
+				sb.append(String.format("HTTP: status %-13d %12d\n", s,
+					statuses[s]));
+			}
+		}
+
+		sb.append("HTTP:\n");
+		sb.append("HTTP: latency\n");
+		sb.append(latency.format("HTTP: "));
+		sb.append("HTTP:\n");
+
+		// busiest hosts first
+		Integer[] order = new Integer[hosts.size()];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, (x, y) -> Long.compare(hostRequests[y],
+			hostRequests[x]));
+
+		for (int k = 0; k < Math.min(limit, order.length); k++) {
+			int h = order[k];
+			long[] c = hostStatus[h];
+
+			sb.append("HTTP: " + hostNames[h] + " requests = " + hostRequests[h]
+				+ ", 2xx = " + c[2] + ", 3xx = " + c[3] + ", 4xx = " + c[4]
+				+ ", 5xx = " + c[5]);
+
+			if (hostLatency[h] != null) {
+				sb.append(", p50 = "
+					+ LatencyHistogram.duration(hostLatency[h].percentile(50))
+					+ ", p99 = "
+					+ LatencyHistogram.duration(hostLatency[h].percentile(99)));
+			}
+
+			sb.append("\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry: --http [-w workers] [-n hosts] [-idle s] capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int limit = 20;
+		long idleSeconds = 60;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				n = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-idle")) {
+				idleSeconds = Long.parseLong(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --http [-w workers] [-n hosts] [-idle s]"
+				+ " capture...");
+		}
+
+		HttpTracker[] parts = new HttpTracker[n];
+
+		for (int w = 0; w < n; w++) {
+			parts[w] = new HttpTracker(idleSeconds * 1_000_000_000L);
+		}
+
+		FlowDispatcher.runAll(parts, dir, args, i);
+
+		HttpTracker total = new HttpTracker(0);
+
+		for (HttpTracker t : parts) {
+			t.finish();
+			total.merge(t);
+		}
+
+		out.print(total.format(limit));
+	}
+}
@@ -0,0 +1,451 @@
+/*
+ * IcmpTracker.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Ties ICMP errors to the flows and services they are about, and looks for
+ * path MTU black holes.
+ *
+ * An error quotes the IPv4 header and first bytes of the datagram that
+ * caused it. The quote is read where it lies in the capture buffer, with
+ * the same FrameLayout accessors as any other header, and its flow looked
+ * up in the worker's FlowTable: one hash probe, no copies. FlowDispatcher
+ * hashes errors on the quoted datagram, so the error reaches the worker
+ * that has seen the flow.
+ *
+ * Counts are kept per flow, in arrays indexed by the flow index, and per
+ * service, the destination address, port and protocol of the quoted
+ * datagram. A fragmentation needed error records the reported MTU for the
+ * direction of the quoted datagram; a sender that then keeps sending
+ * datagrams with DF set that are over it never got the error, or ignored
+ * it, and the flow is reported as a suspected black hole.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class IcmpTracker implements FlowDispatcher.FlowWorker {
+	// services tracked one by one, and the key for the rest
+	static final int MAX_SERVICES = 4096;
+	static final long OTHER = -1;
+
+	// oversized datagrams after the error that make a black hole
+	static final int BLACK_HOLE = 3;
+
+	private final FlowTable table = new FlowTable();
+
+	// per flow, errors of each kind and the service they were counted to
+	private int[] unreachable = new int[512];
+	private int[] fragNeeded = new int[512];
+	private int[] timeExceeded = new int[512];
+	private int[] flowService = new int[512];
+
+	// per flow direction, indexed f * 2 + d: largest datagram known to get
+	// through, 0 if none reported, and DF datagrams sent over it since
+	private int[] limit = new int[1024];
+	private int[] oversize = new int[1024];
+
+	// per service, indexed through the service key
+	private final LongIndexMap services = new LongIndexMap(64);
+	private long[] serviceUnreachable = new long[64];
+	private long[] serviceFragNeeded = new long[64];
+	private long[] serviceTimeExceeded = new long[64];
+	private long[] serviceUnmatched = new long[64];
+	private long[] serviceBlackHoles = new long[64];
+
+	// per type, and per code of destination unreachable
+	private final long[] types = new long[256];
+	private final long[] codes = new long[256];
+
+	private long errors;
+	private long matched;
+	private long unmatched;
+	private long malformed;
+	private long blackHoles;
+
+	IcmpTracker() {
+		Arrays.fill(flowService, -1);
+	}
+
+	@Override
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0) {
+			return;
+		}
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+		int end = FrameLayout.ipv4End(b, ip, frame + length);
+
+		if (l4 >= 0 && FrameLayout.protocol(b, ip) == FrameLayout.PROTOCOL_ICMP
+				&& l4 + FrameLayout.ICMP_HEADER <= end
+				&& FrameLayout.icmpError(FrameLayout.icmpType(b, l4))) {
+			error(b, l4, end);
+			return;
+		}
+
+		int f = table.add(b, frame, length, timestamp);
+
+		if (f * 2 + 1 >= limit.length) {
+			grow();
+		}
+
+		int d = f * 2 + (table.forward() ? 0 : 1);
+
+		if (limit[d] > 0 && FrameLayout.dontFragment(b, ip)
+				&& FrameLayout.totalLength(b, ip) > limit[d]) {
+			oversize[d]++;
+		}
+	}
+
+	private void error(ByteBuffer b, int l4, int end) {
+		int type = FrameLayout.icmpType(b, l4);
+		int code = FrameLayout.icmpCode(b, l4);
+
+		errors++;
+		types[type]++;
+
+		if (type == FrameLayout.ICMP_UNREACHABLE) {
+			codes[code]++;
+		}
+
+		int ip = FrameLayout.quotedIpv4(b, l4, end);
+
+		if (ip < 0) {
+			malformed++;
+			return;
+		}
+
+		int s = service(b, ip, end);
+		boolean tooBig = type == FrameLayout.ICMP_UNREACHABLE
+			&& code == FrameLayout.ICMP_FRAGMENTATION_NEEDED;
+
+		if (tooBig) {
+			serviceFragNeeded[s]++;
+		} else if (type == FrameLayout.ICMP_UNREACHABLE) {
+			serviceUnreachable[s]++;
+		} else if (type == FrameLayout.ICMP_TIME_EXCEEDED) {
+			serviceTimeExceeded[s]++;
+		}
+
+		int f = table.findDatagram(b, ip, end);
+
+		if (f < 0) {
+			unmatched++;
+			serviceUnmatched[s]++;
+			return;
+		}
+
+		matched++;
+		flowService[f] = s;
+
+		if (tooBig) {
+			fragNeeded[f]++;
+
+			// routers from before RFC 1191 leave the MTU out; the
+			// quoted datagram was too big all the same
+			int mtu = FrameLayout.icmpMtu(b, l4);
+			int fits = mtu > 0 ? mtu : FrameLayout.totalLength(b, ip) - 1;
+			int d = f * 2 + (table.forward() ? 0 : 1);
+
+			if (limit[d] == 0 || fits < limit[d]) {
+				limit[d] = fits;
+			}
+		} else if (type == FrameLayout.ICMP_UNREACHABLE) {
+			unreachable[f]++;
+		} else if (type == FrameLayout.ICMP_TIME_EXCEEDED) {
+			timeExceeded[f]++;
+		}
+	}
+
+	/**
+	 * Index of the service the quoted datagram at ip was sent to.
+	 */
+	private int service(ByteBuffer b, int ip, int end) {
+		int protocol = FrameLayout.protocol(b, ip);
+		int l4 = FrameLayout.transportOffset(b, ip);
+		long port = 0;
+
+		if (l4 >= 0 && FlowTable.hasPorts(protocol)
+				&& end - l4 >= FrameLayout.UDP_HEADER) {
+			port = FrameLayout.destPort(b, l4);
+		}
+
+		return service((FrameLayout.destIP(b, ip) & 0xffffffffL) << 32
+			| port << 8 | protocol);
+	}
+
+	private int service(long key) {
+		int i = services.indexOf(key);
+
+		if (i >= 0) {
+			return i;
+		}
+
+		if (services.size() >= MAX_SERVICES) {
+			key = OTHER;
+			i = services.indexOf(key);
+
+			if (i >= 0) {
+				return i;
+			}
+		}
+
+		i = services.add(key);
+
+		if (i == serviceUnreachable.length) {
+			int n = i * 2;
+
+			serviceUnreachable = Arrays.copyOf(serviceUnreachable, n);
+			serviceFragNeeded = Arrays.copyOf(serviceFragNeeded, n);
+			serviceTimeExceeded = Arrays.copyOf(serviceTimeExceeded, n);
+			serviceUnmatched = Arrays.copyOf(serviceUnmatched, n);
+			serviceBlackHoles = Arrays.copyOf(serviceBlackHoles, n);
+		}
+
+		return i;
+	}
+
+	private void grow() {
+		int n = limit.length * 2;
+
+		limit = Arrays.copyOf(limit, n);
+		oversize = Arrays.copyOf(oversize, n);
+		unreachable = Arrays.copyOf(unreachable, n / 2);
+		fragNeeded = Arrays.copyOf(fragNeeded, n / 2);
+		timeExceeded = Arrays.copyOf(timeExceeded, n / 2);
+		flowService = Arrays.copyOf(flowService, n / 2);
+		Arrays.fill(flowService, n / 4, n / 2, -1);
+	}
+
+	private boolean blackHole(int f) {
+		return oversize[f * 2] >= BLACK_HOLE || oversize[f * 2 + 1] >= BLACK_HOLE;
+	}
+
+	private int errors(int f) {
+		return unreachable[f] + fragNeeded[f] + timeExceeded[f];
+	}
+
+	/**
+	 * Attributes black holes to their services, once the capture has been
+	 * read.
+	 */
+	public void finish() {
+		for (int f = 0; f < table.size(); f++) {
+			if (blackHole(f)) {
+				blackHoles++;
+				serviceBlackHoles[flowService[f]]++;
+			}
+		}
+	}
+
+	/**
+	 * Adds another tracker's counts to this one. Both must be finished.
+	 * Flow lists are kept by each worker and listed from all of them by
+	 * format().
+	 */
+	public void merge(IcmpTracker t) {
+		errors += t.errors;
+		matched += t.matched;
+		unmatched += t.unmatched;
+		malformed += t.malformed;
+		blackHoles += t.blackHoles;
+
+		for (int i = 0; i < types.length; i++) {
+			types[i] += t.types[i];
+			codes[i] += t.codes[i];
+		}
+
+		for (int j = 0; j < t.services.size(); j++) {
+			int i = service(t.services.keyAt(j));
+
+			serviceUnreachable[i] += t.serviceUnreachable[j];
+			serviceFragNeeded[i] += t.serviceFragNeeded[j];
+			serviceTimeExceeded[i] += t.serviceTimeExceeded[j];
+			serviceUnmatched[i] += t.serviceUnmatched[j];
+			serviceBlackHoles[i] += t.serviceBlackHoles[j];
+		}
+	}
+
+	private static String serviceLabel(long key) {
+		if (key == OTHER) {
+			return "other";
+		}
+
+		int protocol = (int) key & 0xff;
+		String label = InternetProtocolV4Packet.protocolLabel(protocol);
+
+		return FrameLayout.formatIP((int) (key >>> 32))
+			+ (FlowTable.hasPorts(protocol) ? ":" + (key >>> 8 & 0xffff) : "")
+			+ " " + (label == "UNKNOWN" ? "proto " + protocol : label);
+	}
+
+	/**
+	 * Formats the merged counts in total, its services, and the flows with
+	 * most errors across the workers.
+	 */
+	static String format(IcmpTracker total, IcmpTracker[] parts, int limit) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("ICMP: errors = " + total.errors + ", matched to a flow = "
+			+ total.matched + ", unmatched = " + total.unmatched
+			+ ", malformed = " + total.malformed + ", black holes = "
+			+ total.blackHoles + "\n");
+		sb.append("ICMP:\n");
+
+		for (int type = 0; type < total.types.length; type++) {
+			if (total.types[type] == 0) {
+				continue;
+			}
+
+			sb.append(String.format("ICMP: %-38s %12d\n",
+				InternetControlMessageProtocolPacket.getType(type),
+				total.types[type]));
+
+			if (type != FrameLayout.ICMP_UNREACHABLE) {
+				continue;
+			}
+
+			for (int code = 0; code < total.codes.length; code++) {
+				if (total.codes[code] > 0) {
+					sb.append(String.format("ICMP:   %-36s %12d\n",
+						InternetControlMessageProtocolPacket.unreachableLabel(code)
+						+ " (" + code + ")", total.codes[code]));
+				}
+			}
+		}
+
+		sb.append("ICMP:\n");
+		sb.append(String.format("ICMP: %-32s %11s %11s %11s %11s %11s\n",
+			"service", "unreachable", "frag needed", "ttl expired",
+			"unmatched", "black holes"));
+
+		Integer[] order = new Integer[total.services.size()];
+
+		for (int i = 0; i < order.length; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, (x, y) -> Long.compare(total.serviceErrors(y),
+			total.serviceErrors(x)));
+
+		for (int k = 0; k < Math.min(limit, order.length); k++) {
+			int i = order[k];
+
+			sb.append(String.format("ICMP: %-32s %11d %11d %11d %11d %11d\n",
+				serviceLabel(total.services.keyAt(i)), total.serviceUnreachable[i],
+				total.serviceFragNeeded[i], total.serviceTimeExceeded[i],
+				total.serviceUnmatched[i], total.serviceBlackHoles[i]));
+		}
+
+		sb.append("ICMP:\n");
+
+		// flows with most errors, part in the high half, flow in the low
+		int n = 0;
+
+		for (IcmpTracker t : parts) {
+			for (int f = 0; f < t.table.size(); f++) {
+				if (t.errors(f) > 0) {
+					n++;
+				}
+			}
+		}
+
+		Long[] flows = new Long[n];
+
+		n = 0;
+
+		for (int p = 0; p < parts.length; p++) {
+			for (int f = 0; f < parts[p].table.size(); f++) {
+				if (parts[p].errors(f) > 0) {
+					flows[n++] = (long) p << 32 | f;
+				}
+			}
+		}
+
+		Arrays.sort(flows, (x, y) -> Integer.compare(
+			parts[(int) (y >>> 32)].errors((int) (long) y),
+			parts[(int) (x >>> 32)].errors((int) (long) x)));
+
+		for (int k = 0; k < Math.min(limit, n); k++) {
+			IcmpTracker t = parts[(int) (flows[k] >>> 32)];
+			int f = (int) (long) flows[k];
+
+			sb.append("ICMP: " + t.table.toString(f) + " unreachable = "
+				+ t.unreachable[f] + ", frag needed = " + t.fragNeeded[f]);
+
+			for (int d = f * 2; d <= f * 2 + 1; d++) {
+				if (t.limit[d] > 0) {
+					sb.append(", " + (d == f * 2 ? "A->B" : "B->A") + " mtu = "
+						+ t.limit[d] + " oversize = " + t.oversize[d]);
+				}
+			}
+
+			sb.append(", ttl expired = " + t.timeExceeded[f]
+				+ (t.blackHole(f) ? ", black hole" : "") + "\n");
+		}
+
+		return sb.toString();
+	}
+
+	private long serviceErrors(int i) {
+		return serviceUnreachable[i] + serviceFragNeeded[i]
+			+ serviceTimeExceeded[i];
+	}
+
+	/**
+	 * Command-line entry: --icmp [-w workers] [-n rows] capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int limit = 20;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				n = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --icmp [-w workers] [-n rows]"
+				+ " capture...");
+		}
+
+		IcmpTracker[] parts = new IcmpTracker[n];
+
+		for (int w = 0; w < n; w++) {
+			parts[w] = new IcmpTracker();
+		}
+
+		FlowDispatcher.runAll(parts, dir, args, i);
+
+		IcmpTracker total = new IcmpTracker();
+
+		for (IcmpTracker t : parts) {
+			t.finish();
+			total.merge(t);
+		}
+
+		out.print(format(total, parts, limit));
+	}
+}
@@ -10,9 +10,16 @@
 
 package pktanalyzer;
 
+import java.nio.ByteBuffer;
+
 /**
  * The classes parses a ICMP packet from the bytes provided.
  *
+ * Error messages quote the header of the datagram that caused them. The
+ * quote is parsed where it lies, by InternetProtocolV4Packet on an offset
+ * view of the same bytes, together with the ports of a quoted TCP or UDP
+ * header.
+ *
  * Reference: https://en.wikipedia.org/wiki/Internet_Control_Message_Protocol
  *
  * @author Tanishq Jain <tj3989@cs.rit.edu>
@@ -28,10 +35,40 @@ public class InternetControlMessageProtocolPacket {
 	// checksum
 	private int checksum;
 
+	// next-hop MTU of a fragmentation needed message
+	private int mtu;
+
+	// datagram quoted by an error, and its ports if it has them
+	private InternetProtocolV4Packet quoted;
+	private int quotedSourcePort = -1;
+	private int quotedDestPort = -1;
+
 	InternetControlMessageProtocolPacket(byte[] data) throws Exception {		
 		type = data[0] & 0xff;
 		code = data[1] & 0xff;
 		checksum = (data[2] & 0xff) << 8 | data[3] & 0xff;
+
+		ByteBuffer b = ByteBuffer.wrap(data);
+		int ip = FrameLayout.quotedIpv4(b, 0, data.length);
+
+		if (ip < 0) {
+			return;
+		}
+
+		if (fragmentationNeeded()) {
+			mtu = FrameLayout.icmpMtu(b, 0);
+		}
+
+		quoted = new InternetProtocolV4Packet(b, ip, data.length - ip);
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+
+		// the quote holds at least the first 8 bytes of the datagram
+		if (l4 >= 0 && FlowTable.hasPorts(quoted.protocol())
+				&& data.length - l4 >= 4) {
+			quotedSourcePort = FrameLayout.sourcePort(b, l4);
+			quotedDestPort = FrameLayout.destPort(b, l4);
+		}
 	}
 
 	public String toString() {
@@ -42,6 +79,23 @@ public class InternetControlMessageProtocolPacket {
 		sb.append("ICMP: Type = " + type() + " (" + getType(type()) + ")\n");
 		sb.append("ICMP: Code = " + code() + "\n");
 		sb.append("ICMP: Checksum = 0x" + String.format("%02x\n", checksum()));
+
+		if (type() == FrameLayout.ICMP_UNREACHABLE) {
+			sb.append("ICMP: Reason = " + unreachableLabel(code()) + "\n");
+		}
+
+		if (fragmentationNeeded()) {
+			sb.append("ICMP: Next-hop MTU = " + mtu() + "\n");
+		}
+
+		if (quoted != null) {
+			sb.append("ICMP: Original datagram = " + quoted.protocolLabel() + " "
+				+ endpoint(quoted.sourceIP(), quotedSourcePort) + " -> "
+				+ endpoint(quoted.destIP(), quotedDestPort) + ", length "
+				+ quoted.totalLength() + ", id " + quoted.identification()
+				+ ", ttl " + quoted.ttl() + "\n");
+		}
+
 		sb.append("ICMP:                        \n");
 
 		return sb.toString();
@@ -59,6 +113,66 @@ public class InternetControlMessageProtocolPacket {
 		return checksum;
 	}
 
+	public boolean fragmentationNeeded() {
+		return type == FrameLayout.ICMP_UNREACHABLE
+			&& code == FrameLayout.ICMP_FRAGMENTATION_NEEDED;
+	}
+
+	public int mtu() {
+		return mtu;
+	}
+
+	/**
+	 * The datagram an error message is about, or null.
+	 */
+	public InternetProtocolV4Packet quoted() {
+		return quoted;
+	}
+
+	private static String endpoint(String ip, int port) {
+		return port < 0 ? ip : ip + ":" + port;
+	}
+
+	static public String unreachableLabel(int code) {
+		switch (code) {
+			case 0:
+				return "Network unreachable";
+
+			case 1:
+				return "Host unreachable";
+
+			case 2:
+				return "Protocol unreachable";
+
+			case 3:
+				return "Port unreachable";
+
+			case FrameLayout.ICMP_FRAGMENTATION_NEEDED:
+				return "Fragmentation needed";
+
+			case 5:
+				return "Source route failed";
+
+			case 6:
+				return "Network unknown";
+
+			case 7:
+				return "Host unknown";
+
+			case 9:
+				return "Network prohibited";
+
+			case 10:
+				return "Host prohibited";
+
+			case 13:
+				return "Administratively prohibited";
+
+			default:
+				return "Other";
+		}
+	}
+
 	static public String getType(int type) {
 		switch (type) {
 			case 0:
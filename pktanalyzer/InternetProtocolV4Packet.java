@@ -10,6 +10,7 @@
 
 package pktanalyzer;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -63,53 +64,84 @@ public class InternetProtocolV4Packet {
 	// dest ip
 	private String destIp = "";
 
-	// options
-	private byte[] options;
+	// options, left in the buffer the header was parsed from
+	private ByteBuffer data;
+	private int optionsOffset;
+	private int optionsLength;
 
 	// payload
 	private byte[] payload;
 
 	InternetProtocolV4Packet(byte[] data) throws Exception {
-		version = (data[0] & 0xff) >> 4; // ok
-		ihl     = (data[0] & 0xff & 0b00001111) << 2;
+		this(ByteBuffer.wrap(data), 0, data.length);
+	}
+
+	/**
+	 * Parses a header in place, e.g. the datagram quoted inside an ICMP
+	 * error. Only length bytes from offset are read: a payload that the
+	 * header says is longer is filled out with zeros, as for a truncated
+	 * frame.
+	 */
+	InternetProtocolV4Packet(ByteBuffer data, int offset, int length)
+			throws Exception {
+		if (length < 20) {
+			throw new IllegalArgumentException("IPv4 header too short: "
+				+ length + " bytes");
+		}
+
+		int b0 = data.get(offset) & 0xff;
+		int b1 = data.get(offset + 1) & 0xff;
+		int b6 = data.get(offset + 6) & 0xff;
 
-		dscp = (data[1] & 0xff) >> 2; // ok
-		ecn  = data[1] & 0xff & 0b00000011; // ok
+		version = b0 >> 4; // ok
+		ihl     = (b0 & 0b00001111) << 2;
 
-		totalLength    = (data[2] & 0xff) << 8 | data[3] & 0xff; // ok
-		identification = (data[4] & 0xff) << 8 | data[5] & 0xff; // ok
+		dscp = b1 >> 2; // ok
+		ecn  = b1 & 0b00000011; // ok
+
+		totalLength    = FrameLayout.u16(data, offset + 2); // ok
+		identification = FrameLayout.u16(data, offset + 4); // ok
 		
-		flags          = (data[6] & 0xff & 0b01100000) >> 5;
-		flagOffset     = (data[6] & 0xff & 0b00011111) << 5 | data[7] & 0xff;
+		flags          = (b6 & 0b01100000) >> 5;
+		flagOffset     = (b6 & 0b00011111) << 5 | data.get(offset + 7) & 0xff;
 		
-		ttl      = data[8] & 0xff;
-		protocol = data[9] & 0xff;
+		ttl      = data.get(offset + 8) & 0xff;
+		protocol = data.get(offset + 9) & 0xff;
 
-		handleProtocolLabel(protocol);
+		protocolLabel = protocolLabel(protocol);
 
-		headerChecksum = (data[10] & 0xff) << 8 | data[11] & 0xff;
+		headerChecksum = FrameLayout.u16(data, offset + 10);
 
 		// parse src ip
-		srcIp += (data[12] & 0xff) + ".";
-		srcIp += (data[13] & 0xff) + ".";
-		srcIp += (data[14] & 0xff) + ".";
-		srcIp += data[15] & 0xff;
+		srcIp = FrameLayout.formatIP(FrameLayout.u32(data, offset + 12));
 
 		// parse dest ip
-		destIp += (data[16] & 0xff) + ".";
-		destIp += (data[17] & 0xff) + ".";
-		destIp += (data[18] & 0xff) + ".";
-		destIp += data[19] & 0xff;
+		destIp = FrameLayout.formatIP(FrameLayout.u32(data, offset + 16));
+
+		int header = 20;
 
 		// 0 - 15 ie 0-F
 		if ((ihl >> 2) > 5 && (ihl >> 2) < 16) {
 			// options are present
-			options = Arrays.copyOfRange(data, 20, ihl);
-			payload = Arrays.copyOfRange(data, ihl, totalLength());
-		} else {
-			// options are not present
-			payload = Arrays.copyOfRange(data, 20, totalLength());
+			if (length < ihl) {
+				throw new IllegalArgumentException("IPv4 options cut short: "
+					+ length + " of " + ihl + " bytes");
+			}
+
+			this.data = data;
+			optionsOffset = offset + 20;
+			optionsLength = ihl - 20;
+			header = ihl;
 		}
+
+		if (totalLength < header) {
+			throw new IllegalArgumentException("IPv4 total length "
+				+ totalLength + " shorter than the header");
+		}
+
+		payload = new byte[totalLength - header];
+		data.get(offset + header, payload, 0,
+			Math.min(payload.length, length - header));
 	}
 
 	public byte[] payload() {
@@ -120,9 +152,15 @@ public class InternetProtocolV4Packet {
 		}
 	}
 
+	/**
+	 * A copy of the options, read from the buffer the header was parsed
+	 * from, which must not have been reused since.
+	 */
 	public byte[] options() {
-		if (options != null) {
-			return Arrays.copyOfRange(options, 0, options.length);
+		if (data != null) {
+			byte[] options = new byte[optionsLength];
+			data.get(optionsOffset, options);
+			return options;
 		} else {
 			return null;
 		}
@@ -212,6 +250,20 @@ public class InternetProtocolV4Packet {
 			sb.append("IP: No options\n");
 		} else {
 			sb.append("IP: Options present\n");
+
+			if (data != null) {
+				Ipv4Options o = new Ipv4Options().reset(data, optionsOffset,
+					optionsOffset + optionsLength);
+
+				while (o.next()) {
+					sb.append("IP:       " + Ipv4Options.label(o.type()) + " ("
+						+ o.type() + "), length = " + o.length() + "\n");
+				}
+
+				if (o.malformed()) {
+					sb.append("IP:       Malformed option\n");
+				}
+			}
 		}
 
 		sb.append("IP:\n");
@@ -243,45 +295,41 @@ public class InternetProtocolV4Packet {
 		return protocolLabel;
 	}
 
-	private void handleProtocolLabel(int protocol) {
+	/**
+	 * Label of an IPv4 protocol number.
+	 */
+	static String protocolLabel(int protocol) {
 		switch (protocol) {
 			case 17:
 				// User Datagram Protocol
-				protocolLabel = "UDP";
-				break;
+				return "UDP";
 
 			case 1:
 				// Internet Control Message Protocol
-				protocolLabel = "ICMP";
-				break;
+				return "ICMP";
 
 			case 2:
 				// Internet Group Management Protocol	
-				protocolLabel = "IGMP";
-				break;
+				return "IGMP";
 
 			case 6:
 				// Transmission Control Protocol	
-				protocolLabel = "TCP";
-				break;
+				return "TCP";
 
 			case 41:
 				// IPv6 encapsulation
-				protocolLabel = "ENCAP";
-				break;
+				return "ENCAP";
 
 			case 89:
 				// Open Shortest Path First
-				protocolLabel = "OSPF";
-				break;
+				return "OSPF";
 
 			case 132:
 				// Stream Control Transmission Protocol
-				protocolLabel = "SCTP";
-				break;
+				return "SCTP";
 
 			default:
-				protocolLabel = "UNKNOWN";
+				return "UNKNOWN";
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,299 @@
+/*
+ * IpfixEncoder.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Packs flow records into IPFIX (version 10) or NetFlow v9 messages and
+ * sends them to a collector over a DatagramChannel.
+ *
+ * Every message carries one data set of as many records as fit in a
+ * datagram, preceded by the template set in the first message and every
+ * TEMPLATE_REFRESH messages after it, since a collector listening on UDP
+ * may have missed or dropped the earlier ones. Records are written field
+ * by field straight into a direct buffer taken from a Pool shared by all
+ * encoders, so no object is made per record or per message.
+ *
+ * Each encoder is its own observation domain (v9: source ID) with its own
+ * sequence numbers, so several can send through one channel.
+ *
+ * Reference: https://www.rfc-editor.org/rfc/rfc7011
+ *            https://www.rfc-editor.org/rfc/rfc3954
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class IpfixEncoder {
+	// versions
+	static final int NETFLOW_V9 = 9;
+	static final int IPFIX = 10;
+
+	// datagram size, kept below a 1500-byte MTU
+	static final int MAX_MESSAGE = 1400;
+
+	// messages between two sendings of the template
+	static final int TEMPLATE_REFRESH = 64;
+
+	static final int TEMPLATE_ID = 256;
+
+	// flow end reasons (IPFIX information element 136)
+	static final int IDLE_TIMEOUT = 1;
+	static final int ACTIVE_TIMEOUT = 2;
+	static final int END_OF_FLOW = 3;
+	static final int FORCED_END = 4;
+
+	// template fields as element ID, length pairs
+	private static final int[] IPFIX_FIELDS = {
+		8, 4,     // sourceIPv4Address
+		12, 4,    // destinationIPv4Address
+		7, 2,     // sourceTransportPort
+		11, 2,    // destinationTransportPort
+		4, 1,     // protocolIdentifier
+		6, 1,     // tcpControlBits, reduced size
+		2, 8,     // packetDeltaCount
+		1, 8,     // octetDeltaCount
+		152, 8,   // flowStartMilliseconds
+		153, 8,   // flowEndMilliseconds
+		136, 1,   // flowEndReason
+	};
+
+	private static final int[] V9_FIELDS = {
+		8, 4,     // IPV4_SRC_ADDR
+		12, 4,    // IPV4_DST_ADDR
+		7, 2,     // L4_SRC_PORT
+		11, 2,    // L4_DST_PORT
+		4, 1,     // PROTOCOL
+		6, 1,     // TCP_FLAGS
+		2, 8,     // IN_PKTS
+		1, 8,     // IN_BYTES
+		22, 4,    // FIRST_SWITCHED
+		21, 4,    // LAST_SWITCHED
+	};
+
+	/**
+	 * Direct buffers of MAX_MESSAGE bytes, handed out to encoders while
+	 * they fill a message.
+	 */
+	static class Pool {
+		private final ArrayBlockingQueue<ByteBuffer> free;
+
+		Pool(int buffers) {
+			free = new ArrayBlockingQueue<>(buffers);
+
+			for (int i = 0; i < buffers; i++) {
+				free.add(ByteBuffer.allocateDirect(MAX_MESSAGE));
+			}
+		}
+
+		ByteBuffer take() throws InterruptedException {
+			ByteBuffer b = free.take();
+
+			b.clear();
+			return b;
+		}
+
+		void release(ByteBuffer b) {
+			free.add(b);
+		}
+	}
+
+	private final int version;
+	private final DatagramChannel channel;
+	private final SocketAddress collector;
+	private final Pool pool;
+	private final int domain;
+	private final int[] fields;
+	private final int recordLength;
+
+	// v9 times are counted from here, in milliseconds since the epoch
+	private long boot = -1;
+
+	// message being filled, null if none
+	private ByteBuffer message;
+	private int dataSet;
+	private int records;
+	private long exportMillis;
+
+	// counters; IPFIX sequence numbers count data records, v9 messages
+	private long recordsSent;
+	private long messagesSent;
+	private long bytesSent;
+
+	IpfixEncoder(int version, DatagramChannel channel,
+			SocketAddress collector, Pool pool, int domain) {
+		if (version != IPFIX && version != NETFLOW_V9) {
+			throw new IllegalArgumentException("Export version must be 9 or 10");
+		}
+
+		this.version = version;
+		this.channel = channel;
+		this.collector = collector;
+		this.pool = pool;
+		this.domain = domain;
+		this.fields = version == IPFIX ? IPFIX_FIELDS : V9_FIELDS;
+
+		int n = 0;
+
+		for (int f = 1; f < fields.length; f += 2) {
+			n += fields[f];
+		}
+
+		this.recordLength = n;
+	}
+
+	/**
+	 * Sets the time v9 uptimes are counted from, usually that of the first
+	 * frame. Without it they count from the first record's start.
+	 */
+	public void boot(long millis) {
+		if (boot < 0) {
+			boot = millis;
+		}
+	}
+
+	/**
+	 * Adds one flow record, sending the message first if it is full.
+	 * Times are in milliseconds since the epoch.
+	 */
+	public void record(int source, int dest, int sourcePort, int destPort,
+			int protocol, int tcpFlags, long packets, long octets,
+			long startMillis, long endMillis, int reason)
+			throws IOException, InterruptedException {
+		if (message != null && message.remaining() < recordLength + 4) {
+			flush();
+		}
+
+		if (message == null) {
+			begin();
+		}
+
+		if (boot < 0) {
+			boot = startMillis;
+		}
+
+		ByteBuffer b = message;
+
+		b.putInt(source);
+		b.putInt(dest);
+		b.putShort((short) sourcePort);
+		b.putShort((short) destPort);
+		b.put((byte) protocol);
+		b.put((byte) tcpFlags);
+		b.putLong(packets);
+		b.putLong(octets);
+
+		if (version == IPFIX) {
+			b.putLong(startMillis);
+			b.putLong(endMillis);
+			b.put((byte) reason);
+		} else {
+			b.putInt((int) Math.max(0, startMillis - boot));
+			b.putInt((int) Math.max(0, endMillis - boot));
+		}
+
+		records++;
+		exportMillis = Math.max(exportMillis, endMillis);
+	}
+
+	/**
+	 * Starts a message in a buffer from the pool: header, the template if
+	 * it is due, and the data set header.
+	 */
+	private void begin() throws InterruptedException {
+		ByteBuffer b = pool.take();
+
+		// header, filled in by flush()
+		b.position(version == IPFIX ? 16 : 20);
+
+		if (messagesSent % TEMPLATE_REFRESH == 0) {
+			b.putShort((short) (version == IPFIX ? 2 : 0));
+			b.putShort((short) (8 + fields.length * 2));
+			b.putShort((short) TEMPLATE_ID);
+			b.putShort((short) (fields.length / 2));
+
+			for (int f : fields) {
+				b.putShort((short) f);
+			}
+		}
+
+		dataSet = b.position();
+		b.putShort((short) TEMPLATE_ID);
+		b.putShort((short) 0);
+
+		message = b;
+		records = 0;
+	}
+
+	/**
+	 * Sends the message being filled, if any, and gives its buffer back.
+	 */
+	public void flush() throws IOException {
+		if (message == null) {
+			return;
+		}
+
+		ByteBuffer b = message;
+		boolean template = dataSet > (version == IPFIX ? 16 : 20);
+
+		// v9 flowsets are padded to a 4-byte boundary
+		if (version == NETFLOW_V9) {
+			while ((b.position() & 3) != 0) {
+				b.put((byte) 0);
+			}
+		}
+
+		b.putShort(dataSet + 2, (short) (b.position() - dataSet));
+
+		if (version == IPFIX) {
+			b.putShort(0, (short) IPFIX);
+			b.putShort(2, (short) b.position());
+			b.putInt(4, (int) (exportMillis / 1000));
+			b.putInt(8, (int) recordsSent);
+			b.putInt(12, domain);
+		} else {
+			b.putShort(0, (short) NETFLOW_V9);
+			b.putShort(2, (short) (records + (template ? 1 : 0)));
+			b.putInt(4, (int) (exportMillis - Math.max(boot, 0)));
+			b.putInt(8, (int) (exportMillis / 1000));
+			b.putInt(12, (int) messagesSent);
+			b.putInt(16, domain);
+		}
+
+		b.flip();
+
+		try {
+			bytesSent += channel.send(b, collector);
+		} finally {
+			message = null;
+			pool.release(b);
+		}
+
+		recordsSent += records;
+		messagesSent++;
+	}
+
+	public long recordsSent() {
+		return recordsSent;
+	}
+
+	public long messagesSent() {
+		return messagesSent;
+	}
+
+	public long bytesSent() {
+		return bytesSent;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Ipv4Options.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the options of an IPv4 header in place.
+ *
+ * The walk itself is TlvOptions'; this adds the IPv4 option types and
+ * the parts of the type byte.
+ *
+ * The type byte holds the copied flag, the option class and the option
+ * number; type() is the whole byte, which is how the options are usually
+ * named (Router Alert is 148, Record Route is 7).
+ *
+ * Reference: https://www.iana.org/assignments/ip-parameters
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class Ipv4Options extends TlvOptions {
+	// option types, besides END and NOP
+	static final int RECORD_ROUTE = 7;
+	static final int TIMESTAMP = 68;
+	static final int SECURITY = 130;
+	static final int LOOSE_ROUTE = 131;
+	static final int STREAM_ID = 136;
+	static final int STRICT_ROUTE = 137;
+	static final int ROUTER_ALERT = 148;
+
+	/**
+	 * Starts a walk over the options from offset from up to to.
+	 */
+	@Override
+	public Ipv4Options reset(ByteBuffer b, int from, int to) {
+		super.reset(b, from, to);
+		return this;
+	}
+
+	/**
+	 * Starts a walk over the options of the IPv4 header at ip, stopping at
+	 * frameEnd if the frame was cut short.
+	 */
+	public Ipv4Options header(ByteBuffer b, int ip, int frameEnd) {
+		return reset(b, ip + FrameLayout.IPV4_HEADER,
+			Math.min(ip + FrameLayout.ihl(b, ip), frameEnd));
+	}
+
+	public int type() {
+		return code();
+	}
+
+	/**
+	 * Whether routers copy the option into every fragment.
+	 */
+	public boolean copied() {
+		return (type() & 0x80) != 0;
+	}
+
+	public int optionClass() {
+		return (type() >> 5) & 0x3;
+	}
+
+	public int number() {
+		return type() & 0x1f;
+	}
+
+	/**
+	 * Name of an option type.
+	 */
+	static String label(int type) {
+		switch (type) {
+			case END:
+				return "EOL";
+
+			case NOP:
+				return "NOP";
+
+			case RECORD_ROUTE:
+				return "RECORD_ROUTE";
+
+			case TIMESTAMP:
+				return "TIMESTAMP";
+
+			case SECURITY:
+				return "SECURITY";
+
+			case LOOSE_ROUTE:
+				return "LOOSE_SOURCE_ROUTE";
+
+			case STREAM_ID:
+				return "STREAM_ID";
+
+			case STRICT_ROUTE:
+				return "STRICT_SOURCE_ROUTE";
+
+			case ROUTER_ALERT:
+				return "ROUTER_ALERT";
+
+			default:
+				return "UNKNOWN";
+		}
+	}
+}
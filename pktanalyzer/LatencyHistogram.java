@@ -0,0 +1,167 @@
+/*
+ * LatencyHistogram.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+/**
+ * Log-linear histogram of durations in nanoseconds.
+ *
+ * Each power of two is split into 16 equal buckets, so any value is
+ * recorded within 1/16 (about 6%) of itself, from 1 ns up to Long.MAX_VALUE,
+ * in a fixed array of 960 counters. Recording is a few shifts and an
+ * increment. Not thread safe; histograms kept per thread are merged.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class LatencyHistogram {
+	// linear buckets per power of two, as a shift
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+
+	// up to bucket(Long.MAX_VALUE)
+	private final long[] counts = new long[(64 - SUB_BITS) * SUB];
+
+	private long count;
+	private long sum;
+	private long min = Long.MAX_VALUE;
+	private long max;
+
+	public void record(long nanos) {
+		long v = Math.max(nanos, 0);
+
+		counts[bucket(v)]++;
+		count++;
+		sum += v;
+		min = Math.min(min, v);
+		max = Math.max(max, v);
+	}
+
+	static int bucket(long v) {
+		if (v < SUB) {
+			return (int) v;
+		}
+
+		int k = 63 - Long.numberOfLeadingZeros(v);
+
+		return (k - SUB_BITS + 1) * SUB + (int) (v >>> (k - SUB_BITS)) - SUB;
+	}
+
+	/**
+	 * Smallest value that falls in bucket i.
+	 */
+	static long lowest(int i) {
+		if (i < SUB) {
+			return i;
+		}
+
+		int k = i / SUB + SUB_BITS - 1;
+
+		return (long) (SUB + i % SUB) << (k - SUB_BITS);
+	}
+
+	public void merge(LatencyHistogram h) {
+		for (int i = 0; i < counts.length; i++) {
+			counts[i] += h.counts[i];
+		}
+
+		count += h.count;
+		sum += h.sum;
+		min = Math.min(min, h.min);
+		max = Math.max(max, h.max);
+	}
+
+	public long count() {
+		return count;
+	}
+
+	public long min() {
+		return count == 0 ? 0 : min;
+	}
+
+	public long max() {
+		return max;
+	}
+
+	public long mean() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	/**
+	 * Value at or below which p percent of the recorded values fall, to
+	 * the bucket's resolution.
+	 */
+	public long percentile(double p) {
+		long rank = (long) Math.ceil(count * p / 100);
+		long seen = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+
+			if (seen >= Math.max(rank, 1)) {
+				return Math.min(i + 1 < counts.length ? lowest(i + 1) - 1 : max,
+					max);
+			}
+		}
+
+		return max;
+	}
+
+	/**
+	 * Summary line and one line per power of two that has values, each
+	 * line starting with prefix.
+	 */
+	public String format(String prefix) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(prefix + "count = " + count + ", min = " + duration(min())
+			+ ", mean = " + duration(mean()) + ", p50 = "
+			+ duration(percentile(50)) + ", p90 = " + duration(percentile(90))
+			+ ", p99 = " + duration(percentile(99)) + ", max = "
+			+ duration(max) + "\n");
+
+		// fold the buckets into powers of two for display
+		long[] powers = new long[64];
+		long peak = 0;
+
+		for (int i = 0; i < counts.length; i++) {
+			int k = i == 0 ? 0 : 63 - Long.numberOfLeadingZeros(lowest(i));
+
+			powers[k] += counts[i];
+			peak = Math.max(peak, powers[k]);
+		}
+
+		for (int k = 0; k < 64; k++) {
+			if (powers[k] == 0) {
+				continue;
+			}
+
+			int bar = (int) (40 * powers[k] / peak);
+
+			sb.append(prefix + String.format("%10s - %-10s %10d %s\n",
+				duration(k == 0 ? 0 : 1L << k), duration((2L << k) - 1),
+				powers[k], "#".repeat(Math.max(bar, 1))));
+		}
+
+		return sb.toString();
+	}
+
+	static String duration(long nanos) {
+		if (nanos < 1_000) {
+			return nanos + " ns";
+		} else if (nanos < 1_000_000) {
+			return String.format("%.1f us", nanos / 1e3);
+		} else if (nanos < 1_000_000_000) {
+			return String.format("%.1f ms", nanos / 1e6);
+		}
+
+		return String.format("%.2f s", nanos / 1e9);
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * LongIndexMap.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Maps long keys to dense int indexes 0, 1, 2, ... in insertion order.
+ * Callers keep their values in primitive arrays indexed by the result, so
+ * nothing is boxed and nothing is allocated per key.
+ *
+ * Open addressing with linear probing; the table doubles at half full.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class LongIndexMap {
+	// slot -> index + 1, 0 meaning empty
+	private int[] slots;
+
+	// index -> key
+	private long[] keys;
+
+	private int size;
+
+	LongIndexMap(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(expected, 8) * 2 - 1) << 1;
+		slots = new int[capacity];
+		keys = new long[Math.max(expected, 8)];
+	}
+
+	/**
+	 * Index of the key, or -1 if it has not been added.
+	 */
+	public int indexOf(long key) {
+		int mask = slots.length - 1;
+
+		for (int s = hash(key) & mask; ; s = (s + 1) & mask) {
+			int index = slots[s] - 1;
+
+			if (index < 0) {
+				return -1;
+			}
+
+			if (keys[index] == key) {
+				return index;
+			}
+		}
+	}
+
+	/**
+	 * Index of the key, adding it if not present. New keys get index
+	 * size() - 1 after the call.
+	 */
+	public int add(long key) {
+		int mask = slots.length - 1;
+		int s = hash(key) & mask;
+
+		for (; ; s = (s + 1) & mask) {
+			int index = slots[s] - 1;
+
+			if (index < 0) {
+				break;
+			}
+
+			if (keys[index] == key) {
+				return index;
+			}
+		}
+
+		if (size == keys.length) {
+			long[] grown = new long[size << 1];
+			System.arraycopy(keys, 0, grown, 0, size);
+			keys = grown;
+		}
+
+		keys[size] = key;
+		slots[s] = ++size;
+
+		if (size << 1 > slots.length) {
+			rehash();
+		}
+
+		return size - 1;
+	}
+
+	public long keyAt(int index) {
+		return keys[index];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void rehash() {
+		int[] grown = new int[slots.length << 1];
+		int mask = grown.length - 1;
+
+		for (int index = 0; index < size; index++) {
+			int s = hash(keys[index]) & mask;
+
+			while (grown[s] != 0) {
+				s = (s + 1) & mask;
+			}
+
+			grown[s] = index + 1;
+		}
+
+		slots = grown;
+	}
+
+	static int hash(long key) {
+		// murmur3 finalizer
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		key *= 0xc4ceb9fe1a85ec53L;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	/**
+	 * A key for the name in the buffer at offset, ignoring ASCII case:
+	 * FNV-1a over its bytes. Lets names such as host names be looked up
+	 * without making a String for each.
+	 */
+	static long key(ByteBuffer b, int offset, int length) {
+		long key = 0xcbf29ce484222325L;
+
+		for (int i = 0; i < length; i++) {
+			key = (key ^ (b.get(offset + i) | 0x20)) * 0x100000001b3L;
+		}
+
+		return key;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * PacketColumns.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Column store of packet header fields.
+ *
+ * Each field is kept in its own primitive array, cut into row groups of
+ * ROW_GROUP_SIZE rows so that queries can hand whole groups to different
+ * cores. Fields are named after the parser accessors (ttl, destPort, ...).
+ * Values are unsigned; a field missing from a packet (ports of an ICMP
+ * packet, say) is stored as 0.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class PacketColumns {
+	static final int ROW_GROUP_BITS = 16;
+	static final int ROW_GROUP_SIZE = 1 << ROW_GROUP_BITS;
+
+	// column indexes. timestamp is the only long column and is kept apart
+	static final int TIMESTAMP = -1;
+	static final int FRAME_LENGTH = 0;
+	static final int ETHERTYPE_VALUE = 1;
+	static final int DSCP = 2;
+	static final int TOTAL_LENGTH = 3;
+	static final int IDENTIFICATION = 4;
+	static final int TTL = 5;
+	static final int PROTOCOL = 6;
+	static final int SOURCE_IP = 7;
+	static final int DEST_IP = 8;
+	static final int SOURCE_PORT = 9;
+	static final int DEST_PORT = 10;
+	static final int FLAGS = 11;
+	static final int WINDOW_SIZE = 12;
+
+	static final String[] FIELDS = {
+		"frameLength", "ethertypeValue", "dscp", "totalLength",
+		"identification", "ttl", "protocol", "sourceIP", "destIP",
+		"sourcePort", "destPort", "flags", "windowSize"
+	};
+
+	/**
+	 * One row group: a slice of every column.
+	 */
+	static class RowGroup {
+		final long[] timestamp = new long[ROW_GROUP_SIZE];
+		final int[][] columns = new int[FIELDS.length][ROW_GROUP_SIZE];
+		int size;
+	}
+
+	private ArrayList<RowGroup> groups = new ArrayList<>();
+	private long rows;
+
+	/**
+	 * Column index of a field name, TIMESTAMP for "timestamp", or -2 if
+	 * there is no such field.
+	 */
+	static int fieldIndex(String name) {
+		if (name.equals("timestamp")) {
+			return TIMESTAMP;
+		}
+
+		for (int i = 0; i < FIELDS.length; i++) {
+			if (FIELDS[i].equals(name)) {
+				return i;
+			}
+		}
+
+		return -2;
+	}
+
+	static String fieldName(int column) {
+		return column == TIMESTAMP ? "timestamp" : FIELDS[column];
+	}
+
+	/**
+	 * True for columns whose values always fit in 16 bits.
+	 */
+	static boolean narrow(int column) {
+		return column >= 0 && column != SOURCE_IP && column != DEST_IP;
+	}
+
+	/**
+	 * Appends one frame, pulling the fields from their raw offsets.
+	 */
+	public void append(ByteBuffer b, int frame, int length, long timestamp) {
+		RowGroup g = groups.isEmpty() ? null : groups.get(groups.size() - 1);
+
+		if (g == null || g.size == ROW_GROUP_SIZE) {
+			g = new RowGroup();
+			groups.add(g);
+		}
+
+		int row = g.size++;
+		int[][] c = g.columns;
+
+		g.timestamp[row] = timestamp;
+		c[FRAME_LENGTH][row] = length;
+		c[ETHERTYPE_VALUE][row] = Math.max(0,
+			FrameLayout.ethertypeValue(b, frame, length));
+
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip >= 0) {
+			int protocol = FrameLayout.protocol(b, ip);
+
+			c[DSCP][row] = FrameLayout.dscp(b, ip);
+			c[TOTAL_LENGTH][row] = FrameLayout.totalLength(b, ip);
+			c[IDENTIFICATION][row] = FrameLayout.identification(b, ip);
+			c[TTL][row] = FrameLayout.ttl(b, ip);
+			c[PROTOCOL][row] = protocol;
+			c[SOURCE_IP][row] = FrameLayout.sourceIP(b, ip);
+			c[DEST_IP][row] = FrameLayout.destIP(b, ip);
+
+			int l4 = FrameLayout.transportOffset(b, ip);
+			int end = frame + length;
+
+			if (l4 >= 0 && (protocol == FrameLayout.PROTOCOL_TCP
+					|| protocol == FrameLayout.PROTOCOL_UDP)
+					&& end - l4 >= FrameLayout.UDP_HEADER) {
+				c[SOURCE_PORT][row] = FrameLayout.sourcePort(b, l4);
+				c[DEST_PORT][row] = FrameLayout.destPort(b, l4);
+
+				if (protocol == FrameLayout.PROTOCOL_TCP
+						&& end - l4 >= FrameLayout.TCP_HEADER) {
+					c[FLAGS][row] = FrameLayout.u8(b, l4 + 13);
+					c[WINDOW_SIZE][row] = FrameLayout.u16(b, l4 + 14);
+				}
+			}
+		}
+
+		rows++;
+	}
+
+	/**
+	 * Appends every frame of the capture file.
+	 */
+	public void load(Path path) throws IOException {
+		try (CaptureFile cf = new CaptureFile(path)) {
+			while (cf.next()) {
+				append(cf.buffer(), cf.frameOffset(), cf.frameLength(),
+					cf.timestamp());
+			}
+		}
+	}
+
+	public int groupCount() {
+		return groups.size();
+	}
+
+	RowGroup group(int index) {
+		return groups.get(index);
+	}
+
+	public long rows() {
+		return rows;
+	}
+}
@@ -0,0 +1,342 @@
+/*
+ * PacketDeduplicator.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Drops the copies of a frame captured on more than one tap, before they
+ * are decoded.
+ *
+ * Each frame is reduced to a 64-bit hash of the fields a copy has in
+ * common with the original: for IPv4 the addresses, identification,
+ * protocol, length and fragment offset, then the transport header and a
+ * prefix of the payload. The TTL and header checksum change at every hop
+ * and DSCP/ECN may be rewritten on the way, so they are left out, as is
+ * the Ethernet header. Frames that are not IPv4 are hashed from their
+ * network layer on.
+ *
+ * Hashes are looked up in a pair of Bloom filters, one for the current
+ * window and one for the window before it, and added to the current one.
+ * When the window has passed, or the current filter holds as many frames
+ * as it was sized for, the older filter is cleared and the two swap; a copy
+ * is therefore caught if it arrives within one window of the original,
+ * unless the traffic outgrew the filters. Both filters are sized at the
+ * start from the capacity and false-positive rate asked for, and never
+ * grow, so the memory used is fixed and the chance of a unique frame being
+ * dropped as a copy stays below that rate.
+ *
+ * Reference: https://en.wikipedia.org/wiki/Bloom_filter
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class PacketDeduplicator {
+	// payload bytes hashed after the transport header
+	static final int PREFIX = 64;
+
+	// bytes hashed of frames that are not IPv4
+	static final int OTHER_PREFIX = 128;
+
+	// bits per filter, a power of two, and hashes per frame
+	private final int bits;
+	private final int hashes;
+	private final int capacity;
+	private final long window;
+
+	// current and previous window
+	private long[] current;
+	private long[] previous;
+	private long start;
+	private int inserted;
+
+	// counters
+	private long seen;
+	private long duplicates;
+	private long rotations;
+	private long early;
+
+	/**
+	 * Sizes the filters for capacity frames per window, with at most rate
+	 * of unique frames taken for copies.
+	 */
+	PacketDeduplicator(long windowNanos, int capacity, double rate) {
+		if (capacity < 1 || rate <= 0 || rate >= 1) {
+			throw new IllegalArgumentException("Dedup capacity must be >= 1"
+				+ " and the false-positive rate between 0 and 1");
+		}
+
+		// a frame is checked against two filters, each gets half the rate
+		double m = -capacity * Math.log(rate / 2) / (Math.log(2) * Math.log(2));
+
+		if (m > 1 << 30) {
+			throw new IllegalArgumentException("Dedup filter too large: "
+				+ (long) m + " bits");
+		}
+
+		this.bits = Math.max(64,
+			Integer.highestOneBit((int) Math.ceil(m) - 1) << 1);
+		this.hashes = (int) Math.max(1, Math.round((double) bits / capacity
+			* Math.log(2)));
+		this.capacity = capacity;
+		this.window = windowNanos;
+
+		current = new long[bits >>> 6];
+		previous = new long[bits >>> 6];
+	}
+
+	/**
+	 * Whether the frame is a copy of one seen within the window. A frame
+	 * that is not is remembered.
+	 */
+	public boolean duplicate(ByteBuffer b, int frame, int length,
+			long timestamp) {
+		if (seen++ == 0) {
+			start = timestamp;
+		}
+
+		// taps are not in step, so time may also go back a little
+		if (timestamp - start >= window || start - timestamp >= window) {
+			rotate(timestamp);
+		} else if (inserted >= capacity) {
+			early++;
+			rotate(timestamp);
+		}
+
+		long h = hash(b, frame, length);
+		int h1 = (int) h;
+		int h2 = (int) (h >>> 32) | 1;
+		int mask = bits - 1;
+		boolean inCurrent = true;
+		boolean inPrevious = true;
+
+		// double hashing: the i-th bit is h1 + i * h2
+		for (int i = 0, x = h1; i < hashes; i++, x += h2) {
+			int bit = x & mask;
+			long word = 1L << bit;
+
+			inCurrent &= (current[bit >>> 6] & word) != 0;
+			inPrevious &= (previous[bit >>> 6] & word) != 0;
+		}
+
+		if (inCurrent || inPrevious) {
+			duplicates++;
+			return true;
+		}
+
+		for (int i = 0, x = h1; i < hashes; i++, x += h2) {
+			int bit = x & mask;
+
+			current[bit >>> 6] |= 1L << bit;
+		}
+
+		inserted++;
+		return false;
+	}
+
+	private void rotate(long timestamp) {
+		long[] t = previous;
+
+		previous = current;
+		current = t;
+		Arrays.fill(current, 0);
+		start = timestamp;
+		inserted = 0;
+		rotations++;
+	}
+
+	/**
+	 * Hash of the fields a copy of the frame shares with the original.
+	 */
+	static long hash(ByteBuffer b, int frame, int length) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0) {
+			int network = FrameLayout.networkOffset(b, frame, length);
+
+			if (network < 0) {
+				network = frame;
+			}
+
+			int end = Math.min(frame + length, network + OTHER_PREFIX);
+
+			return finish(bytes(b, network, end, length));
+		}
+
+		int end = FrameLayout.ipv4End(b, ip, frame + length);
+		long h = FrameLayout.u32(b, ip + 12) & 0xffffffffL;
+
+		// addresses, then length and identification, flags and fragment
+		// offset, and protocol, skipping TTL and checksum
+		h = mix(h, (long) FrameLayout.u32(b, ip + 16) << 32
+			| FrameLayout.u32(b, ip + 4) & 0xffffffffL);
+		h = mix(h, (long) FrameLayout.totalLength(b, ip) << 8
+			| FrameLayout.protocol(b, ip));
+
+		// options, transport header and payload prefix
+		int from = ip + FrameLayout.IPV4_HEADER;
+		int l4 = FrameLayout.transportOffset(b, ip);
+		int header = 0;
+
+		if (l4 >= 0 && FrameLayout.protocol(b, ip) == FrameLayout.PROTOCOL_TCP
+				&& end - l4 >= FrameLayout.TCP_HEADER) {
+			header = FrameLayout.dataOffset(b, l4);
+		} else if (l4 >= 0) {
+			header = FrameLayout.UDP_HEADER;
+		}
+
+		int to = Math.min(end, ip + FrameLayout.ihl(b, ip) + header + PREFIX);
+
+		return finish(mix(h, bytes(b, from, to, 0)));
+	}
+
+	/**
+	 * Hash of b[from] up to b[to], eight bytes at a time.
+	 */
+	private static long bytes(ByteBuffer b, int from, int to, long seed) {
+		boolean swap = b.order() == ByteOrder.LITTLE_ENDIAN;
+		long h = seed ^ (to - from);
+		int i = from;
+
+		for (; i + 8 <= to; i += 8) {
+			long v = b.getLong(i);
+
+			h = mix(h, swap ? Long.reverseBytes(v) : v);
+		}
+
+		long tail = 0;
+
+		for (; i < to; i++) {
+			tail = tail << 8 | b.get(i) & 0xff;
+		}
+
+		return mix(h, tail);
+	}
+
+	private static long mix(long h, long v) {
+		h ^= v * 0x9e3779b97f4a7c15L;
+		return Long.rotateLeft(h, 29) * 0xbf58476d1ce4e5b9L;
+	}
+
+	// final avalanche of MurmurHash3
+	private static long finish(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ h >>> 33;
+	}
+
+	/**
+	 * False-positive rate of a filter holding capacity frames, for the
+	 * bits and hashes chosen.
+	 */
+	public double falsePositiveRate() {
+		return Math.pow(1 - Math.exp(-(double) hashes * capacity / bits), hashes);
+	}
+
+	public long seen() {
+		return seen;
+	}
+
+	public long duplicates() {
+		return duplicates;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("DEDUP: seen = " + seen() + "\n");
+		sb.append("DEDUP: unique = " + (seen() - duplicates()) + "\n");
+		sb.append("DEDUP: duplicates = " + duplicates() + "\n");
+		sb.append("DEDUP: window = " + LatencyHistogram.duration(window)
+			+ ", rotations = " + rotations + ", early (filter full) = " + early
+			+ "\n");
+		sb.append("DEDUP: filters = 2 x " + (bits >>> 13) + " KB, hashes = "
+			+ hashes + ", capacity = " + capacity + " frames\n");
+		sb.append(String.format("DEDUP: false-positive rate <= %.2g\n",
+			2 * falsePositiveRate()));
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry:
+	 *   --dedup [-window ms] [-capacity n] [-fp rate] [-w workers] capture...
+	 * Decodes the frames left after dropping copies on a worker pool and
+	 * prints their counts, followed by the deduplicator counters.
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		long windowMillis = 100;
+		int capacity = 1 << 20;
+		double rate = 0.001;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-window")) {
+				windowMillis = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-capacity")) {
+				capacity = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-fp")) {
+				rate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-w")) {
+				workers = Integer.parseInt(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length || workers < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --dedup [-window ms] [-capacity n]"
+				+ " [-fp rate] [-w workers] capture...");
+		}
+
+		PacketDeduplicator dedup = new PacketDeduplicator(windowMillis
+			* 1_000_000, capacity, rate);
+		long begin = System.nanoTime();
+		int files = args.length - i;
+		BatchAnalyzer.Report total;
+
+		try (BatchAnalyzer.RingDecoders decoders
+				= new BatchAnalyzer.RingDecoders(workers)) {
+			FrameRing ring = decoders.ring();
+
+			for (; i < args.length; i++) {
+				try (CaptureFile cf = new CaptureFile(dir.resolve(args[i]))) {
+					while (cf.next()) {
+						if (dedup.duplicate(cf.buffer(), cf.frameOffset(),
+								cf.frameLength(), cf.timestamp())) {
+							continue;
+						}
+
+						long seq = ring.claim(1);
+
+						ring.write(seq, cf.buffer(), cf.frameOffset(),
+							cf.frameLength(), cf.originalLength(), cf.timestamp());
+						ring.publish(seq);
+					}
+				}
+			}
+
+			total = decoders.finish(files);
+		}
+
+		out.print(total.format((System.nanoTime() - begin) / 1_000_000));
+		out.print(dedup);
+	}
+}
@@ -0,0 +1,705 @@
+/*
+ * PacketQuery.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs aggregation queries over PacketColumns.
+ *
+ * Grammar (keywords are lower case, fields are the PacketColumns names):
+ *
+ *   query  := agg [by field] [where cond {and cond}]
+ *             [between seconds and seconds] [top n]
+ *   agg    := count [( [field] )] | sum(field) | min(field) | max(field)
+ *   cond   := field (= | != | < | <= | > | >=) value
+ *
+ * for example "sum(frameLength) by destPort where protocol = 6 and ttl < 5".
+ * Values are decimal, 0x hex or dotted quads. between takes epoch seconds
+ * and filters on the timestamp column. The packet count is always reported
+ * next to the aggregate.
+ *
+ * Each predicate is applied to a whole row group at a time with one tight
+ * loop per operator over the column array, leaving a selection mask that
+ * the aggregation loop then reads. Row groups are split evenly between the
+ * cores and the partial results merged at the end.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class PacketQuery {
+	// aggregates
+	static final int COUNT = 0;
+	static final int SUM = 1;
+	static final int MIN = 2;
+	static final int MAX = 3;
+
+	static final String[] AGGREGATES = {"count", "sum", "min", "max"};
+
+	// comparison operators
+	static final String[] OPERATORS = {"=", "!=", "<", "<=", ">", ">="};
+
+	// no column
+	static final int NONE = -2;
+
+	private static final Pattern TOKEN
+		= Pattern.compile("\\s*(<=|>=|!=|[=<>(),]|[^\\s<>=!(),]+)");
+
+	private String text;
+
+	// aggregate and the column it reads
+	private int aggregate = COUNT;
+	private int valueColumn = NONE;
+
+	// group by column
+	private int groupColumn = NONE;
+
+	// predicates
+	private int[] whereColumn = new int[0];
+	private int[] whereOperator = new int[0];
+	private long[] whereValue = new long[0];
+
+	// top n, or -1 for all groups in key order
+	private int top = -1;
+
+	/**
+	 * Result rows, one per group (a single row without group by).
+	 */
+	static class Result {
+		long[] keys;
+		long[] counts;
+		long[] values;
+		int size;
+		long scanned;
+	}
+
+	/**
+	 * Per-task accumulator.
+	 */
+	private class Partial {
+		long count;
+		long value = initial();
+
+		// dense by key for 16 bit group columns
+		long[] denseCounts;
+		long[] denseValues;
+
+		// hashed otherwise
+		LongIndexMap map;
+		long[] mapCounts;
+		long[] mapValues;
+
+		Partial() {
+			if (groupColumn == NONE) {
+				return;
+			}
+
+			if (PacketColumns.narrow(groupColumn)) {
+				denseCounts = new long[1 << 16];
+				denseValues = new long[1 << 16];
+				Arrays.fill(denseValues, initial());
+			} else {
+				map = new LongIndexMap(1024);
+				mapCounts = new long[1024];
+				mapValues = new long[1024];
+			}
+		}
+
+		void add(long key, long count, long value) {
+			if (groupColumn == NONE) {
+				this.count += count;
+				this.value = combine(this.value, value);
+			} else if (denseCounts != null) {
+				int k = (int) key;
+				denseCounts[k] += count;
+				denseValues[k] = combine(denseValues[k], value);
+			} else {
+				int index = map.add(key);
+
+				if (index == mapCounts.length) {
+					mapCounts = Arrays.copyOf(mapCounts, index << 1);
+					mapValues = Arrays.copyOf(mapValues, index << 1);
+				}
+
+				if (mapCounts[index] == 0) {
+					mapValues[index] = initial();
+				}
+
+				mapCounts[index] += count;
+				mapValues[index] = combine(mapValues[index], value);
+			}
+		}
+
+		void merge(Partial p) {
+			if (groupColumn == NONE) {
+				add(0, p.count, p.value);
+			} else if (denseCounts != null) {
+				for (int k = 0; k < denseCounts.length; k++) {
+					if (p.denseCounts[k] != 0) {
+						add(k, p.denseCounts[k], p.denseValues[k]);
+					}
+				}
+			} else {
+				for (int i = 0; i < p.map.size(); i++) {
+					add(p.map.keyAt(i), p.mapCounts[i], p.mapValues[i]);
+				}
+			}
+		}
+	}
+
+	PacketQuery(String text) {
+		this.text = text.trim();
+
+		List<String> tokens = new ArrayList<>();
+		Matcher m = TOKEN.matcher(this.text);
+
+		while (m.find()) {
+			tokens.add(m.group(1));
+		}
+
+		parse(tokens);
+	}
+
+	private void parse(List<String> t) {
+		int i = 0;
+		String agg = word(t, i++);
+		aggregate = Arrays.asList(AGGREGATES).indexOf(agg);
+
+		if (aggregate < 0) {
+			throw new IllegalArgumentException("Unknown aggregate: " + agg);
+		}
+
+		if (i < t.size() && t.get(i).equals("(")) {
+			i++;
+
+			if (!word(t, i).equals(")")) {
+				valueColumn = column(word(t, i++));
+			}
+
+			expect(t, i++, ")");
+		}
+
+		if (aggregate != COUNT && valueColumn == NONE) {
+			throw new IllegalArgumentException(agg + " needs a field");
+		}
+
+		if (i < t.size() && t.get(i).equals("by")) {
+			groupColumn = column(word(t, i + 1));
+			i += 2;
+
+			if (groupColumn == PacketColumns.TIMESTAMP) {
+				throw new IllegalArgumentException(
+					"Cannot group by timestamp");
+			}
+		}
+
+		if (i < t.size() && t.get(i).equals("where")) {
+			do {
+				int column = column(word(t, i + 1));
+				int operator = Arrays.asList(OPERATORS).indexOf(word(t, i + 2));
+
+				if (operator < 0) {
+					throw new IllegalArgumentException(
+						"Unknown operator: " + t.get(i + 2));
+				}
+
+				where(column, operator, value(word(t, i + 3)));
+				i += 4;
+			} while (i < t.size() && t.get(i).equals("and"));
+		}
+
+		if (i < t.size() && t.get(i).equals("between")) {
+			expect(t, i + 2, "and");
+			where(PacketColumns.TIMESTAMP, 5, seconds(word(t, i + 1)));
+			where(PacketColumns.TIMESTAMP, 2, seconds(word(t, i + 3)));
+			i += 4;
+		}
+
+		if (i < t.size() && t.get(i).equals("top")) {
+			top = (int) value(word(t, i + 1));
+			i += 2;
+		}
+
+		if (i < t.size()) {
+			throw new IllegalArgumentException("Unexpected: " + t.get(i));
+		}
+	}
+
+	private void where(int column, int operator, long value) {
+		int n = whereColumn.length;
+
+		whereColumn = Arrays.copyOf(whereColumn, n + 1);
+		whereOperator = Arrays.copyOf(whereOperator, n + 1);
+		whereValue = Arrays.copyOf(whereValue, n + 1);
+
+		whereColumn[n] = column;
+		whereOperator[n] = operator;
+		whereValue[n] = value;
+	}
+
+	private static String word(List<String> t, int i) {
+		if (i >= t.size()) {
+			throw new IllegalArgumentException("Query ends early");
+		}
+
+		return t.get(i);
+	}
+
+	private static void expect(List<String> t, int i, String s) {
+		if (!word(t, i).equals(s)) {
+			throw new IllegalArgumentException("Expected " + s + " but got "
+				+ t.get(i));
+		}
+	}
+
+	private static int column(String name) {
+		int column = PacketColumns.fieldIndex(name);
+
+		if (column == NONE) {
+			throw new IllegalArgumentException("Unknown field: " + name);
+		}
+
+		return column;
+	}
+
+	static long value(String s) {
+		if (s.indexOf('.') > 0) {
+			return FrameLayout.parseIP(s) & 0xffffffffL;
+		}
+
+		if (s.startsWith("0x")) {
+			return Long.parseLong(s.substring(2), 16);
+		}
+
+		return Long.parseLong(s);
+	}
+
+	static long seconds(String s) {
+		return (long) (Double.parseDouble(s) * 1_000_000_000L);
+	}
+
+	private long initial() {
+		switch (aggregate) {
+			case MIN:
+				return Long.MAX_VALUE;
+
+			case MAX:
+				return Long.MIN_VALUE;
+
+			default:
+				return 0;
+		}
+	}
+
+	private long combine(long a, long b) {
+		switch (aggregate) {
+			case MIN:
+				return Math.min(a, b);
+
+			case MAX:
+				return Math.max(a, b);
+
+			default:
+				return a + b;
+		}
+	}
+
+	/**
+	 * Runs the query on all row groups, using every core.
+	 */
+	public Result run(PacketColumns pc) throws Exception {
+		int groups = pc.groupCount();
+		int tasks = Math.max(1, Math.min(groups,
+			Runtime.getRuntime().availableProcessors()));
+
+		List<Callable<Partial>> work = new ArrayList<>();
+
+		for (int t = 0; t < tasks; t++) {
+			int from = (int) ((long) groups * t / tasks);
+			int to = (int) ((long) groups * (t + 1) / tasks);
+			work.add(() -> scan(pc, from, to));
+		}
+
+		Partial total = new Partial();
+
+		for (Future<Partial> f : ForkJoinPool.commonPool().invokeAll(work)) {
+			total.merge(f.get());
+		}
+
+		Result r = collect(total);
+		r.scanned = pc.rows();
+		return r;
+	}
+
+	private Partial scan(PacketColumns pc, int from, int to) {
+		Partial p = new Partial();
+		byte[] selected = new byte[PacketColumns.ROW_GROUP_SIZE];
+
+		for (int g = from; g < to; g++) {
+			PacketColumns.RowGroup rg = pc.group(g);
+			int n = rg.size;
+
+			Arrays.fill(selected, 0, n, (byte) 1);
+
+			for (int w = 0; w < whereColumn.length; w++) {
+				if (whereColumn[w] == PacketColumns.TIMESTAMP) {
+					filter(rg.timestamp, whereOperator[w], whereValue[w],
+						selected, n);
+				} else {
+					filter(rg.columns[whereColumn[w]], whereOperator[w],
+						whereValue[w], selected, n);
+				}
+			}
+
+			aggregate(rg, selected, n, p);
+		}
+
+		return p;
+	}
+
+	private void aggregate(PacketColumns.RowGroup rg, byte[] selected, int n,
+			Partial p) {
+		long[] ts = rg.timestamp;
+		int[] keys = groupColumn == NONE ? null : rg.columns[groupColumn];
+		int[] values = valueColumn >= 0 ? rg.columns[valueColumn] : null;
+
+		if (keys == null && aggregate == COUNT) {
+			// plain count, no per row work beyond summing the mask
+			long count = 0;
+
+			for (int i = 0; i < n; i++) {
+				count += selected[i];
+			}
+
+			p.add(0, count, 0);
+			return;
+		}
+
+		for (int i = 0; i < n; i++) {
+			if (selected[i] == 0) {
+				continue;
+			}
+
+			long key = keys == null ? 0 : keys[i] & 0xffffffffL;
+			long value;
+
+			if (aggregate == COUNT) {
+				value = 0;
+			} else if (values != null) {
+				value = values[i] & 0xffffffffL;
+			} else {
+				value = ts[i];
+			}
+
+			p.add(key, 1, value);
+		}
+	}
+
+	// one loop per operator so that each stays branch free
+
+	private static void filter(int[] column, int operator, long value,
+			byte[] selected, int n) {
+		switch (operator) {
+			case 0:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= (column[i] & 0xffffffffL) == value ? 1 : 0;
+				}
+				break;
+
+			case 1:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= (column[i] & 0xffffffffL) != value ? 1 : 0;
+				}
+				break;
+
+			case 2:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= (column[i] & 0xffffffffL) < value ? 1 : 0;
+				}
+				break;
+
+			case 3:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= (column[i] & 0xffffffffL) <= value ? 1 : 0;
+				}
+				break;
+
+			case 4:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= (column[i] & 0xffffffffL) > value ? 1 : 0;
+				}
+				break;
+
+			default:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= (column[i] & 0xffffffffL) >= value ? 1 : 0;
+				}
+		}
+	}
+
+	private static void filter(long[] column, int operator, long value,
+			byte[] selected, int n) {
+		switch (operator) {
+			case 0:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= column[i] == value ? 1 : 0;
+				}
+				break;
+
+			case 1:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= column[i] != value ? 1 : 0;
+				}
+				break;
+
+			case 2:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= column[i] < value ? 1 : 0;
+				}
+				break;
+
+			case 3:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= column[i] <= value ? 1 : 0;
+				}
+				break;
+
+			case 4:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= column[i] > value ? 1 : 0;
+				}
+				break;
+
+			default:
+				for (int i = 0; i < n; i++) {
+					selected[i] &= column[i] >= value ? 1 : 0;
+				}
+		}
+	}
+
+	private Result collect(Partial p) {
+		Result r = new Result();
+
+		if (groupColumn == NONE) {
+			r.keys = new long[1];
+			r.counts = new long[] {p.count};
+			r.values = new long[] {p.value};
+			r.size = 1;
+			return r;
+		}
+
+		int n = 0;
+		long[] keys;
+		long[] counts;
+		long[] values;
+
+		if (p.denseCounts != null) {
+			keys = new long[1 << 16];
+			counts = new long[1 << 16];
+			values = new long[1 << 16];
+
+			for (int k = 0; k < p.denseCounts.length; k++) {
+				if (p.denseCounts[k] != 0) {
+					keys[n] = k;
+					counts[n] = p.denseCounts[k];
+					values[n++] = p.denseValues[k];
+				}
+			}
+		} else {
+			n = p.map.size();
+			keys = new long[n];
+			counts = Arrays.copyOf(p.mapCounts, n);
+			values = Arrays.copyOf(p.mapValues, n);
+
+			for (int i = 0; i < n; i++) {
+				keys[i] = p.map.keyAt(i);
+			}
+		}
+
+		int[] order = top >= 0 ? top(counts, values, n) : byKey(keys, n);
+
+		r.size = order.length;
+		r.keys = new long[r.size];
+		r.counts = new long[r.size];
+		r.values = new long[r.size];
+
+		for (int i = 0; i < r.size; i++) {
+			r.keys[i] = keys[order[i]];
+			r.counts[i] = counts[order[i]];
+			r.values[i] = values[order[i]];
+		}
+
+		return r;
+	}
+
+	/**
+	 * Indexes of all groups in ascending key order. Keys are at most 32
+	 * bits and indexes at most 31, so both pack into one sortable long.
+	 */
+	private static int[] byKey(long[] keys, int n) {
+		long[] packed = new long[n];
+
+		for (int i = 0; i < n; i++) {
+			packed[i] = keys[i] << 31 | i;
+		}
+
+		Arrays.sort(packed);
+
+		int[] order = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			order[i] = (int) (packed[i] & 0x7fffffff);
+		}
+
+		return order;
+	}
+
+	/**
+	 * Indexes of the top groups by aggregate (by count for count queries),
+	 * largest first, kept in a min-heap of size top.
+	 */
+	private int[] top(long[] counts, long[] values, int n) {
+		long[] rank = aggregate == COUNT ? counts : values;
+		int[] heap = new int[Math.min(top, n)];
+		int size = 0;
+
+		for (int i = 0; i < n; i++) {
+			if (size < heap.length) {
+				heap[size] = i;
+				up(heap, size++, rank);
+			} else if (size > 0 && rank[i] > rank[heap[0]]) {
+				heap[0] = i;
+				down(heap, size, rank);
+			}
+		}
+
+		int[] order = new int[size];
+
+		while (size > 0) {
+			order[--size] = heap[0];
+			heap[0] = heap[size];
+			down(heap, size, rank);
+		}
+
+		return order;
+	}
+
+	private static void up(int[] heap, int i, long[] rank) {
+		while (i > 0 && rank[heap[i]] < rank[heap[(i - 1) >> 1]]) {
+			int parent = (i - 1) >> 1;
+			int tmp = heap[i];
+			heap[i] = heap[parent];
+			heap[parent] = tmp;
+			i = parent;
+		}
+	}
+
+	private static void down(int[] heap, int size, long[] rank) {
+		int i = 0;
+
+		while (true) {
+			int smallest = i;
+			int l = 2 * i + 1;
+			int r = l + 1;
+
+			if (l < size && rank[heap[l]] < rank[heap[smallest]]) {
+				smallest = l;
+			}
+
+			if (r < size && rank[heap[r]] < rank[heap[smallest]]) {
+				smallest = r;
+			}
+
+			if (smallest == i) {
+				return;
+			}
+
+			int tmp = heap[i];
+			heap[i] = heap[smallest];
+			heap[smallest] = tmp;
+			i = smallest;
+		}
+	}
+
+	public String format(Result r, long millis) {
+		StringBuilder sb = new StringBuilder();
+		String agg = aggregate == COUNT ? "count"
+			: AGGREGATES[aggregate] + "("
+			+ PacketColumns.fieldName(valueColumn) + ")";
+
+		sb.append("QUERY: " + text + "\n");
+		sb.append("QUERY: " + r.scanned + " rows in " + millis + " ms\n");
+		sb.append("QUERY:\n");
+		sb.append("QUERY: " + String.format("%-18s %12s", groupColumn == NONE
+			? "" : PacketColumns.fieldName(groupColumn), "count"));
+
+		if (aggregate != COUNT) {
+			sb.append(String.format(" %20s", agg));
+		}
+
+		sb.append("\n");
+
+		for (int i = 0; i < r.size; i++) {
+			String key = "";
+
+			if (groupColumn == PacketColumns.SOURCE_IP
+					|| groupColumn == PacketColumns.DEST_IP) {
+				key = FrameLayout.formatIP((int) r.keys[i]);
+			} else if (groupColumn != NONE) {
+				key = Long.toString(r.keys[i]);
+			}
+
+			sb.append("QUERY: " + String.format("%-18s %12d", key, r.counts[i]));
+
+			if (aggregate != COUNT) {
+				sb.append(String.format(" %20s", r.counts[i] == 0 ? "-"
+					: Long.toString(r.values[i])));
+			}
+
+			sb.append("\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry: --query "query" capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		if (args.length < 3) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --query \"query\" capture...");
+		}
+
+		PacketQuery q = new PacketQuery(args[1]);
+		PacketColumns pc = new PacketColumns();
+
+		for (int i = 2; i < args.length; i++) {
+			pc.load(dir.resolve(args[i]));
+		}
+
+		long start = System.nanoTime();
+		Result r = q.run(pc);
+		long millis = (System.nanoTime() - start) / 1_000_000;
+
+		out.print(q.format(r, millis));
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * PacketSampler.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+
+/**
+ * Decides which frames get decoded when decoding cannot keep up.
+ *
+ * Three modes:
+ *
+ *   FIXED     every rate-th frame
+ *   FLOW      whole flows, those whose symmetric flow hash is a multiple
+ *             of rate, so a flow is either fully kept or fully dropped;
+ *             frames that are not IPv4 have no flow and are kept every
+ *             rate-th one instead
+ *   ADAPTIVE  every rate-th frame, where rate is a power of two that
+ *             doubles while the ingest ring is above its high watermark and
+ *             halves while it is below its low watermark
+ *
+ * In every mode a frame that would be kept is still shed if the ring has
+ * no free slot, rather than blocking ingest. offer() returns the rate the
+ * kept frame stands for, which is written into its ring slot so decoders
+ * can scale their counts back up. Shed frames stand for rate frames too;
+ * they are counted with their bytes so they can be added to the decoded
+ * totals, though what they held is unknown.
+ *
+ * Reference: https://en.wikipedia.org/wiki/Load_shedding_(computing)
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class PacketSampler {
+	// modes
+	static final int FIXED = 0;
+	static final int FLOW = 1;
+	static final int ADAPTIVE = 2;
+
+	// adaptive limits and watermarks, as fractions of the ring
+	static final int MAX_RATE = 1 << 16;
+	static final double HIGH_WATERMARK = 0.75;
+	static final double LOW_WATERMARK = 0.25;
+
+	// frames between adaptive rate changes
+	static final int ADJUST_INTERVAL = 1024;
+
+	private final int mode;
+	private final FrameRing ring;
+	private int rate;
+
+	// frames since the last kept one, for FIXED and ADAPTIVE, and for
+	// frames that are not IPv4 in FLOW
+	private int skipped;
+
+	// frames since the last adaptive adjustment
+	private int sinceAdjust;
+
+	// counters
+	private long seen;
+	private long kept;
+	private long sampledOut;
+	private long shedFull;
+	private long shedFrames;
+	private long shedBytes;
+	private long rateChanges;
+
+	PacketSampler(int mode, int rate, FrameRing ring) {
+		if (rate < 1) {
+			throw new IllegalArgumentException("Sampling rate must be >= 1");
+		}
+
+		this.mode = mode;
+		this.ring = ring;
+		this.rate = mode == ADAPTIVE ? Integer.highestOneBit(rate) : rate;
+	}
+
+	/**
+	 * Samples one frame and, if kept, copies it into the ring and publishes
+	 * it. Returns the rate the frame was kept at, or 0 if it was dropped.
+	 */
+	public int offer(ByteBuffer b, int frame, int length, int originalLength,
+			long timestamp) {
+		seen++;
+
+		if (mode == ADAPTIVE && ++sinceAdjust == ADJUST_INTERVAL) {
+			sinceAdjust = 0;
+			adjust();
+		}
+
+		if (!select(b, frame, length)) {
+			sampledOut++;
+			return 0;
+		}
+
+		long seq = ring.tryClaim(1);
+
+		if (seq < 0) {
+			shedFull++;
+			shedFrames += rate;
+			shedBytes += (long) length * rate;
+			return 0;
+		}
+
+		ring.write(seq, b, frame, length, originalLength, timestamp, rate);
+		ring.publish(seq);
+		kept++;
+		return rate;
+	}
+
+	private boolean select(ByteBuffer b, int frame, int length) {
+		if (rate == 1) {
+			return true;
+		}
+
+		if (mode == FLOW && FrameLayout.ipv4Offset(b, frame, length) >= 0) {
+			int hash = FlowDispatcher.flowHash(b, frame, length);
+			return Integer.remainderUnsigned(hash, rate) == 0;
+		}
+
+		if (++skipped >= rate) {
+			skipped = 0;
+			return true;
+		}
+
+		return false;
+	}
+
+	private void adjust() {
+		double fill = (double) ring.backlog() / ring.capacity();
+
+		if (fill > HIGH_WATERMARK && rate < MAX_RATE) {
+			rate <<= 1;
+			rateChanges++;
+		} else if (fill < LOW_WATERMARK && rate > 1) {
+			rate >>= 1;
+			rateChanges++;
+		}
+	}
+
+	public int rate() {
+		return rate;
+	}
+
+	public long seen() {
+		return seen;
+	}
+
+	public long kept() {
+		return kept;
+	}
+
+	/**
+	 * Frames dropped by the sampling decision.
+	 */
+	public long sampledOut() {
+		return sampledOut;
+	}
+
+	/**
+	 * Frames selected but dropped because the ring was full.
+	 */
+	public long shedFull() {
+		return shedFull;
+	}
+
+	/**
+	 * Frames and bytes the shed frames stood for, scaled by the rate each
+	 * was selected at.
+	 */
+	public long shedFrames() {
+		return shedFrames;
+	}
+
+	public long shedBytes() {
+		return shedBytes;
+	}
+
+	public long rateChanges() {
+		return rateChanges;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("SAMPLE: seen = " + seen() + "\n");
+		sb.append("SAMPLE: kept = " + kept() + "\n");
+		sb.append("SAMPLE: sampled out = " + sampledOut() + "\n");
+		sb.append("SAMPLE: shed (ring full) = " + shedFull() + "\n");
+		sb.append("SAMPLE: current rate = 1 in " + rate() + "\n");
+
+		if (mode == ADAPTIVE) {
+			sb.append("SAMPLE: rate changes = " + rateChanges() + "\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry:
+	 *   --sample [-fixed n | -flow n | -adaptive] [-w workers] capture...
+	 * Decodes the sampled frames on a worker pool and prints counts scaled
+	 * back up by each frame's rate, followed by the sampler counters.
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int mode = ADAPTIVE;
+		int rate = 1;
+		int workers = Runtime.getRuntime().availableProcessors();
+		int i = 1;
+
+		for (; i < args.length && args[i].startsWith("-"); i++) {
+			if (args[i].equals("-fixed") && i + 1 < args.length) {
+				mode = FIXED;
+				rate = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-flow") && i + 1 < args.length) {
+				mode = FLOW;
+				rate = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-adaptive")) {
+				mode = ADAPTIVE;
+			} else if (args[i].equals("-w") && i + 1 < args.length) {
+				workers = Integer.parseInt(args[++i]);
+			} else {
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+
+		if (i >= args.length || workers < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --sample [-fixed n | -flow n | -adaptive] [-w workers] capture...");
+		}
+
+		long start = System.nanoTime();
+		int files = args.length - i;
+		BatchAnalyzer.Report total;
+		PacketSampler sampler;
+
+		try (BatchAnalyzer.RingDecoders decoders
+				= new BatchAnalyzer.RingDecoders(workers)) {
+			sampler = new PacketSampler(mode, rate, decoders.ring());
+
+			for (; i < args.length; i++) {
+				try (CaptureFile cf = new CaptureFile(dir.resolve(args[i]))) {
+					while (cf.next()) {
+						sampler.offer(cf.buffer(), cf.frameOffset(),
+							cf.frameLength(), cf.originalLength(), cf.timestamp());
+					}
+				}
+			}
+
+			total = decoders.finish(files);
+		}
+
+		total.shed(sampler.shedFrames(), sampler.shedBytes());
+
+		out.print(total.format((System.nanoTime() - start) / 1_000_000));
+		out.print(sampler);
+	}
+}
@@ -0,0 +1,496 @@
+/*
+ * ScanDetector.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reports sources that probe many ports (a vertical scan) or many hosts
+ * (a horizontal sweep) within a sliding window, as soon as they cross the
+ * threshold.
+ *
+ * A probe is a TCP SYN without ACK, and with -udp any UDP datagram. For
+ * each source the distinct destination ports and distinct destination
+ * hosts probed are counted in two 512-bit linear counting bitmaps each:
+ * one for the current half window and one for the half before it, so the
+ * union of the two covers between a half and a whole window. The number
+ * of bits set in the union is kept up to date as probes come in and
+ * compared with the bit count the threshold maps to, so a probe costs a
+ * few word operations.
+ *
+ * A sweep is one port probed on many hosts, so hosts are only counted on
+ * the port the source probes most, found by majority vote: a probe to
+ * that port adds a vote, one to another port takes one away, and a probe
+ * when there are none left makes its port the one counted, with the host
+ * bitmaps cleared. A source probing many ports on a few hosts never keeps
+ * a port long enough to count many hosts on it.
+ *
+ * Sources live in a fixed table of 4-way sets: a new source takes an empty
+ * way of its set, or the way used least recently, sparing sources that
+ * sent more than one probe while there are others. Memory is fixed by the
+ * table size however many source addresses an attacker makes up.
+ * RSTs sent back to a tracked source are counted against it, as ports
+ * found closed.
+ *
+ * Reference: https://en.wikipedia.org/wiki/Approximate_counting_algorithm
+ *            https://en.wikipedia.org/wiki/Cache_replacement_policies
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class ScanDetector {
+	// bits per bitmap, and longs
+	static final int SKETCH_BITS = 512;
+	static final int SKETCH_WORDS = SKETCH_BITS / 64;
+
+	// per source: ports now and before, hosts now and before
+	static final int PORTS = 0;
+	static final int PORTS_BEFORE = SKETCH_WORDS;
+	static final int HOSTS = 2 * SKETCH_WORDS;
+	static final int HOSTS_BEFORE = 3 * SKETCH_WORDS;
+	static final int STRIDE = 4 * SKETCH_WORDS;
+
+	// ways per set
+	static final int WAYS = 4;
+
+	private final PrintStream alerts;
+	private final long half;
+	private final int portThreshold;
+	private final int hostThreshold;
+	private final boolean udp;
+
+	// bits set in a bitmap union when the thresholds are reached
+	private final int portBits;
+	private final int hostBits;
+
+	// per slot, set * WAYS + way; key is the address + 1, 0 when empty
+	private final int sets;
+	private final long[] key;
+	private final long[] last;
+	private final long[] bucketStart;
+	private final long[] sketches;
+	private final int[] portUnion;
+	private final int[] hostUnion;
+	private final long[] probes;
+	private final long[] refused;
+	private final int[] lastHost;
+	private final int[] lastPort;
+
+	// port whose hosts are counted, -1 if none yet, and its votes
+	private final int[] sweepPort;
+	private final int[] sweepVotes;
+
+	// when each kind of alert was last given, 0 if never
+	private final long[] verticalAt;
+	private final long[] horizontalAt;
+
+	private long frames;
+	private long probeCount;
+	private long sources;
+	private long evictions;
+	private long verticalAlerts;
+	private long horizontalAlerts;
+
+	ScanDetector(PrintStream alerts, long windowNanos, int portThreshold,
+			int hostThreshold, int capacity, boolean udp) {
+		if (portThreshold < 1 || portThreshold > 2 * SKETCH_BITS
+				|| hostThreshold < 1 || hostThreshold > 2 * SKETCH_BITS) {
+			throw new IllegalArgumentException("Scan thresholds must be"
+				+ " between 1 and " + 2 * SKETCH_BITS);
+		}
+
+		this.alerts = alerts;
+		this.half = Math.max(1, windowNanos / 2);
+		this.portThreshold = portThreshold;
+		this.hostThreshold = hostThreshold;
+		this.udp = udp;
+		this.portBits = bits(portThreshold);
+		this.hostBits = bits(hostThreshold);
+
+		sets = Integer.highestOneBit(Math.max(1, capacity / WAYS));
+
+		int n = sets * WAYS;
+
+		key = new long[n];
+		last = new long[n];
+		bucketStart = new long[n];
+		sketches = new long[n * STRIDE];
+		portUnion = new int[n];
+		hostUnion = new int[n];
+		probes = new long[n];
+		refused = new long[n];
+		lastHost = new int[n];
+		lastPort = new int[n];
+		sweepPort = new int[n];
+		sweepVotes = new int[n];
+		verticalAt = new long[n];
+		horizontalAt = new long[n];
+	}
+
+	/**
+	 * Bits expected to be set in a bitmap after count distinct values.
+	 */
+	static int bits(int count) {
+		return (int) Math.ceil(SKETCH_BITS
+			* (1 - Math.exp(-(double) count / SKETCH_BITS)));
+	}
+
+	/**
+	 * Linear counting estimate of the distinct values from the bits set.
+	 */
+	static long estimate(int set) {
+		if (set >= SKETCH_BITS) {
+			return Math.round(SKETCH_BITS * Math.log(SKETCH_BITS));
+		}
+
+		return Math.round(-SKETCH_BITS
+			* Math.log(1 - (double) set / SKETCH_BITS));
+	}
+
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		frames++;
+
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0) {
+			return;
+		}
+
+		int protocol = FrameLayout.protocol(b, ip);
+		int l4 = FrameLayout.transportOffset(b, ip);
+		int end = FrameLayout.ipv4End(b, ip, frame + length);
+
+		if (l4 < 0 || end - l4 < FrameLayout.UDP_HEADER) {
+			return;
+		}
+
+		if (protocol == FrameLayout.PROTOCOL_TCP) {
+			if (end - l4 < FrameLayout.TCP_HEADER) {
+				return;
+			}
+
+			int flags = FrameLayout.tcpFlags(b, l4);
+
+			if ((flags & FrameLayout.TCP_RST) != 0) {
+				// a closed port answering the source
+				int s = find(FrameLayout.destIP(b, ip));
+
+				if (s >= 0) {
+					refused[s]++;
+				}
+
+				return;
+			}
+
+			if ((flags & (FrameLayout.TCP_SYN | FrameLayout.TCP_ACK))
+					!= FrameLayout.TCP_SYN) {
+				return;
+			}
+		} else if (protocol != FrameLayout.PROTOCOL_UDP || !udp) {
+			return;
+		}
+
+		probe(FrameLayout.sourceIP(b, ip), FrameLayout.destIP(b, ip),
+			FrameLayout.destPort(b, l4), timestamp);
+	}
+
+	private void probe(int source, int host, int port, long timestamp) {
+		int s = slot(source, timestamp);
+
+		probeCount++;
+		probes[s]++;
+		lastHost[s] = host;
+		lastPort[s] = port;
+		last[s] = Math.max(last[s], timestamp);
+
+		if (timestamp - bucketStart[s] >= half) {
+			slide(s, timestamp);
+		}
+
+		int base = s * STRIDE;
+
+		if (add(base + PORTS, base + PORTS_BEFORE, port)) {
+			portUnion[s]++;
+		}
+
+		if (port == sweepPort[s]) {
+			sweepVotes[s]++;
+		} else if (sweepVotes[s] > 0) {
+			sweepVotes[s]--;
+		} else {
+			sweepPort[s] = port;
+			sweepVotes[s] = 1;
+			hostUnion[s] = 0;
+			Arrays.fill(sketches, base + HOSTS, base + STRIDE, 0);
+		}
+
+		if (port == sweepPort[s]
+				&& add(base + HOSTS, base + HOSTS_BEFORE, host)) {
+			hostUnion[s]++;
+		}
+
+		if (portUnion[s] >= portBits && timestamp - verticalAt[s] >= 2 * half) {
+			verticalAt[s] = timestamp;
+			verticalAlerts++;
+			alert(timestamp, s, "vertical scan", "e.g. host "
+				+ FrameLayout.formatIP(host));
+		}
+
+		if (hostUnion[s] >= hostBits
+				&& timestamp - horizontalAt[s] >= 2 * half) {
+			horizontalAt[s] = timestamp;
+			horizontalAlerts++;
+			alert(timestamp, s, "horizontal sweep", "port "
+				+ sweepPort[s]);
+		}
+	}
+
+	/**
+	 * Sets the value's bit in the current bitmap. Returns true if the bit
+	 * was set in neither the current nor the previous one.
+	 */
+	private boolean add(int now, int before, int value) {
+		int bit = LongIndexMap.hash(value) >>> 32 - 9;
+		int w = bit >>> 6;
+		long mask = 1L << bit;
+
+		if ((sketches[now + w] & mask) != 0) {
+			return false;
+		}
+
+		sketches[now + w] |= mask;
+		return (sketches[before + w] & mask) == 0;
+	}
+
+	/**
+	 * Moves the window of slot s on to the half window holding timestamp.
+	 */
+	private void slide(int s, long timestamp) {
+		int base = s * STRIDE;
+		long elapsed = timestamp - bucketStart[s];
+
+		if (elapsed >= 2 * half) {
+			// nothing from the last half window either
+			Arrays.fill(sketches, base, base + STRIDE, 0);
+		} else {
+			System.arraycopy(sketches, base + PORTS, sketches,
+				base + PORTS_BEFORE, SKETCH_WORDS);
+			System.arraycopy(sketches, base + HOSTS, sketches,
+				base + HOSTS_BEFORE, SKETCH_WORDS);
+			Arrays.fill(sketches, base + PORTS, base + PORTS + SKETCH_WORDS, 0);
+			Arrays.fill(sketches, base + HOSTS, base + HOSTS + SKETCH_WORDS, 0);
+		}
+
+		bucketStart[s] = timestamp - elapsed % half;
+		portUnion[s] = popcount(base + PORTS_BEFORE);
+		hostUnion[s] = popcount(base + HOSTS_BEFORE);
+	}
+
+	private int popcount(int from) {
+		int n = 0;
+
+		for (int w = from; w < from + SKETCH_WORDS; w++) {
+			n += Long.bitCount(sketches[w]);
+		}
+
+		return n;
+	}
+
+	/**
+	 * Slot of a tracked source, or -1.
+	 */
+	private int find(int source) {
+		long k = (source & 0xffffffffL) + 1;
+		int base = (LongIndexMap.hash(k) & (sets - 1)) * WAYS;
+
+		for (int s = base; s < base + WAYS; s++) {
+			if (key[s] == k) {
+				return s;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Slot of a source, taking over a way of its set if the source is new:
+	 * an empty one, else the least recently used of those that sent a
+	 * single probe, else the least recently used. Spoofed sources rarely
+	 * send more than one probe from an address, so they mostly push out
+	 * each other rather than a source that is scanning.
+	 */
+	private int slot(int source, long timestamp) {
+		long k = (source & 0xffffffffL) + 1;
+		int base = (LongIndexMap.hash(k) & (sets - 1)) * WAYS;
+		int victim = -1;
+		int single = -1;
+
+		for (int s = base; s < base + WAYS; s++) {
+			if (key[s] == k) {
+				return s;
+			}
+
+			if (key[s] == 0) {
+				victim = s;
+				single = -1;
+				break;
+			}
+
+			if (victim < 0 || last[s] < last[victim]) {
+				victim = s;
+			}
+
+			if (probes[s] == 1 && (single < 0 || last[s] < last[single])) {
+				single = s;
+			}
+		}
+
+		if (single >= 0) {
+			victim = single;
+		}
+
+		if (key[victim] != 0) {
+			evictions++;
+		}
+
+		sources++;
+		key[victim] = k;
+		last[victim] = timestamp;
+		bucketStart[victim] = timestamp;
+		portUnion[victim] = 0;
+		hostUnion[victim] = 0;
+		sweepPort[victim] = -1;
+		sweepVotes[victim] = 0;
+		probes[victim] = 0;
+		refused[victim] = 0;
+		verticalAt[victim] = 0;
+		horizontalAt[victim] = 0;
+		Arrays.fill(sketches, victim * STRIDE, (victim + 1) * STRIDE, 0);
+
+		return victim;
+	}
+
+	private void alert(long timestamp, int s, String kind, String example) {
+		alerts.println("SCAN: " + time(timestamp) + " "
+			+ FrameLayout.formatIP((int) (key[s] - 1)) + " " + kind + ", "
+			+ estimate(portUnion[s]) + " ports on " + estimate(hostUnion[s])
+			+ " hosts in " + LatencyHistogram.duration(2 * half) + ", "
+			+ refused[s] + " refused, " + example);
+	}
+
+	public String format(int limit) {
+		StringBuilder sb = new StringBuilder();
+		int tracked = 0;
+
+		for (int s = 0; s < key.length; s++) {
+			if (key[s] != 0) {
+				tracked++;
+			}
+		}
+
+		sb.append("SCAN: frames = " + frames + ", probes = " + probeCount
+			+ ", sources = " + sources + ", tracked = " + tracked + " of "
+			+ key.length + ", evicted = " + evictions + "\n");
+		sb.append("SCAN: vertical scans = " + verticalAlerts
+			+ ", horizontal sweeps = " + horizontalAlerts + ", thresholds = "
+			+ portThreshold + " ports / " + hostThreshold + " hosts in "
+			+ LatencyHistogram.duration(2 * half) + "\n");
+		sb.append("SCAN:\n");
+		sb.append(String.format("SCAN: %-15s %10s %10s %8s %8s %17s\n",
+			"source", "probes", "refused", "ports", "hosts", "last"));
+
+		// tracked sources with most ports or hosts in their last window
+		Integer[] order = new Integer[tracked];
+		int n = 0;
+
+		for (int s = 0; s < key.length; s++) {
+			if (key[s] != 0) {
+				order[n++] = s;
+			}
+		}
+
+		Arrays.sort(order, (x, y) -> Integer.compare(
+			Math.max(portUnion[y], hostUnion[y]),
+			Math.max(portUnion[x], hostUnion[x])));
+
+		for (int k = 0; k < Math.min(limit, n); k++) {
+			int s = order[k];
+
+			sb.append(String.format("SCAN: %-15s %10d %10d %8d %8d %17s\n",
+				FrameLayout.formatIP((int) (key[s] - 1)), probes[s], refused[s],
+				estimate(portUnion[s]), estimate(hostUnion[s]), time(last[s])));
+		}
+
+		return sb.toString();
+	}
+
+	private static String time(long nanos) {
+		return String.format("%d.%06d", Math.floorDiv(nanos, 1_000_000_000L),
+			Math.floorMod(nanos, 1_000_000_000L) / 1000);
+	}
+
+	/**
+	 * Command-line entry:
+	 * --scan [-n rows] [-window s] [-ports n] [-hosts n] [-sources n] [-udp]
+	 *        capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int limit = 20;
+		long windowSeconds = 10;
+		int ports = 100;
+		int hosts = 100;
+		int capacity = 1 << 16;
+		boolean udp = false;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-window")) {
+				windowSeconds = Long.parseLong(args[++i]);
+			} else if (args[i].equals("-ports")) {
+				ports = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-hosts")) {
+				hosts = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-sources")) {
+				capacity = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-udp")) {
+				udp = true;
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --scan [-n rows] [-window s]"
+				+ " [-ports n] [-hosts n] [-sources n] [-udp] capture...");
+		}
+
+		ScanDetector d = new ScanDetector(out, windowSeconds * 1_000_000_000L,
+			ports, hosts, capacity, udp);
+
+		for (; i < args.length; i++) {
+			try (CaptureFile cf = new CaptureFile(dir.resolve(args[i]))) {
+				while (cf.next()) {
+					d.frame(cf.buffer(), cf.frameOffset(), cf.frameLength(),
+						cf.timestamp());
+				}
+			}
+		}
+
+		out.print(d.format(limit));
+	}
+}
@@ -0,0 +1,370 @@
+/*
+ * SignatureMatcher.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Finds any of a set of byte signatures in a payload with an Aho-Corasick
+ * automaton, compiled to a dense transition table.
+ *
+ * Every state has a transition for every input filled in, failure links
+ * included, so scanning is one table load per byte whatever the number of
+ * signatures. Bytes are first mapped to classes, one per byte value that
+ * occurs in some signature plus one for all the others, and rows are only
+ * as wide as the number of classes: text signatures give rows of a few
+ * dozen entries instead of 256, which keeps far more of the table in
+ * cache. The class lookup does not depend on the state, so it stays off
+ * the chain of dependent loads that bounds the speed of the loop.
+ *
+ * Transition entries hold the offset of the target row rather than its
+ * number, and are complemented (negative) when the target state ends a
+ * signature, so the loop tests a sign rather than loading a second array.
+ *
+ * The scan is still one dependent load per byte, so its speed is that of
+ * the cache level the rows it visits live in. States are numbered breadth
+ * first, which puts the shallow states that most bytes lead to in adjacent
+ * rows at the front of the table. A table of thousands of signatures no
+ * longer fits in the first cache levels though, and scanning slows down
+ * as signatures are added.
+ *
+ * The state is returned by scan() and passed back in, so a stream can be
+ * scanned a segment at a time and signatures that span segments are still
+ * found.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class SignatureMatcher {
+	/**
+	 * Called for every signature found.
+	 */
+	interface Hits {
+		void match(int signature, int end);
+	}
+
+	// state scanning starts in
+	static final int START = 0;
+
+	private final String[] names;
+	private final int[] lengths;
+
+	// byte -> class, 0 for bytes in no signature
+	private final int[] classes = new int[256];
+	private final int width;
+
+	// row offset + class -> row offset of the target, ~ if it matches
+	private final int[] delta;
+
+	// per state: signature ending here, or -1; next state on the failure
+	// chain that ends a signature, or -1
+	private final int[] output;
+	private final int[] outputLink;
+
+	// further signatures with the same bytes
+	private final int[] same;
+
+	private final int states;
+
+	/**
+	 * Compiles the signatures. With ignoreCase, ASCII letters match either
+	 * case.
+	 */
+	SignatureMatcher(List<String> names, List<byte[]> signatures,
+			boolean ignoreCase) {
+		int capacity = 1;
+		int w = 1;
+
+		for (byte[] s : signatures) {
+			capacity += s.length;
+
+			for (byte x : s) {
+				int c = (ignoreCase ? lower(x) : x) & 0xff;
+
+				if (classes[c] == 0) {
+					classes[c] = w++;
+				}
+			}
+		}
+
+		if (ignoreCase) {
+			for (int c = 'A'; c <= 'Z'; c++) {
+				classes[c] = classes[c | 0x20];
+			}
+		}
+
+		width = w;
+
+		if ((long) capacity * width > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many signature bytes: "
+				+ capacity);
+		}
+
+		this.names = names.toArray(new String[0]);
+		this.lengths = new int[signatures.size()];
+		this.same = new int[signatures.size()];
+
+		// state * width + class -> state, -1 for none yet
+		int[] table = new int[capacity * width];
+		int[] out = new int[capacity];
+		int n = 1;
+
+		Arrays.fill(table, -1);
+		Arrays.fill(out, -1);
+		Arrays.fill(same, -1);
+
+		// trie
+		for (int id = 0; id < signatures.size(); id++) {
+			byte[] s = signatures.get(id);
+			int state = START;
+
+			if (s.length == 0) {
+				throw new IllegalArgumentException("Empty signature: "
+					+ names.get(id));
+			}
+
+			lengths[id] = s.length;
+
+			for (byte x : s) {
+				int i = state * width + classes[x & 0xff];
+
+				if (table[i] < 0) {
+					table[i] = n++;
+				}
+
+				state = table[i];
+			}
+
+			same[id] = out[state];
+			out[state] = id;
+		}
+
+		states = n;
+
+		int[] output = Arrays.copyOf(out, n);
+		int[] outputLink = new int[n];
+
+		int[] fail = new int[n];
+		int[] queue = new int[n];
+		int head = 0;
+		int tail = 0;
+
+		Arrays.fill(outputLink, -1);
+
+		// breadth first, so failure targets are complete before use
+		for (int c = 0; c < width; c++) {
+			int t = table[c];
+
+			if (t < 0) {
+				table[c] = START;
+			} else {
+				fail[t] = START;
+				queue[tail++] = t;
+			}
+		}
+
+		while (head < tail) {
+			int s = queue[head++];
+
+			for (int c = 0; c < width; c++) {
+				int i = s * width + c;
+				int t = table[i];
+				int f = table[fail[s] * width + c];
+
+				if (t < 0) {
+					table[i] = f;
+				} else {
+					fail[t] = f;
+					outputLink[t] = output[f] >= 0 ? f : outputLink[f];
+					queue[tail++] = t;
+				}
+			}
+		}
+
+		// states renumbered breadth first, so the shallow states that
+		// almost every byte of a payload goes through have adjacent rows
+		int[] rank = new int[n];
+
+		for (int k = 0; k < tail; k++) {
+			rank[queue[k]] = k + 1;
+		}
+
+		delta = new int[n * width];
+		this.output = new int[n];
+		this.outputLink = new int[n];
+
+		for (int s = 0; s < n; s++) {
+			int r = rank[s];
+
+			for (int c = 0; c < width; c++) {
+				int t = table[s * width + c];
+				boolean match = output[t] >= 0 || outputLink[t] >= 0;
+
+				delta[r * width + c] = match ? ~(rank[t] * width)
+					: rank[t] * width;
+			}
+
+			this.output[r] = output[s];
+			this.outputLink[r] = outputLink[s] < 0 ? -1 : rank[outputLink[s]];
+		}
+	}
+
+	private static byte lower(byte x) {
+		return x >= 'A' && x <= 'Z' ? (byte) (x | 0x20) : x;
+	}
+
+	/**
+	 * Scans a[from] up to a[to] starting in state, reporting every
+	 * signature that ends in the range. Returns the state to pass to the
+	 * next call for the same stream.
+	 */
+	public int scan(byte[] a, int from, int to, int state, Hits hits) {
+		return scan(a, from, to, state, hits, 0);
+	}
+
+	/**
+	 * Same as above for b[from] up to b[to], read in place: through the
+	 * backing array if the buffer has one, else byte by byte from the
+	 * buffer itself, as for the direct buffers frames are read from.
+	 */
+	public int scan(ByteBuffer b, int from, int to, int state, Hits hits) {
+		if (b.hasArray()) {
+			int base = b.arrayOffset();
+
+			return scan(b.array(), base + from, base + to, state, hits, base);
+		}
+
+		int[] delta = this.delta;
+		int[] classes = this.classes;
+		int s = state * width;
+
+		for (int i = from; i < to; i++) {
+			s = delta[s + classes[b.get(i) & 0xff]];
+
+			if (s < 0) {
+				s = ~s;
+				report(s / width, i + 1, hits);
+			}
+		}
+
+		return s / width;
+	}
+
+	/**
+	 * The array loop, with match ends reported less base.
+	 */
+	private int scan(byte[] a, int from, int to, int state, Hits hits,
+			int base) {
+		int[] delta = this.delta;
+		int[] classes = this.classes;
+		int s = state * width;
+
+		for (int i = from; i < to; i++) {
+			s = delta[s + classes[a[i] & 0xff]];
+
+			if (s < 0) {
+				s = ~s;
+				report(s / width, i + 1 - base, hits);
+			}
+		}
+
+		return s / width;
+	}
+
+	private void report(int state, int end, Hits hits) {
+		for (int t = output[state] >= 0 ? state : outputLink[state]; t >= 0;
+				t = outputLink[t]) {
+			for (int id = output[t]; id >= 0; id = same[id]) {
+				hits.match(id, end);
+			}
+		}
+	}
+
+	public int signatures() {
+		return names.length;
+	}
+
+	public String name(int signature) {
+		return names[signature];
+	}
+
+	public int length(int signature) {
+		return lengths[signature];
+	}
+
+	public int states() {
+		return states;
+	}
+
+	/**
+	 * Reads signatures from a file, one per line. Bytes between | and |
+	 * are given in hex, as in Snort content rules, so "GET|20|/" is
+	 * "GET /". Blank lines and lines starting with # are skipped.
+	 */
+	static SignatureMatcher load(Path file, boolean ignoreCase)
+			throws IOException {
+		List<String> names = new ArrayList<>();
+		List<byte[]> signatures = new ArrayList<>();
+
+		for (String line : Files.readAllLines(file, StandardCharsets.ISO_8859_1)) {
+			if (line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+
+			names.add(line);
+			signatures.add(parse(line));
+		}
+
+		return new SignatureMatcher(names, signatures, ignoreCase);
+	}
+
+	static byte[] parse(String line) {
+		byte[] bytes = new byte[line.length()];
+		int n = 0;
+		boolean hex = false;
+
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+
+			if (c == '|') {
+				hex = !hex;
+			} else if (!hex) {
+				bytes[n++] = (byte) c;
+			} else if (c != ' ') {
+				if (i + 1 >= line.length()) {
+					throw new IllegalArgumentException("Bad signature: " + line);
+				}
+
+				int high = Character.digit(c, 16);
+				int low = Character.digit(line.charAt(++i), 16);
+
+				if (high < 0 || low < 0) {
+					throw new IllegalArgumentException("Bad signature: " + line);
+				}
+
+				bytes[n++] = (byte) (high << 4 | low);
+			}
+		}
+
+		if (hex) {
+			throw new IllegalArgumentException("Bad signature: " + line);
+		}
+
+		return Arrays.copyOf(bytes, n);
+	}
+}
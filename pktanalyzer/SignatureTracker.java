@@ -0,0 +1,314 @@
+/*
+ * SignatureTracker.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Flags TCP and UDP payloads containing any of a set of signatures, using
+ * one SignatureMatcher shared by all workers.
+ *
+ * For TCP the automaton state of each direction of a connection is kept
+ * between segments, in arrays indexed by the FlowTable's flow index, so a
+ * signature split over two segments is still found. The state only carries
+ * over when a segment starts at the next expected sequence number: the
+ * part of a retransmission already scanned is skipped, and after a gap the
+ * state starts over. UDP datagrams are scanned on their own.
+ *
+ * Payloads are scanned in place in the buffer the frame is in, so nothing
+ * is copied however large the segment.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class SignatureTracker implements FlowDispatcher.FlowWorker,
+		SignatureMatcher.Hits {
+	private final SignatureMatcher matcher;
+	private final FlowTable table = new FlowTable();
+
+	// per flow direction, indexed f * 2 + d
+	private int[] state = new int[1024];
+	private int[] nextSeq = new int[1024];
+	private boolean[] synced = new boolean[1024];
+
+	// per flow
+	private long[] flowMatches = new long[512];
+
+	// per signature
+	private final long[] matches;
+	private final long[] flows;
+
+	// flow and signature pairs seen, so flows are counted once
+	private final LongIndexMap seen = new LongIndexMap(64);
+
+	private int flow;
+	private long scanned;
+	private long total;
+
+	SignatureTracker(SignatureMatcher matcher) {
+		this.matcher = matcher;
+
+		matches = new long[matcher.signatures()];
+		flows = new long[matcher.signatures()];
+	}
+
+	@Override
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0) {
+			return;
+		}
+
+		int protocol = FrameLayout.protocol(b, ip);
+		int l4 = FrameLayout.transportOffset(b, ip);
+		int end = FrameLayout.ipv4End(b, ip, frame + length);
+
+		if (l4 < 0) {
+			return;
+		}
+
+		if (protocol == FrameLayout.PROTOCOL_UDP) {
+			int data = l4 + FrameLayout.UDP_HEADER;
+
+			if (data < end) {
+				flow = flow(b, frame, length, timestamp);
+				scan(b, data, end, SignatureMatcher.START);
+			}
+
+			return;
+		}
+
+		if (protocol != FrameLayout.PROTOCOL_TCP
+				|| l4 + FrameLayout.TCP_HEADER > end) {
+			return;
+		}
+
+		flow = flow(b, frame, length, timestamp);
+
+		int d = flow * 2 + (table.forward() ? 0 : 1);
+		int data = l4 + FrameLayout.dataOffset(b, l4);
+		int seq = FrameLayout.sequenceNo(b, l4);
+		int flags = FrameLayout.tcpFlags(b, l4);
+
+		if ((flags & FrameLayout.TCP_SYN) != 0) {
+			// the SYN takes one sequence number
+			synced[d] = true;
+			state[d] = SignatureMatcher.START;
+			nextSeq[d] = seq + 1;
+			return;
+		}
+
+		if (data >= end) {
+			return;
+		}
+
+		if (!synced[d] || seq - nextSeq[d] > 0) {
+			// first segment seen, or a gap
+			synced[d] = true;
+			state[d] = SignatureMatcher.START;
+		} else if (seq - nextSeq[d] < 0) {
+			// retransmission, scan only what is new
+			data += nextSeq[d] - seq;
+			seq = nextSeq[d];
+
+			if (data >= end) {
+				return;
+			}
+		}
+
+		// the segment's length as sent, even if the capture cut it short
+		int sent = Math.max(end, ip + FrameLayout.totalLength(b, ip));
+
+		nextSeq[d] = seq + (sent - data);
+		state[d] = scan(b, data, end, state[d]);
+
+		if (end < sent) {
+			// bytes are missing, so the next segment cannot carry on from here
+			state[d] = SignatureMatcher.START;
+		}
+	}
+
+	private int flow(ByteBuffer b, int frame, int length, long timestamp) {
+		int f = table.add(b, frame, length, timestamp);
+
+		if (f * 2 + 1 >= state.length) {
+			int n = state.length * 2;
+
+			state = Arrays.copyOf(state, n);
+			nextSeq = Arrays.copyOf(nextSeq, n);
+			synced = Arrays.copyOf(synced, n);
+			flowMatches = Arrays.copyOf(flowMatches, n / 2);
+		}
+
+		return f;
+	}
+
+	private int scan(ByteBuffer b, int from, int to, int start) {
+		scanned += to - from;
+
+		return matcher.scan(b, from, to, start, this);
+	}
+
+	@Override
+	public void match(int signature, int end) {
+		total++;
+		matches[signature]++;
+		flowMatches[flow]++;
+
+		long pair = (long) flow << 32 | signature;
+
+		if (seen.indexOf(pair) < 0) {
+			seen.add(pair);
+			flows[signature]++;
+		}
+	}
+
+	/**
+	 * Adds another tracker's counts to this one. Flow lists are kept by
+	 * each worker and listed from all of them by format().
+	 */
+	public void merge(SignatureTracker t) {
+		scanned += t.scanned;
+		total += t.total;
+
+		for (int i = 0; i < matches.length; i++) {
+			matches[i] += t.matches[i];
+			flows[i] += t.flows[i];
+		}
+	}
+
+	/**
+	 * Formats the merged counts in total and the flows with most matches
+	 * across the workers.
+	 */
+	static String format(SignatureTracker total, SignatureTracker[] parts,
+			int limit) {
+		StringBuilder sb = new StringBuilder();
+		SignatureMatcher m = total.matcher;
+		long flowsMatched = 0;
+
+		for (SignatureTracker t : parts) {
+			for (int f = 0; f < t.table.size(); f++) {
+				if (t.flowMatches[f] > 0) {
+					flowsMatched++;
+				}
+			}
+		}
+
+		sb.append("MATCH: signatures = " + m.signatures() + ", states = "
+			+ m.states() + ", bytes scanned = " + total.scanned
+			+ ", matches = " + total.total + ", flows matched = "
+			+ flowsMatched + "\n");
+		sb.append("MATCH:\n");
+		sb.append(String.format("MATCH: %-40s %12s %12s\n", "signature",
+			"matches", "flows"));
+
+		Integer[] signatures = new Integer[m.signatures()];
+
+		for (int i = 0; i < signatures.length; i++) {
+			signatures[i] = i;
+		}
+
+		Arrays.sort(signatures, (x, y) -> Long.compare(total.matches[y],
+			total.matches[x]));
+
+		for (int k = 0; k < Math.min(limit, signatures.length); k++) {
+			int i = signatures[k];
+
+			if (total.matches[i] == 0) {
+				break;
+			}
+
+			sb.append(String.format("MATCH: %-40s %12d %12d\n", m.name(i),
+				total.matches[i], total.flows[i]));
+		}
+
+		sb.append("MATCH:\n");
+
+		// flows with most matches, part in the high half, flow in the low
+		Long[] order = new Long[(int) flowsMatched];
+		int n = 0;
+
+		for (int p = 0; p < parts.length; p++) {
+			for (int f = 0; f < parts[p].table.size(); f++) {
+				if (parts[p].flowMatches[f] > 0) {
+					order[n++] = (long) p << 32 | f;
+				}
+			}
+		}
+
+		Arrays.sort(order, (x, y) -> Long.compare(
+			parts[(int) (y >>> 32)].flowMatches[(int) (long) y],
+			parts[(int) (x >>> 32)].flowMatches[(int) (long) x]));
+
+		for (int k = 0; k < Math.min(limit, n); k++) {
+			SignatureTracker t = parts[(int) (order[k] >>> 32)];
+			int f = (int) (long) order[k];
+
+			sb.append("MATCH: " + t.table.toString(f) + " matches = "
+				+ t.flowMatches[f] + "\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry:
+	 * --match [-w workers] [-n rows] [-i] signatures capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int limit = 20;
+		boolean ignoreCase = false;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				n = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-i")) {
+				ignoreCase = true;
+			} else {
+				break;
+			}
+		}
+
+		if (i + 1 >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --match [-w workers] [-n rows] [-i]"
+				+ " signatures capture...");
+		}
+
+		SignatureMatcher matcher = SignatureMatcher.load(dir.resolve(args[i++]),
+			ignoreCase);
+		SignatureTracker[] parts = new SignatureTracker[n];
+
+		for (int w = 0; w < n; w++) {
+			parts[w] = new SignatureTracker(matcher);
+		}
+
+		FlowDispatcher.runAll(parts, dir, args, i);
+
+		SignatureTracker total = new SignatureTracker(matcher);
+
+		for (SignatureTracker t : parts) {
+			total.merge(t);
+		}
+
+		out.print(format(total, parts, limit));
+	}
+}
@@ -0,0 +1,673 @@
+/*
+ * TcpAnalyzer.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Per-connection TCP performance analysis: round trip times,
+ * retransmissions, out-of-order segments, duplicate ACKs, zero windows and
+ * full windows.
+ *
+ * Connections are found through a FlowTable, whose flow index also indexes
+ * this class's state. Each direction of a connection keeps the next
+ * expected sequence number, the last ACK and window it sent, and a small
+ * ring of in-flight segments (end sequence number and time sent). An ACK
+ * that covers ring entries gives an RTT sample from the newest of them;
+ * entries covered by a retransmission are dropped so that ambiguous
+ * samples are never taken (Karn's algorithm). Everything is held in
+ * primitive arrays, around 150 bytes per connection. Advertised windows are
+ * scaled by the shift the SYNs negotiated, read with TcpOptions.
+ *
+ * A segment below the next expected sequence number is counted as out of
+ * order if it arrives within one RTT (at least 3 ms) of the highest
+ * segment, and as a retransmission otherwise. One above it means segments
+ * were lost before the capture point, or are about to arrive out of order,
+ * and is counted as a gap.
+ *
+ * A connection idle for the idle timeout, in capture time, is retired:
+ * its counts go into running totals, it is kept for the report only if it
+ * ranks among the connections to be listed, and it is removed from the
+ * FlowTable, so memory follows the connections still open rather than
+ * every connection ever seen. A later segment on the same addresses and
+ * ports starts a new connection.
+ *
+ * Reference: https://www.rfc-editor.org/rfc/rfc6298
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class TcpAnalyzer implements FlowDispatcher.FlowWorker {
+	// in-flight segments remembered per direction
+	static final int IN_FLIGHT = 4;
+
+	// shortest out-of-order window, the whole one is the minimum RTT
+	static final long DEFAULT_REORDER = 3_000_000;
+
+	// capture time between looks for idle connections
+	static final long SWEEP_INTERVAL = 1_000_000_000L;
+
+	// direction state bits
+	private static final int SEEN_SEQ = 1;
+	private static final int SEEN_ACK = 2;
+	private static final int ZERO_WINDOW = 4;
+	private static final int SCALE_OFFERED = 8;
+
+	private final FlowTable table = new FlowTable();
+	private final LatencyHistogram rtt = new LatencyHistogram();
+	private final TcpOptions options = new TcpOptions();
+
+	private final long idle;
+
+	private int capacity = 512;
+
+	// per direction, indexed flow * 2 + (0 for A to B, 1 for B to A)
+	private byte[] state = new byte[capacity * 2];
+	private int[] nextSeq = new int[capacity * 2];
+	private int[] lastAck = new int[capacity * 2];
+	private int[] window = new int[capacity * 2];
+
+	// window scale shift, 0 unless both SYNs offered one
+	private byte[] windowScale = new byte[capacity * 2];
+
+	// when the highest segment was sent
+	private long[] lastData = new long[capacity * 2];
+
+	// in-flight ring per direction, time 0 marking an empty entry
+	private int[] flightEnd = new int[capacity * 2 * IN_FLIGHT];
+	private long[] flightTime = new long[capacity * 2 * IN_FLIGHT];
+	private byte[] flightNext = new byte[capacity * 2];
+
+	// per flow
+	private int[] retransmissions = new int[capacity];
+	private int[] outOfOrder = new int[capacity];
+	private int[] gaps = new int[capacity];
+	private int[] dupAcks = new int[capacity];
+	private int[] zeroWindows = new int[capacity];
+	private int[] windowFull = new int[capacity];
+	private int[] resets = new int[capacity];
+	private int[] rttCount = new int[capacity];
+	private long[] rttSum = new long[capacity];
+	private long[] rttMin = new long[capacity];
+	private long[] rttMax = new long[capacity];
+
+	private long frames;
+
+	// capture time of the latest segment and of the last sweep
+	private long now;
+	private long swept;
+
+	// counts of retired connections, as in format()
+	private long retiredFlows;
+	private final long[] retiredTotals = new long[7];
+
+	// retired connections that may be listed, at most limit of them
+	private final long[] keptProblems;
+	private final long[] keptBytes;
+	private final String[] keptSummary;
+	private int kept;
+
+	TcpAnalyzer(long idleNanos, int limit) {
+		this.idle = idleNanos;
+
+		keptProblems = new long[limit];
+		keptBytes = new long[limit];
+		keptSummary = new String[limit];
+	}
+
+	/**
+	 * Analyses one frame; anything but a TCP segment is ignored.
+	 */
+	@Override
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0 || FrameLayout.protocol(b, ip) != FrameLayout.PROTOCOL_TCP) {
+			return;
+		}
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+
+		if (l4 < 0 || l4 + FrameLayout.TCP_HEADER > frame + length) {
+			return;
+		}
+
+		if (now == 0) {
+			swept = timestamp;
+		}
+
+		if (timestamp > now) {
+			now = timestamp;
+
+			if (now - swept >= SWEEP_INTERVAL) {
+				sweep();
+				swept = now;
+			}
+		}
+
+		int f = table.add(b, frame, length, timestamp);
+
+		if (f >= capacity) {
+			grow();
+		}
+
+		frames++;
+
+		int s = f * 2 + (table.forward() ? 0 : 1);
+		int r = s ^ 1;
+
+		int flags = FrameLayout.tcpFlags(b, l4);
+		int seq = FrameLayout.sequenceNo(b, l4);
+		int ack = FrameLayout.ackNo(b, l4);
+		int win = FrameLayout.windowSize(b, l4);
+
+		// payload from the header lengths, so snapped frames count in full
+		int payload = Math.max(0, FrameLayout.totalLength(b, ip)
+			- FrameLayout.ihl(b, ip) - FrameLayout.dataOffset(b, l4));
+		boolean syn = (flags & FrameLayout.TCP_SYN) != 0;
+		boolean fin = (flags & FrameLayout.TCP_FIN) != 0;
+		boolean rst = (flags & FrameLayout.TCP_RST) != 0;
+		int segment = payload + (syn ? 1 : 0) + (fin ? 1 : 0);
+
+		if (rst) {
+			resets[f]++;
+		}
+
+		if (syn) {
+			scale(s, r, (flags & FrameLayout.TCP_ACK) != 0,
+				options.header(b, l4, frame + length).parse().windowScale());
+		}
+
+		if (segment > 0) {
+			sequence(f, s, r, seq, segment, timestamp);
+		}
+
+		if ((flags & FrameLayout.TCP_ACK) != 0 && !rst) {
+			acknowledge(f, s, r, ack, win, payload == 0 && !syn && !fin,
+				timestamp);
+		}
+	}
+
+	/**
+	 * Sequence side of a segment of the given length sent in direction s.
+	 */
+	private void sequence(int f, int s, int r, int seq, int segment,
+			long timestamp) {
+		int end = seq + segment;
+
+		if ((state[s] & SEEN_SEQ) == 0 || seq == nextSeq[s]) {
+			// in order
+			state[s] |= SEEN_SEQ;
+			nextSeq[s] = end;
+			lastData[s] = timestamp;
+			sent(s, end, timestamp);
+		} else if (seq - nextSeq[s] > 0) {
+			// earlier segments were not captured
+			gaps[f]++;
+			nextSeq[s] = end;
+			lastData[s] = timestamp;
+			sent(s, end, timestamp);
+		} else if (segment == 1 && end == nextSeq[s]) {
+			// keep-alive, one byte below the next sequence number
+			return;
+		} else {
+			long reorder = Math.max(rttCount[f] > 0 ? rttMin[f] : 0,
+				DEFAULT_REORDER);
+
+			if (timestamp - lastData[s] < reorder) {
+				outOfOrder[f]++;
+			} else {
+				retransmissions[f]++;
+			}
+
+			// samples over the resent range would be ambiguous
+			forget(s, seq);
+
+			if (end - nextSeq[s] > 0) {
+				nextSeq[s] = end;
+			}
+		}
+
+		// the sender has filled the window the receiver last offered
+		if ((state[r] & SEEN_ACK) != 0 && window[r] > 0
+				&& nextSeq[s] - lastAck[r]
+					>= (long) window[r] << windowScale[r]) {
+			windowFull[f]++;
+		}
+	}
+
+	/**
+	 * ACK side of a segment sent in direction s.
+	 */
+	private void acknowledge(int f, int s, int r, int ack, int win,
+			boolean pure, long timestamp) {
+		if ((state[s] & SEEN_ACK) == 0 || ack - lastAck[s] > 0) {
+			// new data acknowledged
+			long sentAt = covered(r, ack);
+
+			if (sentAt > 0) {
+				sample(f, timestamp - sentAt);
+			}
+		} else if (pure && ack == lastAck[s] && win == window[s]
+				&& (state[r] & SEEN_SEQ) != 0 && nextSeq[r] != ack) {
+			dupAcks[f]++;
+		}
+
+		if (win == 0) {
+			if ((state[s] & ZERO_WINDOW) == 0) {
+				zeroWindows[f]++;
+			}
+
+			state[s] |= ZERO_WINDOW;
+		} else {
+			state[s] &= ~ZERO_WINDOW;
+		}
+
+		if ((state[s] & SEEN_ACK) == 0 || ack - lastAck[s] > 0) {
+			lastAck[s] = ack;
+		}
+
+		state[s] |= SEEN_ACK;
+		window[s] = win;
+	}
+
+	/**
+	 * Window scale from a SYN sent in direction s. Scaling only applies
+	 * once the SYN/ACK shows both ends offered it (RFC 7323).
+	 */
+	private void scale(int s, int r, boolean synAck, int shift) {
+		if (shift >= 0) {
+			state[s] |= SCALE_OFFERED;
+			windowScale[s] = (byte) shift;
+		} else {
+			state[s] &= ~SCALE_OFFERED;
+			windowScale[s] = 0;
+		}
+
+		if (synAck && (state[r] & state[s] & SCALE_OFFERED) == 0) {
+			windowScale[s] = 0;
+			windowScale[r] = 0;
+		}
+	}
+
+	private void sent(int s, int end, long timestamp) {
+		int j = s * IN_FLIGHT + flightNext[s];
+
+		flightEnd[j] = end;
+		flightTime[j] = timestamp;
+		flightNext[s] = (byte) ((flightNext[s] + 1) % IN_FLIGHT);
+	}
+
+	/**
+	 * Clears the in-flight entries of direction s that ack covers and
+	 * returns when the newest of them was sent, or 0 if none.
+	 */
+	private long covered(int s, int ack) {
+		long newest = 0;
+
+		for (int j = s * IN_FLIGHT; j < (s + 1) * IN_FLIGHT; j++) {
+			if (flightTime[j] != 0 && flightEnd[j] - ack <= 0) {
+				newest = Math.max(newest, flightTime[j]);
+				flightTime[j] = 0;
+			}
+		}
+
+		return newest;
+	}
+
+	/**
+	 * Clears the in-flight entries of direction s ending after seq.
+	 */
+	private void forget(int s, int seq) {
+		for (int j = s * IN_FLIGHT; j < (s + 1) * IN_FLIGHT; j++) {
+			if (flightEnd[j] - seq > 0) {
+				flightTime[j] = 0;
+			}
+		}
+	}
+
+	private void sample(int f, long nanos) {
+		rtt.record(nanos);
+
+		if (rttCount[f] == 0 || nanos < rttMin[f]) {
+			rttMin[f] = nanos;
+		}
+
+		rttMax[f] = Math.max(rttMax[f], nanos);
+		rttSum[f] += nanos;
+		rttCount[f]++;
+	}
+
+	private void grow() {
+		capacity *= 2;
+
+		int d = capacity * 2;
+
+		state = Arrays.copyOf(state, d);
+		nextSeq = Arrays.copyOf(nextSeq, d);
+		lastAck = Arrays.copyOf(lastAck, d);
+		window = Arrays.copyOf(window, d);
+		windowScale = Arrays.copyOf(windowScale, d);
+		lastData = Arrays.copyOf(lastData, d);
+		flightEnd = Arrays.copyOf(flightEnd, d * IN_FLIGHT);
+		flightTime = Arrays.copyOf(flightTime, d * IN_FLIGHT);
+		flightNext = Arrays.copyOf(flightNext, d);
+
+		retransmissions = Arrays.copyOf(retransmissions, capacity);
+		outOfOrder = Arrays.copyOf(outOfOrder, capacity);
+		gaps = Arrays.copyOf(gaps, capacity);
+		dupAcks = Arrays.copyOf(dupAcks, capacity);
+		zeroWindows = Arrays.copyOf(zeroWindows, capacity);
+		windowFull = Arrays.copyOf(windowFull, capacity);
+		resets = Arrays.copyOf(resets, capacity);
+		rttCount = Arrays.copyOf(rttCount, capacity);
+		rttSum = Arrays.copyOf(rttSum, capacity);
+		rttMin = Arrays.copyOf(rttMin, capacity);
+		rttMax = Arrays.copyOf(rttMax, capacity);
+	}
+
+	/**
+	 * Retires the connections idle for the timeout.
+	 */
+	private void sweep() {
+		// from the end, as removing moves the last flow into the hole
+		for (int f = table.size() - 1; f >= 0; f--) {
+			if (now - table.last(f) >= idle) {
+				retire(f);
+			}
+		}
+	}
+
+	/**
+	 * Adds flow f's counts to the retired totals, keeps its summary if it
+	 * ranks among the listed ones, and removes it.
+	 */
+	private void retire(int f) {
+		retiredFlows++;
+		retiredTotals[0] += retransmissions[f];
+		retiredTotals[1] += outOfOrder[f];
+		retiredTotals[2] += gaps[f];
+		retiredTotals[3] += dupAcks[f];
+		retiredTotals[4] += zeroWindows[f];
+		retiredTotals[5] += windowFull[f];
+		retiredTotals[6] += resets[f];
+
+		long p = problems(f);
+		long bytes = table.bytes(f);
+		int k = kept;
+
+		if (kept == keptSummary.length) {
+			// replace the lowest ranked one, if this one ranks higher
+			k = -1;
+
+			for (int j = 0; j < kept; j++) {
+				if (rank(p, bytes, keptProblems[j], keptBytes[j]) > 0
+						&& (k < 0 || rank(keptProblems[k], keptBytes[k],
+							keptProblems[j], keptBytes[j]) > 0)) {
+					k = j;
+				}
+			}
+		} else {
+			kept++;
+		}
+
+		if (k >= 0) {
+			keptProblems[k] = p;
+			keptBytes[k] = bytes;
+			keptSummary[k] = summary(f);
+		}
+
+		remove(f);
+	}
+
+	/**
+	 * Positive if a connection with these counts is listed before one with
+	 * the others: most problems first, then most bytes.
+	 */
+	private static int rank(long problems, long bytes, long otherProblems,
+			long otherBytes) {
+		int c = Long.compare(problems, otherProblems);
+
+		return c != 0 ? c : Long.compare(bytes, otherBytes);
+	}
+
+	/**
+	 * Removes flow f from the table, moving the last flow's state into its
+	 * place as the table does and clearing the slot that frees.
+	 */
+	private void remove(int f) {
+		int moved = table.size() - 1;
+
+		for (int d = 0; d < 2; d++) {
+			int s = f * 2 + d;
+			int m = moved * 2 + d;
+
+			state[s] = state[m];
+			nextSeq[s] = nextSeq[m];
+			lastAck[s] = lastAck[m];
+			window[s] = window[m];
+			windowScale[s] = windowScale[m];
+			lastData[s] = lastData[m];
+			flightNext[s] = flightNext[m];
+			System.arraycopy(flightEnd, m * IN_FLIGHT, flightEnd, s * IN_FLIGHT,
+				IN_FLIGHT);
+			System.arraycopy(flightTime, m * IN_FLIGHT, flightTime,
+				s * IN_FLIGHT, IN_FLIGHT);
+
+			state[m] = 0;
+			nextSeq[m] = 0;
+			lastAck[m] = 0;
+			window[m] = 0;
+			windowScale[m] = 0;
+			lastData[m] = 0;
+			flightNext[m] = 0;
+			Arrays.fill(flightEnd, m * IN_FLIGHT, (m + 1) * IN_FLIGHT, 0);
+			Arrays.fill(flightTime, m * IN_FLIGHT, (m + 1) * IN_FLIGHT, 0);
+		}
+
+		retransmissions[f] = retransmissions[moved];
+		outOfOrder[f] = outOfOrder[moved];
+		gaps[f] = gaps[moved];
+		dupAcks[f] = dupAcks[moved];
+		zeroWindows[f] = zeroWindows[moved];
+		windowFull[f] = windowFull[moved];
+		resets[f] = resets[moved];
+		rttCount[f] = rttCount[moved];
+		rttSum[f] = rttSum[moved];
+		rttMin[f] = rttMin[moved];
+		rttMax[f] = rttMax[moved];
+
+		retransmissions[moved] = 0;
+		outOfOrder[moved] = 0;
+		gaps[moved] = 0;
+		dupAcks[moved] = 0;
+		zeroWindows[moved] = 0;
+		windowFull[moved] = 0;
+		resets[moved] = 0;
+		rttCount[moved] = 0;
+		rttSum[moved] = 0;
+		rttMin[moved] = 0;
+		rttMax[moved] = 0;
+
+		table.remove(f);
+	}
+
+	/**
+	 * Events that point at a problem on flow f.
+	 */
+	private long problems(int f) {
+		return (long) retransmissions[f] + outOfOrder[f] + gaps[f]
+			+ dupAcks[f] + zeroWindows[f] + windowFull[f];
+	}
+
+	// a live flow if i >= 0, else retired connection ~i
+
+	private long listedProblems(int i) {
+		return i >= 0 ? problems(i) : keptProblems[~i];
+	}
+
+	private long listedBytes(int i) {
+		return i >= 0 ? table.bytes(i) : keptBytes[~i];
+	}
+
+	private String summary(int f) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append(table.toString(f) + " packets = " + table.packets(f)
+			+ " bytes = " + table.bytes(f) + "\n");
+		sb.append("TCP:     rtt");
+
+		if (rttCount[f] == 0) {
+			sb.append(" -");
+		} else {
+			sb.append(" min/mean/max = " + LatencyHistogram.duration(rttMin[f])
+				+ " / " + LatencyHistogram.duration(rttSum[f] / rttCount[f])
+				+ " / " + LatencyHistogram.duration(rttMax[f]) + " ("
+				+ rttCount[f] + ")");
+		}
+
+		sb.append(", retrans = " + retransmissions[f] + ", ooo = "
+			+ outOfOrder[f] + ", gaps = " + gaps[f] + ", dup acks = "
+			+ dupAcks[f] + ", zero win = " + zeroWindows[f] + ", win full = "
+			+ windowFull[f] + ", rst = " + resets[f]);
+
+		return sb.toString();
+	}
+
+	/**
+	 * Totals over every part, the RTT histogram and the flows with the
+	 * most problems, then the most bytes.
+	 */
+	static String format(TcpAnalyzer[] parts, int limit) {
+		long frames = 0;
+		long flows = 0;
+		long[] totals = new long[7];
+		LatencyHistogram all = new LatencyHistogram();
+
+		for (TcpAnalyzer t : parts) {
+			frames += t.frames;
+			flows += t.table.size() + t.retiredFlows;
+			all.merge(t.rtt);
+
+			for (int i = 0; i < totals.length; i++) {
+				totals[i] += t.retiredTotals[i];
+			}
+
+			for (int f = 0; f < t.table.size(); f++) {
+				totals[0] += t.retransmissions[f];
+				totals[1] += t.outOfOrder[f];
+				totals[2] += t.gaps[f];
+				totals[3] += t.dupAcks[f];
+				totals[4] += t.zeroWindows[f];
+				totals[5] += t.windowFull[f];
+				totals[6] += t.resets[f];
+			}
+		}
+
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("TCP: " + flows + " connections, " + frames + " segments, "
+			+ parts.length + " workers\n");
+		sb.append("TCP: retransmissions = " + totals[0] + ", out of order = "
+			+ totals[1] + ", gaps = " + totals[2] + ", dup acks = "
+			+ totals[3] + "\n");
+		sb.append("TCP: zero window = " + totals[4] + ", window full = "
+			+ totals[5] + ", resets = " + totals[6] + "\n");
+		sb.append("TCP:\n");
+		sb.append("TCP: rtt\n");
+		sb.append(all.format("TCP: "));
+		sb.append("TCP:\n");
+
+		// part in the high half; in the low half the flow, or the bitwise
+		// complement of the index of a retired connection kept for listing
+		int listed = 0;
+
+		for (TcpAnalyzer t : parts) {
+			listed += t.table.size() + t.kept;
+		}
+
+		Long[] order = new Long[listed];
+		int n = 0;
+
+		for (int p = 0; p < parts.length; p++) {
+			for (int f = 0; f < parts[p].table.size(); f++) {
+				order[n++] = (long) p << 32 | f;
+			}
+
+			for (int k = 0; k < parts[p].kept; k++) {
+				order[n++] = (long) p << 32 | (~k & 0xffffffffL);
+			}
+		}
+
+		Arrays.sort(order, (x, y) -> {
+			TcpAnalyzer a = parts[(int) (x >>> 32)];
+			TcpAnalyzer z = parts[(int) (y >>> 32)];
+			int i = (int) (long) x;
+			int j = (int) (long) y;
+
+			return rank(z.listedProblems(j), z.listedBytes(j),
+				a.listedProblems(i), a.listedBytes(i));
+		});
+
+		for (int k = 0; k < Math.min(limit, n); k++) {
+			TcpAnalyzer t = parts[(int) (order[k] >>> 32)];
+			int i = (int) (long) order[k];
+
+			sb.append("TCP: " + (i >= 0 ? t.summary(i) : t.keptSummary[~i])
+				+ "\n");
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry:
+	 *   --tcp [-w workers] [-n flows] [-idle s] capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int limit = 20;
+		long idleSeconds = 60;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				n = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-idle")) {
+				idleSeconds = Long.parseLong(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --tcp [-w workers] [-n flows] [-idle s]"
+				+ " capture...");
+		}
+
+		TcpAnalyzer[] parts = new TcpAnalyzer[n];
+
+		for (int w = 0; w < n; w++) {
+			parts[w] = new TcpAnalyzer(idleSeconds * 1_000_000_000L, limit);
+		}
+
+		FlowDispatcher.runAll(parts, dir, args, i);
+
+		out.print(format(parts, limit));
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * TcpOptions.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks the options of a TCP header in place.
+ *
+ * The walk itself is TlvOptions'. parse() does the whole walk and keeps
+ * the options this program uses: MSS, window scale, SACK permitted, SACK
+ * blocks and timestamps. One instance is meant to be reused for every
+ * segment; nothing is allocated per call. A malformed option ends the walk;
+ * options before it are kept.
+ *
+ * Reference: https://www.iana.org/assignments/tcp-parameters
+ *            https://www.rfc-editor.org/rfc/rfc7323
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class TcpOptions extends TlvOptions {
+	// option kinds, besides END and NOP
+	static final int MSS = 2;
+	static final int WINDOW_SCALE = 3;
+	static final int SACK_PERMITTED = 4;
+	static final int SACK = 5;
+	static final int TIMESTAMPS = 8;
+
+	// at most this many SACK blocks fit in the option space
+	static final int MAX_SACK_BLOCKS = 4;
+
+	// largest shift allowed by RFC 7323
+	static final int MAX_WINDOW_SCALE = 14;
+
+	// options kept by parse()
+	private int mss;
+	private int windowScale;
+	private boolean sackPermitted;
+	private int sackBlocks;
+	private final int[] sackLeft = new int[MAX_SACK_BLOCKS];
+	private final int[] sackRight = new int[MAX_SACK_BLOCKS];
+	private boolean timestamps;
+	private int tsVal;
+	private int tsEcr;
+
+	/**
+	 * Starts a walk over the options from offset from up to to.
+	 */
+	@Override
+	public TcpOptions reset(ByteBuffer b, int from, int to) {
+		super.reset(b, from, to);
+
+		mss = -1;
+		windowScale = -1;
+		sackPermitted = false;
+		sackBlocks = 0;
+		timestamps = false;
+
+		return this;
+	}
+
+	/**
+	 * Starts a walk over the options of the TCP header at l4, stopping at
+	 * frameEnd if the frame was cut short.
+	 */
+	public TcpOptions header(ByteBuffer b, int l4, int frameEnd) {
+		return reset(b, l4 + FrameLayout.TCP_HEADER,
+			Math.min(l4 + FrameLayout.dataOffset(b, l4), frameEnd));
+	}
+
+	/**
+	 * Walks every option, keeping the ones with accessors below.
+	 */
+	public TcpOptions parse() {
+		ByteBuffer b = buffer();
+
+		while (next()) {
+			int value = valueOffset();
+			int length = length();
+
+			switch (code()) {
+				case MSS:
+					if (length == 4) {
+						mss = FrameLayout.u16(b, value);
+					}
+					break;
+
+				case WINDOW_SCALE:
+					if (length == 3) {
+						windowScale = Math.min(FrameLayout.u8(b, value),
+							MAX_WINDOW_SCALE);
+					}
+					break;
+
+				case SACK_PERMITTED:
+					sackPermitted = length == 2;
+					break;
+
+				case SACK:
+					sackBlocks = Math.min((length - 2) / 8, MAX_SACK_BLOCKS);
+
+					for (int i = 0; i < sackBlocks; i++) {
+						sackLeft[i] = FrameLayout.u32(b, value + i * 8);
+						sackRight[i] = FrameLayout.u32(b, value + i * 8 + 4);
+					}
+					break;
+
+				case TIMESTAMPS:
+					if (length == 10) {
+						timestamps = true;
+						tsVal = FrameLayout.u32(b, value);
+						tsEcr = FrameLayout.u32(b, value + 4);
+					}
+					break;
+
+				default:
+					// not used, skipped by its length
+			}
+		}
+
+		return this;
+	}
+
+	// the option next() stopped at
+
+	public int kind() {
+		return code();
+	}
+
+	// options kept by parse(), -1 or false when absent
+
+	public int mss() {
+		return mss;
+	}
+
+	public int windowScale() {
+		return windowScale;
+	}
+
+	public boolean sackPermitted() {
+		return sackPermitted;
+	}
+
+	public int sackBlocks() {
+		return sackBlocks;
+	}
+
+	public int sackLeft(int i) {
+		return sackLeft[i];
+	}
+
+	public int sackRight(int i) {
+		return sackRight[i];
+	}
+
+	public boolean timestamps() {
+		return timestamps;
+	}
+
+	public int tsVal() {
+		return tsVal;
+	}
+
+	public int tsEcr() {
+		return tsEcr;
+	}
+}
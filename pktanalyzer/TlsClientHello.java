@@ -0,0 +1,533 @@
+/*
+ * TlsClientHello.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Decodes a TLS ClientHello at the start of a TCP payload, in place: the
+ * server name (SNI), ALPN protocols, offered versions, cipher suites and
+ * extensions, and a JA3 fingerprint of them.
+ *
+ * The first six bytes must be a handshake record of a known version
+ * carrying a ClientHello, so other payloads are turned away after a couple
+ * of compares. Values are kept as offsets and lengths into the buffer;
+ * Strings are only made by the accessors that return them.
+ *
+ * The fingerprint is the MD5 of the JA3 string, fed to the digest as the
+ * fields are walked rather than built up first: the version, the cipher
+ * suites, the extension types, then a second walk over the extensions for
+ * the supported groups and point formats. GREASE values are skipped, as
+ * JA3 does. A ClientHello that goes on past the segment given is decoded
+ * as far as it goes, but gets no fingerprint.
+ *
+ * Reference: https://www.rfc-editor.org/rfc/rfc8446
+ *            https://github.com/salesforce/ja3
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class TlsClientHello {
+	static final int RECORD_HEADER = 5;
+	static final int CONTENT_HANDSHAKE = 22;
+	static final int CLIENT_HELLO = 1;
+
+	// extension types looked at
+	static final int EXT_SERVER_NAME = 0;
+	static final int EXT_SUPPORTED_GROUPS = 10;
+	static final int EXT_POINT_FORMATS = 11;
+	static final int EXT_ALPN = 16;
+	static final int EXT_SUPPORTED_VERSIONS = 43;
+
+	private final MessageDigest md5;
+	private final byte[] digest = new byte[16];
+
+	// decimal text waiting to go to the digest
+	private final byte[] text = new byte[64];
+	private int textLength;
+
+	private ByteBuffer b;
+
+	private int version;
+	private int highestVersion;
+	private boolean complete;
+	private boolean fingerprinted;
+
+	// offsets of the lists, -1 when absent
+	private int ciphers;
+	private int cipherLength;
+	private int extensions;
+	private int extensionsEnd;
+	private int extensionCount;
+
+	private int serverName;
+	private int serverNameLength;
+	private int alpn;
+	private int alpnLength;
+
+	TlsClientHello() {
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Quick check that the payload from from up to to starts a TLS
+	 * ClientHello record.
+	 */
+	static boolean isClientHello(ByteBuffer b, int from, int to) {
+		return from + RECORD_HEADER + 1 <= to
+			&& FrameLayout.u8(b, from) == CONTENT_HANDSHAKE
+			&& FrameLayout.u8(b, from + 1) == 3
+			&& FrameLayout.u8(b, from + 2) <= 4
+			&& FrameLayout.u8(b, from + RECORD_HEADER) == CLIENT_HELLO;
+	}
+
+	/**
+	 * Decodes the ClientHello starting at from. Returns false if the
+	 * payload is not one, or it is malformed in the part that is there.
+	 */
+	public boolean parse(ByteBuffer b, int from, int to) {
+		this.b = b;
+
+		complete = false;
+		fingerprinted = false;
+		ciphers = -1;
+		cipherLength = 0;
+		extensions = -1;
+		extensionsEnd = -1;
+		extensionCount = 0;
+		serverName = -1;
+		serverNameLength = 0;
+		alpn = -1;
+		alpnLength = 0;
+
+		if (!isClientHello(b, from, to)) {
+			return false;
+		}
+
+		int record = from + RECORD_HEADER;
+		int recordEnd = record + FrameLayout.u16(b, from + 3);
+		int hello = record + 4;
+		int helloEnd = hello + (FrameLayout.u32(b, record) & 0xffffff);
+
+		// what the record and the segment both hold
+		int end = Math.min(Math.min(recordEnd, helloEnd), to);
+
+		// legacy version, random, session ID
+		if (hello + 35 > end) {
+			return false;
+		}
+
+		version = FrameLayout.u16(b, hello);
+		highestVersion = version;
+
+		int p = hello + 34;
+
+		p += 1 + FrameLayout.u8(b, p);
+
+		if (p + 2 > end) {
+			return p <= end;
+		}
+
+		cipherLength = FrameLayout.u16(b, p);
+		ciphers = p + 2;
+
+		if ((cipherLength & 1) != 0) {
+			return false;
+		}
+
+		p = ciphers + cipherLength;
+
+		if (p + 1 > end) {
+			return p <= end;
+		}
+
+		// compression methods
+		p += 1 + FrameLayout.u8(b, p);
+
+		if (p + 2 > end) {
+			// a ClientHello may end before the extensions
+			complete = p == helloEnd && helloEnd <= to && helloEnd <= recordEnd;
+			return p <= end;
+		}
+
+		extensions = p + 2;
+		extensionsEnd = Math.min(extensions + FrameLayout.u16(b, p), end);
+
+		for (p = extensions; p + 4 <= extensionsEnd;) {
+			int type = FrameLayout.u16(b, p);
+			int length = FrameLayout.u16(b, p + 2);
+			int value = p + 4;
+
+			if (value + length > extensionsEnd) {
+				break;
+			}
+
+			extension(type, value, length);
+			extensionCount++;
+			p = value + length;
+		}
+
+		extensionsEnd = p;
+		complete = p == helloEnd && helloEnd <= to && helloEnd <= recordEnd;
+
+		return true;
+	}
+
+	private void extension(int type, int value, int length) {
+		switch (type) {
+			case EXT_SERVER_NAME:
+				// list of (type, length, name); host_name is type 0
+				if (length >= 5 && FrameLayout.u8(b, value + 2) == 0) {
+					int n = FrameLayout.u16(b, value + 3);
+
+					if (value + 5 + n <= value + length) {
+						serverName = value + 5;
+						serverNameLength = n;
+					}
+				}
+				break;
+
+			case EXT_ALPN:
+				if (length >= 2) {
+					alpn = value + 2;
+					alpnLength = Math.min(FrameLayout.u16(b, value), length - 2);
+				}
+				break;
+
+			case EXT_SUPPORTED_VERSIONS:
+				if (length >= 1) {
+					int n = Math.min(FrameLayout.u8(b, value), length - 1);
+
+					for (int i = value + 1; i + 2 <= value + 1 + n; i += 2) {
+						int v = FrameLayout.u16(b, i);
+
+						if (!grease(v) && v > highestVersion) {
+							highestVersion = v;
+						}
+					}
+				}
+				break;
+
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * The JA3 fingerprint, or null if the ClientHello was not all in the
+	 * segment. Overwritten by the next fingerprint().
+	 */
+	public byte[] fingerprint() {
+		if (!complete) {
+			return null;
+		}
+
+		if (fingerprinted) {
+			return digest;
+		}
+
+		md5.reset();
+		textLength = 0;
+
+		number(version);
+		separator(',');
+
+		boolean first = true;
+
+		for (int i = ciphers; i < ciphers + cipherLength; i += 2) {
+			first = value(FrameLayout.u16(b, i), first);
+		}
+
+		separator(',');
+		first = true;
+
+		for (int p = extensions; p >= 0 && p < extensionsEnd;) {
+			first = value(FrameLayout.u16(b, p), first);
+			p += 4 + FrameLayout.u16(b, p + 2);
+		}
+
+		// supported groups, then point formats
+		separator(',');
+		list(EXT_SUPPORTED_GROUPS, 2);
+		separator(',');
+		list(EXT_POINT_FORMATS, 1);
+
+		flush();
+
+		try {
+			md5.digest(digest, 0, digest.length);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		}
+
+		fingerprinted = true;
+		return digest;
+	}
+
+	/**
+	 * Feeds the values of the list extension of the given type, each size
+	 * bytes wide, to the digest.
+	 */
+	private void list(int type, int size) {
+		for (int p = extensions; p >= 0 && p < extensionsEnd;) {
+			int length = FrameLayout.u16(b, p + 2);
+			int value = p + 4;
+
+			p = value + length;
+
+			if (FrameLayout.u16(b, value - 4) != type || length < size) {
+				continue;
+			}
+
+			// groups have a two byte list length, point formats one
+			int n = size == 2 ? FrameLayout.u16(b, value) : FrameLayout.u8(b, value);
+			int end = Math.min(value + size + n, p);
+			boolean first = true;
+
+			for (int i = value + size; i + size <= end; i += size) {
+				first = value(size == 2 ? FrameLayout.u16(b, i)
+					: FrameLayout.u8(b, i), first);
+			}
+
+			return;
+		}
+	}
+
+	private boolean value(int v, boolean first) {
+		if (grease(v)) {
+			return first;
+		}
+
+		if (!first) {
+			separator('-');
+		}
+
+		number(v);
+		return false;
+	}
+
+	private void number(int v) {
+		if (textLength + 5 > text.length) {
+			flush();
+		}
+
+		// at most five digits
+		int digits = v >= 10000 ? 5 : v >= 1000 ? 4 : v >= 100 ? 3
+			: v >= 10 ? 2 : 1;
+
+		for (int i = textLength + digits - 1; i >= textLength; i--) {
+			text[i] = (byte) ('0' + v % 10);
+			v /= 10;
+		}
+
+		textLength += digits;
+	}
+
+	private void separator(char c) {
+		if (textLength == text.length) {
+			flush();
+		}
+
+		text[textLength++] = (byte) c;
+	}
+
+	private void flush() {
+		md5.update(text, 0, textLength);
+		textLength = 0;
+	}
+
+	/**
+	 * GREASE values (RFC 8701) are 0x0a0a, 0x1a1a ... 0xfafa.
+	 */
+	static boolean grease(int v) {
+		return (v & 0x0f0f) == 0x0a0a && (v >> 8) == (v & 0xff);
+	}
+
+	static String versionLabel(int version) {
+		switch (version) {
+			case 0x0300:
+				return "SSL 3.0";
+
+			case 0x0301:
+				return "TLS 1.0";
+
+			case 0x0302:
+				return "TLS 1.1";
+
+			case 0x0303:
+				return "TLS 1.2";
+
+			case 0x0304:
+				return "TLS 1.3";
+
+			default:
+				return String.format("0x%04x", version);
+		}
+	}
+
+	static String hex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+		for (byte x : bytes) {
+			sb.append(String.format("%02x", x & 0xff));
+		}
+
+		return sb.toString();
+	}
+
+	// results of the last parse()
+
+	/**
+	 * Version in the ClientHello itself, 0x0303 for TLS 1.2 and 1.3.
+	 */
+	public int version() {
+		return version;
+	}
+
+	/**
+	 * Highest version offered, taking supported_versions into account.
+	 */
+	public int highestVersion() {
+		return highestVersion;
+	}
+
+	/**
+	 * True if the whole ClientHello was in the segment.
+	 */
+	public boolean complete() {
+		return complete;
+	}
+
+	public int cipherSuites() {
+		return cipherLength / 2;
+	}
+
+	public int cipherSuite(int i) {
+		return FrameLayout.u16(b, ciphers + i * 2);
+	}
+
+	public int extensions() {
+		return extensionCount;
+	}
+
+	/**
+	 * Offset of the SNI host name, or -1 if there was none.
+	 */
+	public int serverNameOffset() {
+		return serverName;
+	}
+
+	public int serverNameLength() {
+		return serverNameLength;
+	}
+
+	public String serverName() {
+		return serverName < 0 ? null : string(serverName, serverNameLength);
+	}
+
+	/**
+	 * The ALPN protocols offered, comma separated, or null.
+	 */
+	public String alpn() {
+		if (alpn < 0) {
+			return null;
+		}
+
+		StringBuilder sb = new StringBuilder();
+
+		for (int p = alpn; p < alpn + alpnLength;) {
+			int n = FrameLayout.u8(b, p);
+
+			if (p + 1 + n > alpn + alpnLength) {
+				break;
+			}
+
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+
+			sb.append(string(p + 1, n));
+			p += 1 + n;
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Offset of the first ALPN protocol offered, or -1 if there was none.
+	 */
+	public int firstAlpnOffset() {
+		if (alpn < 0 || alpnLength < 1
+				|| 1 + FrameLayout.u8(b, alpn) > alpnLength) {
+			return -1;
+		}
+
+		return alpn + 1;
+	}
+
+	public int firstAlpnLength() {
+		return firstAlpnOffset() < 0 ? 0 : FrameLayout.u8(b, alpn);
+	}
+
+	public String firstAlpn() {
+		int p = firstAlpnOffset();
+
+		return p < 0 ? null : string(p, firstAlpnLength());
+	}
+
+	private String string(int offset, int length) {
+		byte[] s = new byte[length];
+
+		for (int i = 0; i < length; i++) {
+			s[i] = b.get(offset + i);
+		}
+
+		return new String(s, StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Pretty prints the ClientHello in the style of the packet parsers.
+	 * parse() must have returned true.
+	 */
+	public String format() {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("TLS: ----- TLS ClientHello -----\n");
+		sb.append("TLS:                       \n");
+		sb.append("TLS: Version = " + versionLabel(version())
+			+ ", highest offered = " + versionLabel(highestVersion()) + "\n");
+		sb.append("TLS: Cipher suites = " + cipherSuites() + ", extensions = "
+			+ extensions() + (complete() ? "" : " (continues in next segment)")
+			+ "\n");
+
+		if (serverNameOffset() >= 0) {
+			sb.append("TLS: Server name = " + serverName() + "\n");
+		}
+
+		if (alpn() != null) {
+			sb.append("TLS: ALPN = " + alpn() + "\n");
+		}
+
+		if (fingerprint() != null) {
+			sb.append("TLS: JA3 = " + hex(fingerprint()) + "\n");
+		}
+
+		return sb.toString();
+	}
+}
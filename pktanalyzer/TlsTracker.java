@@ -0,0 +1,363 @@
+/*
+ * TlsTracker.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Classifies TLS connections by the ClientHello that opens them: counts
+ * connections and bytes per server name (SNI) and per JA3 fingerprint,
+ * along with the highest version and first ALPN protocol offered.
+ *
+ * Every TCP frame goes through a FlowTable, so the bytes of a connection
+ * are known when the capture ends; only payloads that pass
+ * TlsClientHello's few byte check are decoded. The first ClientHello of a
+ * connection labels it, through two int arrays indexed by the flow index.
+ * Names and fingerprints are keyed by a long, and the String for each is
+ * made the first time it is seen. Past MAX_NAMES of either, further ones
+ * are counted together.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class TlsTracker implements FlowDispatcher.FlowWorker {
+	// server names and fingerprints tracked one by one
+	static final int MAX_NAMES = 4096;
+
+	// key for connections whose ClientHello had no SNI or no fingerprint,
+	// and for the rest
+	static final long NONE = 0;
+	static final long OTHER = -1;
+
+	private final FlowTable table = new FlowTable();
+	private final TlsClientHello hello = new TlsClientHello();
+
+	// per connection: server name and fingerprint index, -1 if no hello
+	private int[] flowName = new int[512];
+	private int[] flowPrint = new int[512];
+
+	private final Names names = new Names("(no SNI)");
+	private final Names prints = new Names("(partial hello)");
+	private final Names alpns = new Names("(no ALPN)");
+
+	// highest version offered, 0x0300 to 0x0304, then the rest
+	private final long[] versions = new long[6];
+
+	private long hellos;
+	private long partial;
+	private long connections;
+	private long tlsBytes;
+	private long otherBytes;
+
+	TlsTracker() {
+		Arrays.fill(flowName, -1);
+	}
+
+	/**
+	 * Counts per name, in arrays indexed through the name's key.
+	 */
+	static class Names {
+		final LongIndexMap keys = new LongIndexMap(64);
+		final String none;
+
+		String[] names = new String[64];
+		long[] flows = new long[64];
+		long[] bytes = new long[64];
+
+		// a server name seen with each fingerprint
+		String[] sample = new String[64];
+
+		Names(String none) {
+			this.none = none;
+		}
+
+		int index(long key, String name) {
+			int i = keys.indexOf(key);
+
+			if (i >= 0) {
+				return i;
+			}
+
+			if (keys.size() >= MAX_NAMES) {
+				key = OTHER;
+				name = "other";
+			}
+
+			i = keys.add(key);
+
+			if (i == names.length) {
+				names = Arrays.copyOf(names, i * 2);
+				flows = Arrays.copyOf(flows, i * 2);
+				bytes = Arrays.copyOf(bytes, i * 2);
+				sample = Arrays.copyOf(sample, i * 2);
+			}
+
+			if (names[i] == null) {
+				names[i] = key == NONE ? none : name;
+			}
+
+			return i;
+		}
+
+		void merge(Names n) {
+			for (int j = 0; j < n.keys.size(); j++) {
+				int i = index(n.keys.keyAt(j), n.names[j]);
+
+				flows[i] += n.flows[j];
+				bytes[i] += n.bytes[j];
+
+				if (sample[i] == null) {
+					sample[i] = n.sample[j];
+				}
+			}
+		}
+
+		/**
+		 * Indexes from the most connections to the fewest.
+		 */
+		Integer[] order() {
+			Integer[] order = new Integer[keys.size()];
+
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+
+			Arrays.sort(order, (x, y) -> Long.compare(flows[y], flows[x]));
+			return order;
+		}
+	}
+
+	@Override
+	public void frame(ByteBuffer b, int frame, int length, long timestamp) {
+		int ip = FrameLayout.ipv4Offset(b, frame, length);
+
+		if (ip < 0 || FrameLayout.protocol(b, ip) != FrameLayout.PROTOCOL_TCP) {
+			return;
+		}
+
+		int f = table.add(b, frame, length, timestamp);
+
+		if (f < 0) {
+			return;
+		}
+
+		if (f >= flowName.length) {
+			grow();
+		}
+
+		if (flowName[f] >= 0) {
+			return;
+		}
+
+		int l4 = FrameLayout.transportOffset(b, ip);
+		int end = FrameLayout.ipv4End(b, ip, frame + length);
+
+		if (l4 < 0 || l4 + FrameLayout.TCP_HEADER > end) {
+			return;
+		}
+
+		int payload = l4 + FrameLayout.dataOffset(b, l4);
+
+		if (!TlsClientHello.isClientHello(b, payload, end)
+				|| !hello.parse(b, payload, end)) {
+			return;
+		}
+
+		hellos++;
+
+		int sni = hello.serverNameOffset();
+		long key = sni < 0 ? NONE : nonZero(LongIndexMap.key(b, sni,
+			hello.serverNameLength()));
+		int i = names.keys.indexOf(key);
+
+		flowName[f] = i >= 0 ? i : names.index(key, hello.serverName());
+
+		byte[] fingerprint = hello.fingerprint();
+
+		if (fingerprint == null) {
+			partial++;
+			flowPrint[f] = prints.index(NONE, null);
+		} else {
+			key = nonZero(ByteBuffer.wrap(fingerprint).getLong());
+			i = prints.keys.indexOf(key);
+			flowPrint[f] = i >= 0 ? i
+				: prints.index(key, TlsClientHello.hex(fingerprint));
+		}
+
+		if (prints.sample[flowPrint[f]] == null) {
+			prints.sample[flowPrint[f]] = names.names[flowName[f]];
+		}
+
+		int version = hello.highestVersion() - 0x0300;
+
+		versions[version >= 0 && version < 5 ? version : 5]++;
+
+		int alpn = hello.firstAlpnOffset();
+
+		key = alpn < 0 ? NONE : nonZero(LongIndexMap.key(b, alpn,
+			hello.firstAlpnLength()));
+		i = alpns.keys.indexOf(key);
+		alpns.flows[i >= 0 ? i : alpns.index(key, hello.firstAlpn())]++;
+	}
+
+	private void grow() {
+		int n = flowName.length;
+
+		flowName = Arrays.copyOf(flowName, n * 2);
+		flowPrint = Arrays.copyOf(flowPrint, n * 2);
+		Arrays.fill(flowName, n, n * 2, -1);
+	}
+
+	private static long nonZero(long key) {
+		return key == NONE || key == OTHER ? 1 : key;
+	}
+
+	/**
+	 * Adds up the connections and bytes of each name and fingerprint,
+	 * once the capture has been read.
+	 */
+	public void finish() {
+		for (int f = 0; f < table.size(); f++) {
+			long bytes = table.bytes(f);
+
+			if (flowName[f] < 0) {
+				otherBytes += bytes;
+				continue;
+			}
+
+			connections++;
+			tlsBytes += bytes;
+			names.flows[flowName[f]]++;
+			names.bytes[flowName[f]] += bytes;
+			prints.flows[flowPrint[f]]++;
+			prints.bytes[flowPrint[f]] += bytes;
+		}
+	}
+
+	/**
+	 * Adds another tracker's results to this one. Both must be finished.
+	 */
+	public void merge(TlsTracker t) {
+		hellos += t.hellos;
+		partial += t.partial;
+		connections += t.connections;
+		tlsBytes += t.tlsBytes;
+		otherBytes += t.otherBytes;
+
+		for (int i = 0; i < versions.length; i++) {
+			versions[i] += t.versions[i];
+		}
+
+		names.merge(t.names);
+		prints.merge(t.prints);
+		alpns.merge(t.alpns);
+	}
+
+	public String format(int limit) {
+		StringBuilder sb = new StringBuilder();
+
+		sb.append("TLS: client hellos = " + hellos + ", split over segments = "
+			+ partial + ", connections = " + connections + ", bytes = "
+			+ tlsBytes + ", other TCP bytes = " + otherBytes + "\n");
+		sb.append("TLS:\n");
+		sb.append("TLS: highest version offered\n");
+
+		for (int i = 0; i < versions.length; i++) {
+			if (versions[i] > 0) {
+				sb.append(String.format("TLS: %-20s %12d\n", i < 5
+					? TlsClientHello.versionLabel(0x0300 + i) : "other",
+					versions[i]));
+			}
+		}
+
+		sb.append("TLS:\n");
+		sb.append("TLS: first ALPN protocol\n");
+
+		for (int i : alpns.order()) {
+			sb.append(String.format("TLS: %-20s %12d\n", alpns.names[i],
+				alpns.flows[i]));
+		}
+
+		sb.append("TLS:\n");
+		sb.append(String.format("TLS: %-40s %12s %14s\n", "server name",
+			"connections", "bytes"));
+
+		Integer[] order = names.order();
+
+		for (int k = 0; k < Math.min(limit, order.length); k++) {
+			int i = order[k];
+
+			sb.append(String.format("TLS: %-40s %12d %14d\n", names.names[i],
+				names.flows[i], names.bytes[i]));
+		}
+
+		sb.append("TLS:\n");
+		sb.append(String.format("TLS: %-40s %12s %14s\n", "JA3 fingerprint",
+			"connections", "bytes"));
+
+		order = prints.order();
+
+		for (int k = 0; k < Math.min(limit, order.length); k++) {
+			int i = order[k];
+
+			sb.append(String.format("TLS: %-40s %12d %14d  %s\n",
+				prints.names[i], prints.flows[i], prints.bytes[i],
+				prints.sample[i] == null ? "" : "e.g. " + prints.sample[i]));
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Command-line entry: --tls [-w workers] [-n names] capture...
+	 */
+	static void run(String[] args, Path dir, PrintStream out)
+			throws Exception {
+		int n = Runtime.getRuntime().availableProcessors();
+		int limit = 20;
+		int i = 1;
+
+		for (; i < args.length - 1; i++) {
+			if (args[i].equals("-w")) {
+				n = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-n")) {
+				limit = Integer.parseInt(args[++i]);
+			} else {
+				break;
+			}
+		}
+
+		if (i >= args.length || n < 1) {
+			throw new IllegalArgumentException("Usage:\n"
+				+ "      java pktanalyzer --tls [-w workers] [-n names] capture...");
+		}
+
+		TlsTracker[] parts = new TlsTracker[n];
+
+		for (int w = 0; w < n; w++) {
+			parts[w] = new TlsTracker();
+		}
+
+		FlowDispatcher.runAll(parts, dir, args, i);
+
+		TlsTracker total = new TlsTracker();
+
+		for (TlsTracker t : parts) {
+			t.finish();
+			total.merge(t);
+		}
+
+		out.print(total.format(limit));
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * TlvOptions.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Walks a region of type-length-value options in place, the layout IPv4
+ * and TCP options share: a one byte code, then for every code but END (0)
+ * and NOP (1) a one byte length counting the code and length bytes, then
+ * the value.
+ *
+ * reset() points the walk at a region and next() steps from option to
+ * option, exposing its code, where it starts and how long it is. END stops
+ * the walk. A length that is below 2 or runs past the region ends the walk
+ * and sets malformed(). Nothing is copied or allocated, so one instance
+ * can be reused for every frame.
+ *
+ * Ipv4Options and TcpOptions add the codes and accessors of their own
+ * protocol.
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class TlvOptions {
+	// codes shared by IPv4 and TCP
+	static final int END = 0;
+	static final int NOP = 1;
+
+	// region being walked
+	private ByteBuffer b;
+	private int position;
+	private int end;
+
+	// option next() stopped at
+	private int code;
+	private int offset;
+	private int length;
+
+	private boolean malformed;
+
+	/**
+	 * Starts a walk over the options from offset from up to to.
+	 */
+	public TlvOptions reset(ByteBuffer b, int from, int to) {
+		this.b = b;
+		this.position = from;
+		this.end = to;
+		this.malformed = false;
+
+		return this;
+	}
+
+	/**
+	 * Moves to the next option. Returns false at the end of the options.
+	 */
+	public boolean next() {
+		if (position >= end) {
+			return false;
+		}
+
+		code = FrameLayout.u8(b, position);
+		offset = position;
+
+		if (code == END) {
+			position = end;
+			return false;
+		}
+
+		if (code == NOP) {
+			length = 1;
+			position++;
+			return true;
+		}
+
+		length = position + 1 < end ? FrameLayout.u8(b, position + 1) : 0;
+
+		if (length < 2 || position + length > end) {
+			malformed = true;
+			position = end;
+			return false;
+		}
+
+		position += length;
+		return true;
+	}
+
+	/**
+	 * The option's first byte: the type of an IPv4 option, the kind of a
+	 * TCP one.
+	 */
+	public int code() {
+		return code;
+	}
+
+	/**
+	 * Offset of the option's code byte.
+	 */
+	public int offset() {
+		return offset;
+	}
+
+	/**
+	 * Length of the option including the code and length bytes.
+	 */
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Offset and length of the option's value, after the code and length.
+	 */
+	public int valueOffset() {
+		return offset + 2;
+	}
+
+	public int valueLength() {
+		return Math.max(length - 2, 0);
+	}
+
+	public boolean malformed() {
+		return malformed;
+	}
+
+	/**
+	 * Buffer being walked, for reading option values.
+	 */
+	ByteBuffer buffer() {
+		return b;
+	}
+}
@@ -10,6 +10,7 @@
 
 package pktanalyzer;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -51,6 +52,9 @@ public class TransmissionControlProtocolPacket {
 	// urgent pointer
 	private Integer urgentPtr;
 
+	// options
+	private byte[] options;
+
 	// payload
 	private byte[] payload;
 
@@ -91,6 +95,12 @@ public class TransmissionControlProtocolPacket {
 		checksum = ((data[16] & 0xff) << 8) | data[17] & 0xff;
 		urgentPtr = ((data[18] & 0xff) << 8) | data[19] & 0xff;
 
+		if (dataOffset() > 5) {
+			// options are present
+			options = Arrays.copyOfRange(data, 20,
+				Math.min(dataOffset() << 2, data.length));
+		}
+
 		if ((dataOffset() << 2) > 5) {
 			payload = Arrays.copyOfRange(data, (dataOffset() << 2), data.length);
 		} else {
@@ -156,6 +166,7 @@ public class TransmissionControlProtocolPacket {
 		if (dataOffset() > 5) {
 			// option present
 			sb.append("TCP: Options present\n");
+			appendOptions(sb);
 		} else {
 			// options not present
 			sb.append("TCP: No options\n");
@@ -172,6 +183,48 @@ public class TransmissionControlProtocolPacket {
 		return sb.toString();
 	}
 
+	/**
+	 * Lists the options this program knows about.
+	 */
+	private void appendOptions(StringBuilder sb) {
+		TcpOptions o = new TcpOptions()
+			.reset(ByteBuffer.wrap(options), 0, options.length).parse();
+
+		if (o.mss() >= 0) {
+			sb.append("TCP:       Maximum segment size = " + o.mss() + "\n");
+		}
+
+		if (o.windowScale() >= 0) {
+			sb.append("TCP:       Window scale = " + o.windowScale() + "\n");
+		}
+
+		if (o.sackPermitted()) {
+			sb.append("TCP:       SACK permitted\n");
+		}
+
+		for (int i = 0; i < o.sackBlocks(); i++) {
+			sb.append("TCP:       SACK = " + (o.sackLeft(i) & 0xffffffffL)
+				+ " - " + (o.sackRight(i) & 0xffffffffL) + "\n");
+		}
+
+		if (o.timestamps()) {
+			sb.append("TCP:       Timestamps = " + (o.tsVal() & 0xffffffffL)
+				+ ", echo reply = " + (o.tsEcr() & 0xffffffffL) + "\n");
+		}
+
+		if (o.malformed()) {
+			sb.append("TCP:       Malformed option\n");
+		}
+	}
+
+	public byte[] options() {
+		if (options != null) {
+			return Arrays.copyOfRange(options, 0, options.length);
+		} else {
+			return null;
+		}
+	}
+
 	public byte[] payload() {
 		return Arrays.copyOfRange(payload, 0, payload.length);
 	}
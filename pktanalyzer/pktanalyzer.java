@@ -11,83 +11,305 @@
 package pktanalyzer;
 
 import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * Entry point of the program.
  * Parses command-line args, performs error checks and runs apt. packet parsers
  *
+ * If PKTANALYZER_SOCKET names the socket of a running AnalyzerDaemon, the
+ * job is sent there instead of being run in this JVM.
+ *
  * @author Tanishq Jain <tj3989@cs.rit.edu>
  */
 
 public class pktanalyzer {
+	// environment variable naming the daemon socket
+	static final String SOCKET_ENV = "PKTANALYZER_SOCKET";
+
+	// one line per mode, the same as the mode prints when misused
+	static final String USAGE = "Usage:\n"
+		+ "      java pktanalyzer ./path_to_packet.bin...\n"
+		+ "      java pktanalyzer --query \"query\" capture...\n"
+		+ "      java pktanalyzer --fields ip.src,ip.dst,tcp.dport,..."
+		+ " capture...\n"
+		+ "      java pktanalyzer --stats [-i seconds] [-w workers]"
+		+ " file|dir|glob...\n"
+		+ "      java pktanalyzer --batch [-io n] [-cpu n] file|dir|glob...\n"
+		+ "      java pktanalyzer --follow [-all] [-poll ms] file|dir\n"
+		+ "      java pktanalyzer --sample [-fixed n | -flow n | -adaptive]"
+		+ " [-w workers] capture...\n"
+		+ "      java pktanalyzer --dedup [-window ms] [-capacity n]"
+		+ " [-fp rate] [-w workers] capture...\n"
+		+ "      java pktanalyzer --merge [-w workers] [-o output]"
+		+ " capture...\n"
+		+ "      java pktanalyzer --write [-f filter] [-split n]"
+		+ " [-open n] output capture...\n"
+		+ "      java pktanalyzer --flows [-w workers] capture...\n"
+		+ "      java pktanalyzer --tcp [-w workers] [-n flows] [-idle s]"
+		+ " capture...\n"
+		+ "      java pktanalyzer --handshake [-w workers] [-n services]"
+		+ " [-timeout ms] [-pending n] capture...\n"
+		+ "      java pktanalyzer --dns [-w workers] [-n resolvers]"
+		+ " [-timeout ms] [-pending n] capture...\n"
+		+ "      java pktanalyzer --http [-w workers] [-n hosts] [-idle s]"
+		+ " capture...\n"
+		+ "      java pktanalyzer --tls [-w workers] [-n names] capture...\n"
+		+ "      java pktanalyzer --match [-w workers] [-n rows] [-i]"
+		+ " signatures capture...\n"
+		+ "      java pktanalyzer --icmp [-w workers] [-n rows] capture...\n"
+		+ "      java pktanalyzer --arp [-n bindings] [-hold s]"
+		+ " [-window ms] [-storm n] capture...\n"
+		+ "      java pktanalyzer --scan [-n rows] [-window s]"
+		+ " [-ports n] [-hosts n] [-sources n] [-udp] capture...\n"
+		+ "      java pktanalyzer --export [-w workers] [-v 9|10]"
+		+ " [-idle s] [-active s] host:port capture...\n"
+		+ "      java pktanalyzer --daemon [-j threads] [-warmup capture]..."
+		+ " socket";
+
 	public static void main(String[] args) {
 		if (args.length < 1) {
-			System.err.println("Usage:");
-			System.err.println("      java pktanalyzer ./path_to_packet.bin");
+			System.err.println(USAGE);
 			System.exit(1);
 		}
 
+		if (args[0].equals("--daemon")) {
+			AnalyzerDaemon.serve(args);
+			return;
+		}
+
+		// hand the job to a resident daemon if there is one
+		String socket = System.getenv(SOCKET_ENV);
+
+		if (socket != null && Files.exists(Paths.get(socket))) {
+			int status = AnalyzerDaemon.submit(Paths.get(socket), args);
+
+			if (status >= 0) {
+				System.exit(status);
+			}
+		}
+
+		int status = run(args, Paths.get("").toAbsolutePath(), System.out,
+			System.err);
+
+		if (status != 0) {
+			System.exit(status);
+		}
+	}
+
+	/**
+	 * Runs one job with relative paths taken from dir, writing to out and
+	 * err. Returns the exit status.
+	 */
+	static int run(String[] args, Path dir, PrintStream out, PrintStream err) {
+		try {
+			if (args[0].startsWith("--")) {
+				// modes other than decoding a single packet
+				runMode(args, dir, out, err);
+			} else {
+				// one or more packets, decoded in turn
+				for (String arg : args) {
+					decode(dir.resolve(arg), out);
+				}
+			}
+
+			return 0;
+		} catch (IllegalArgumentException e) {
+			err.println(e.getMessage());
+			return 1;
+		} catch (Exception e) {
+			e.printStackTrace(err);
+			return 1;
+		} finally {
+			out.flush();
+		}
+	}
+
+	static void decode(Path path, PrintStream out) throws Exception {
 		// get file handler
-		File packet_file = new File(args[0]);
+		File packet_file = path.toFile();
 
 		if (!packet_file.exists()) {
-			System.err.println("Could not find the specified file.");
-			System.err.println("Please enter a valid file path.");
-			System.exit(1);
+			throw new IllegalArgumentException("Could not find the specified file.\n"
+				+ "Please enter a valid file path.");
 		}
 
-		try {
-			// read file as bytes
-			byte[] packet_data = Files.readAllBytes(packet_file.toPath());
-			System.out.println(packet_data[0]);
-			// run the ethernet packet parser
-			EthernetPacket epp = new EthernetPacket(packet_data);
+		// read file as bytes
+		byte[] packet_data = Files.readAllBytes(packet_file.toPath());
+		out.println(packet_data[0]);
+		decode(packet_data, out);
+	}
 
-			// pretty print the packet
-			System.out.print(epp);
+	/**
+	 * Runs the parsers over one frame and pretty prints every layer.
+	 */
+	static void decode(byte[] packet_data, PrintStream out) throws Exception {
+		// run the ethernet packet parser
+		EthernetPacket epp = new EthernetPacket(packet_data);
 
-			// check if its an IP
-			if (epp.ethertypeLabel() == "IP") {
-				// run ipv4 packet parser
-				InternetProtocolV4Packet ippp
-					= new InternetProtocolV4Packet(epp.payload());
+		// pretty print the packet
+		out.print(epp);
+
+		// check if its an IP
+		if (epp.ethertypeLabel() == "IP") {
+			// run ipv4 packet parser
+			InternetProtocolV4Packet ippp
+				= new InternetProtocolV4Packet(epp.payload());
+
+			// pretty print
+			out.print(ippp);
+
+			// get the payload of the ipv4 packet
+			byte[] ipv4Payload = ippp.payload();
+
+			// check if UDP
+			if (ippp.protocolLabel() == "UDP") {
+				// run udp parser
+				UserDatagramProtocolPacket udpp = new UserDatagramProtocolPacket(ipv4Payload);
 
 				// pretty print
-				System.out.print(ippp);
-
-				// get the payload of the ipv4 packet
-				byte[] ipv4Payload = ippp.payload();
-
-				// check if UDP
-				if (ippp.protocolLabel() == "UDP") {
-					// run udp parser
-					UserDatagramProtocolPacket udpp = new UserDatagramProtocolPacket(ipv4Payload);
-
-					// pretty print
-					System.out.println(udpp);
-				} else if (ippp.protocolLabel() == "TCP") {
-					// run tcp packet parser
-					TransmissionControlProtocolPacket tcpp = new
-						TransmissionControlProtocolPacket(ipv4Payload);
-
-					// pretty print
-					System.out.println(tcpp);
-				} else if (ippp.protocolLabel() == "ICMP") {
-					// run icmp packet parser
-					InternetControlMessageProtocolPacket icmpp = new
-					InternetControlMessageProtocolPacket(ipv4Payload);
-
-					// pretty print
-					System.out.println(icmpp);
-				} else {
-					// unhandled packet
-					System.out.println("*** Unhandled Packet type inside IPv4 ***");
+				out.println(udpp);
+
+				// DNS runs over port 53
+				if (udpp.sourcePort() == DnsMessage.PORT
+						|| udpp.destPort() == DnsMessage.PORT) {
+					DnsMessage dns = new DnsMessage();
+
+					if (dns.parse(ByteBuffer.wrap(ipv4Payload), 8,
+							ipv4Payload.length - 8)) {
+						out.println(dns.format());
+					}
 				}
+			} else if (ippp.protocolLabel() == "TCP") {
+				// run tcp packet parser
+				TransmissionControlProtocolPacket tcpp = new
+					TransmissionControlProtocolPacket(ipv4Payload);
+
+				// pretty print
+				out.println(tcpp);
+
+				// TLS connections open with a ClientHello
+				ByteBuffer tcpPayload = ByteBuffer.wrap(tcpp.payload());
+
+				if (TlsClientHello.isClientHello(tcpPayload, 0,
+						tcpPayload.capacity())) {
+					TlsClientHello hello = new TlsClientHello();
+
+					if (hello.parse(tcpPayload, 0, tcpPayload.capacity())) {
+						out.println(hello.format());
+					}
+				}
+			} else if (ippp.protocolLabel() == "ICMP") {
+				// run icmp packet parser
+				InternetControlMessageProtocolPacket icmpp = new
+				InternetControlMessageProtocolPacket(ipv4Payload);
+
+				// pretty print
+				out.println(icmpp);
+			} else {
+				// unhandled packet
+				out.println("*** Unhandled Packet type inside IPv4 ***");
 			}
-		} catch (Exception e) {
-			e.printStackTrace();
-			System.exit(1);
+		} else if (epp.ethertypeLabel() == "ARP") {
+			// run arp packet parser
+			AddressResolutionProtocolPacket arpp
+				= new AddressResolutionProtocolPacket(epp.payload());
+
+			// pretty print
+			out.println(arpp);
+		}
+	}
+
+	private static void runMode(String[] args, Path dir, PrintStream out,
+			PrintStream err) throws Exception {
+		switch (args[0]) {
+			case "--query":
+				PacketQuery.run(args, dir, out);
+				break;
+
+			case "--flows":
+				FlowDispatcher.run(args, dir, out);
+				break;
+
+			case "--export":
+				FlowExporter.run(args, dir, out);
+				break;
+
+			case "--batch":
+				BatchAnalyzer.run(args, dir, out, err);
+				break;
+
+			case "--sample":
+				PacketSampler.run(args, dir, out);
+				break;
+
+			case "--dedup":
+				PacketDeduplicator.run(args, dir, out);
+				break;
+
+			case "--write":
+				CaptureWriter.run(args, dir, out);
+				break;
+
+			case "--merge":
+				CaptureMerger.run(args, dir, out);
+				break;
+
+			case "--follow":
+				FollowReader.run(args, dir, out);
+				break;
+
+			case "--fields":
+				FieldProjection.run(args, dir, out);
+				break;
+
+			case "--stats":
+				CaptureStats.run(args, dir, out);
+				break;
+
+			case "--tcp":
+				TcpAnalyzer.run(args, dir, out);
+				break;
+
+			case "--dns":
+				DnsTracker.run(args, dir, out);
+				break;
+
+			case "--handshake":
+				HandshakeTracker.run(args, dir, out);
+				break;
+
+			case "--http":
+				HttpTracker.run(args, dir, out);
+				break;
+
+			case "--tls":
+				TlsTracker.run(args, dir, out);
+				break;
+
+			case "--match":
+				SignatureTracker.run(args, dir, out);
+				break;
+
+			case "--arp":
+				ArpTracker.run(args, dir, out);
+				break;
+
+			case "--icmp":
+				IcmpTracker.run(args, dir, out);
+				break;
+
+			case "--scan":
+				ScanDetector.run(args, dir, out);
+				break;
+
+			default:
+				throw new IllegalArgumentException("Unknown mode: " + args[0]
+					+ "\n" + USAGE);
 		}
 	}
-}
\ No newline at end of file
+}
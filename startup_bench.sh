@@ -0,0 +1,47 @@
+#!/bin/sh
+#
+# startup_bench.sh
+#
+# Wall time of decoding a single frame, averaged over RUNS launches, for the
+# plain JVM, the JVM with the CDS archive and the native image. Variants
+# whose artifact has not been built (make cds / make native) are skipped.
+#
+# usage: ./startup_bench.sh [frame] [runs]
+
+FRAME=${1:-pkt/tcp2a.bin}
+RUNS=${2:-20}
+OUT=build
+
+bench() {
+	name=$1
+	shift
+
+	# one untimed launch to fill the page cache
+	"$@" "$FRAME" > /dev/null || return
+
+	start=$(date +%s%N)
+	i=0
+	while [ $i -lt "$RUNS" ]; do
+		"$@" "$FRAME" > /dev/null
+		i=$((i + 1))
+	done
+	end=$(date +%s%N)
+
+	awk -v n="$name" -v t=$((end - start)) -v r="$RUNS" \
+		'BEGIN { printf "STARTUP: %-8s %8.1f ms\n", n, t / r / 1000000 }'
+}
+
+echo "STARTUP: $FRAME, $RUNS runs each"
+
+if [ -f $OUT/pktanalyzer.jar ]; then
+	bench jvm java -Xshare:auto -jar $OUT/pktanalyzer.jar
+fi
+
+if [ -f $OUT/pktanalyzer.jsa ]; then
+	bench cds java -XX:SharedArchiveFile=$OUT/pktanalyzer.jsa \
+		-jar $OUT/pktanalyzer.jar
+fi
+
+if [ -x $OUT/pktanalyzer ]; then
+	bench native $OUT/pktanalyzer
+fi
@@ -0,0 +1,292 @@
+/*
+ * DnsMessageCheck.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Checks DnsMessage on hand-built messages: a query and a compressed
+ * response decode, while compression pointers that loop, point forwards
+ * or chain more than MAX_POINTERS times, labels over MAX_LABEL, names over
+ * MAX_NAME and counts or lengths running past the end are all refused.
+ * A message without a question must not keep the previous one's type, and
+ * DnsTracker must not count a type for it.
+ *
+ * Then random and mutated messages are parsed and their records walked,
+ * which must neither throw nor fail to end.
+ *
+ * usage: java pktanalyzer.DnsMessageCheck
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class DnsMessageCheck {
+	static final int FUZZ = 200_000;
+
+	public static void main(String[] args) {
+		DnsMessage m = new DnsMessage();
+
+		// query for example.com AAAA
+		ByteBuffer q = message(0x1234, 0x0100, 1, 0);
+
+		name(q, "example", "com");
+		q.putShort((short) DnsMessage.TYPE_AAAA).putShort((short) 1);
+		check(parse(m, q), "query refused");
+		check(m.id() == 0x1234 && !m.response(), "query header");
+		check(m.name().equals("example.com"), "query name " + m.name());
+		check(m.qType() == DnsMessage.TYPE_AAAA && m.qClass() == 1,
+			"query type and class");
+		check(!m.nextRecord(), "query has no records");
+
+		// response whose answer points back at the question name
+		ByteBuffer r = message(0x1234, 0x8180, 1, 1);
+
+		name(r, "example", "com");
+		r.putShort((short) DnsMessage.TYPE_A).putShort((short) 1);
+		r.putShort((short) (0xc000 | DnsMessage.HEADER));
+		r.putShort((short) DnsMessage.TYPE_A).putShort((short) 1);
+		r.putInt(300).putShort((short) 4).putInt(0x5db8d822);
+		check(parse(m, r), "response refused");
+		check(m.response() && m.answers() == 1, "response header");
+		check(m.nextRecord(), "answer refused");
+		check(m.type() == DnsMessage.TYPE_A && m.ttl() == 300
+			&& m.rdLength() == 4, "answer fields");
+		check(!m.nextRecord(), "more than one answer");
+
+		// a message without a question keeps no type from the last one
+		check(parse(m, q), "query refused");
+		check(parse(m, message(7, 0, 0, 0)), "empty query refused");
+		check(m.questions() == 0 && m.qType() == 0 && m.qClass() == 0,
+			"type " + m.qType() + " left from the previous message");
+		check(m.name().equals("."), "name left from the previous message");
+
+		// pointer to itself, and pointer forwards
+		check(!parse(m, pointerAt(0)), "pointer to itself accepted");
+		check(!parse(m, pointerAt(2)), "forward pointer accepted");
+
+		// chains of backward pointers, at and past the limit
+		check(parse(m, chain(DnsMessage.MAX_POINTERS)), "chain of "
+			+ DnsMessage.MAX_POINTERS + " pointers refused");
+		check(!parse(m, chain(DnsMessage.MAX_POINTERS + 1)), "chain of "
+			+ (DnsMessage.MAX_POINTERS + 1) + " pointers accepted");
+
+		// labels and names at and past their limits
+		String label = "x".repeat(DnsMessage.MAX_LABEL);
+
+		check(parse(m, question(label)), "longest label refused");
+		check(!parse(m, question(label + "x")), "label over "
+			+ DnsMessage.MAX_LABEL + " accepted");
+		check(parse(m, question(label, label, label, label)),
+			"name of " + DnsMessage.MAX_NAME + " refused");
+		check(m.nameLength() == DnsMessage.MAX_NAME, "name length "
+			+ m.nameLength());
+		check(!parse(m, question(label, label, label, label, "y")),
+			"name over " + DnsMessage.MAX_NAME + " accepted");
+
+		// lengths and counts past the end
+		check(!parse(m, ByteBuffer.allocate(DnsMessage.HEADER - 1)),
+			"short header accepted");
+
+		check(!m.parse(q, 0, q.position() - 1), "question cut short accepted");
+		check(!parse(m, message(1, 0, 2, 0).put((byte) 0)),
+			"missing question accepted");
+
+		ByteBuffer over = message(1, 0x8180, 0, 1);
+
+		over.put((byte) 0).putShort((short) 1).putShort((short) 1);
+		over.putInt(0).putShort((short) 100).putInt(0);
+		check(parse(m, over), "header refused");
+		check(!m.nextRecord(), "record running past the end accepted");
+		check(!m.nextRecord(), "walk resumed after a bad record");
+
+		fuzz(m, r);
+		tracker(q);
+		System.out.println("DnsMessageCheck: limits, pointer loops and "
+			+ FUZZ + " fuzzed messages, ok");
+	}
+
+	/**
+	 * Header with the given counts, positioned after it.
+	 */
+	static ByteBuffer message(int id, int flags, int questions, int answers) {
+		ByteBuffer b = ByteBuffer.allocate(1024);
+
+		b.putShort((short) id).putShort((short) flags);
+		b.putShort((short) questions).putShort((short) answers);
+		b.putShort((short) 0).putShort((short) 0);
+		return b;
+	}
+
+	static void name(ByteBuffer b, String... labels) {
+		for (String l : labels) {
+			b.put((byte) l.length()).put(l.getBytes());
+		}
+
+		b.put((byte) 0);
+	}
+
+	static ByteBuffer question(String... labels) {
+		ByteBuffer b = message(1, 0, 1, 0);
+
+		name(b, labels);
+		b.putShort((short) 1).putShort((short) 1);
+		return b;
+	}
+
+	/**
+	 * A question whose name is a pointer to offset HEADER + to, the first
+	 * byte of the name being HEADER.
+	 */
+	static ByteBuffer pointerAt(int to) {
+		ByteBuffer b = message(1, 0, 1, 0);
+
+		b.putShort((short) (0xc000 | DnsMessage.HEADER + to));
+		b.put((byte) 0);
+		b.putShort((short) 1).putShort((short) 1);
+		return b;
+	}
+
+	/**
+	 * A question whose name ends in a chain of n backward pointers. The
+	 * labels of the name hold a root and n - 1 pointers, each to the one
+	 * before it, the first to the root; the name then ends in a pointer to
+	 * the last of them. Labels are cut so no pointer is split by a length.
+	 */
+	static ByteBuffer chain(int n) {
+		ByteBuffer b = message(1, 0, 1, 0);
+		int previous = -1;
+		int left = n - 1;
+
+		while (previous < 0 || left > 0) {
+			int pointers = Math.min(left, (DnsMessage.MAX_LABEL - 1) / 2);
+			int length = pointers * 2 + (previous < 0 ? 1 : 0);
+
+			b.put((byte) length);
+
+			if (previous < 0) {
+				previous = b.position();
+				b.put((byte) 0);
+			}
+
+			for (int i = 0; i < pointers; i++) {
+				int at = b.position();
+
+				b.putShort((short) (0xc000 | previous));
+				previous = at;
+			}
+
+			left -= pointers;
+		}
+
+		b.putShort((short) (0xc000 | previous));
+		b.putShort((short) 1).putShort((short) 1);
+		return b;
+	}
+
+	/**
+	 * Parses what was written to b, or all of it if nothing was.
+	 */
+	static boolean parse(DnsMessage m, ByteBuffer b) {
+		int length = b.position() > 0 ? b.position() : b.limit();
+
+		return m.parse(b, 0, length);
+	}
+
+	/**
+	 * Parses random messages and valid ones with random bytes changed,
+	 * walking every record, none of which may throw.
+	 */
+	static void fuzz(DnsMessage m, ByteBuffer valid) {
+		Random random = new Random(40);
+		int length = valid.position();
+		int parsed = 0;
+
+		for (int i = 0; i < FUZZ; i++) {
+			ByteBuffer b = ByteBuffer.allocate(length);
+
+			if (i % 2 == 0) {
+				byte[] bytes = new byte[random.nextInt(length + 1)];
+
+				random.nextBytes(bytes);
+				b = ByteBuffer.wrap(bytes);
+			} else {
+				b.put(0, valid.array(), 0, length);
+
+				for (int k = 1 + random.nextInt(4); k > 0; k--) {
+					b.put(random.nextInt(length), (byte) random.nextInt(256));
+				}
+			}
+
+			if (m.parse(b, 0, b.capacity())) {
+				parsed++;
+
+				for (int k = 0; m.nextRecord(); k++) {
+					check(k < 65536 * 3, "record walk does not end");
+					check(m.rdata() + m.rdLength() <= b.capacity(),
+						"record past the end");
+				}
+			}
+
+			check(m.nameLength() <= DnsMessage.MAX_NAME, "name overran");
+		}
+
+		check(parsed > 0, "no fuzzed message parsed");
+	}
+
+	/**
+	 * A query without a question after one for AAAA: DnsTracker must list
+	 * one AAAA query and no other type.
+	 */
+	static void tracker(ByteBuffer aaaa) {
+		DnsTracker t = new DnsTracker(1024, 1_000_000_000L);
+
+		t.frame(udp(aaaa), 0, 42 + aaaa.position(), 1);
+
+		ByteBuffer empty = message(9, 0, 0, 0);
+
+		t.frame(udp(empty), 0, 42 + empty.position(), 2);
+
+		String out = t.format(10);
+
+		check(out.contains("DNS: queries = 2,"), "queries\n" + out);
+		check(out.matches("(?s).*DNS: AAAA +1\n.*"), "AAAA count\n" + out);
+		check(!out.matches("(?s).*query types\nDNS: [A-Z0-9]+ +[0-9]+\n"
+			+ "DNS: [A-Z0-9]+ +[0-9]+\n.*"), "extra query type\n" + out);
+	}
+
+	/**
+	 * Ethernet, IPv4 and UDP headers to port 53 around the message.
+	 */
+	static ByteBuffer udp(ByteBuffer dns) {
+		int length = dns.position();
+		ByteBuffer b = ByteBuffer.allocate(42 + length);
+
+		b.putShort(12, (short) 0x0800);
+		b.put(14, (byte) 0x45);
+		b.putShort(16, (short) (28 + length));
+		b.put(22, (byte) 64);
+		b.put(23, (byte) FrameLayout.PROTOCOL_UDP);
+		b.putInt(26, 0x0a000001);
+		b.putInt(30, 0x0a000002);
+		b.putShort(34, (short) 40000);
+		b.putShort(36, (short) DnsMessage.PORT);
+		b.putShort(38, (short) (8 + length));
+		b.put(42, dns.array(), 0, length);
+		return b;
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
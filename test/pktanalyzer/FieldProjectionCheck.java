@@ -0,0 +1,304 @@
+/*
+ * FieldProjectionCheck.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks FieldProjection against the values a generator wrote into 20000
+ * random frames: TCP, UDP and ICMP with and without IP and TCP options,
+ * ARP, non-first fragments, and one frame in ten cut short at a random
+ * length. Every field a frame has must print its value and every field it
+ * lacks must print empty. A line of 64 eth.src columns, wider than the
+ * old fixed flush margin, must come out whole.
+ *
+ * Also times the projection against running the parsers and printing
+ * every frame, the comparison --fields was written for. The times are
+ * printed, not checked.
+ *
+ * usage: java pktanalyzer.FieldProjectionCheck
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FieldProjectionCheck {
+	static final int FRAMES = 20000;
+
+	static final String[] FIELDS = {
+		"frame.len", "frame.cap_len", "eth.dst", "eth.src", "eth.type",
+		"ip.hdr_len", "ip.len", "ip.id", "ip.flags", "ip.frag_offset",
+		"ip.ttl", "ip.proto", "ip.src", "ip.dst", "tcp.srcport",
+		"tcp.dstport", "tcp.seq", "tcp.ack", "tcp.hdr_len", "tcp.flags",
+		"udp.srcport", "udp.dstport", "udp.length", "icmp.type",
+		"icmp.code",
+	};
+
+	// one generated frame and the line it must project to
+	static class Frame {
+		byte[] data;
+		int captured;
+		String expected;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Random random = new Random(34);
+		List<Frame> frames = new ArrayList<>();
+
+		for (int i = 0; i < FRAMES; i++) {
+			frames.add(frame(random));
+		}
+
+		// every field
+		FieldProjection fp = new FieldProjection(FIELDS);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		PrintStream out = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+
+		for (Frame f : frames) {
+			fp.project(ByteBuffer.wrap(f.data), 0, f.captured, f.data.length,
+				0, out);
+		}
+
+		fp.flush(out);
+
+		String[] lines = bytes.toString(StandardCharsets.UTF_8).split("\n", -1);
+
+		check(lines.length == FRAMES + 1, "lines = " + lines.length);
+
+		for (int i = 0; i < FRAMES; i++) {
+			check(lines[i].equals(frames.get(i).expected), "frame " + i
+				+ "\n  got      " + lines[i] + "\n  expected "
+				+ frames.get(i).expected);
+		}
+
+		// the widest lines
+		String[] wide = new String[64];
+
+		Arrays.fill(wide, "eth.src");
+		fp = new FieldProjection(wide);
+		bytes.reset();
+
+		for (Frame f : frames) {
+			fp.project(ByteBuffer.wrap(f.data), 0, f.captured, f.data.length,
+				0, out);
+		}
+
+		fp.flush(out);
+		check(bytes.toString(StandardCharsets.UTF_8).split("\n").length
+			== FRAMES, "wide lines");
+
+		time(frames);
+		System.out.println("FieldProjectionCheck: " + FRAMES + " frames, "
+			+ FIELDS.length + " fields, ok");
+	}
+
+	/**
+	 * Builds a random frame and the projection line it must give.
+	 */
+	static Frame frame(Random random) {
+		int kind = random.nextInt(20);
+		boolean arp = kind < 2;
+		int protocol = kind < 10 ? 6 : kind < 16 || kind == 19 ? 17 : 1;
+		int fragment = kind == 19 ? 1 + random.nextInt(0x1fff) : 0;
+		int ihl = 20 + (random.nextInt(4) == 0 ? 4 * (1 + random.nextInt(3))
+			: 0);
+		int tcpHeader = 20 + (random.nextInt(3) == 0
+			? 4 * (1 + random.nextInt(3)) : 0);
+		int payload = random.nextInt(100);
+		int l4 = protocol == 6 ? tcpHeader + payload : 8 + payload;
+		int total = ihl + l4;
+		byte[] d = new byte[14 + (arp ? 28 : total)];
+		ByteBuffer b = ByteBuffer.wrap(d);
+
+		random.nextBytes(d);
+
+		long dst = random.nextLong() & 0xffffffffffffL;
+		long src = random.nextLong() & 0xffffffffffffL;
+		int type = arp ? 0x0806 : 0x0800;
+
+		b.putShort(0, (short) (dst >>> 32));
+		b.putInt(2, (int) dst);
+		b.putShort(6, (short) (src >>> 32));
+		b.putInt(8, (int) src);
+		b.putShort(12, (short) type);
+
+		int id = random.nextInt(65536);
+		int flags = random.nextInt(3);
+		int ttl = random.nextInt(256);
+		int ipSrc = random.nextInt();
+		int ipDst = random.nextInt();
+
+		if (!arp) {
+			b.put(14, (byte) (0x40 | ihl / 4));
+			b.putShort(16, (short) total);
+			b.putShort(18, (short) id);
+			b.putShort(20, (short) (flags << 13 | fragment));
+			b.put(22, (byte) ttl);
+			b.put(23, (byte) protocol);
+			b.putInt(26, ipSrc);
+			b.putInt(30, ipDst);
+
+			for (int o = 34; o < 14 + ihl; o++) {
+				b.put(o, (byte) 1);
+			}
+
+			if (protocol == 6) {
+				b.put(14 + ihl + 12, (byte) (tcpHeader / 4 << 4));
+
+				for (int o = 20; o < tcpHeader; o++) {
+					b.put(14 + ihl + o, (byte) 1);
+				}
+			} else if (protocol == 17) {
+				b.putShort(14 + ihl + 4, (short) l4);
+			}
+		}
+
+		Frame f = new Frame();
+
+		f.data = d;
+		f.captured = random.nextInt(10) == 0 ? 1 + random.nextInt(d.length)
+			: d.length;
+
+		// what each field prints, empty if the frame lacks it
+		int cap = f.captured;
+		boolean ether = cap >= 14;
+		boolean ip = !arp && cap >= 14 + ihl;
+		int t = 14 + ihl;
+		String[] v = new String[FIELDS.length];
+
+		Arrays.fill(v, "");
+		v[0] = "" + d.length;
+		v[1] = "" + cap;
+
+		if (ether) {
+			v[2] = mac(dst);
+			v[3] = mac(src);
+			v[4] = String.format("0x%04x", type);
+		}
+
+		if (ip) {
+			v[5] = "" + ihl;
+			v[6] = "" + total;
+			v[7] = "" + id;
+			v[8] = "" + flags;
+			v[9] = "" + fragment;
+			v[10] = "" + ttl;
+			v[11] = "" + protocol;
+			v[12] = FrameLayout.formatIP(ipSrc);
+			v[13] = FrameLayout.formatIP(ipDst);
+		}
+
+		if (ip && fragment == 0 && protocol == 6) {
+			v[14] = field(b, t, 0, 2, cap);
+			v[15] = field(b, t, 2, 2, cap);
+			v[16] = field(b, t, 4, 4, cap);
+			v[17] = field(b, t, 8, 4, cap);
+			v[18] = t + 13 <= cap ? "" + tcpHeader : "";
+			v[19] = field(b, t, 13, 1, cap);
+		} else if (ip && fragment == 0 && protocol == 17) {
+			v[20] = field(b, t, 0, 2, cap);
+			v[21] = field(b, t, 2, 2, cap);
+			v[22] = field(b, t, 4, 2, cap);
+		} else if (ip && fragment == 0) {
+			v[23] = field(b, t, 0, 1, cap);
+			v[24] = field(b, t, 1, 1, cap);
+		}
+
+		f.expected = String.join("\t", v);
+		return f;
+	}
+
+	/**
+	 * Unsigned value of width bytes at l4 + offset, or empty if they were
+	 * not all captured.
+	 */
+	static String field(ByteBuffer b, int l4, int offset, int width,
+			int captured) {
+		int at = l4 + offset;
+
+		if (at + width > captured) {
+			return "";
+		}
+
+		long value = 0;
+
+		for (int i = 0; i < width; i++) {
+			value = value << 8 | (b.get(at + i) & 0xff);
+		}
+
+		return "" + value;
+	}
+
+	static String mac(long v) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int shift = 40; shift >= 0; shift -= 8) {
+			sb.append(String.format("%02x", v >>> shift & 0xff));
+
+			if (shift > 0) {
+				sb.append(':');
+			}
+		}
+
+		return sb.toString();
+	}
+
+	/**
+	 * Prints the time to project four fields of every frame and to run the
+	 * parsers and print every frame, best of five passes each.
+	 */
+	static void time(List<Frame> frames) {
+		PrintStream sink = new PrintStream(OutputStream.nullOutputStream());
+		FieldProjection fp = new FieldProjection(new String[] {"ip.src",
+			"ip.dst", "tcp.dstport", "frame.len"});
+		long projection = Long.MAX_VALUE;
+		long decode = Long.MAX_VALUE;
+
+		for (int pass = 0; pass < 5; pass++) {
+			long start = System.nanoTime();
+
+			for (Frame f : frames) {
+				fp.project(ByteBuffer.wrap(f.data), 0, f.captured, f.data.length,
+					0, sink);
+			}
+
+			fp.flush(sink);
+			projection = Math.min(projection, System.nanoTime() - start);
+			start = System.nanoTime();
+
+			for (Frame f : frames) {
+				try {
+					pktanalyzer.decode(f.data, sink);
+				} catch (Exception e) {
+					// frames cut short stop the parsers, as they would there
+				}
+			}
+
+			decode = Math.min(decode, System.nanoTime() - start);
+		}
+
+		System.out.println(String.format("FieldProjectionCheck: projection"
+			+ " %.1f ms, full decode %.1f ms", projection / 1e6, decode / 1e6));
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+ * FlowTableCheck.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks FlowTable against a HashMap model under random adds, finds and
+ * removes. The table is grown well past its first capacity and emptied
+ * again several times, over few enough addresses that probe runs are
+ * long, so remove() has to shift back entries that wrapped around the
+ * end of the slot array and move the last flow into the hole it leaves.
+ *
+ * After every remove the removed flow must no longer be found, and every
+ * thousand steps each flow in the table must match the model, counters
+ * included, and each flow in the model must be found at the index that
+ * holds it.
+ *
+ * usage: java pktanalyzer.FlowTableCheck
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class FlowTableCheck {
+	static final int STEPS = 400_000;
+	static final int ENDPOINTS = 4000;
+
+	// per flow in the model: packets and bytes A to B and B to A, first, last
+	static final int PACKETS_AB = 0;
+	static final int PACKETS_BA = 1;
+	static final int BYTES_AB = 2;
+	static final int BYTES_BA = 3;
+	static final int FIRST = 4;
+	static final int LAST = 5;
+
+	private final Random random = new Random(48);
+	private final FlowTable table = new FlowTable();
+	private final Map<String, long[]> model = new HashMap<>();
+	private final List<String> keys = new ArrayList<>();
+	private final ByteBuffer b = ByteBuffer.allocate(64);
+	private long removes;
+	private int largest;
+
+	public static void main(String[] args) {
+		new FlowTableCheck().run();
+	}
+
+	void run() {
+		for (int step = 0; step < STEPS; step++) {
+			// fill for a while, then drain, and again
+			boolean filling = step / 50_000 % 2 == 0;
+			int op = random.nextInt(10);
+
+			if (op < (filling ? 7 : 3)) {
+				add(step + 1);
+			} else if (op < 9) {
+				remove();
+			} else {
+				frame(random.nextInt(ENDPOINTS));
+				find();
+			}
+
+			largest = Math.max(largest, table.size());
+
+			if (step % 1000 == 999) {
+				verify(step);
+			}
+		}
+
+		verify(STEPS);
+		System.out.println("FlowTableCheck: " + STEPS + " steps, " + removes
+			+ " removes, up to " + largest + " flows, ok");
+	}
+
+	/**
+	 * Writes a frame of the flow of endpoint pair e into b, in a random
+	 * direction. Returns its length on the wire.
+	 */
+	private int frame(int e) {
+		// few addresses and ports, so many keys share hash neighbourhoods
+		int a = 0x0a000000 | e % 61;
+		int z = 0x0a000100 | e / 61 % 67;
+		int pa = 1000 + e % 7;
+		int pz = 80 + e % 5;
+		int protocol = e % 11 == 0 ? 1 : e % 3 == 0 ? 17 : 6;
+		int total = 28 + random.nextInt(1400);
+
+		if (random.nextBoolean()) {
+			int t = a;
+
+			a = z;
+			z = t;
+			t = pa;
+			pa = pz;
+			pz = t;
+		}
+
+		b.clear();
+		b.putShort(12, (short) 0x0800);
+		b.put(14, (byte) 0x45);
+		b.putShort(16, (short) total);
+		b.putShort(20, (short) 0);
+		b.put(23, (byte) protocol);
+		b.putInt(26, a);
+		b.putInt(30, z);
+		b.putShort(34, (short) pa);
+		b.putShort(36, (short) pz);
+
+		return 14 + total;
+	}
+
+	/**
+	 * Model key of the frame in b, with the endpoints in the table's order,
+	 * and whether the frame went A to B.
+	 */
+	private String key(boolean[] forward) {
+		long src = b.getInt(26) & 0xffffffffL;
+		long dst = b.getInt(30) & 0xffffffffL;
+		int protocol = b.get(23);
+		int sp = FlowTable.hasPorts(protocol) ? b.getShort(34) : 0;
+		int dp = FlowTable.hasPorts(protocol) ? b.getShort(36) : 0;
+
+		forward[0] = src < dst || src == dst && sp <= dp;
+
+		return forward[0] ? key(src, dst, sp, dp, protocol)
+			: key(dst, src, dp, sp, protocol);
+	}
+
+	static String key(long a, long z, int pa, int pz, int protocol) {
+		return a + " " + z + " " + pa + " " + pz + " " + protocol;
+	}
+
+	private void add(long timestamp) {
+		int bytes = frame(random.nextInt(ENDPOINTS));
+		boolean[] forward = new boolean[1];
+		String k = key(forward);
+		long[] m = model.get(k);
+
+		if (m == null) {
+			m = new long[6];
+			m[FIRST] = timestamp;
+			model.put(k, m);
+			keys.add(k);
+		}
+
+		int i = table.add(b, 0, 42, timestamp);
+
+		check(i >= 0 && i < table.size(), "add returned " + i);
+		check(table.forward() == forward[0], "direction of " + k);
+
+		m[forward[0] ? PACKETS_AB : PACKETS_BA]++;
+		m[forward[0] ? BYTES_AB : BYTES_BA] += bytes;
+		m[LAST] = timestamp;
+		check(k.equals(key(i)), "add returned flow " + key(i) + " for " + k);
+	}
+
+	private void remove() {
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		// a random flow of the model, swapped out of the key list
+		int r = random.nextInt(keys.size());
+		String k = keys.get(r);
+
+		keys.set(r, keys.get(keys.size() - 1));
+		keys.remove(keys.size() - 1);
+		model.remove(k);
+
+		int i = indexOf(k);
+		int size = table.size();
+
+		table.remove(i);
+		removes++;
+
+		check(table.size() == size - 1, "size after remove");
+		check(indexOf(k) < 0, "removed flow " + k + " still found");
+	}
+
+	private void find() {
+		boolean[] forward = new boolean[1];
+		String k = key(forward);
+		int i = table.find(b, 0, 42);
+
+		if (model.containsKey(k)) {
+			check(i >= 0 && k.equals(key(i)), "find " + k + " gave " + i);
+		} else {
+			check(i < 0, "find " + k + " gave " + i + " for a flow not held");
+		}
+	}
+
+	/**
+	 * Index the table gives for model key k, or -1.
+	 */
+	private int indexOf(String k) {
+		String[] f = k.split(" ");
+
+		b.clear();
+		b.putShort(12, (short) 0x0800);
+		b.put(14, (byte) 0x45);
+		b.putShort(16, (short) 28);
+		b.put(23, (byte) Integer.parseInt(f[4]));
+		b.putInt(26, (int) Long.parseLong(f[0]));
+		b.putInt(30, (int) Long.parseLong(f[1]));
+		b.putShort(34, (short) Integer.parseInt(f[2]));
+		b.putShort(36, (short) Integer.parseInt(f[3]));
+
+		return table.find(b, 0, 42);
+	}
+
+	private String key(int i) {
+		return key(table.addressA(i) & 0xffffffffL,
+			table.addressB(i) & 0xffffffffL, table.portA(i), table.portB(i),
+			table.protocol(i));
+	}
+
+	private void verify(int step) {
+		check(table.size() == model.size(), "step " + step + ": size "
+			+ table.size() + ", model " + model.size());
+
+		for (int i = 0; i < table.size(); i++) {
+			String k = key(i);
+			long[] m = model.get(k);
+			String s = "step " + step + ": flow " + i + " " + k;
+
+			check(m != null, s + " not in the model");
+			check(table.packetsAB(i) == m[PACKETS_AB]
+				&& table.packetsBA(i) == m[PACKETS_BA], s + " packets");
+			check(table.bytesAB(i) == m[BYTES_AB]
+				&& table.bytesBA(i) == m[BYTES_BA], s + " bytes");
+			check(table.first(i) == m[FIRST] && table.last(i) == m[LAST], s
+				+ " times");
+		}
+
+		for (String k : keys) {
+			int i = indexOf(k);
+
+			check(i >= 0 && k.equals(key(i)), "step " + step + ": " + k
+				+ " found at " + i);
+		}
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
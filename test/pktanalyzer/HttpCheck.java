@@ -0,0 +1,298 @@
+/*
+ * HttpCheck.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/**
+ * Checks the HTTP scanning and connection tracking.
+ *
+ * HttpScanner.findCr, the SWAR search for CR eight bytes at a time, is
+ * compared with a byte by byte search over random buffers dense in CR and
+ * in the bytes next to it (0x0c, 0x0e, 0x8d), from every alignment, in
+ * both byte orders and in heap and direct buffers. Then generated requests
+ * and responses with random header lines must give back the method,
+ * status, Host, Content-Length and end of headers they were made with.
+ *
+ * Last, HttpTracker is fed many short connections, closed by FIN or RST
+ * or left to go idle, and must count every request and response while
+ * holding only the few connections still open.
+ *
+ * usage: java pktanalyzer.HttpCheck
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class HttpCheck {
+	static final int BUFFERS = 20000;
+	static final int MESSAGES = 50000;
+	static final int CONNECTIONS = 30000;
+
+	// bytes the CR search is tried on
+	static final byte[] NEAR = {'\r', '\r', 0x0c, 0x0e, (byte) 0x8d, 'a', 0};
+
+	public static void main(String[] args) {
+		Random random = new Random(41);
+
+		findCr(random);
+		messages(random);
+		tracker();
+		System.out.println("HttpCheck: " + BUFFERS + " CR searches, "
+			+ MESSAGES + " messages, " + CONNECTIONS + " connections, ok");
+	}
+
+	static void findCr(Random random) {
+		for (int n = 0; n < BUFFERS; n++) {
+			int length = random.nextInt(80);
+			ByteBuffer b = n % 2 == 0 ? ByteBuffer.allocate(length)
+				: ByteBuffer.allocateDirect(length);
+
+			b.order(n % 4 < 2 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+
+			// sparse or dense in CR
+			int density = 1 + random.nextInt(40);
+
+			for (int i = 0; i < length; i++) {
+				b.put(i, random.nextInt(density) == 0
+					? NEAR[random.nextInt(NEAR.length)]
+					: (byte) random.nextInt(256));
+			}
+
+			for (int from = 0; from <= length; from++) {
+				int to = from + random.nextInt(length - from + 1);
+				int expected = -1;
+
+				for (int i = from; i < to && expected < 0; i++) {
+					if (b.get(i) == '\r') {
+						expected = i;
+					}
+				}
+
+				int found = HttpScanner.findCr(b, from, to);
+
+				if (found != expected) {
+					throw new AssertionError("findCr(" + from + ", " + to
+						+ ") = " + found + ", expected " + expected + " in "
+						+ dump(b));
+				}
+			}
+		}
+	}
+
+	static void messages(Random random) {
+		HttpScanner s = new HttpScanner();
+
+		for (int n = 0; n < MESSAGES; n++) {
+			StringBuilder m = new StringBuilder();
+			boolean request = random.nextBoolean();
+			int method = random.nextInt(HttpScanner.METHODS.length);
+			int status = 100 + random.nextInt(500);
+
+			// padding moves the CRs through every alignment
+			String pad = "p".repeat(random.nextInt(16));
+
+			if (request) {
+				m.append(HttpScanner.METHODS[method] + " /" + pad
+					+ " HTTP/1.1\r\n");
+			} else {
+				m.append("HTTP/1.1 " + status + " OK" + pad + "\r\n");
+			}
+
+			String host = null;
+			long length = -1;
+
+			for (int h = random.nextInt(6); h > 0; h--) {
+				switch (random.nextInt(4)) {
+					case 0:
+						host = "h" + random.nextInt(1000) + ".example";
+						m.append(random.nextBoolean() ? "Host: " : "HOST:\t");
+						m.append(host + "\r\n");
+						break;
+
+					case 1:
+						length = random.nextInt(100000);
+						m.append("Content-Length: " + length + "\r\n");
+						break;
+
+					default:
+						// a value with bytes next to CR in it
+						m.append("X-" + h + ": " + pad + "\u000c\u000e\u008d"
+							+ "\r\n");
+				}
+			}
+
+			m.append("\r\n");
+
+			int headersEnd = m.length();
+
+			m.append("body");
+
+			byte[] bytes = m.toString().getBytes(StandardCharsets.ISO_8859_1);
+			int offset = random.nextInt(8);
+			ByteBuffer b = ByteBuffer.allocate(offset + bytes.length);
+
+			b.put(offset, bytes);
+
+			String what = "message " + n + ":\n" + m;
+
+			check(s.scan(b, offset, b.capacity()), what + "\nrefused");
+			check(s.request() == request, what + "\nrequest or response");
+
+			if (request) {
+				check(s.method() == method, what + "\nmethod");
+				check(s.uri().equals("/" + pad), what + "\nuri " + s.uri());
+			} else {
+				check(s.status() == status, what + "\nstatus " + s.status());
+			}
+
+			check(host == null ? s.host() == null : host.equals(s.host()),
+				what + "\nhost " + s.host());
+			check(s.contentLength() == length, what + "\nlength "
+				+ s.contentLength());
+			check(s.headersEnd() == offset + headersEnd, what
+				+ "\nheaders end " + s.headersEnd());
+
+			// cut inside the headers, the end is not found
+			int cut = offset + 1 + random.nextInt(headersEnd - 1);
+
+			if (s.scan(b, offset, cut)) {
+				check(s.headersEnd() < 0, what + "\ncut at " + cut
+					+ " found the end of headers");
+			}
+		}
+	}
+
+	/**
+	 * Connections of one request and one response each. Most end with a
+	 * FIN after the response, some with a RST after the request, which
+	 * leaves it unanswered, some with a FIN from the client before the
+	 * response, and some are left open to go idle. One connection is
+	 * started every millisecond of capture time.
+	 */
+	static void tracker() {
+		long idle = 5_000_000_000L;
+		HttpTracker t = new HttpTracker(idle);
+		long time = 1_000_000_000_000L;
+		int unanswered = 0;
+		int responses = 0;
+		int most = 0;
+
+		for (int c = 0; c < CONNECTIONS; c++) {
+			int client = 0x0a000000 | c;
+			int port = 1024 + c % 60000;
+
+			time += 1_000_000;
+			t.frame(segment(client, port, true, 0x18,
+				"GET / HTTP/1.1\r\nHost: h" + c % 7 + "\r\n\r\n"), 0,
+				frame.length, time);
+
+			switch (c % 10) {
+				case 0:
+					// reset before an answer
+					t.frame(segment(client, port, true, 0x04, ""), 0,
+						frame.length, time + 1);
+					unanswered++;
+					break;
+
+				case 1:
+					// left open, answered, and never closed
+					t.frame(segment(client, port, false, 0x18, RESPONSE), 0,
+						frame.length, time + 2);
+					responses++;
+					break;
+
+				case 2:
+					// client closes first, then the answer comes
+					t.frame(segment(client, port, true, 0x11, ""), 0,
+						frame.length, time + 1);
+					t.frame(segment(client, port, false, 0x18, RESPONSE), 0,
+						frame.length, time + 2);
+					responses++;
+					break;
+
+				default:
+					t.frame(segment(client, port, false, 0x18, RESPONSE), 0,
+						frame.length, time + 2);
+					t.frame(segment(client, port, false, 0x11, ""), 0,
+						frame.length, time + 3);
+					responses++;
+			}
+
+			most = Math.max(most, t.connections());
+		}
+
+		// the open ones of the last idle period and a sweep interval
+		long bound = (idle + HttpTracker.SWEEP_INTERVAL) / 1_000_000 / 10 + 10;
+
+		check(most <= bound, "held up to " + most + " connections, bound "
+			+ bound);
+
+		t.finish();
+
+		String out = t.format(10);
+
+		check(out.startsWith("HTTP: requests = " + CONNECTIONS
+			+ ", responses = " + responses + ", unanswered = " + unanswered
+			+ ", unmatched responses = 0,"), out);
+	}
+
+	static final String RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 0"
+		+ "\r\n\r\n";
+
+	// last segment made
+	static byte[] frame;
+
+	/**
+	 * A TCP segment between client:port and 10.255.0.1:80 with the given
+	 * flags and payload.
+	 */
+	static ByteBuffer segment(int client, int port, boolean toServer,
+			int flags, String payload) {
+		byte[] p = payload.getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer b = ByteBuffer.allocate(54 + p.length);
+		int server = 0x0aff0001;
+
+		b.putShort(12, (short) 0x0800);
+		b.put(14, (byte) 0x45);
+		b.putShort(16, (short) (40 + p.length));
+		b.put(22, (byte) 64);
+		b.put(23, (byte) FrameLayout.PROTOCOL_TCP);
+		b.putInt(26, toServer ? client : server);
+		b.putInt(30, toServer ? server : client);
+		b.putShort(34, (short) (toServer ? port : 80));
+		b.putShort(36, (short) (toServer ? 80 : port));
+		b.put(46, (byte) 0x50);
+		b.put(47, (byte) flags);
+		b.put(54, p);
+
+		frame = b.array();
+		return b;
+	}
+
+	static String dump(ByteBuffer b) {
+		StringBuilder sb = new StringBuilder();
+
+		for (int i = 0; i < b.capacity(); i++) {
+			sb.append(String.format("%02x", b.get(i)));
+		}
+
+		return sb.toString();
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * IpfixEncoderCheck.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Sends flow records through IpfixEncoder to a DatagramChannel on the
+ * loopback address, in both IPFIX and NetFlow v9, and decodes what
+ * arrives: message headers and sequence numbers, the template in the
+ * first message and every TEMPLATE_REFRESH after it, set lengths and v9
+ * padding, and every field of every record against what was sent.
+ *
+ * Enough records are sent for the template to go out more than once.
+ * Datagrams are read as they are sent, so none are lost to a full socket
+ * buffer.
+ *
+ * usage: java pktanalyzer.IpfixEncoderCheck
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class IpfixEncoderCheck {
+	static final int RECORDS = 4000;
+	static final int DOMAIN = 42;
+
+	// first record's start, in milliseconds since the epoch
+	static final long BASE = 1_700_000_000_000L;
+
+	// template fields as element ID, length pairs
+	static final int[] IPFIX_FIELDS = {8, 4, 12, 4, 7, 2, 11, 2, 4, 1, 6, 1,
+		2, 8, 1, 8, 152, 8, 153, 8, 136, 1};
+	static final int[] V9_FIELDS = {8, 4, 12, 4, 7, 2, 11, 2, 4, 1, 6, 1,
+		2, 8, 1, 8, 22, 4, 21, 4};
+
+	// collector side
+	private final int version;
+	private final DatagramChannel collector;
+	private final ByteBuffer datagram = ByteBuffer.allocate(65536);
+	private int messages;
+	private int records;
+	private int templates;
+
+	IpfixEncoderCheck(int version, DatagramChannel collector) {
+		this.version = version;
+		this.collector = collector;
+	}
+
+	public static void main(String[] args) throws Exception {
+		for (int version : new int[] {IpfixEncoder.IPFIX,
+				IpfixEncoder.NETFLOW_V9}) {
+			try (DatagramChannel in = DatagramChannel.open();
+					DatagramChannel out = DatagramChannel.open()) {
+				in.setOption(StandardSocketOptions.SO_RCVBUF, 1 << 20);
+				in.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					0));
+				in.configureBlocking(false);
+
+				new IpfixEncoderCheck(version, in).run(out,
+					in.getLocalAddress());
+			}
+		}
+	}
+
+	void run(DatagramChannel channel, SocketAddress address)
+			throws Exception {
+		IpfixEncoder encoder = new IpfixEncoder(version, channel, address,
+			new IpfixEncoder.Pool(1), DOMAIN);
+
+		encoder.boot(BASE);
+
+		for (int k = 0; k < RECORDS; k++) {
+			encoder.record(source(k), dest(k), k & 0xffff, k * 31 & 0xffff,
+				protocol(k), k & 0xff, k + 1, (k + 1) * 1_000_000L, start(k),
+				end(k), 1 + k % 4);
+			receive(0);
+		}
+
+		encoder.flush();
+		receive(encoder.messagesSent());
+
+		check(records == RECORDS, "records received = " + records);
+		check(messages == encoder.messagesSent(), "messages received = "
+			+ messages + ", sent = " + encoder.messagesSent());
+		check(encoder.recordsSent() == RECORDS, "records sent = "
+			+ encoder.recordsSent());
+		check(templates == (messages + IpfixEncoder.TEMPLATE_REFRESH - 1)
+			/ IpfixEncoder.TEMPLATE_REFRESH, "templates = " + templates);
+		check(templates > 1, "template refresh not reached");
+
+		System.out.println("IpfixEncoderCheck: version " + version + ", "
+			+ messages + " messages, " + records + " records, " + templates
+			+ " templates, ok");
+	}
+
+	static int source(int k) {
+		return 0x0a000000 | k * 7919;
+	}
+
+	static int dest(int k) {
+		return ~k;
+	}
+
+	static int protocol(int k) {
+		return k % 3 == 0 ? 17 : 6;
+	}
+
+	static long start(int k) {
+		return BASE + k * 10L;
+	}
+
+	static long end(int k) {
+		return start(k) + k;
+	}
+
+	/**
+	 * Decodes the datagrams waiting, then keeps waiting until at least
+	 * total messages have come, for up to five seconds.
+	 */
+	private void receive(long total) throws Exception {
+		long deadline = System.nanoTime() + 5_000_000_000L;
+
+		while (true) {
+			datagram.clear();
+
+			if (collector.receive(datagram) != null) {
+				datagram.flip();
+				decode(datagram);
+				continue;
+			}
+
+			if (messages >= total) {
+				return;
+			}
+
+			check(System.nanoTime() < deadline, "timed out after " + messages
+				+ " messages");
+			Thread.sleep(1);
+		}
+	}
+
+	private void decode(ByteBuffer b) {
+		int header = version == IpfixEncoder.IPFIX ? 16 : 20;
+		int[] fields = version == IpfixEncoder.IPFIX ? IPFIX_FIELDS
+			: V9_FIELDS;
+		int length = 0;
+
+		for (int f = 1; f < fields.length; f += 2) {
+			length += fields[f];
+		}
+
+		String m = "version " + version + " message " + messages + ": ";
+		int first = records;
+		boolean template = false;
+
+		check(b.limit() <= IpfixEncoder.MAX_MESSAGE, m + "length "
+			+ b.limit());
+		check(b.getShort(0) == version, m + "version " + b.getShort(0));
+
+		if (version == IpfixEncoder.IPFIX) {
+			check((b.getShort(2) & 0xffff) == b.limit(), m + "length");
+			check(b.getInt(8) == records, m + "sequence " + b.getInt(8));
+			check(b.getInt(12) == DOMAIN, m + "domain");
+		} else {
+			check(b.getInt(12) == messages, m + "sequence " + b.getInt(12));
+			check(b.getInt(16) == DOMAIN, m + "source id");
+		}
+
+		int at = header;
+
+		while (at < b.limit()) {
+			int id = b.getShort(at) & 0xffff;
+			int setLength = b.getShort(at + 2) & 0xffff;
+
+			check(setLength >= 4 && at + setLength <= b.limit(), m
+				+ "set length " + setLength);
+
+			if (version == IpfixEncoder.NETFLOW_V9) {
+				check(setLength % 4 == 0, m + "flowset not padded");
+			}
+
+			if (id == (version == IpfixEncoder.IPFIX ? 2 : 0)) {
+				check(!template && at == header, m + "template out of place");
+				check(setLength == 8 + fields.length * 2, m
+					+ "template length");
+				check((b.getShort(at + 4) & 0xffff) == IpfixEncoder.TEMPLATE_ID,
+					m + "template id");
+				check(b.getShort(at + 6) == fields.length / 2, m
+					+ "field count");
+
+				for (int f = 0; f < fields.length; f++) {
+					check(b.getShort(at + 8 + f * 2) == fields[f], m
+						+ "template field " + f);
+				}
+
+				template = true;
+				templates++;
+			} else {
+				check(id == IpfixEncoder.TEMPLATE_ID, m + "set id " + id);
+
+				int n = (setLength - 4) / length;
+
+				check(setLength - 4 - n * length
+					< (version == IpfixEncoder.IPFIX ? 1 : 4), m
+					+ "data set length " + setLength);
+
+				for (int r = 0; r < n; r++) {
+					record(b, at + 4 + r * length, m);
+				}
+			}
+
+			at += setLength;
+		}
+
+		check(at == b.limit(), m + "sets overrun the message");
+		check(template == (messages % IpfixEncoder.TEMPLATE_REFRESH == 0), m
+			+ "template " + (template ? "not due" : "missing"));
+		check(records > first, m + "no records");
+
+		// export time is that of the latest flow end so far
+		long export = end(records - 1);
+
+		if (version == IpfixEncoder.IPFIX) {
+			check(b.getInt(4) == (int) (export / 1000), m + "export time");
+		} else {
+			check(b.getShort(2) == records - first + (template ? 1 : 0), m
+				+ "count " + b.getShort(2));
+			check(b.getInt(4) == (int) (export - BASE), m + "uptime");
+			check(b.getInt(8) == (int) (export / 1000), m + "unix secs");
+		}
+
+		messages++;
+	}
+
+	private void record(ByteBuffer b, int at, String m) {
+		int k = records++;
+
+		m += "record " + k + ": ";
+		check(b.getInt(at) == source(k), m + "source");
+		check(b.getInt(at + 4) == dest(k), m + "dest");
+		check((b.getShort(at + 8) & 0xffff) == (k & 0xffff), m + "source port");
+		check((b.getShort(at + 10) & 0xffff) == (k * 31 & 0xffff), m
+			+ "dest port");
+		check(b.get(at + 12) == protocol(k), m + "protocol");
+		check((b.get(at + 13) & 0xff) == (k & 0xff), m + "tcp flags");
+		check(b.getLong(at + 14) == k + 1, m + "packets");
+		check(b.getLong(at + 22) == (k + 1) * 1_000_000L, m + "octets");
+
+		if (version == IpfixEncoder.IPFIX) {
+			check(b.getLong(at + 30) == start(k), m + "start");
+			check(b.getLong(at + 38) == end(k), m + "end");
+			check(b.get(at + 46) == 1 + k % 4, m + "end reason");
+		} else {
+			check(b.getInt(at + 30) == start(k) - BASE, m + "first switched");
+			check(b.getInt(at + 34) == end(k) - BASE, m + "last switched");
+		}
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * TlsClientHelloCheck.java
+ *
+ * Version:
+ *     $Id$
+ *
+ * Revisions:
+ *     $Log$
+ */
+
+package pktanalyzer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+
+/**
+ * Checks the JA3 fingerprint TlsClientHello digests as it walks the
+ * ClientHello against one made the plain way: the JA3 string built up in
+ * full, GREASE values left out, then hashed with MD5.
+ *
+ * One ClientHello is written out by hand with its JA3 string. Then random
+ * ones are generated with GREASE values among the cipher suites,
+ * extensions, groups and point formats, empty lists, no extensions at
+ * all, and values of up to five digits. A ClientHello cut short by the
+ * end of the segment must get no fingerprint, and the server name and
+ * ALPN must come back as written.
+ *
+ * usage: java pktanalyzer.TlsClientHelloCheck
+ *
+ * @author Tanishq Jain <tj3989@cs.rit.edu>
+ */
+
+public class TlsClientHelloCheck {
+	static final int HELLOS = 20000;
+
+	public static void main(String[] args) throws Exception {
+		TlsClientHello h = new TlsClientHello();
+
+		// TLS 1.2 record, three suites after a GREASE one, SNI, groups,
+		// point formats, ALPN and a GREASE extension
+		Hello known = new Hello(0x0303);
+
+		known.ciphers = new int[] {0x0a0a, 0x1301, 0x1302, 0xc02b};
+		known.extension(0x2a2a, new byte[0]);
+		known.extension(0, sni("example.com"));
+		known.extension(10, list(2, 0x3a3a, 29, 23, 24));
+		known.extension(11, list(1, 0));
+		known.extension(16, alpn("h2", "http/1.1"));
+
+		String ja3 = "771,4865-4866-49195,0-10-11-16,29-23-24,0";
+
+		check(known.ja3().equals(ja3), "reference JA3 " + known.ja3());
+		verify(h, known, "known");
+		check(h.serverName().equals("example.com"), "server name "
+			+ h.serverName());
+		check(h.firstAlpn().equals("h2"), "alpn " + h.firstAlpn());
+
+		Random random = new Random(42);
+
+		for (int n = 0; n < HELLOS; n++) {
+			Hello g = random(random);
+
+			verify(h, g, "hello " + n + " " + g.ja3());
+
+			// cut short: decoded as far as it goes, never fingerprinted
+			byte[] bytes = g.bytes();
+			int cut = 6 + random.nextInt(bytes.length - 6);
+
+			if (h.parse(ByteBuffer.wrap(bytes), 0, cut)) {
+				check(h.fingerprint() == null, "hello " + n + " cut at " + cut
+					+ " fingerprinted");
+			}
+		}
+
+		System.out.println("TlsClientHelloCheck: " + (HELLOS + 1)
+			+ " fingerprints, ok");
+	}
+
+	/**
+	 * Parses g at a random offset and compares its fingerprint, twice so
+	 * the kept digest is checked too.
+	 */
+	static void verify(TlsClientHello h, Hello g, String what)
+			throws Exception {
+		byte[] bytes = g.bytes();
+		ByteBuffer b = ByteBuffer.allocate(bytes.length + 7);
+
+		b.put(3, bytes);
+
+		check(h.parse(b, 3, 3 + bytes.length), what + ": refused");
+		check(h.complete(), what + ": not complete");
+
+		String expected = TlsClientHello.hex(MessageDigest.getInstance("MD5")
+			.digest(g.ja3().getBytes(StandardCharsets.US_ASCII)));
+
+		check(TlsClientHello.hex(h.fingerprint()).equals(expected), what
+			+ ": fingerprint " + TlsClientHello.hex(h.fingerprint())
+			+ ", expected " + expected);
+		check(TlsClientHello.hex(h.fingerprint()).equals(expected), what
+			+ ": fingerprint changed when asked again");
+	}
+
+	static Hello random(Random random) {
+		Hello g = new Hello(random.nextBoolean() ? 0x0303 : 0x0301);
+
+		g.session = random.nextInt(33);
+		g.ciphers = values(random, random.nextInt(40), 0xffff);
+
+		if (random.nextInt(10) == 0) {
+			g.extensions = null;
+			return g;
+		}
+
+		for (int e = random.nextInt(16); e > 0; e--) {
+			switch (random.nextInt(6)) {
+				case 0:
+					g.extension(10, list(2, values(random, random.nextInt(12),
+						0xffff)));
+					break;
+
+				case 1:
+					g.extension(11, list(1, values(random, random.nextInt(4),
+						0xff)));
+					break;
+
+				case 2:
+					g.extension(grease(random), new byte[random.nextInt(3)]);
+					break;
+
+				default:
+					byte[] body = new byte[random.nextInt(20)];
+
+					random.nextBytes(body);
+					g.extension(random.nextInt(65536), body);
+			}
+		}
+
+		return g;
+	}
+
+	/**
+	 * Random values below limit, one in five a GREASE value.
+	 */
+	static int[] values(Random random, int n, int limit) {
+		int[] v = new int[n];
+
+		for (int i = 0; i < n; i++) {
+			v[i] = limit > 0xff && random.nextInt(5) == 0 ? grease(random)
+				: random.nextInt(limit + 1);
+		}
+
+		return v;
+	}
+
+	static int grease(Random random) {
+		int x = random.nextInt(16);
+
+		return (x << 12) | 0x0a00 | (x << 4) | 0x0a;
+	}
+
+	static boolean grease(int v) {
+		return (v & 0x0f0f) == 0x0a0a && (v >> 8) == (v & 0xff);
+	}
+
+	/**
+	 * A list extension body: a length of lengthSize bytes, then the
+	 * values, two bytes each for groups and one for point formats.
+	 */
+	static byte[] list(int lengthSize, int... values) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		int size = lengthSize;
+
+		if (lengthSize == 2) {
+			out.write(values.length * size >> 8);
+		}
+
+		out.write(values.length * size);
+
+		for (int v : values) {
+			if (size == 2) {
+				out.write(v >> 8);
+			}
+
+			out.write(v);
+		}
+
+		return out.toByteArray();
+	}
+
+	static byte[] sni(String name) {
+		byte[] n = name.getBytes(StandardCharsets.US_ASCII);
+		ByteBuffer b = ByteBuffer.allocate(5 + n.length);
+
+		b.putShort((short) (3 + n.length)).put((byte) 0)
+			.putShort((short) n.length).put(n);
+		return b.array();
+	}
+
+	static byte[] alpn(String... protocols) {
+		ByteArrayOutputStream list = new ByteArrayOutputStream();
+
+		for (String p : protocols) {
+			list.write(p.length());
+			list.writeBytes(p.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		ByteBuffer b = ByteBuffer.allocate(2 + list.size());
+
+		b.putShort((short) list.size()).put(list.toByteArray());
+		return b.array();
+	}
+
+	/**
+	 * A ClientHello to write out, and its JA3 string made in full.
+	 */
+	static class Hello {
+		final int version;
+		int session;
+		int[] ciphers = new int[0];
+
+		// null for a ClientHello without extensions
+		ByteArrayOutputStream extensions = new ByteArrayOutputStream();
+		StringBuilder types = new StringBuilder();
+		String groups;
+		String formats;
+
+		Hello(int version) {
+			this.version = version;
+		}
+
+		void extension(int type, byte[] body) {
+			extensions.write(type >> 8);
+			extensions.write(type);
+			extensions.write(body.length >> 8);
+			extensions.write(body.length);
+			extensions.writeBytes(body);
+
+			if (!grease(type)) {
+				join(types, type);
+			}
+
+			// the first of each counts
+			if (type == 10 && groups == null) {
+				groups = values(body, 2);
+			} else if (type == 11 && formats == null) {
+				formats = values(body, 1);
+			}
+		}
+
+		static String values(byte[] body, int size) {
+			StringBuilder sb = new StringBuilder();
+
+			for (int i = size; i + size <= body.length; i += size) {
+				int v = size == 2 ? (body[i] & 0xff) << 8 | body[i + 1] & 0xff
+					: body[i] & 0xff;
+
+				if (!grease(v)) {
+					join(sb, v);
+				}
+			}
+
+			return sb.toString();
+		}
+
+		static void join(StringBuilder sb, int v) {
+			if (sb.length() > 0) {
+				sb.append('-');
+			}
+
+			sb.append(v);
+		}
+
+		String ja3() {
+			StringBuilder c = new StringBuilder();
+
+			for (int v : ciphers) {
+				if (!grease(v)) {
+					join(c, v);
+				}
+			}
+
+			return version + "," + c + "," + types + ","
+				+ (groups == null ? "" : groups) + ","
+				+ (formats == null ? "" : formats);
+		}
+
+		byte[] bytes() {
+			int ext = extensions == null ? 0 : 2 + extensions.size();
+			int body = 2 + 32 + 1 + session + 2 + ciphers.length * 2 + 2 + ext;
+			ByteBuffer b = ByteBuffer.allocate(5 + 4 + body);
+
+			b.put((byte) TlsClientHello.CONTENT_HANDSHAKE).putShort((short) 0x0301)
+				.putShort((short) (4 + body));
+			b.putInt(TlsClientHello.CLIENT_HELLO << 24 | body);
+			b.putShort((short) version);
+			b.position(b.position() + 32);
+			b.put((byte) session);
+			b.position(b.position() + session);
+			b.putShort((short) (ciphers.length * 2));
+
+			for (int v : ciphers) {
+				b.putShort((short) v);
+			}
+
+			// one compression method, null
+			b.put((byte) 1).put((byte) 0);
+
+			if (extensions != null) {
+				b.putShort((short) extensions.size());
+				b.put(extensions.toByteArray());
+			}
+
+			return b.array();
+		}
+	}
+
+	static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new AssertionError(message);
+		}
+	}
+}